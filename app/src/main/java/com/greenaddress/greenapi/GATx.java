@@ -7,6 +7,7 @@ import com.greenaddress.greenbits.GaService;
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionInput;
 import org.bitcoinj.core.TransactionOptions;
@@ -25,6 +26,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
@@ -91,6 +93,29 @@ public class GATx {
                                        ep.getInt(ep.getKey("pubkey_pointer", "pointer")));
     }
 
+    /* Create the outscripts for the given utxos, in batches per subaccount */
+    public static List<byte[]> createOutScripts(final GaService service, final List<JSONMap> utxos) {
+        final Map<Integer, List<Integer>> indices = new HashMap<>();
+        for (int i = 0; i < utxos.size(); ++i) {
+            final int subAccount = utxos.get(i).getInt("subaccount", 0);
+            if (!indices.containsKey(subAccount))
+                indices.put(subAccount, new ArrayList<Integer>());
+            indices.get(subAccount).add(i);
+        }
+        final byte[][] outScripts = new byte[utxos.size()][];
+        for (final Map.Entry<Integer, List<Integer>> e : indices.entrySet()) {
+            final List<Integer> pointers = new ArrayList<>(e.getValue().size());
+            for (final int i : e.getValue()) {
+                final JSONMap utxo = utxos.get(i);
+                pointers.add(utxo.getInt(utxo.getKey("pubkey_pointer", "pointer")));
+            }
+            final List<byte[]> scripts = service.createOutScripts(e.getKey(), pointers);
+            for (int j = 0; j < scripts.size(); ++j)
+                outScripts[e.getValue().get(j)] = scripts.get(j);
+        }
+        return Arrays.asList(outScripts);
+    }
+
     public static byte[] createInScript(final List<byte[]> sigs, final byte[] outScript,
                                   final int scriptType) {
         if (scriptType == P2SH_FORTIFIED_OUT || scriptType == REDEEM_P2SH_FORTIFIED)
@@ -226,29 +251,30 @@ public class GATx {
     /* Create previous outputs for tx construction from uxtos */
     public static List<Output> createPrevouts(final GaService service, final List<JSONMap> utxos) {
         final List<Output> prevOuts = new ArrayList<>();
-        for (final JSONMap utxo : utxos)
+        final List<byte[]> outScripts = createOutScripts(service, utxos);
+        for (int i = 0; i < utxos.size(); ++i) {
+            final JSONMap utxo = utxos.get(i);
             prevOuts.add(new Output(utxo.getInt("subaccount"),
                                     utxo.getInt(utxo.getKey("pubkey_pointer", "pointer")),
                                     HDKey.BRANCH_REGULAR,
                                     getOutScriptType(utxo.getInt("script_type")),
-                                    Wally.hex_from_bytes(createOutScript(service, utxo)),
+                                    Wally.hex_from_bytes(outScripts.get(i)),
                                     utxo.getLong("value")));
+        }
         return prevOuts;
     }
 
     /* Return the previous transactions for each of a txs inputs */
     public static List<Transaction> getPreviousTransactions(final GaService service, final Transaction tx) {
-        final List<Transaction> previousTxs = new ArrayList<>();
+        final List<Sha256Hash> txHashes = new ArrayList<>(tx.getInputs().size());
+        for (final TransactionInput in : tx.getInputs())
+            txHashes.add(in.getOutpoint().getHash());
         try {
-            for (final TransactionInput in : tx.getInputs()) {
-                final String txhex = service.getRawOutputHex(in.getOutpoint().getHash());
-                previousTxs.add(GaService.buildTransaction(txhex, service.getNetworkParameters()));
-            }
+            return service.getRawOutputs(txHashes).get();
         } catch (final Exception e) {
             e.printStackTrace();
             return null;
         }
-        return previousTxs;
     }
 
     // Estimate the size of Elements specific parts of a tx
@@ -7,10 +7,13 @@ import org.bitcoinj.crypto.DeterministicKey;
 import org.bitcoinj.crypto.HDKeyDerivation;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 public class HDClientKey {
     private static final SparseArray<DeterministicKey> mClientKeys = new SparseArray<>();
+    // The BRANCH_REGULAR children of mClientKeys, derived on first use
+    private static final SparseArray<DeterministicKey> mBranchKeys = new SparseArray<>();
 
     //
     // Temporary methods for use while converting from DeterministicKey
@@ -18,17 +21,34 @@ public class HDClientKey {
         return HDKeyDerivation.deriveChildKey(parent, new ChildNumber(childNum));
     }
 
+    private static DeterministicKey getBranchKey(final int subAccount) {
+        synchronized (mClientKeys) {
+            DeterministicKey ret = mBranchKeys.get(subAccount);
+            if (ret == null) {
+                ret = deriveChildKey(mClientKeys.get(subAccount), HDKey.BRANCH_REGULAR);
+                mBranchKeys.put(subAccount, ret);
+            }
+            return ret;
+        }
+    }
+
     public static DeterministicKey getMyPublicKey(final int subAccount, final Integer pointer) {
-        final DeterministicKey ret = deriveChildKey(mClientKeys.get(subAccount), HDKey.BRANCH_REGULAR);
+        final DeterministicKey ret = getBranchKey(subAccount);
         if (pointer == null)
             return ret;
         return deriveChildKey(ret, pointer); // Child
     }
 
+    public static List<byte[]> getMyChildPublicKeys(final int subAccount, final List<Integer> pointers,
+                                                    final Network network) {
+        return HDKey.deriveChildPubKeys(getBranchKey(subAccount), pointers, network);
+    }
+
     public static void resetCache(final ArrayList<Map<String, Object>> subAccounts,
                                   final ISigningWallet hdParent) {
         synchronized (mClientKeys) {
             mClientKeys.clear();
+            mBranchKeys.clear();
             if (hdParent == null)
                 return;
             mClientKeys.put(0, hdParent.getSubAccountPublicKey(0));
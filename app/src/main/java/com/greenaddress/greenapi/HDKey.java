@@ -13,6 +13,8 @@ import org.bitcoinj.crypto.HDKeyDerivation;
 import org.bitcoinj.crypto.LazyECPoint;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import static com.blockstream.libwally.Wally.BIP32_FLAG_KEY_PUBLIC;
 import static com.blockstream.libwally.Wally.BIP32_FLAG_SKIP_HASH;
@@ -65,6 +67,47 @@ public class HDKey {
         return ret;
     }
 
+    // Get the public keys of the given children of the servers subaccount key
+    public static List<byte[]> getGAChildPublicKeys(final int subAccount, final List<Integer> pointers, final Network network) {
+        return deriveChildPubKeys(getGAPublicKeys(subAccount, null, network)[0], pointers, network);
+    }
+
+    // Get the public keys of the given children of the 2of3 backup key
+    public static List<byte[]> getRecoveryChildPublicKeys(final byte[] chainCode, final byte[] publicKey,
+                                                          final List<Integer> pointers, final Network network) {
+        return deriveChildPubKeys(getRecoveryKeys(chainCode, publicKey, null)[0], pointers, network);
+    }
+
+    // Derive the public keys of many children of a key at once using wally,
+    // which is much faster than deriving each of them through bitcoinj
+    public static List<byte[]> deriveChildPubKeys(final DeterministicKey parent, final List<Integer> childNums,
+                                                  final Network network) {
+        final List<byte[]> pubKeys = new ArrayList<>(childNums.size());
+        final Object wallyParent = Wally.bip32_key_init(network.getVerPublic(), 0, 0,
+                                                        parent.getChainCode(), parent.getPubKey(),
+                                                        null, null, null);
+        final int flags = BIP32_FLAG_KEY_PUBLIC | BIP32_FLAG_SKIP_HASH;
+        final int[] path = new int[1];
+        try {
+            for (final int childNum : childNums) {
+                path[0] = childNum;
+                final Object derived = Wally.bip32_key_from_parent_path(wallyParent, path, flags);
+                pubKeys.add(Wally.bip32_key_get_pub_key(derived));
+                Wally.bip32_key_free(derived);
+            }
+        } finally {
+            Wally.bip32_key_free(wallyParent);
+        }
+
+        if (BuildConfig.DEBUG && !childNums.isEmpty()) {
+            // Reconcile the first key with bitcoinj
+            final byte[] expected = deriveChildKey(parent, childNums.get(0)).getPubKey();
+            if (!Arrays.equals(expected, pubKeys.get(0)))
+                throw new RuntimeException("Derivation mismatch");
+        }
+        return pubKeys;
+    }
+
     public static void resetCache(final int[] gaUserPath) {
         synchronized (mServerKeys) {
             mServerKeys.clear();
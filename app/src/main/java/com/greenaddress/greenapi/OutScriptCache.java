@@ -0,0 +1,180 @@
+package com.greenaddress.greenapi;
+
+import android.util.Log;
+
+import com.blockstream.libwally.Wally;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// A bounded cache of the multisig output scripts of our addresses, keyed by
+// (subaccount, pointer). Creating a script costs an EC point multiplication
+// per key, so without it wallets with thousands of UTXOs redo thousands of
+// them on every refresh. The scripts identify the wallets addresses, so
+// they are only persisted encrypted with the local encryption password.
+//
+// Reading the file means deriving the key and decrypting it, so only
+// load() does it, which callers run off the UI thread. Until it has run,
+// lookups miss and new entries are kept in memory. Saves are serialized,
+// each one writing a snapshot taken after the previous one was written.
+public class OutScriptCache {
+
+    private static final String TAG = OutScriptCache.class.getSimpleName();
+    private static final int SALT_LEN = 16;
+
+    private final File mFile;
+    private final byte[] mPassword;
+    private final int mMaxEntries;
+    private final LinkedHashMap<Long, byte[]> mScripts;
+    private final AtomicBoolean mSavePending = new AtomicBoolean();
+    private final Object mSaveLock = new Object();
+    private boolean mLoaded;
+    private boolean mDirty;
+
+    // password may be null, in which case the cache is kept in memory only
+    public OutScriptCache(final File file, final byte[] password, final int maxEntries) {
+        mFile = file;
+        mPassword = password == null ? null : password.clone();
+        mMaxEntries = maxEntries;
+        mScripts = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, byte[]> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    private static long key(final int subAccount, final int pointer) {
+        return ((long) subAccount << 32) | (pointer & 0xffffffffL);
+    }
+
+    public synchronized byte[] get(final int subAccount, final int pointer) {
+        return mScripts.get(key(subAccount, pointer));
+    }
+
+    public synchronized void put(final int subAccount, final int pointer, final byte[] outScript) {
+        mScripts.put(key(subAccount, pointer), outScript);
+        mDirty = true;
+    }
+
+    // Saves the cache on the given executor, along with any changes made
+    // before the save takes its snapshot
+    public void saveAsync(final Executor executor) {
+        if (mSavePending.compareAndSet(false, true)) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    save();
+                }
+            });
+        }
+    }
+
+    // Write the cache out if it changed since it was loaded or last saved
+    public void save() {
+        synchronized (mSaveLock) {
+            final List<Object> entries = new ArrayList<>();
+            synchronized (this) {
+                // Changes from now on need another save
+                mSavePending.set(false);
+                // Saving before loading would lose what the file holds
+                if (!mLoaded || !mDirty || mPassword == null)
+                    return;
+                // Least recently used first, so that loading restores the same order
+                for (final Map.Entry<Long, byte[]> e : mScripts.entrySet())
+                    entries.add(Arrays.asList((int) (e.getKey() >> 32), e.getKey().intValue(),
+                                              Wally.hex_from_bytes(e.getValue())));
+                mDirty = false;
+            }
+            if (!write(entries)) {
+                synchronized (this) {
+                    mDirty = true;
+                }
+            }
+        }
+    }
+
+    private boolean write(final List<Object> entries) {
+        final Map<String, Object> json = new HashMap<>();
+        json.put("scripts", entries);
+        final byte[] salt = CryptoHelper.randomBytes(SALT_LEN);
+        final byte[] encrypted = CryptoHelper.encryptJSON(new JSONMap(json), mPassword, salt);
+
+        // Write to a temporary file first so a crash can't leave a truncated cache behind
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        try (final FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(salt);
+            out.write(encrypted);
+        } catch (final IOException e) {
+            Log.w(TAG, "Failed to save outscript cache: " + e.getMessage());
+            tmp.delete();
+            return false;
+        }
+        if (!tmp.renameTo(mFile)) {
+            Log.w(TAG, "Failed to replace outscript cache " + mFile);
+            tmp.delete();
+            return false;
+        }
+        return true;
+    }
+
+    // Reads the file, keeping any entries added since the cache was created
+    // as the most recently used ones. The file is read and decrypted without
+    // holding the lock, so lookups meanwhile don't wait for it.
+    public void load() {
+        synchronized (this) {
+            if (mLoaded)
+                return;
+        }
+        final LinkedHashMap<Long, byte[]> loaded = readFile();
+        synchronized (this) {
+            if (mLoaded)
+                return;
+            mLoaded = true;
+            final List<Map.Entry<Long, byte[]>> added = new ArrayList<>(mScripts.entrySet());
+            mScripts.clear();
+            mScripts.putAll(loaded);
+            for (final Map.Entry<Long, byte[]> e : added)
+                mScripts.put(e.getKey(), e.getValue());
+        }
+    }
+
+    private LinkedHashMap<Long, byte[]> readFile() {
+        final LinkedHashMap<Long, byte[]> scripts = new LinkedHashMap<>();
+        if (mPassword == null || !mFile.exists() || mFile.length() <= SALT_LEN)
+            return scripts;
+        try {
+            final byte[] data = new byte[(int) mFile.length()];
+            try (final FileInputStream in = new FileInputStream(mFile)) {
+                int read = 0;
+                while (read < data.length) {
+                    final int n = in.read(data, read, data.length - read);
+                    if (n < 0)
+                        throw new IOException("Unexpected end of file");
+                    read += n;
+                }
+            }
+            final byte[] salt = Arrays.copyOf(data, SALT_LEN);
+            final byte[] encrypted = Arrays.copyOfRange(data, SALT_LEN, data.length);
+            final JSONMap json = CryptoHelper.decryptJSON(encrypted, mPassword, salt);
+            for (final List<Object> entry : json.<List<List<Object>>>get("scripts"))
+                scripts.put(key((Integer) entry.get(0), (Integer) entry.get(1)),
+                            Wally.hex_to_bytes((String) entry.get(2)));
+        } catch (final IOException | RuntimeException e) {
+            // Unreadable, or written with a different password: start afresh
+            Log.w(TAG, "Discarding outscript cache: " + e.getMessage());
+            scripts.clear();
+        }
+        return scripts;
+    }
+}
@@ -0,0 +1,192 @@
+package com.greenaddress.greenapi;
+
+import android.util.Log;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// A bounded cache of raw transactions keyed by txid, persisted to a file.
+// Previous transactions are immutable, so once fetched for signing or
+// SPV verification they can be reused across spends, fee bumps and
+// restarts. The least recently used entries are evicted once the total
+// size of the cached transactions exceeds the given limit.
+//
+// The file is only read by load(), which callers run off the UI thread.
+// Until it has run, lookups miss and new entries are kept in memory.
+// Entries read from the file are only kept if they parse to a transaction
+// with the txid they are stored under. Saves are serialized, each one
+// writing a snapshot taken after the previous one was written.
+public class RawTxCache {
+
+    private static final String TAG = RawTxCache.class.getSimpleName();
+    private static final int FILE_VERSION = 1;
+
+    private final File mFile;
+    private final NetworkParameters mParams;
+    private final int mMaxBytes;
+    private final AtomicBoolean mSavePending = new AtomicBoolean();
+    private final Object mSaveLock = new Object();
+    private final LinkedHashMap<Sha256Hash, byte[]> mTxs = new LinkedHashMap<>(16, 0.75f, true);
+    private int mBytes;
+    private boolean mLoaded;
+    private boolean mDirty;
+
+    public RawTxCache(final File file, final NetworkParameters params, final int maxBytes) {
+        mFile = file;
+        mParams = params;
+        mMaxBytes = maxBytes;
+    }
+
+    public synchronized byte[] get(final Sha256Hash txHash) {
+        return mTxs.get(txHash);
+    }
+
+    // Callers must check that the transaction actually hashes to txHash
+    public synchronized void put(final Sha256Hash txHash, final byte[] rawTx) {
+        if (rawTx.length > mMaxBytes)
+            return;
+        putEntry(txHash, rawTx);
+        mDirty = true;
+    }
+
+    private void putEntry(final Sha256Hash txHash, final byte[] rawTx) {
+        final byte[] old = mTxs.put(txHash, rawTx);
+        mBytes += rawTx.length - (old == null ? 0 : old.length);
+        final Iterator<Map.Entry<Sha256Hash, byte[]>> it = mTxs.entrySet().iterator();
+        while (mBytes > mMaxBytes && it.hasNext()) {
+            mBytes -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+    // Saves the cache on the given executor, along with any changes made
+    // before the save takes its snapshot
+    public void saveAsync(final Executor executor) {
+        if (mSavePending.compareAndSet(false, true)) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    save();
+                }
+            });
+        }
+    }
+
+    // Write the cache out if it changed since it was loaded or last saved
+    public void save() {
+        synchronized (mSaveLock) {
+            final List<Map.Entry<Sha256Hash, byte[]>> entries;
+            synchronized (this) {
+                // Changes from now on need another save
+                mSavePending.set(false);
+                // Saving before loading would lose what the file holds
+                if (!mLoaded || !mDirty)
+                    return;
+                entries = new ArrayList<>(mTxs.entrySet());
+                mDirty = false;
+            }
+            if (!write(entries)) {
+                synchronized (this) {
+                    mDirty = true;
+                }
+            }
+        }
+    }
+
+    private boolean write(final List<Map.Entry<Sha256Hash, byte[]>> entries) {
+        // Write to a temporary file first so a crash can't leave a truncated cache behind
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(FILE_VERSION);
+            out.writeInt(entries.size());
+            // Least recently used first, so that loading restores the same order
+            for (final Map.Entry<Sha256Hash, byte[]> e : entries) {
+                out.write(e.getKey().getBytes());
+                out.writeInt(e.getValue().length);
+                out.write(e.getValue());
+            }
+        } catch (final IOException e) {
+            Log.w(TAG, "Failed to save raw tx cache: " + e.getMessage());
+            tmp.delete();
+            return false;
+        }
+        if (!tmp.renameTo(mFile)) {
+            Log.w(TAG, "Failed to replace raw tx cache " + mFile);
+            tmp.delete();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean isTransaction(final Sha256Hash txHash, final byte[] rawTx) {
+        try {
+            return new Transaction(mParams, rawTx).getHash().equals(txHash);
+        } catch (final RuntimeException e) {
+            return false;
+        }
+    }
+
+    // Reads the file, keeping any entries added since the cache was created
+    // as the most recently used ones. The file is read without holding the
+    // lock, so lookups meanwhile don't wait for it.
+    public void load() {
+        synchronized (this) {
+            if (mLoaded)
+                return;
+        }
+        final LinkedHashMap<Sha256Hash, byte[]> loaded = new LinkedHashMap<>();
+        if (mFile.exists()) {
+            try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)))) {
+                if (in.readInt() == FILE_VERSION) {
+                    final int count = in.readInt();
+                    for (int i = 0; i < count; ++i) {
+                        final byte[] hash = new byte[Sha256Hash.LENGTH];
+                        in.readFully(hash);
+                        final int length = in.readInt();
+                        if (length < 0 || length > mMaxBytes)
+                            throw new IOException("Bad raw tx length " + length);
+                        final byte[] rawTx = new byte[length];
+                        in.readFully(rawTx);
+                        final Sha256Hash txHash = Sha256Hash.wrap(hash);
+                        if (isTransaction(txHash, rawTx))
+                            loaded.put(txHash, rawTx);
+                        else
+                            Log.w(TAG, "Dropping damaged raw tx cache entry " + txHash);
+                    }
+                }
+            } catch (final IOException e) {
+                Log.w(TAG, "Discarding unreadable raw tx cache: " + e.getMessage());
+                loaded.clear();
+            }
+        }
+        synchronized (this) {
+            if (mLoaded)
+                return;
+            mLoaded = true;
+            final List<Map.Entry<Sha256Hash, byte[]>> added = new ArrayList<>(mTxs.entrySet());
+            mTxs.clear();
+            mBytes = 0;
+            for (final Map.Entry<Sha256Hash, byte[]> e : loaded.entrySet())
+                putEntry(e.getKey(), e.getValue());
+            for (final Map.Entry<Sha256Hash, byte[]> e : added)
+                putEntry(e.getKey(), e.getValue());
+        }
+    }
+}
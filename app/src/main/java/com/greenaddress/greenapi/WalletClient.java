@@ -78,6 +78,9 @@ public class WalletClient {
     private static final String TAG = WalletClient.class.getSimpleName();
     // v2: API version 2, sw: Opt in/out segwit
     private static final String FEATURES = "v2,sw";
+    // Pipeline our calls instead of waiting for each one to be written out
+    // before sending the next, e.g. when fetching many raw transactions
+    private static final int MAX_IN_FLIGHT_MESSAGES = 64;
     private static final String USER_AGENT = String.format("[%s]%s;%s;%s;%s",
             FEATURES, BuildConfig.VERSION_CODE, BuildConfig.BUILD_TYPE,
             android.os.Build.VERSION.SDK_INT, System.getProperty("os.arch"));
@@ -500,6 +503,7 @@ public class WalletClient {
                             .withUri(wsuri)
                             .withRealm("realm1")
                             .withNrReconnects(0)
+                            .withMaxInFlightMessages(MAX_IN_FLIGHT_MESSAGES)
                             .withConnectionConfiguration(getNettyConfig());
                 } catch (final ApplicationError | SSLException e) {
                     e.printStackTrace();
@@ -855,8 +859,13 @@ public class WalletClient {
         return transactionCall("txs.get_raw_unspent_output", txHash.toString());
     }
 
-    public String getRawOutputHex(final Sha256Hash txHash) throws Exception {
-        return syncCall("txs.get_raw_output", String.class, txHash.toString());
+    // Fetch the given transactions, issuing all calls at once so that their
+    // round trips overlap rather than being paid one after another
+    public ListenableFuture<List<Transaction>> getRawOutputs(final List<Sha256Hash> txHashes) {
+        final List<ListenableFuture<Transaction>> calls = new ArrayList<>(txHashes.size());
+        for (final Sha256Hash txHash : txHashes)
+            calls.add(transactionCall("txs.get_raw_output", txHash.toString()));
+        return Futures.allAsList(calls);
     }
 
     public ListenableFuture<Boolean> changeMemo(final String txHashHex, final String memo, final String memoType) {
@@ -41,9 +41,11 @@ import com.greenaddress.greenapi.ISigningWallet;
 import com.greenaddress.greenapi.JSONMap;
 import com.greenaddress.greenapi.LoginData;
 import com.greenaddress.greenapi.Network;
+import com.greenaddress.greenapi.OutScriptCache;
 import com.greenaddress.greenapi.Output;
 import com.greenaddress.greenapi.PinData;
 import com.greenaddress.greenapi.PreparedTransaction;
+import com.greenaddress.greenapi.RawTxCache;
 import com.greenaddress.greenapi.SWWallet;
 import com.greenaddress.greenapi.WalletClient;
 import com.greenaddress.greenbits.spv.SPV;
@@ -110,6 +112,11 @@ public class GaService extends Service implements INotificationHandler {
     public static final int LOGOFF_SERVER_RESTART = 1006;
     public static final int LOGOFF_BY_USER_RECONNECT = 9999;
 
+    // Size limit for previous transactions cached on disk
+    private static final int RAW_TX_CACHE_BYTES = 2 * 1024 * 1024;
+    // Number of address scripts to cache
+    private static final int OUT_SCRIPT_CACHE_ENTRIES = 20000;
+
     private Network mNetwork;
 
     public Network getNetwork() {
@@ -178,6 +185,8 @@ public class GaService extends Service implements INotificationHandler {
     private JSONMap mLimitsData;
     private ArrayList<Map<String, Object>> mSubAccounts;
     private String mReceivingId;
+    private RawTxCache mRawTxCache; // Set on login
+    private OutScriptCache mOutScriptCache; // Set on login
     private Coin mDustThreshold = Coin.valueOf(546); // Per 0.13.0, updated on login
     private Coin mMinFeeRate = Coin.valueOf(1000); // Per 0.12.0, updated on login
     private int mCurrentSystemMessageId = 0; // 0 if no outstanding messages
@@ -279,6 +288,26 @@ public class GaService extends Service implements INotificationHandler {
         return getSPVChainFile(getNetwork().getName());
     }
 
+    // Keyed by wallet on every network, as the cached transactions reveal the wallet's history
+    private File getRawTxCacheFile() {
+        final String dirName;
+        if (getNetwork().isMainnet())
+            dirName = "rawtxs_" + mReceivingId;
+        else
+            dirName = "rawtxs_" + getNetwork().getName() + "_" + mReceivingId;
+        return new File(getDir(dirName, Context.MODE_PRIVATE), "rawtxs.bin");
+    }
+
+    public File getSPVVerificationFile(final String receivingId) {
+        final String fileName = getNetwork().getName() + "_" + receivingId;
+        return new File(getDir("spvverified", Context.MODE_PRIVATE), fileName);
+    }
+
+    private File getOutScriptCacheFile() {
+        final String fileName = getNetwork().getName() + "_" + mReceivingId;
+        return new File(getDir("outscripts", Context.MODE_PRIVATE), fileName);
+    }
+
     private void getAvailableTwoFactorMethods() {
         Futures.addCallback(mClient.getTwoFactorConfig(), new FutureCallback<Map<?, ?>>() {
             @Override
@@ -597,18 +626,62 @@ public class GaService extends Service implements INotificationHandler {
             reconnect();
     }
 
+    public static List<byte[]> createOutScripts(final int subAccount, final List<Integer> pointers,
+                                                final byte[] backupPubkey, final byte[] backupChaincode,
+                                                final Network network) {
+        final List<byte[]> gaKeys = HDKey.getGAChildPublicKeys(subAccount, pointers, network);
+        final List<byte[]> myKeys = HDClientKey.getMyChildPublicKeys(subAccount, pointers, network);
+        List<byte[]> backupKeys = null;
+        if (backupPubkey != null && backupChaincode != null)
+            backupKeys = HDKey.getRecoveryChildPublicKeys(backupChaincode, backupPubkey, pointers, network);
+
+        final List<byte[]> outScripts = new ArrayList<>(pointers.size());
+        for (int i = 0; i < pointers.size(); ++i) {
+            final List<ECKey> pubkeys = new ArrayList<>(3);
+            pubkeys.add(ECKey.fromPublicOnly(gaKeys.get(i)));
+            pubkeys.add(ECKey.fromPublicOnly(myKeys.get(i)));
+            if (backupKeys != null)
+                pubkeys.add(ECKey.fromPublicOnly(backupKeys.get(i)));
+            outScripts.add(Script.createMultiSigOutputScript(2, pubkeys));
+        }
+        return outScripts;
+    }
+
     public static byte[] createOutScript(final int subAccount, final Integer pointer,
                                          final byte[] backupPubkey, final byte[] backupChaincode,
                                          final Network network) {
-        final List<ECKey> pubkeys = new ArrayList<>();
-        pubkeys.add(HDKey.getGAPublicKeys(subAccount, pointer, network)[1]);
-        pubkeys.add(HDClientKey.getMyPublicKey(subAccount, pointer));
-        if (backupPubkey != null && backupChaincode != null)
-            pubkeys.add(HDKey.getRecoveryKeys(backupChaincode, backupPubkey, pointer)[1]);
-        return Script.createMultiSigOutputScript(2, pubkeys);
+        return createOutScripts(subAccount, Collections.singletonList(checkPointer(pointer)),
+                                backupPubkey, backupChaincode, network).get(0);
+    }
+
+    // An outscript is always for a child key, so unlike getGAPublicKeys and
+    // getMyPublicKey (which return the parent key for a null pointer), the
+    // pointer must be given
+    private static Integer checkPointer(final Integer pointer) {
+        if (pointer == null)
+            throw new IllegalArgumentException("Outscript pointer must not be null");
+        return pointer;
     }
 
     public byte[] createOutScript(final int subAccount, final Integer pointer) {
+        return createOutScripts(subAccount, Collections.singletonList(checkPointer(pointer))).get(0);
+    }
+
+    // Return the outscripts for the given (non-null) pointers of a subaccount.
+    // Only those not already cached are derived, all together in one batch
+    public List<byte[]> createOutScripts(final int subAccount, final List<Integer> pointers) {
+        final OutScriptCache cache = mOutScriptCache;
+        final List<byte[]> outScripts = new ArrayList<>(pointers.size());
+        final List<Integer> missing = new ArrayList<>();
+        for (final Integer pointer : pointers) {
+            final byte[] outScript = cache == null ? null : cache.get(subAccount, pointer);
+            outScripts.add(outScript);
+            if (outScript == null)
+                missing.add(pointer);
+        }
+        if (missing.isEmpty())
+            return outScripts;
+
         byte[] backupPubkey = null;
         byte[] backupChaincode = null;
         final Map<String, Object> m = findSubaccountByType(subAccount, "2of3");
@@ -616,7 +689,18 @@ public class GaService extends Service implements INotificationHandler {
             backupPubkey = Wally.hex_to_bytes((String) m.get("2of3_backup_pubkey"));
             backupChaincode = Wally.hex_to_bytes((String) m.get("2of3_backup_chaincode"));
         }
-        return createOutScript(subAccount, pointer, backupPubkey, backupChaincode, getNetwork());
+        final List<byte[]> derived = createOutScripts(subAccount, missing, backupPubkey, backupChaincode, getNetwork());
+        for (int i = 0, j = 0; i < outScripts.size(); ++i) {
+            if (outScripts.get(i) == null) {
+                outScripts.set(i, derived.get(j));
+                if (cache != null)
+                    cache.put(subAccount, missing.get(j), derived.get(j));
+                ++j;
+            }
+        }
+        if (cache != null)
+            cache.saveAsync(mExecutor);
+        return outScripts;
     }
 
     private ListenableFuture<Boolean> verifyP2SHSpendableBy(final Script scriptHash, final int subAccount, final Integer pointer) {
@@ -690,6 +774,18 @@ public class GaService extends Service implements INotificationHandler {
         mFiatExchange = loginData.get("exchange");
         mSubAccounts = loginData.mSubAccounts;
         mReceivingId = loginData.get("receiving_id");
+        final RawTxCache cache = mReceivingId == null ? null :
+                new RawTxCache(getRawTxCacheFile(), getNetworkParameters(), RAW_TX_CACHE_BYTES);
+        mRawTxCache = cache;
+        if (cache != null) {
+            // Misses until loaded, rather than reading the file on whichever thread asks first
+            mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    cache.load();
+                }
+            });
+        }
         mLimitsData = new JSONMap((Map) loginData.get("limits"));
 
         if (loginData.mRawData.containsKey("min_fee"))
@@ -705,6 +801,16 @@ public class GaService extends Service implements INotificationHandler {
             // especially on hardware wallets.
             getLocalEncryptionPassword();
         }
+        final OutScriptCache outScriptCache = new OutScriptCache(getOutScriptCacheFile(), mLocalEncryptionPassword,
+                                                                 OUT_SCRIPT_CACHE_ENTRIES);
+        mOutScriptCache = outScriptCache;
+        // Misses until loaded, rather than decrypting the file on whichever thread asks first
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                outScriptCache.load();
+            }
+        });
 
         mBalanceObservables.put(0, new GaObservable());
         if (isElements()) {
@@ -737,6 +843,8 @@ public class GaService extends Service implements INotificationHandler {
             }
         }
 
+        // Queued before starting SPV, which records verifications in the store
+        mSPV.openVerificationStoreAsync(mReceivingId);
         if (!isWatchOnly()) {
             getAvailableTwoFactorMethods();
             mSPV.startAsync();
@@ -1099,11 +1207,75 @@ public class GaService extends Service implements INotificationHandler {
     }
 
     public ListenableFuture<Transaction> getRawUnspentOutput(final Sha256Hash txHash) {
-        return mClient.getRawUnspentOutput(txHash);
+        final Transaction cached = getCachedRawTransaction(txHash);
+        if (cached != null)
+            return Futures.immediateFuture(cached);
+        return Futures.transform(mClient.getRawUnspentOutput(txHash), new Function<Transaction, Transaction>() {
+            @Override
+            public Transaction apply(final Transaction tx) {
+                cacheRawTransactions(Collections.singletonList(txHash), Collections.singletonList(tx));
+                return tx;
+            }
+        });
+    }
+
+    // Return the transactions with the given hashes in order, fetching any not
+    // already cached with a single pipelined batch of calls
+    public ListenableFuture<List<Transaction>> getRawOutputs(final List<Sha256Hash> txHashes) {
+        final Map<Sha256Hash, Transaction> found = new HashMap<>();
+        final List<Sha256Hash> missing = new ArrayList<>();
+        for (final Sha256Hash txHash : txHashes) {
+            if (found.containsKey(txHash) || missing.contains(txHash))
+                continue;
+            final Transaction cached = getCachedRawTransaction(txHash);
+            if (cached != null)
+                found.put(txHash, cached);
+            else
+                missing.add(txHash);
+        }
+
+        final Function<List<Transaction>, List<Transaction>> fn = new Function<List<Transaction>, List<Transaction>>() {
+            @Override
+            public List<Transaction> apply(final List<Transaction> fetched) {
+                cacheRawTransactions(missing, fetched);
+                for (int i = 0; i < missing.size(); ++i)
+                    found.put(missing.get(i), fetched.get(i));
+                final List<Transaction> txs = new ArrayList<>(txHashes.size());
+                for (final Sha256Hash txHash : txHashes)
+                    txs.add(found.get(txHash));
+                return txs;
+            }
+        };
+        if (missing.isEmpty())
+            return Futures.immediateFuture(fn.apply(Collections.<Transaction>emptyList()));
+        return Futures.transform(mClient.getRawOutputs(missing), fn);
     }
 
-    public String getRawOutputHex(final Sha256Hash txHash) throws Exception {
-        return mClient.getRawOutputHex(txHash);
+    private Transaction getCachedRawTransaction(final Sha256Hash txHash) {
+        final RawTxCache cache = mRawTxCache;
+        final byte[] rawTx = cache == null ? null : cache.get(txHash);
+        if (rawTx == null)
+            return null;
+        final Transaction tx = new Transaction(getNetworkParameters(), rawTx);
+        // Entries are checked when put and loaded, this guards against returning the wrong tx regardless
+        return tx.getHash().equals(txHash) ? tx : null;
+    }
+
+    private void cacheRawTransactions(final List<Sha256Hash> txHashes, final List<Transaction> txs) {
+        final RawTxCache cache = mRawTxCache;
+        if (cache == null)
+            return;
+        boolean changed = false;
+        for (int i = 0; i < txHashes.size(); ++i) {
+            final Transaction tx = txs.get(i);
+            // Only cache what the server returned if it is really the tx we asked for
+            if (tx != null && tx.getHash().equals(txHashes.get(i))) {
+                cache.put(txHashes.get(i), tx.bitcoinSerialize());
+                changed = true;
+            }
+        }
+        if (changed)
+            cache.saveAsync(mExecutor);
     }
 
     public ListenableFuture<Boolean> changeMemo(final String txHashHex, final String memo, final String memoType) {
@@ -1375,7 +1547,7 @@ public class GaService extends Service implements INotificationHandler {
 
     public void notifyObservers(final Sha256Hash txHash) {
         // FIXME: later spent outputs can be purged
-        mSPV.addUtxoToValues(txHash, true /* updateVerified */);
+        mSPV.addUtxoToValues(txHash);
         mVerifiedTxObservable.doNotify();
     }
 
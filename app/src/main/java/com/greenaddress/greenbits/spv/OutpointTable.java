@@ -0,0 +1,339 @@
+package com.greenaddress.greenbits.spv;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Tracks our unspent outputs for SPV, keyed by tx hash and output index.
+//
+// Transactions are kept in an open addressing table of raw 32 byte hashes,
+// each pointing to a chain of its outputs. Outputs live in parallel
+// primitive arrays holding the output index, the subaccount and pointer
+// packed into a long, and the value counted towards the verified balance
+// (-1 until the output has been verified). No objects are allocated per
+// output, and looking one up needs no TransactionOutPoint.
+//
+// A refresh from the server is applied as a diff: beginUpdate() starts it,
+// put() marks each current output, and removeUnmarked() drops the outputs
+// which were not marked, reporting them so balances can be adjusted.
+//
+// Outputs are only ever addressed by tx hash and index from outside, as
+// the entries holding them are reused once removed. Anything which has to
+// look an output up and then change it does both in one call.
+class OutpointTable {
+
+    interface RemovedListener {
+        // value is -1 if the output was not counted
+        void onRemoved(int subAccount, int pointer, long value);
+    }
+
+    private static final int HASH_LENGTH = Sha256Hash.LENGTH;
+    private static final int MIN_TX_CAPACITY = 16;
+    private static final int MIN_ENTRY_CAPACITY = 16;
+    // Marks a tx slot whose outputs were all removed during removeUnmarked()
+    private static final int EMPTY_CHAIN = -2;
+
+    // Transactions, -1 in mTxFirst marks an empty slot
+    private byte[] mTxHashes;
+    private int[] mTxFirst;
+    private int mTxCount;
+
+    // Outputs, free entries are chained through mNext
+    private int[] mIndexes;
+    private long[] mAccounts;
+    private long[] mValues;
+    private int[] mNext;
+    private int[] mMarks;
+    private int mEntryCount;
+    private int mEntryLimit;
+    private int mFreeEntry = -1;
+    private int mMark;
+
+    OutpointTable() {
+        clear();
+    }
+
+    synchronized void clear() {
+        mTxHashes = new byte[MIN_TX_CAPACITY * HASH_LENGTH];
+        mTxFirst = new int[MIN_TX_CAPACITY];
+        Arrays.fill(mTxFirst, -1);
+        mTxCount = 0;
+        mIndexes = new int[MIN_ENTRY_CAPACITY];
+        mAccounts = new long[MIN_ENTRY_CAPACITY];
+        mValues = new long[MIN_ENTRY_CAPACITY];
+        mNext = new int[MIN_ENTRY_CAPACITY];
+        mMarks = new int[MIN_ENTRY_CAPACITY];
+        mEntryCount = 0;
+        mEntryLimit = 0;
+        mFreeEntry = -1;
+    }
+
+    // The number of outputs
+    synchronized int size() {
+        return mEntryCount;
+    }
+
+    // The number of transactions with outputs in the table
+    synchronized int getTxCount() {
+        return mTxCount;
+    }
+
+    synchronized boolean containsTx(final Sha256Hash txHash) {
+        return findTx(txHash.getBytes()) >= 0;
+    }
+
+    // An uncounted output, copied out of the table by getUncounted()
+    static class Uncounted {
+        final int mIndex;
+        final int mSubAccount;
+        final int mPointer;
+
+        Uncounted(final int index, final int subAccount, final int pointer) {
+            mIndex = index;
+            mSubAccount = subAccount;
+            mPointer = pointer;
+        }
+    }
+
+    // Returns the outputs of the tx which are not counted yet
+    synchronized List<Uncounted> getUncounted(final Sha256Hash txHash) {
+        final List<Uncounted> uncounted = new ArrayList<>();
+        final int slot = findTx(txHash.getBytes());
+        if (slot < 0)
+            return uncounted;
+        for (int e = mTxFirst[slot]; e != -1; e = mNext[e])
+            if (mValues[e] == -1)
+                uncounted.add(new Uncounted(mIndexes[e], getSubAccount(e), getPointer(e)));
+        return uncounted;
+    }
+
+    // Returns the counted value of an output, or -1 if it is not counted
+    synchronized long getValue(final Sha256Hash txHash, final int index) {
+        final int entry = find(txHash, index);
+        return entry == -1 ? -1 : mValues[entry];
+    }
+
+    // Counts the value of an output. Returns its subaccount, or -1 if the
+    // output is not in the table (it may have been spent meanwhile) or was
+    // already counted
+    synchronized int setValue(final Sha256Hash txHash, final int index, final long value) {
+        final int entry = find(txHash, index);
+        if (entry == -1 || mValues[entry] != -1)
+            return -1;
+        mValues[entry] = value;
+        return getSubAccount(entry);
+    }
+
+    // Starts a diff against a new set of outputs
+    synchronized void beginUpdate() {
+        ++mMark;
+    }
+
+    // Adds an output, or marks it as current if it is already in the table.
+    // Returns true if the output was added.
+    synchronized boolean put(final Sha256Hash txHash, final int index, final int subAccount, final int pointer) {
+        final long account = ((long) subAccount << 32) | (pointer & 0xffffffffL);
+        final byte[] hash = txHash.getBytes();
+        int slot = findTx(hash);
+        if (slot >= 0) {
+            for (int e = mTxFirst[slot]; e != -1; e = mNext[e]) {
+                if (mIndexes[e] == index) {
+                    mAccounts[e] = account;
+                    mMarks[e] = mMark;
+                    return false;
+                }
+            }
+        } else {
+            if ((mTxCount + 1) * 4 > mTxFirst.length * 3) {
+                growTxs();
+                slot = findTx(hash);
+            }
+            slot = ~slot;
+            System.arraycopy(hash, 0, mTxHashes, slot * HASH_LENGTH, HASH_LENGTH);
+            ++mTxCount;
+        }
+
+        final int entry = allocEntry();
+        mIndexes[entry] = index;
+        mAccounts[entry] = account;
+        mValues[entry] = -1;
+        mMarks[entry] = mMark;
+        mNext[entry] = mTxFirst[slot];
+        mTxFirst[slot] = entry;
+        return true;
+    }
+
+    // Removes the outputs not marked since beginUpdate()
+    synchronized void removeUnmarked(final RemovedListener listener) {
+        final List<byte[]> emptyTxs = new ArrayList<>();
+        for (int slot = 0; slot < mTxFirst.length; ++slot) {
+            if (mTxFirst[slot] == -1)
+                continue;
+            int prev = -1;
+            int e = mTxFirst[slot];
+            while (e != -1) {
+                final int next = mNext[e];
+                if (mMarks[e] == mMark) {
+                    prev = e;
+                } else {
+                    if (prev == -1)
+                        mTxFirst[slot] = next;
+                    else
+                        mNext[prev] = next;
+                    listener.onRemoved((int) (mAccounts[e] >>> 32), (int) mAccounts[e], mValues[e]);
+                    freeEntry(e);
+                }
+                e = next;
+            }
+            if (mTxFirst[slot] == -1) {
+                // Keep the slot occupied for probing until the scan is done,
+                // since removing it shifts other slots
+                mTxFirst[slot] = EMPTY_CHAIN;
+                emptyTxs.add(Arrays.copyOfRange(mTxHashes, slot * HASH_LENGTH, (slot + 1) * HASH_LENGTH));
+            }
+        }
+        for (final byte[] hash : emptyTxs)
+            removeTx(findTx(hash));
+    }
+
+    synchronized List<Sha256Hash> getTxHashes() {
+        final List<Sha256Hash> hashes = new ArrayList<>(mTxCount);
+        for (int slot = 0; slot < mTxFirst.length; ++slot)
+            if (mTxFirst[slot] != -1)
+                hashes.add(Sha256Hash.wrap(Arrays.copyOfRange(mTxHashes, slot * HASH_LENGTH,
+                                                              (slot + 1) * HASH_LENGTH)));
+        return hashes;
+    }
+
+    // Returns the distinct pointers of our outputs by subaccount
+    synchronized Map<Integer, List<Integer>> getPointers() {
+        final Set<Long> seen = new HashSet<>();
+        final Map<Integer, List<Integer>> pointers = new HashMap<>();
+        for (int slot = 0; slot < mTxFirst.length; ++slot) {
+            for (int e = mTxFirst[slot]; e != -1; e = mNext[e]) {
+                if (!seen.add(mAccounts[e]))
+                    continue;
+                final int subAccount = getSubAccount(e);
+                if (!pointers.containsKey(subAccount))
+                    pointers.put(subAccount, new ArrayList<Integer>());
+                pointers.get(subAccount).add(getPointer(e));
+            }
+        }
+        return pointers;
+    }
+
+    // Returns the entry of an output, or -1 if it is not in the table
+    private int find(final Sha256Hash txHash, final int index) {
+        final int slot = findTx(txHash.getBytes());
+        if (slot < 0)
+            return -1;
+        for (int e = mTxFirst[slot]; e != -1; e = mNext[e])
+            if (mIndexes[e] == index)
+                return e;
+        return -1;
+    }
+
+    private int getSubAccount(final int entry) {
+        return (int) (mAccounts[entry] >>> 32);
+    }
+
+    private int getPointer(final int entry) {
+        return (int) mAccounts[entry];
+    }
+
+    private static int hashOf(final byte[] hash, final int offset) {
+        // The hash is uniformly distributed, mix a little in case it isn't
+        final int h = ((hash[offset + 28] & 0xff) << 24) | ((hash[offset + 29] & 0xff) << 16) |
+                      ((hash[offset + 30] & 0xff) << 8) | (hash[offset + 31] & 0xff);
+        return h ^ (h >>> 16);
+    }
+
+    // Returns the slot of the tx, or the complement of the slot to insert it at
+    private int findTx(final byte[] hash) {
+        final int mask = mTxFirst.length - 1;
+        int slot = hashOf(hash, 0) & mask;
+        while (mTxFirst[slot] != -1) {
+            if (equalsAt(hash, slot))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return ~slot;
+    }
+
+    private boolean equalsAt(final byte[] hash, final int slot) {
+        final int offset = slot * HASH_LENGTH;
+        for (int i = HASH_LENGTH - 1; i >= 0; --i)
+            if (mTxHashes[offset + i] != hash[i])
+                return false;
+        return true;
+    }
+
+    // Backward shift deletion, so lookups never need tombstones
+    private void removeTx(int slot) {
+        final int mask = mTxFirst.length - 1;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (mTxFirst[next] == -1)
+                break;
+            final int home = hashOf(mTxHashes, next * HASH_LENGTH) & mask;
+            final boolean inRange = slot <= next ? slot < home && home <= next
+                                                 : slot < home || home <= next;
+            if (inRange)
+                continue;
+            System.arraycopy(mTxHashes, next * HASH_LENGTH, mTxHashes, slot * HASH_LENGTH, HASH_LENGTH);
+            mTxFirst[slot] = mTxFirst[next];
+            slot = next;
+        }
+        mTxFirst[slot] = -1;
+        --mTxCount;
+    }
+
+    private void growTxs() {
+        final byte[] oldHashes = mTxHashes;
+        final int[] oldFirst = mTxFirst;
+        mTxHashes = new byte[oldHashes.length * 2];
+        mTxFirst = new int[oldFirst.length * 2];
+        Arrays.fill(mTxFirst, -1);
+        final int mask = mTxFirst.length - 1;
+        for (int old = 0; old < oldFirst.length; ++old) {
+            if (oldFirst[old] == -1)
+                continue;
+            int slot = hashOf(oldHashes, old * HASH_LENGTH) & mask;
+            while (mTxFirst[slot] != -1)
+                slot = (slot + 1) & mask;
+            System.arraycopy(oldHashes, old * HASH_LENGTH, mTxHashes, slot * HASH_LENGTH, HASH_LENGTH);
+            mTxFirst[slot] = oldFirst[old];
+        }
+    }
+
+    private int allocEntry() {
+        ++mEntryCount;
+        if (mFreeEntry != -1) {
+            final int entry = mFreeEntry;
+            mFreeEntry = mNext[entry];
+            return entry;
+        }
+        if (mEntryLimit == mIndexes.length) {
+            final int capacity = mIndexes.length * 2;
+            mIndexes = Arrays.copyOf(mIndexes, capacity);
+            mAccounts = Arrays.copyOf(mAccounts, capacity);
+            mValues = Arrays.copyOf(mValues, capacity);
+            mNext = Arrays.copyOf(mNext, capacity);
+            mMarks = Arrays.copyOf(mMarks, capacity);
+        }
+        return mEntryLimit++;
+    }
+
+    private void freeEntry(final int entry) {
+        --mEntryCount;
+        mNext[entry] = mFreeEntry;
+        mFreeEntry = entry;
+    }
+}
@@ -1,8 +1,11 @@
 package com.greenaddress.greenbits.spv;
 
 import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.CompactFilterProvider;
 
-class PeerFilterProvider implements org.bitcoinj.core.PeerFilterProvider {
+import java.util.List;
+
+class PeerFilterProvider implements org.bitcoinj.core.PeerFilterProvider, CompactFilterProvider {
     private final SPV mSPV;
 
     public PeerFilterProvider(final SPV spv) { mSPV = spv; }
@@ -23,6 +26,11 @@ class PeerFilterProvider implements org.bitcoinj.core.PeerFilterProvider {
         return mSPV.getBloomFilter(size, falsePositiveRate, nTweak);
     }
 
+    @Override
+    public List<byte[]> getCompactFilterElements() {
+        return mSPV.getCompactFilterElements();
+    }
+
     @Override
     public boolean isRequiringUpdateAllBloomFilter() {
         return false;
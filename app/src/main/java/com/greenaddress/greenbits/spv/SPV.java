@@ -11,9 +11,9 @@ import android.os.Build;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationCompat.Builder;
 import android.util.Log;
-import android.util.Pair;
 import android.util.SparseArray;
 
+import com.blockstream.libwally.Wally;
 import com.google.common.base.Function;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.FutureCallback;
@@ -41,7 +41,6 @@ import org.bitcoinj.core.PeerGroup;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.Transaction;
-import org.bitcoinj.core.TransactionOutPoint;
 import org.bitcoinj.core.VerificationException;
 import org.bitcoinj.core.listeners.DownloadProgressTracker;
 import org.bitcoinj.core.listeners.TransactionReceivedInBlockListener;
@@ -49,11 +48,13 @@ import org.bitcoinj.net.BlockingClientManager;
 import org.bitcoinj.net.discovery.DnsDiscovery;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.SPVBlockStore;
 import org.bitcoinj.wallet.Wallet;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
@@ -64,11 +65,8 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -77,23 +75,19 @@ public class SPV {
 
     private final static String TAG = SPV.class.getSimpleName();
 
-    private final Map<TransactionOutPoint, Coin> mCountedUtxoValues = new HashMap<>();
-
+    // Preferences which held the verification state before SPVVerificationStore
     private final static String VERIFIED = "verified_utxo_";
     private final static String SPENDABLE = "verified_utxo_spendable_value_";
-
-    static class AccountInfo extends Pair<Integer, Integer> {
-        public AccountInfo(final Integer subAccount, final Integer pointer) { super(subAccount, pointer); }
-        public Integer getSubAccount() { return first; }
-        public Integer getPointer() { return second; }
-    }
+    // Headers kept by the block store. Lookups are indexed, so this can be large enough to ride
+    // out long periods offline without re-syncing from a checkpoint. Existing smaller chain files
+    // are grown in place when opened.
+    private final static int BLOCK_STORE_CAPACITY = 50000;
 
     // We use a single threaded executor to serialise config changes
     // without forcing callers to block.
     private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
     private final SparseArray<Coin> mVerifiedCoinBalances = new SparseArray<>();
-    private final Map<Sha256Hash, List<Integer>> mUnspentOutpoints = new HashMap<>();
-    private final Map<TransactionOutPoint, AccountInfo> mUnspentDetails = new HashMap<>();
+    private final OutpointTable mUnspentOutpoints = new OutpointTable();
     private final GaService mService;
     private int mBlocksRemaining = Integer.MAX_VALUE;
     private BlockStore mBlockStore;
@@ -105,6 +99,8 @@ public class SPV {
     private final static int mNotificationId = 1;
     private int mNetWorkType;
     private final Object mStateLock = new Object();
+    // The store of the logged in wallet. It is opened on mExecutor at login, and is null until then.
+    private volatile SPVVerificationStore mVerificationStore;
 
     public SPV(final GaService service) {
         mService = service;
@@ -140,6 +136,10 @@ public class SPV {
         }
     }
 
+    public boolean isCompactFilterSyncEnabled() {
+        return mService.cfg("SPV").getBoolean("compactFilters", false);
+    }
+
     public boolean isSyncOnMobileEnabled() {
         return mService.cfg("SPV").getBoolean("mobileSyncEnabled", false);
     }
@@ -192,8 +192,51 @@ public class SPV {
         return mPeerGroup;
     }
 
+    // Called for every row of the transaction lists, so this must not touch the disk
     public boolean isVerified(final Sha256Hash txHash) {
-        return mService.cfgIn(VERIFIED).getBoolean(txHash.toString(), false);
+        final SPVVerificationStore store = mVerificationStore;
+        return store != null && store.isVerified(txHash);
+    }
+
+    public void openVerificationStoreAsync(final String receivingId) {
+        mExecutor.execute(new Runnable() { public void run() { openVerificationStore(receivingId); } });
+    }
+
+    // Opens the store of the given wallet, migrating the preferences
+    // which held that wallet's verification state before the store
+    private void openVerificationStore(final String receivingId) {
+        if (receivingId == null) {
+            Log.w(TAG, "Not opening verification store without a receiving id");
+            return;
+        }
+        final File file = mService.getSPVVerificationFile(receivingId);
+        final SPVVerificationStore current = mVerificationStore;
+        if (current != null && current.getFile().equals(file))
+            return;
+        if (current != null) {
+            mVerificationStore = null;
+            current.close();
+        }
+        final SPVVerificationStore store = SPVVerificationStore.open(file, mExecutor);
+
+        final Map<String, ?> verified = mService.cfg(VERIFIED + receivingId).getAll();
+        final Map<String, ?> spendable = mService.cfg(SPENDABLE + receivingId).getAll();
+        if (store.isEmpty() && (!verified.isEmpty() || !spendable.isEmpty())) {
+            Log.d(TAG, "Migrating " + verified.size() + " verified transactions from preferences");
+            // Only drop the preferences once the store holds their contents
+            if (store.importPreferences(verified, spendable)) {
+                mService.cfgEdit(SPENDABLE + receivingId).clear().apply();
+                mService.cfgEdit(VERIFIED + receivingId).clear().apply();
+            }
+        }
+        mVerificationStore = store;
+    }
+
+    private void onTransactionVerified(final Sha256Hash txHash, final int height) {
+        final SPVVerificationStore store = mVerificationStore;
+        if (store != null)
+            store.setVerified(txHash, height);
+        getService().notifyObservers(txHash);
     }
 
     public void startAsync() {
@@ -212,11 +255,7 @@ public class SPV {
     }
 
     private boolean isUnspentOutpoint(final Sha256Hash txHash) {
-        return mUnspentOutpoints.containsKey(txHash);
-    }
-
-    private TransactionOutPoint createOutPoint(final Integer index, final Sha256Hash txHash, final NetworkParameters params) {
-        return new TransactionOutPoint(params, index, txHash);
+        return mUnspentOutpoints.containsTx(txHash);
     }
 
     public ListenableFuture<Void> updateUnspentOutputs() {
@@ -237,44 +276,60 @@ public class SPV {
     }
 
     private void updateUnspentOutputs(final List<JSONMap> utxos) {
-        final Set<TransactionOutPoint> newUtxos = new HashSet<>();
         boolean recalculateBloom = false;
+        final List<byte[]> newBloomElements = new ArrayList<>();
 
         Log.d(TAG, Var("number of utxos", utxos.size()));
+        // Only outputs which are new since the last update need any work,
+        // the ones which are gone are removed below.
+        mUnspentOutpoints.beginUpdate();
         for (final JSONMap utxo : utxos) {
             final Integer prevIndex = utxo.getInt("pt_idx");
             final Integer subaccount = utxo.getInt("subaccount");
             final Integer pointer = utxo.getInt("pointer");
             final Sha256Hash txHash = utxo.getHash("txhash");
 
+            final boolean isNewTx = !mUnspentOutpoints.containsTx(txHash);
+            final boolean added = mUnspentOutpoints.put(txHash, prevIndex, subaccount, pointer);
             if (isVerified(txHash)) {
-                addToUtxo(txHash, prevIndex, subaccount, pointer);
-                addUtxoToValues(txHash, false /* updateVerified */);
-            } else {
-                recalculateBloom = true;
-                addToBloomFilter(utxo.getInt("block_height"), txHash, prevIndex, subaccount, pointer);
+                // Retry outputs whose value couldn't be checked last time
+                if (added || mUnspentOutpoints.getValue(txHash, prevIndex) == -1)
+                    addUtxoToValues(txHash);
+            } else if (added) {
+                if (isNewTx)
+                    newBloomElements.add(txHash.getReversedBytes());
+                addToBloomFilter(utxo.getInt("block_height"), txHash);
             }
-            newUtxos.add(createOutPoint(prevIndex, txHash, mService.getNetworkParameters()));
         }
 
-        final List<Integer> changedSubaccounts = new ArrayList<>();
-        for (final TransactionOutPoint oldUtxo : new HashSet<>(mCountedUtxoValues.keySet())) {
-            if (!newUtxos.contains(oldUtxo)) {
-                recalculateBloom = true;
-
-                final int subAccount = mUnspentDetails.get(oldUtxo).getSubAccount();
-                final Coin verifiedBalance = getVerifiedBalance(subAccount);
-                mVerifiedCoinBalances.put(subAccount,
-                                          verifiedBalance.subtract(mCountedUtxoValues.get(oldUtxo)));
-                changedSubaccounts.add(subAccount);
-                mCountedUtxoValues.remove(oldUtxo);
-                mUnspentDetails.remove(oldUtxo);
-                mUnspentOutpoints.get(oldUtxo.getHash()).remove(((int) oldUtxo.getIndex()));
+        final SparseArray<Coin> removedValues = new SparseArray<>();
+        final int before = mUnspentOutpoints.size();
+        mUnspentOutpoints.removeUnmarked(new OutpointTable.RemovedListener() {
+            @Override
+            public void onRemoved(final int subAccount, final int pointer, final long value) {
+                if (value == -1)
+                    return;
+                final Coin removed = removedValues.get(subAccount);
+                removedValues.put(subAccount, removed == null ? Coin.valueOf(value) : removed.add(Coin.valueOf(value)));
             }
+        });
+        if (mUnspentOutpoints.size() != before)
+            recalculateBloom = true;
+
+        final List<Integer> changedSubaccounts = new ArrayList<>();
+        for (int i = 0; i < removedValues.size(); ++i) {
+            final int subAccount = removedValues.keyAt(i);
+            mVerifiedCoinBalances.put(subAccount, getVerifiedBalance(subAccount).subtract(removedValues.valueAt(i)));
+            changedSubaccounts.add(subAccount);
         }
 
-        if (recalculateBloom && mPeerGroup != null)
-            mPeerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED);
+        if (mPeerGroup != null) {
+            // Removed outputs need a new filter, new ones can be added to the current one
+            if (recalculateBloom)
+                mPeerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED);
+            else if (!newBloomElements.isEmpty())
+                mPeerGroup.addBloomFilterElements(newBloomElements);
+        }
 
         fireBalanceChanged(changedSubaccounts);
     }
@@ -284,37 +339,36 @@ public class SPV {
             mService.fireBalanceChanged(subAccount);
     }
 
-    private void updateBalance(final TransactionOutPoint txOutpoint, final int subAccount, final Coin addValue) {
-        if (mCountedUtxoValues.containsKey(txOutpoint))
-           return;
-        mCountedUtxoValues.put(txOutpoint, addValue);
+    // Returns the subaccount of the output, or -1 if it is gone or was already counted
+    private int updateBalance(final Sha256Hash txHash, final int index, final Coin addValue) {
+        final int subAccount = mUnspentOutpoints.setValue(txHash, index, addValue.longValue());
+        if (subAccount == -1)
+           return -1;
         final Coin verifiedBalance = getVerifiedBalance(subAccount);
         if (verifiedBalance == null)
             mVerifiedCoinBalances.put(subAccount, addValue);
         else
             mVerifiedCoinBalances.put(subAccount, verifiedBalance.add(addValue));
+        return subAccount;
     }
 
-    public void addUtxoToValues(final Sha256Hash txHash, final boolean updateVerified) {
+    public void addUtxoToValues(final Sha256Hash txHash) {
         final String txHashHex = txHash.toString();
-
-        if (updateVerified)
-            mService.cfgInEdit(VERIFIED).putBoolean(txHashHex, true).apply();
+        final SPVVerificationStore store = mVerificationStore;
+        if (store == null)
+            return; // Not logged in yet; the outputs are checked again once syncing starts
 
         final List<Integer> changedSubaccounts = new ArrayList<>();
         boolean missing = false;
-        for (final Integer outpoint : mUnspentOutpoints.get(txHash)) {
-            final String key = txHashHex + ':' + outpoint;
-            final long value = mService.cfgIn(SPENDABLE).getLong(key, -1);
+        for (final OutpointTable.Uncounted output : mUnspentOutpoints.getUncounted(txHash)) {
+            final long value = store.getSpendableValue(txHash, output.mIndex);
             if (value == -1) {
                 missing = true;
                 continue;
             }
-            final TransactionOutPoint txOutpoint = createOutPoint(outpoint, txHash, mService.getNetworkParameters());
-            final int subAccount = mUnspentDetails.get(txOutpoint).getSubAccount();
-            if (!mCountedUtxoValues.containsKey(txOutpoint))
+            final int subAccount = updateBalance(txHash, output.mIndex, Coin.valueOf(value));
+            if (subAccount != -1)
                 changedSubaccounts.add(subAccount);
-            updateBalance(txOutpoint, subAccount, Coin.valueOf(value));
         }
         fireBalanceChanged(changedSubaccounts);
 
@@ -331,17 +385,12 @@ public class SPV {
                 final List<Integer> changedSubaccounts = new ArrayList<>();
                 final List<ListenableFuture<Boolean>> futuresList = new ArrayList<>();
 
-                for (final Integer outpoint : mUnspentOutpoints.get(txHash)) {
-                    final TransactionOutPoint txOutpoint = createOutPoint(outpoint, txHash, mService.getNetworkParameters());
-                    if (mCountedUtxoValues.containsKey(txOutpoint))
-                        continue;
-
-                    final AccountInfo accountInfo = mUnspentDetails.get(txOutpoint);
-                    final int subAccount = accountInfo.getSubAccount();
-                    final int pointer = accountInfo.getPointer();
+                for (final OutpointTable.Uncounted output : mUnspentOutpoints.getUncounted(txHash)) {
+                    final int outpoint = output.mIndex;
 
                     final ListenableFuture<Boolean> verifyFn;
-                    verifyFn = mService.verifySpendableBy(result.getOutput(outpoint), subAccount, pointer);
+                    verifyFn = mService.verifySpendableBy(result.getOutput(outpoint),
+                                                          output.mSubAccount, output.mPointer);
                     futuresList.add(Futures.transform(verifyFn, new Function<Boolean, Boolean>() {
                         @Override
                         public Boolean apply(final Boolean input) {
@@ -350,9 +399,11 @@ public class SPV {
                                 Log.e(TAG, "txHash " + key + " not spendable!");
                             else {
                                 final Coin value = result.getOutput(outpoint).getValue();
-                                updateBalance(txOutpoint, subAccount, value);
-                                changedSubaccounts.add(subAccount);
-                                mService.cfgInEdit(SPENDABLE).putLong(key, value.longValue()).apply();
+                                // The output may have been spent while verifying it
+                                final int subAccount = updateBalance(txHash, outpoint, value);
+                                if (subAccount != -1)
+                                    changedSubaccounts.add(subAccount);
+                                store.setSpendableValue(txHash, outpoint, value.longValue());
                             }
                             return input;
                         }
@@ -369,12 +420,12 @@ public class SPV {
     }
 
     public int getBloomFilterElementCount() {
-        final int count = mUnspentOutpoints.size();
+        final int count = mUnspentOutpoints.getTxCount();
         return count == 0 ? 1 : count;
     }
 
     public BloomFilter getBloomFilter(final int size, final double falsePositiveRate, final long nTweak) {
-        final Set<Sha256Hash> keys = mUnspentOutpoints.keySet();
+        final List<Sha256Hash> keys = mUnspentOutpoints.getTxHashes();
         Log.d(TAG, "getBloomFilter returning " + keys.size() + " items");
         final BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
         for (final Sha256Hash hash : keys)
@@ -390,21 +441,39 @@ public class SPV {
         return filter;
     }
 
+    public List<byte[]> getCompactFilterElements() {
+        // Our outputs pay to the P2SH of either the multisig script or its segwit
+        // wrapper, match both so that blocks paying to or spending them are found.
+        final Map<Integer, List<Integer>> pointers = mUnspentOutpoints.getPointers();
+        int count = 0;
+        for (final List<Integer> p : pointers.values())
+            count += p.size();
+        Log.d(TAG, "getCompactFilterElements returning scripts for " + count + " addresses");
+        final List<byte[]> elements = new ArrayList<>(count * 2);
+        for (final Map.Entry<Integer, List<Integer>> e : pointers.entrySet()) {
+            for (final byte[] multisig : mService.createOutScripts(e.getKey(), e.getValue())) {
+                elements.add(ScriptBuilder.createP2SHOutputScript(Wally.hash160(multisig)).getProgram());
+                elements.add(ScriptBuilder.createP2SHOutputScript(
+                        Wally.hash160(GaService.getSegWitScript(multisig))).getProgram());
+            }
+        }
+        return elements;
+    }
+
     public void onNewBlock(final int blockHeight) {
         Log.d(TAG, "onNewBlock: " + Var("blockHeight", blockHeight) +
               Var("isEnabled", isEnabled()));
         if (isEnabled())
-            addToBloomFilter(blockHeight, null, -1, -1, -1);
+            addToBloomFilter(blockHeight, null);
     }
 
-    private void addToBloomFilter(final Integer blockHeight, final Sha256Hash txHash, final int prevIndex, final int subAccount, final int pointer) {
+    // The output of txHash, if any, must already be in mUnspentOutpoints
+    private void addToBloomFilter(final Integer blockHeight, final Sha256Hash txHash) {
         if (mBlockChain == null)
             return; // can happen before login (onNewBlock)
-        if (txHash != null)
-            addToUtxo(txHash, prevIndex, subAccount, pointer);
 
         if (blockHeight != null && blockHeight <= mBlockChain.getBestChainHeight() &&
-            (txHash == null || !mUnspentOutpoints.containsKey(txHash))) {
+            (txHash == null || !mUnspentOutpoints.containsTx(txHash))) {
             // new tx or block notification with blockHeight <= current blockHeight means we might've [1]
             // synced the height already while we haven't seen the tx, so we need to re-sync to be able
             // to verify it.
@@ -433,15 +502,6 @@ public class SPV {
         }
     }
 
-    private void addToUtxo(final Sha256Hash txHash, final Integer prevIndex, final int subAccount, final int pointer) {
-        mUnspentDetails.put(createOutPoint(prevIndex, txHash, mService.getNetworkParameters()),
-                            new AccountInfo(subAccount, pointer));
-        if (mUnspentOutpoints.get(txHash) == null)
-            mUnspentOutpoints.put(txHash, Lists.newArrayList(prevIndex));
-        else
-            mUnspentOutpoints.get(txHash).add(prevIndex);
-    }
-
     private ListenableFuture<Boolean>
     verifyOutputSpendable(final PreparedTransaction ptx, final int index) {
         return mService.verifySpendableBy(ptx.mDecoded.getOutputs().get(index), ptx.mSubAccount,
@@ -471,7 +531,7 @@ public class SPV {
         return Futures.transform(changeFn, new Function<List<Boolean>, Coin>() {
             @Override
             public Coin apply(final List<Boolean> input) {
-                return Verifier.verify(mService, mCountedUtxoValues, ptx, recipientAddr, amount, input);
+                return Verifier.verify(mService, mUnspentOutpoints, ptx, recipientAddr, amount, input);
             }
         });
     }
@@ -624,12 +684,15 @@ public class SPV {
                                      final int relativityOffset) throws VerificationException {
             if (tx == null)
                 throw new RuntimeException("receiveFromBlock got null tx");
-            getService().notifyObservers(tx.getHash());
+            // Full blocks downloaded because their compact filter matched
+            // also contain transactions that are not ours.
+            if (isUnspentOutpoint(tx.getHash()))
+                onTransactionVerified(tx.getHash(), block.getHeight());
         }
 
         @Override
         public boolean notifyTransactionIsInBlock(final Sha256Hash txHash, final StoredBlock block, final BlockChain.NewBlockType blockType, final int relativityOffset) throws VerificationException {
-            getService().notifyObservers(txHash);
+            onTransactionVerified(txHash, block.getHeight());
             return isUnspentOutpoint(txHash);
         }
     };
@@ -656,7 +719,8 @@ public class SPV {
 
             try {
                 Log.d(TAG, "Creating block store");
-                mBlockStore = new SPVBlockStore(mService.getNetworkParameters(), mService.getSPVChainFile());
+                mBlockStore = new SPVBlockStore(mService.getNetworkParameters(), mService.getSPVChainFile(),
+                                                BLOCK_STORE_CAPACITY);
                 final StoredBlock storedBlock = mBlockStore.getChainHead(); // detect corruptions as early as possible
                 if (storedBlock.getHeight() == 0 && mService.isRegtest()) {
                     InputStream is = null;
@@ -700,6 +764,7 @@ public class SPV {
                 }
 
                 disablePingMonitoring();
+                mPeerGroup.setCompactFilterSyncEnabled(isCompactFilterSyncEnabled());
                 try {
                     updateUnspentOutputs().get();
                 } catch(final ExecutionException | InterruptedException e) {
@@ -833,6 +898,7 @@ public class SPV {
             if (deleteAllData) {
                 Log.d(TAG, "Deleting chain file");
                 mService.getSPVChainFile().delete();
+                SPVBlockStore.getIndexFile(mService.getSPVChainFile()).delete();
 
                 try {
                     Log.d(TAG, "Clearing verified and spendable transactions");
@@ -841,13 +907,14 @@ public class SPV {
                 } catch (final NullPointerException e) {
                     // ignore
                 }
+                final SPVVerificationStore store = mVerificationStore;
+                if (store != null)
+                    store.clear();
             }
 
             if (deleteUnspent) {
                 Log.d(TAG, "Resetting unspent outputs");
-                mUnspentDetails.clear();
                 mUnspentOutpoints.clear();
-                mCountedUtxoValues.clear();
                 mVerifiedCoinBalances.clear();
             }
 
@@ -0,0 +1,417 @@
+package com.greenaddress.greenbits.spv;
+
+import android.util.Log;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+// Persists which transactions SPV has verified, and the values of our
+// outputs in them that were checked to be spendable by us.
+//
+// Changes are appended to a log of fixed size records, so recording a
+// verification costs O(1) and never rewrites the file. Appends are
+// written and synced in batches on the given executor. The whole log is
+// indexed in memory when the store is opened; a torn record at the end
+// from a crash is dropped. The log is rewritten without superseded
+// records once they outnumber the live ones, both when it is opened and
+// as it grows afterwards.
+class SPVVerificationStore {
+
+    private static final String TAG = SPVVerificationStore.class.getSimpleName();
+
+    // Height recorded for transactions migrated from before heights were kept
+    static final int UNKNOWN_HEIGHT = 0;
+
+    private static final int MAGIC = 0x53505656; // "SPVV"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final byte TYPE_VERIFIED = 1;
+    private static final byte TYPE_SPENDABLE = 2;
+    // type, tx hash, height or output index, value, crc32 of the preceding bytes
+    private static final int RECORD_SIZE = 1 + Sha256Hash.LENGTH + 4 + 8 + 4;
+    private static final int MIN_COMPACT_RECORDS = 1024;
+
+    private static class TxEntry {
+        int mVerifiedHeight = -1;
+        int[] mIndexes = new int[0];
+        long[] mValues = new long[0];
+
+        long getValue(final int index) {
+            for (int i = 0; i < mIndexes.length; ++i)
+                if (mIndexes[i] == index)
+                    return mValues[i];
+            return -1;
+        }
+
+        // Returns true if the value changed
+        boolean putValue(final int index, final long value) {
+            for (int i = 0; i < mIndexes.length; ++i) {
+                if (mIndexes[i] == index) {
+                    if (mValues[i] == value)
+                        return false;
+                    mValues[i] = value;
+                    return true;
+                }
+            }
+            mIndexes = Arrays.copyOf(mIndexes, mIndexes.length + 1);
+            mValues = Arrays.copyOf(mValues, mValues.length + 1);
+            mIndexes[mIndexes.length - 1] = index;
+            mValues[mValues.length - 1] = value;
+            return true;
+        }
+    }
+
+    private final File mFile;
+    private final Executor mExecutor;
+    private final Map<Sha256Hash, TxEntry> mTxs = new HashMap<>();
+    private final AtomicBoolean mFlushPending = new AtomicBoolean();
+    private final Object mFileLock = new Object();
+    private ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+    private int mLiveRecords;
+    // Records in the file, guarded by mFileLock
+    private int mFileRecords;
+    private FileOutputStream mOut;
+
+    private SPVVerificationStore(final File file, final Executor executor) {
+        mFile = file;
+        mExecutor = executor;
+    }
+
+    // Opens the store, creating an empty one if the file is missing or unreadable
+    static SPVVerificationStore open(final File file, final Executor executor) {
+        final SPVVerificationStore store = new SPVVerificationStore(file, executor);
+        if (!store.load())
+            store.writeFile(new byte[0]);
+        return store;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    synchronized boolean isEmpty() {
+        return mTxs.isEmpty();
+    }
+
+    synchronized boolean isVerified(final Sha256Hash txHash) {
+        final TxEntry entry = mTxs.get(txHash);
+        return entry != null && entry.mVerifiedHeight >= 0;
+    }
+
+    // The height at which the transaction was verified, or -1 if it wasn't
+    synchronized int getVerifiedHeight(final Sha256Hash txHash) {
+        final TxEntry entry = mTxs.get(txHash);
+        return entry == null ? -1 : entry.mVerifiedHeight;
+    }
+
+    // The verified value of an output, or -1 if it wasn't verified as spendable
+    synchronized long getSpendableValue(final Sha256Hash txHash, final int index) {
+        final TxEntry entry = mTxs.get(txHash);
+        return entry == null ? -1 : entry.getValue(index);
+    }
+
+    void setVerified(final Sha256Hash txHash, final int height) {
+        synchronized (this) {
+            final TxEntry entry = getOrCreate(txHash);
+            if (entry.mVerifiedHeight == height)
+                return;
+            if (entry.mVerifiedHeight < 0)
+                ++mLiveRecords;
+            entry.mVerifiedHeight = height;
+            append(TYPE_VERIFIED, txHash, height, 0);
+        }
+        scheduleFlush();
+    }
+
+    void setSpendableValue(final Sha256Hash txHash, final int index, final long value) {
+        synchronized (this) {
+            final TxEntry entry = getOrCreate(txHash);
+            final boolean isNew = entry.getValue(index) < 0;
+            if (!entry.putValue(index, value))
+                return;
+            if (isNew)
+                ++mLiveRecords;
+            append(TYPE_SPENDABLE, txHash, index, value);
+        }
+        scheduleFlush();
+    }
+
+    // Imports the verification state which was previously kept in preferences:
+    // tx hash -> true for verified transactions and "txhash:index" -> value for
+    // spendable outputs. Returns false if the import couldn't be written.
+    boolean importPreferences(final Map<String, ?> verified, final Map<String, ?> spendable) {
+        synchronized (this) {
+            for (final Map.Entry<String, ?> e : verified.entrySet()) {
+                if (!Boolean.TRUE.equals(e.getValue()))
+                    continue;
+                final TxEntry entry = getOrCreate(Sha256Hash.wrap(e.getKey()));
+                if (entry.mVerifiedHeight < 0) {
+                    entry.mVerifiedHeight = UNKNOWN_HEIGHT;
+                    ++mLiveRecords;
+                }
+            }
+            for (final Map.Entry<String, ?> e : spendable.entrySet()) {
+                final int sep = e.getKey().indexOf(':');
+                if (sep < 0 || !(e.getValue() instanceof Long))
+                    continue;
+                final TxEntry entry = getOrCreate(Sha256Hash.wrap(e.getKey().substring(0, sep)));
+                final int index = Integer.parseInt(e.getKey().substring(sep + 1));
+                if (entry.getValue(index) < 0)
+                    ++mLiveRecords;
+                entry.putValue(index, (Long) e.getValue());
+            }
+        }
+        synchronized (mFileLock) {
+            closeOutput();
+            synchronized (this) {
+                mPending = new ByteArrayOutputStream();
+            }
+            return compact();
+        }
+    }
+
+    // Removes everything, e.g. when the chain is re-synced from scratch
+    void clear() {
+        synchronized (mFileLock) {
+            synchronized (this) {
+                mTxs.clear();
+                mLiveRecords = 0;
+                mPending = new ByteArrayOutputStream();
+            }
+            closeOutput();
+            if (writeFile(new byte[0]))
+                mFileRecords = 0;
+            else
+                mFile.delete();
+        }
+    }
+
+    // Writes and syncs all changes made so far
+    void flush() {
+        synchronized (mFileLock) {
+            final byte[] pending;
+            synchronized (this) {
+                if (mPending.size() == 0)
+                    return;
+                pending = mPending.toByteArray();
+                mPending = new ByteArrayOutputStream();
+            }
+            try {
+                // The log may be missing if creating or clearing it failed
+                if (mOut == null && mFile.length() < HEADER_SIZE) {
+                    if (!writeFile(new byte[0]))
+                        throw new IOException("Cannot create " + mFile);
+                    mFileRecords = 0;
+                }
+                if (mOut == null)
+                    mOut = new FileOutputStream(mFile, true);
+                mOut.write(pending);
+                mOut.getFD().sync();
+                mFileRecords += pending.length / RECORD_SIZE;
+            } catch (final IOException e) {
+                Log.w(TAG, "Failed to write verification store: " + e.getMessage());
+                closeOutput();
+                return;
+            }
+            if (shouldCompact(mFileRecords)) {
+                closeOutput();
+                final int records = mFileRecords;
+                if (compact())
+                    Log.d(TAG, "Compacted verification store from " + records + " to " + mFileRecords + " records");
+            }
+        }
+    }
+
+    void close() {
+        flush();
+        synchronized (mFileLock) {
+            closeOutput();
+        }
+    }
+
+    private TxEntry getOrCreate(final Sha256Hash txHash) {
+        TxEntry entry = mTxs.get(txHash);
+        if (entry == null) {
+            entry = new TxEntry();
+            mTxs.put(txHash, entry);
+        }
+        return entry;
+    }
+
+    private void scheduleFlush() {
+        // Coalesce changes made while a flush is queued into a single write and sync
+        if (mFlushPending.compareAndSet(false, true)) {
+            mExecutor.execute(new Runnable() {
+                public void run() {
+                    mFlushPending.set(false);
+                    flush();
+                }
+            });
+        }
+    }
+
+    private void append(final byte type, final Sha256Hash txHash, final int a, final long b) {
+        writeRecord(mPending, type, txHash, a, b);
+    }
+
+    private static void writeRecord(final ByteArrayOutputStream out, final byte type,
+                                    final Sha256Hash txHash, final int a, final long b) {
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.put(type).put(txHash.getBytes()).putInt(a).putLong(b);
+        final CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, RECORD_SIZE - 4);
+        record.putInt((int) crc.getValue());
+        out.write(record.array(), 0, RECORD_SIZE);
+    }
+
+    // Returns false if there is no usable log to append to
+    private boolean load() {
+        if (!mFile.exists())
+            return false;
+        final byte[] data;
+        try {
+            data = readFile();
+        } catch (final IOException e) {
+            Log.w(TAG, "Discarding unreadable verification store: " + e.getMessage());
+            return false;
+        }
+        final ByteBuffer buf = ByteBuffer.wrap(data);
+        if (data.length < HEADER_SIZE || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+            Log.w(TAG, "Discarding verification store with unknown format");
+            return false;
+        }
+
+        int records = 0;
+        final byte[] hash = new byte[Sha256Hash.LENGTH];
+        final CRC32 crc = new CRC32();
+        while (buf.remaining() >= RECORD_SIZE) {
+            final int start = buf.position();
+            crc.reset();
+            crc.update(data, start, RECORD_SIZE - 4);
+            final byte type = buf.get();
+            buf.get(hash);
+            final int a = buf.getInt();
+            final long b = buf.getLong();
+            if (buf.getInt() != (int) crc.getValue() ||
+                (type != TYPE_VERIFIED && type != TYPE_SPENDABLE)) {
+                buf.position(start);
+                break;
+            }
+            final TxEntry entry = getOrCreate(Sha256Hash.wrap(hash.clone()));
+            if (type == TYPE_VERIFIED) {
+                if (entry.mVerifiedHeight < 0)
+                    ++mLiveRecords;
+                entry.mVerifiedHeight = a;
+            } else {
+                if (entry.getValue(a) < 0)
+                    ++mLiveRecords;
+                entry.putValue(a, b);
+            }
+            ++records;
+        }
+
+        mFileRecords = records;
+        if (shouldCompact(records) && compact()) {
+            Log.d(TAG, "Compacted verification store from " + records + " to " + mLiveRecords + " records");
+        } else if (buf.position() != data.length) {
+            // Drop a record that was only partly written when we were killed
+            Log.w(TAG, "Truncating verification store to " + buf.position() + " bytes");
+            try (final RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+                raf.setLength(buf.position());
+            } catch (final IOException e) {
+                Log.w(TAG, "Failed to truncate verification store: " + e.getMessage());
+            }
+        }
+        Log.d(TAG, "Loaded " + mTxs.size() + " transactions from " + records + " records");
+        return true;
+    }
+
+    private synchronized boolean shouldCompact(final int records) {
+        return records > MIN_COMPACT_RECORDS && records > 2 * mLiveRecords;
+    }
+
+    // Rewrites the log with only the live records
+    private boolean compact() {
+        final byte[] records = serializeLive();
+        if (!writeFile(records))
+            return false;
+        mFileRecords = records.length / RECORD_SIZE;
+        return true;
+    }
+
+    private synchronized byte[] serializeLive() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(mLiveRecords * RECORD_SIZE);
+        for (final Map.Entry<Sha256Hash, TxEntry> e : mTxs.entrySet()) {
+            final TxEntry entry = e.getValue();
+            if (entry.mVerifiedHeight >= 0)
+                writeRecord(out, TYPE_VERIFIED, e.getKey(), entry.mVerifiedHeight, 0);
+            for (int i = 0; i < entry.mIndexes.length; ++i)
+                writeRecord(out, TYPE_SPENDABLE, e.getKey(), entry.mIndexes[i], entry.mValues[i]);
+        }
+        return out.toByteArray();
+    }
+
+    // Replaces the file with a header followed by the given records.
+    // The data is synced to a temporary file which is then renamed over
+    // the old one, so a crash leaves either the old or the new log behind.
+    private boolean writeFile(final byte[] records) {
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        try (final FileOutputStream fos = new FileOutputStream(tmp)) {
+            final DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(records);
+            out.flush();
+            fos.getFD().sync();
+        } catch (final IOException e) {
+            Log.w(TAG, "Failed to write verification store: " + e.getMessage());
+            tmp.delete();
+            return false;
+        }
+        if (!tmp.renameTo(mFile)) {
+            Log.w(TAG, "Failed to replace verification store " + mFile);
+            tmp.delete();
+            return false;
+        }
+        return true;
+    }
+
+    private byte[] readFile() throws IOException {
+        final byte[] data = new byte[(int) mFile.length()];
+        try (final FileInputStream in = new FileInputStream(mFile)) {
+            int read = 0;
+            while (read < data.length) {
+                final int n = in.read(data, read, data.length - read);
+                if (n < 0)
+                    throw new IOException("Unexpected end of file");
+                read += n;
+            }
+        }
+        return data;
+    }
+
+    private void closeOutput() {
+        if (mOut == null)
+            return;
+        try {
+            mOut.close();
+        } catch (final IOException e) {
+            // ignore
+        }
+        mOut = null;
+    }
+}
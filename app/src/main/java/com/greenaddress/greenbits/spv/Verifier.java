@@ -12,7 +12,6 @@ import org.bitcoinj.core.TransactionOutput;
 import org.bitcoinj.params.RegTestParams;
 
 import java.util.List;
-import java.util.Map;
 
 class Verifier {
     private static void feeError(final String smallLarge, final Coin feeRate, final Coin limit) {
@@ -23,7 +22,7 @@ class Verifier {
     }
 
     static Coin verify(final GaService service,
-                       final Map<TransactionOutPoint, Coin> countedUtxoValues, final PreparedTransaction ptx,
+                       final OutpointTable countedUtxoValues, final PreparedTransaction ptx,
                        final Address recipient, final Coin amount, final List<Boolean> input) {
         final int changeIdx;
         if (input == null)
@@ -53,8 +52,10 @@ class Verifier {
         // 3. Verify fee value
         Coin fee = Coin.ZERO;
         for (final TransactionInput in : ptx.mDecoded.getInputs()) {
-            if (countedUtxoValues.get(in.getOutpoint()) != null) {
-                fee = fee.add(countedUtxoValues.get(in.getOutpoint()));
+            final TransactionOutPoint outpoint = in.getOutpoint();
+            final long countedValue = countedUtxoValues.getValue(outpoint.getHash(), (int) outpoint.getIndex());
+            if (countedValue != -1) {
+                fee = fee.add(Coin.valueOf(countedValue));
                 continue;
             }
 
@@ -0,0 +1,155 @@
+package com.greenaddress.greenbits.spv;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.UnitTestParams;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+// Measures refreshing the SPV unspent outputs from the server with
+// OutpointTable against the boxed maps SPV used before it, for wallets
+// of growing size. Each refresh drops the oldest outputs and adds as many
+// new ones, all outputs being verified and counted, as in a wallet which
+// is in sync. It is a plain program rather than a unit test, as it is
+// run by hand on a desktop JVM:
+//
+// OutpointTableBenchmark [outputs...]
+public class OutpointTableBenchmark {
+
+    private static final int OUTPUTS_PER_TX = 2;
+    private static final int CHANGED_PER_REFRESH = 100;
+    private static final int REFRESHES = 50;
+    private static final int ROUNDS = 5;
+
+    private static class Output {
+        final Sha256Hash mTxHash;
+        final int mIndex;
+        final int mSubAccount;
+        final int mPointer;
+
+        Output(final Sha256Hash txHash, final int index, final int subAccount, final int pointer) {
+            mTxHash = txHash;
+            mIndex = index;
+            mSubAccount = subAccount;
+            mPointer = pointer;
+        }
+    }
+
+    public static void main(final String[] args) {
+        int[] outputCounts = {1000, 10000, 100000};
+        if (args.length > 0) {
+            outputCounts = new int[args.length];
+            for (int i = 0; i < args.length; ++i)
+                outputCounts[i] = Integer.parseInt(args[i]);
+        }
+        final NetworkParameters params = UnitTestParams.get();
+        System.out.println("   outputs  ms/refresh (maps)  ms/refresh (table)");
+        for (final int outputCount : outputCounts) {
+            final List<List<Output>> refreshes = createRefreshes(outputCount);
+            // Warm up the JIT before timing
+            timeMaps(params, refreshes);
+            timeTable(refreshes);
+            double maps = Double.MAX_VALUE, table = Double.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; ++round) {
+                maps = Math.min(maps, timeMaps(params, refreshes));
+                table = Math.min(table, timeTable(refreshes));
+            }
+            System.out.println(String.format("%10d  %17.2f  %18.2f", outputCount, maps, table));
+        }
+    }
+
+    // The outputs reported by each refresh, the first one filling the tables
+    private static List<List<Output>> createRefreshes(final int outputCount) {
+        final Random random = new Random(outputCount);
+        final List<Output> outputs = new ArrayList<>();
+        final List<List<Output>> refreshes = new ArrayList<>();
+        int pointer = 0;
+        for (int refresh = 0; refresh <= REFRESHES; ++refresh) {
+            final int toAdd = refresh == 0 ? outputCount : CHANGED_PER_REFRESH;
+            if (refresh > 0)
+                outputs.subList(0, Math.min(CHANGED_PER_REFRESH, outputs.size())).clear();
+            for (int i = 0; i < toAdd; i += OUTPUTS_PER_TX) {
+                final byte[] hash = new byte[Sha256Hash.LENGTH];
+                random.nextBytes(hash);
+                final Sha256Hash txHash = Sha256Hash.wrap(hash);
+                for (int index = 0; index < OUTPUTS_PER_TX; ++index)
+                    outputs.add(new Output(txHash, index, pointer % 4, pointer++));
+            }
+            refreshes.add(new ArrayList<>(outputs));
+        }
+        return refreshes;
+    }
+
+    // Returns the milliseconds per refresh after the first one
+    private static double timeTable(final List<List<Output>> refreshes) {
+        final OutpointTable table = new OutpointTable();
+        final long[] removed = new long[1];
+        final OutpointTable.RemovedListener listener = new OutpointTable.RemovedListener() {
+            @Override
+            public void onRemoved(final int subAccount, final int pointer, final long value) {
+                removed[0] += value;
+            }
+        };
+        long start = 0;
+        for (int refresh = 0; refresh < refreshes.size(); ++refresh) {
+            if (refresh == 1)
+                start = System.nanoTime();
+            table.beginUpdate();
+            for (final Output output : refreshes.get(refresh)) {
+                if (table.put(output.mTxHash, output.mIndex, output.mSubAccount, output.mPointer))
+                    table.setValue(output.mTxHash, output.mIndex, Coin.CENT.longValue());
+            }
+            table.removeUnmarked(listener);
+        }
+        return (System.nanoTime() - start) / 1e6 / (refreshes.size() - 1);
+    }
+
+    // Refreshes the maps the way SPV.updateUnspentOutputs() used to, except
+    // that outputs are only added once to the per tx index lists, which used
+    // to grow with every refresh
+    private static double timeMaps(final NetworkParameters params, final List<List<Output>> refreshes) {
+        final Map<TransactionOutPoint, Coin> countedUtxoValues = new HashMap<>();
+        final Map<Sha256Hash, List<Integer>> unspentOutpoints = new HashMap<>();
+        final Map<TransactionOutPoint, Map.Entry<Integer, Integer>> unspentDetails = new HashMap<>();
+        Coin balance = Coin.ZERO;
+        long start = 0;
+        for (int refresh = 0; refresh < refreshes.size(); ++refresh) {
+            if (refresh == 1)
+                start = System.nanoTime();
+            final Set<TransactionOutPoint> newUtxos = new HashSet<>();
+            for (final Output output : refreshes.get(refresh)) {
+                final TransactionOutPoint outPoint = new TransactionOutPoint(params, output.mIndex, output.mTxHash);
+                unspentDetails.put(outPoint,
+                                   new AbstractMap.SimpleImmutableEntry<>(output.mSubAccount, output.mPointer));
+                if (unspentOutpoints.get(output.mTxHash) == null)
+                    unspentOutpoints.put(output.mTxHash, new ArrayList<Integer>());
+                if (!unspentOutpoints.get(output.mTxHash).contains(output.mIndex))
+                    unspentOutpoints.get(output.mTxHash).add(output.mIndex);
+                final TransactionOutPoint counted = new TransactionOutPoint(params, output.mIndex, output.mTxHash);
+                if (!countedUtxoValues.containsKey(counted)) {
+                    countedUtxoValues.put(counted, Coin.CENT);
+                    balance = balance.add(Coin.CENT);
+                }
+                newUtxos.add(new TransactionOutPoint(params, output.mIndex, output.mTxHash));
+            }
+            for (final TransactionOutPoint oldUtxo : new HashSet<>(countedUtxoValues.keySet())) {
+                if (!newUtxos.contains(oldUtxo)) {
+                    balance = balance.subtract(countedUtxoValues.get(oldUtxo));
+                    countedUtxoValues.remove(oldUtxo);
+                    unspentDetails.remove(oldUtxo);
+                    unspentOutpoints.get(oldUtxo.getHash()).remove((Integer) (int) oldUtxo.getIndex());
+                }
+            }
+        }
+        return (System.nanoTime() - start) / 1e6 / (refreshes.size() - 1);
+    }
+}
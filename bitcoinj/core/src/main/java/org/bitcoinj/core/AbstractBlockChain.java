@@ -105,23 +105,12 @@ public abstract class AbstractBlockChain {
     private final CopyOnWriteArrayList<ListenerRegistration<ReorganizeListener>> reorganizeListeners;
     private final CopyOnWriteArrayList<ListenerRegistration<TransactionReceivedInBlockListener>> transactionReceivedListeners;
 
-    // Holds a block header and, optionally, a list of tx hashes or block's transactions
-    class OrphanBlock {
-        final Block block;
-        final List<Sha256Hash> filteredTxHashes;
-        final Map<Sha256Hash, Transaction> filteredTxn;
-        OrphanBlock(Block block, @Nullable List<Sha256Hash> filteredTxHashes, @Nullable Map<Sha256Hash, Transaction> filteredTxn) {
-            final boolean filtered = filteredTxHashes != null && filteredTxn != null;
-            Preconditions.checkArgument((block.transactions == null && filtered)
-                                        || (block.transactions != null && !filtered));
-            this.block = block;
-            this.filteredTxHashes = filteredTxHashes;
-            this.filteredTxn = filteredTxn;
-        }
-    }
+    /** The default cap on the size of the orphan blocks held, see {@link #setMaxOrphanBlockBytes(long)}. */
+    public static final long DEFAULT_MAX_ORPHAN_BLOCK_BYTES = 32 * 1024 * 1024;
+
     // Holds blocks that we have received but can't plug into the chain yet, eg because they were created whilst we
     // were downloading the block chain.
-    private final LinkedHashMap<Sha256Hash, OrphanBlock> orphanBlocks = new LinkedHashMap<>();
+    private final OrphanBlockPool orphanBlocks = new OrphanBlockPool(DEFAULT_MAX_ORPHAN_BLOCK_BYTES);
 
     /** False positive estimation uses a double exponential moving average. */
     public static final double FP_ESTIMATOR_ALPHA = 0.0001;
@@ -429,11 +418,11 @@ public abstract class AbstractBlockChain {
         lock.lock();
         try {
             // Quick check for duplicates to avoid an expensive check further down (in findSplit). This can happen a lot
-            // when connecting orphan transactions due to the dumb brute force algorithm we use.
+            // when peers send us blocks we already have.
             if (block.equals(getChainHead().getHeader())) {
                 return true;
             }
-            if (tryConnecting && orphanBlocks.containsKey(block.getHash())) {
+            if (tryConnecting && orphanBlocks.contains(block.getHash())) {
                 return false;
             }
 
@@ -480,7 +469,7 @@ public abstract class AbstractBlockChain {
                 // have more blocks.
                 checkState(tryConnecting, "bug in tryConnectingOrphans");
                 log.warn("Block does not connect: {} prev {}", block.getHashAsString(), block.getPrevBlockHash());
-                orphanBlocks.put(block.getHash(), new OrphanBlock(block, filteredTxHashList, filteredTxn));
+                orphanBlocks.add(new OrphanBlockPool.OrphanBlock(block, filteredTxHashList, filteredTxn));
                 return false;
             } else {
                 checkState(lock.isHeldByCurrentThread());
@@ -490,7 +479,7 @@ public abstract class AbstractBlockChain {
             }
 
             if (tryConnecting)
-                tryConnectingOrphans();
+                tryConnectingOrphans(block.getHash());
 
             return true;
         } finally {
@@ -506,9 +495,7 @@ public abstract class AbstractBlockChain {
     public Set<Sha256Hash> drainOrphanBlocks() {
         lock.lock();
         try {
-            Set<Sha256Hash> hashes = new HashSet<>(orphanBlocks.keySet());
-            orphanBlocks.clear();
-            return hashes;
+            return orphanBlocks.drain();
         } finally {
             lock.unlock();
         }
@@ -898,40 +885,33 @@ public abstract class AbstractBlockChain {
     }
 
     /**
-     * For each block in orphanBlocks, see if we can now fit it on top of the chain and if so, do so.
+     * Connects the orphan blocks building on the given block which was just connected, then their own orphan children
+     * and so on, in the order they were received.
      */
-    private void tryConnectingOrphans() throws VerificationException, BlockStoreException, PrunedException {
+    private void tryConnectingOrphans(Sha256Hash connected) throws VerificationException, BlockStoreException, PrunedException {
         checkState(lock.isHeldByCurrentThread());
-        // For each block in our orphan list, try and fit it onto the head of the chain. If we succeed remove it
-        // from the list and keep going. If we changed the head of the list at the end of the round try again until
-        // we can't fit anything else on the top.
-        //
-        // This algorithm is kind of crappy, we should do a topo-sort then just connect them in order, but for small
-        // numbers of orphan blocks it does OK.
-        int blocksConnectedThisRound;
-        do {
-            blocksConnectedThisRound = 0;
-            Iterator<OrphanBlock> iter = orphanBlocks.values().iterator();
-            while (iter.hasNext()) {
-                OrphanBlock orphanBlock = iter.next();
-                // Look up the blocks previous.
-                StoredBlock prev = getStoredBlockInCurrentScope(orphanBlock.block.getPrevBlockHash());
-                if (prev == null) {
-                    // This is still an unconnected/orphan block.
-                    log.debug("Orphan block {} is not connectable right now", orphanBlock.block.getHash());
-                    continue;
-                }
-                // Otherwise we can connect it now.
-                // False here ensures we don't recurse infinitely downwards when connecting huge chains.
-                log.info("Connected orphan {}", orphanBlock.block.getHash());
-                add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn);
-                iter.remove();
-                blocksConnectedThisRound++;
+        // The orphans are indexed by their previous block, so each connected block directly yields the orphans that
+        // now connect. An orphan is removed from the pool before being connected, so one failing to verify is dropped
+        // rather than retried forever.
+        int blocksConnected = 0;
+        Deque<Sha256Hash> parents = new ArrayDeque<>();
+        parents.add(connected);
+        while (!parents.isEmpty()) {
+            Sha256Hash parent = parents.peek();
+            OrphanBlockPool.OrphanBlock orphanBlock = orphanBlocks.pollChild(parent);
+            if (orphanBlock == null) {
+                parents.poll();
+                continue;
             }
-            if (blocksConnectedThisRound > 0) {
-                log.info("Connected {} orphan blocks.", blocksConnectedThisRound);
-            }
-        } while (blocksConnectedThisRound > 0);
+            // False here ensures we don't recurse infinitely downwards when connecting huge chains.
+            log.info("Connected orphan {}", orphanBlock.block.getHash());
+            add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn);
+            parents.add(orphanBlock.block.getHash());
+            blocksConnected++;
+        }
+        if (blocksConnected > 0) {
+            log.info("Connected {} orphan blocks.", blocksConnected);
+        }
     }
 
     /**
@@ -956,10 +936,10 @@ public abstract class AbstractBlockChain {
     public Block getOrphanRoot(Sha256Hash from) {
         lock.lock();
         try {
-            OrphanBlock cursor = orphanBlocks.get(from);
+            OrphanBlockPool.OrphanBlock cursor = orphanBlocks.get(from);
             if (cursor == null)
                 return null;
-            OrphanBlock tmp;
+            OrphanBlockPool.OrphanBlock tmp;
             while ((tmp = orphanBlocks.get(cursor.block.getPrevBlockHash())) != null) {
                 cursor = tmp;
             }
@@ -973,7 +953,51 @@ public abstract class AbstractBlockChain {
     public boolean isOrphan(Sha256Hash block) {
         lock.lock();
         try {
-            return orphanBlocks.containsKey(block);
+            return orphanBlocks.contains(block);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the cap on the total size of the orphan blocks held, defaults to {@link #DEFAULT_MAX_ORPHAN_BLOCK_BYTES}.
+     * When a new orphan takes the pool over the cap, the oldest orphans are evicted. A block is never evicted by its
+     * own addition, so the cap can be exceeded by a single block larger than it.
+     */
+    public void setMaxOrphanBlockBytes(long maxBytes) {
+        lock.lock();
+        try {
+            orphanBlocks.setMaxBytes(maxBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of orphan blocks currently held. */
+    public int getOrphanBlockCount() {
+        lock.lock();
+        try {
+            return orphanBlocks.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the total size in bytes of the orphan blocks currently held, as serialized. */
+    public long getOrphanBlockBytes() {
+        lock.lock();
+        try {
+            return orphanBlocks.getBytes();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many orphan blocks were evicted because the orphans went over their size cap. */
+    public long getOrphanBlocksEvicted() {
+        lock.lock();
+        try {
+            return orphanBlocks.getEvicted();
         } finally {
             lock.unlock();
         }
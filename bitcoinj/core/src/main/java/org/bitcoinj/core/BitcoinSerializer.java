@@ -17,6 +17,7 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.net.ByteBufferPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,7 +25,11 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.bitcoinj.core.Utils.*;
@@ -44,6 +49,8 @@ import static org.bitcoinj.core.Utils.*;
 public class BitcoinSerializer extends MessageSerializer {
     private static final Logger log = LoggerFactory.getLogger(BitcoinSerializer.class);
     private static final int COMMAND_LEN = 12;
+    // The magic bytes followed by the packet header.
+    private static final int MESSAGE_HEADER_LENGTH = 4 + BitcoinPacketHeader.HEADER_LENGTH;
 
     private final NetworkParameters params;
     private final boolean parseRetain;
@@ -65,12 +72,17 @@ public class BitcoinSerializer extends MessageSerializer {
         names.put(GetAddrMessage.class, "getaddr");
         names.put(HeadersMessage.class, "headers");
         names.put(BloomFilter.class, "filterload");
+        names.put(FilterAddMessage.class, "filteradd");
         names.put(FilteredBlock.class, "merkleblock");
         names.put(NotFoundMessage.class, "notfound");
         names.put(MemoryPoolMessage.class, "mempool");
         names.put(RejectMessage.class, "reject");
         names.put(GetUTXOsMessage.class, "getutxos");
         names.put(UTXOsMessage.class, "utxos");
+        names.put(GetCFiltersMessage.class, "getcfilters");
+        names.put(CFilterMessage.class, "cfilter");
+        names.put(GetCFHeadersMessage.class, "getcfheaders");
+        names.put(CFHeadersMessage.class, "cfheaders");
     }
 
     /**
@@ -89,19 +101,7 @@ public class BitcoinSerializer extends MessageSerializer {
      */
     @Override
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
-        byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
-        uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
-
-        // The header array is initialized to zero by Java so we don't have to worry about
-        // NULL terminating the string here.
-        for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
-            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
-        }
-
-        Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
-
-        byte[] hash = Sha256Hash.hashTwice(message);
-        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
+        byte[] header = header(name, message.length, Sha256Hash.hashTwice(message));
         out.write(header);
         out.write(message);
 
@@ -114,11 +114,119 @@ public class BitcoinSerializer extends MessageSerializer {
      */
     @Override
     public void serialize(Message message, OutputStream out) throws IOException {
+        serialize(name(message), message.unsafeBitcoinSerialize(), out);
+    }
+
+    /**
+     * Writes message into buffers taken from the given pool, the header into the space left at the start of the first
+     * once the payload is written. Only the message's own cached bytes, if any, are copied.
+     */
+    @Override
+    public ByteBuffer[] serialize(Message message, ByteBufferPool pool) throws IOException {
+        String name = name(message);
+        int sizeHint = message.length != Message.UNKNOWN_LENGTH ? message.length : 0;
+        PooledOutputStream out = new PooledOutputStream(pool, MESSAGE_HEADER_LENGTH + sizeHint);
+        try {
+            out.skip(MESSAGE_HEADER_LENGTH);
+            message.bitcoinSerialize(out);
+            ByteBuffer[] buffers = out.finish();
+            MessageDigest digest = Sha256Hash.newDigest();
+            long length = 0;
+            for (int i = 0; i < buffers.length; i++) {
+                ByteBuffer payload = buffers[i].duplicate();
+                if (i == 0)
+                    payload.position(MESSAGE_HEADER_LENGTH);
+                length += payload.remaining();
+                digest.update(payload);
+            }
+            byte[] hash = Sha256Hash.hash(digest.digest());
+            byte[] header = header(name, length, hash);
+            ByteBuffer first = buffers[0].duplicate();
+            first.put(header);
+            if (log.isDebugEnabled())
+                log.debug("Sending {} message of {} bytes", name, length);
+            return buffers;
+        } catch (IOException | RuntimeException e) {
+            out.release();
+            throw e;
+        }
+    }
+
+    private static String name(Message message) {
         String name = names.get(message.getClass());
         if (name == null) {
             throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
         }
-        serialize(name, message.bitcoinSerialize(), out);
+        return name;
+    }
+
+    private byte[] header(String name, long length, byte[] hash) {
+        byte[] header = new byte[MESSAGE_HEADER_LENGTH];
+        uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
+
+        // The header array is initialized to zero by Java so we don't have to worry about
+        // NULL terminating the string here.
+        for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
+            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
+        }
+
+        Utils.uint32ToByteArrayLE(length, header, 4 + COMMAND_LEN);
+
+        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
+        return header;
+    }
+
+    // Writes into buffers from a pool, taking a bigger one each time the last fills up.
+    private static class PooledOutputStream extends OutputStream {
+        private final ByteBufferPool pool;
+        private final List<ByteBuffer> buffers = new ArrayList<>(1);
+        private ByteBuffer current;
+
+        PooledOutputStream(ByteBufferPool pool, int sizeHint) {
+            this.pool = pool;
+            current = pool.acquire(sizeHint);
+            buffers.add(current);
+        }
+
+        void skip(int count) {
+            current.position(current.position() + count);
+        }
+
+        @Override
+        public void write(int b) {
+            if (!current.hasRemaining())
+                next(1);
+            current.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                if (!current.hasRemaining())
+                    next(len);
+                int count = Math.min(len, current.remaining());
+                current.put(b, off, count);
+                off += count;
+                len -= count;
+            }
+        }
+
+        private void next(int needed) {
+            current = pool.acquire(Math.max(needed, current.capacity() * 2));
+            buffers.add(current);
+        }
+
+        ByteBuffer[] finish() {
+            for (ByteBuffer buffer : buffers)
+                buffer.flip();
+            return buffers.toArray(new ByteBuffer[buffers.size()]);
+        }
+
+        void release() {
+            for (ByteBuffer buffer : buffers)
+                pool.release(buffer);
+            buffers.clear();
+        }
     }
 
     /**
@@ -157,16 +265,29 @@ public class BitcoinSerializer extends MessageSerializer {
 
     /**
      * Deserialize payload only.  You must provide a header, typically obtained by calling
-     * {@link BitcoinSerializer#deserializeHeader}.
+     * {@link BitcoinSerializer#deserializeHeader}. Unless parse retain mode is on, blocks and transactions read from
+     * a buffer backed by an array are parsed straight out of that array, which can be used again once this returns.
      */
     @Override
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
-        byte[] payloadBytes = new byte[header.size];
-        in.get(payloadBytes, 0, header.size);
+        if (in.remaining() < header.size)
+            throw new BufferUnderflowException();
+        byte[] payloadBytes;
+        int offset;
+        if (in.hasArray() && !parseRetain) {
+            // Parsed messages keep no reference to their payload, so there's no need to copy it out.
+            payloadBytes = in.array();
+            offset = in.arrayOffset() + in.position();
+            in.position(in.position() + header.size);
+        } else {
+            payloadBytes = new byte[header.size];
+            offset = 0;
+            in.get(payloadBytes, 0, header.size);
+        }
 
         // Verify the checksum.
         byte[] hash;
-        hash = Sha256Hash.hashTwice(payloadBytes);
+        hash = Sha256Hash.hashTwice(payloadBytes, offset, header.size);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -176,25 +297,34 @@ public class BitcoinSerializer extends MessageSerializer {
 
         if (log.isDebugEnabled()) {
             log.debug("Received {} byte '{}' message: {}", header.size, header.command,
-                    HEX.encode(payloadBytes));
+                    HEX.encode(payloadBytes, offset, header.size));
         }
 
         try {
-            return makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
+            return makeMessage(header.command, header.size, payloadBytes, offset, hash, header.checksum);
         } catch (Exception e) {
-            throw new ProtocolException("Error deserializing message " + HEX.encode(payloadBytes) + "\n", e);
+            throw new ProtocolException("Error deserializing message " + HEX.encode(payloadBytes, offset, header.size) + "\n", e);
         }
     }
 
-    private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] hash, byte[] checksum) throws ProtocolException {
+    private Message makeMessage(String command, int length, byte[] payloadBytes, int offset, byte[] hash, byte[] checksum) throws ProtocolException {
+        // Blocks and transactions, the only big messages, can be parsed at an offset. The others get their own array.
+        if (command.equals("block") || command.equals("tx")) {
+            Message message = command.equals("block") ? makeBlock(payloadBytes, offset, length) :
+                    makeTransaction(payloadBytes, offset, length, hash);
+            // The array may go on past the payload, so make sure parsing stopped within it.
+            if (message.getMessageSize() > length)
+                throw new ProtocolException("Message overran its " + length + " byte payload");
+            return message;
+        }
+        if (offset != 0 || payloadBytes.length != length)
+            payloadBytes = Arrays.copyOfRange(payloadBytes, offset, offset + length);
         // We use an if ladder rather than reflection because reflection is very slow on Android.
         Message message;
         if (command.equals("version")) {
             return new VersionMessage(params, payloadBytes);
         } else if (command.equals("inv")) { 
             message = makeInventoryMessage(payloadBytes, length);
-        } else if (command.equals("block")) {
-            message = makeBlock(payloadBytes, length);
         } else if (command.equals("merkleblock")) {
             message = makeFilteredBlock(payloadBytes);
         } else if (command.equals("getdata")) {
@@ -203,8 +333,6 @@ public class BitcoinSerializer extends MessageSerializer {
             message = new GetBlocksMessage(params, payloadBytes);
         } else if (command.equals("getheaders")) {
             message = new GetHeadersMessage(params, payloadBytes);
-        } else if (command.equals("tx")) {
-            message = makeTransaction(payloadBytes, 0, length, hash);
         } else if (command.equals("addr")) {
             message = makeAddressMessage(payloadBytes, length);
         } else if (command.equals("ping")) {
@@ -219,6 +347,8 @@ public class BitcoinSerializer extends MessageSerializer {
             return makeAlertMessage(payloadBytes);
         } else if (command.equals("filterload")) {
             return makeBloomFilter(payloadBytes);
+        } else if (command.equals("filteradd")) {
+            return new FilterAddMessage(params, payloadBytes, 0);
         } else if (command.equals("notfound")) {
             return new NotFoundMessage(params, payloadBytes);
         } else if (command.equals("mempool")) {
@@ -229,6 +359,14 @@ public class BitcoinSerializer extends MessageSerializer {
             return new UTXOsMessage(params, payloadBytes);
         } else if (command.equals("getutxos")) {
             return new GetUTXOsMessage(params, payloadBytes);
+        } else if (command.equals("getcfilters")) {
+            return new GetCFiltersMessage(params, payloadBytes);
+        } else if (command.equals("cfilter")) {
+            return new CFilterMessage(params, payloadBytes);
+        } else if (command.equals("getcfheaders")) {
+            return new GetCFHeadersMessage(params, payloadBytes);
+        } else if (command.equals("cfheaders")) {
+            return new CFHeadersMessage(params, payloadBytes);
         } else {
             log.warn("No support for deserializing message with name {}", command);
             return new UnknownMessage(params, command, payloadBytes);
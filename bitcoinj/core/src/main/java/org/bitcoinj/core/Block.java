@@ -229,7 +229,7 @@ public class Block extends Message {
     protected void parseTransactions(final int transactionsOffset) throws ProtocolException {
         cursor = transactionsOffset;
         optimalEncodingMessageSize = HEADER_SIZE;
-        if (payload.length == cursor) {
+        if (cursor == (length == UNKNOWN_LENGTH ? payload.length : offset + length)) {
             // This message is just a header, it has no transactions.
             transactionBytesValid = false;
             return;
@@ -246,6 +246,8 @@ public class Block extends Message {
             cursor += tx.getMessageSize();
             optimalEncodingMessageSize += tx.getOptimalEncodingMessageSize();
         }
+        // Hash the transactions while their bytes are at hand, rather than serializing them again later.
+        ParallelBlockVerifier.hashTransactions(transactions, payload);
         transactionBytesValid = serializer.isParseRetainMode();
     }
 
@@ -567,10 +569,7 @@ public class Block extends Message {
     private void checkSigOps() throws VerificationException {
         // Check there aren't too many signature verifications in the block. This is an anti-DoS measure, see the
         // comments for MAX_BLOCK_SIGOPS.
-        int sigOps = 0;
-        for (Transaction tx : transactions) {
-            sigOps += tx.getSigOpCount();
-        }
+        int sigOps = ParallelBlockVerifier.countSigOps(transactions);
         if (sigOps > MAX_BLOCK_SIGOPS)
             throw new VerificationException("Block had too many Signature Operations");
     }
@@ -619,27 +618,9 @@ public class Block extends Message {
         //    2     3    4  4
         //  / \   / \   / \
         // t1 t2 t3 t4 t5 t5
-        ArrayList<byte[]> tree = new ArrayList<>();
-        // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (Transaction t : transactions) {
-            tree.add(t.getHash().getBytes());
-        }
-        int levelOffset = 0; // Offset in the list where the currently processed level starts.
-        // Step through each level, stopping when we reach the root (levelSize == 1).
-        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
-            // For each pair of nodes on that level:
-            for (int left = 0; left < levelSize; left += 2) {
-                // The right hand node can be the same as the left hand, in the case where we don't have enough
-                // transactions.
-                int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(hashTwice(leftBytes, 0, 32, rightBytes, 0, 32)));
-            }
-            // Move to the next level.
-            levelOffset += levelSize;
-        }
-        return tree;
+        //
+        // The leaves, and then the nodes of each level, are hashed in parallel for big blocks.
+        return ParallelBlockVerifier.buildMerkleTree(transactions);
     }
 
     /**
@@ -703,9 +684,8 @@ public class Block extends Message {
         checkTransactions(height, flags);
         checkMerkleRoot();
         checkSigOps();
-        for (Transaction transaction : transactions)
-            transaction.verify();
-        }
+        ParallelBlockVerifier.verifyTransactions(transactions);
+    }
 
     /**
      * Verifies both the header and that the transactions hash to the merkle root.
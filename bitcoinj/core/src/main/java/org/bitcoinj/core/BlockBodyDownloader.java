@@ -0,0 +1,321 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Downloads the bodies of blocks whose headers are already known from all the connected peers at once, for the
+ * headers first chain download enabled by {@link PeerGroup#setHeadersFirstSyncEnabled(boolean)}. Each peer has a
+ * window of blocks requested from it which is refilled as blocks arrive, and the blocks are connected to the chain in
+ * the order of their headers whichever peer served them. A block that a peer doesn't serve within the stall timeout
+ * is requested from another peer. The stalled request stays open in case the block still arrives from the slow peer,
+ * and is cancelled once the block is received from either of them, or the batch ends.</p>
+ *
+ * <p>All the state is confined to the single threaded executor of the peer group, which also connects the blocks.</p>
+ */
+class BlockBodyDownloader {
+    private static final Logger log = LoggerFactory.getLogger(BlockBodyDownloader.class);
+
+    /** How many blocks are requested from each peer at a time. */
+    static final int DEFAULT_WINDOW_SIZE = 16;
+    /** How long a peer has to serve a block before it is requested from another peer. */
+    static final int DEFAULT_STALL_TIMEOUT_MILLIS = 10000;
+
+    private final PeerGroup peerGroup;
+    private final ListeningScheduledExecutorService executor;
+    private final int windowSize;
+    private volatile int stallTimeoutMillis = DEFAULT_STALL_TIMEOUT_MILLIS;
+
+    // The batch being downloaded, at most one at a time.
+    @Nullable private Batch batch;
+
+    BlockBodyDownloader(PeerGroup peerGroup, ListeningScheduledExecutorService executor, int windowSize) {
+        checkArgument(windowSize > 0);
+        this.peerGroup = peerGroup;
+        this.executor = executor;
+        this.windowSize = windowSize;
+    }
+
+    void setStallTimeoutMillis(int stallTimeoutMillis) {
+        checkArgument(stallTimeoutMillis > 0);
+        this.stallTimeoutMillis = stallTimeoutMillis;
+    }
+
+    /**
+     * Downloads the bodies of the given headers and connects them to the chain through the download peer which sent
+     * the headers. A batch still in progress, which can only belong to a previous download peer, is cancelled.
+     *
+     * @param source the download peer which sent the headers.
+     * @param headers headers following each other, the first one connecting to the chain.
+     * @param startHeight the height of the first header.
+     * @return a future completing once all the blocks are connected, or cancelled if the source peer lost its download
+     * peer status.
+     */
+    ListenableFuture<Void> download(final Peer source, final List<Block> headers, final int startHeight) {
+        final SettableFuture<Void> future = SettableFuture.create();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (batch != null)
+                    batch.fail(new CancellationException("Superseded by a batch from " + source));
+                batch = new Batch(source, headers, startHeight, future);
+                batch.start();
+            }
+        });
+        return future;
+    }
+
+    private static class Request {
+        final Peer peer;
+        final int index;
+        final long time;
+        // Whether the request still takes up room in the window of its peer.
+        boolean active = true;
+        @Nullable ListenableFuture<Block> future;
+
+        Request(Peer peer, int index, long time) {
+            this.peer = peer;
+            this.index = index;
+            this.time = time;
+        }
+    }
+
+    private class Batch implements Runnable {
+        private final Peer source;
+        private final List<Block> headers;
+        private final int startHeight;
+        private final SettableFuture<Void> future;
+        // Received bodies waiting for the blocks before them, indexed like the headers.
+        private final Block[] bodies;
+        // The next block to connect, and the first one never requested.
+        private int next, nextToRequest;
+        // Blocks to request again because their peer failed to serve them, lowest first.
+        private final PriorityQueue<Integer> retries = new PriorityQueue<>();
+        // Requests in the windows of the peers, by block.
+        private final Map<Integer, Request> requests = new HashMap<>();
+        // All the requests whose block hasn't arrived yet, including stalled ones.
+        private final List<Request> outstanding = new ArrayList<>();
+        private final Map<Peer, Integer> windows = new HashMap<>();
+        // Peers which stalled or failed to serve a block of this batch.
+        private final Set<Peer> excluded = new HashSet<>();
+        @Nullable private ScheduledFuture<?> stallCheck;
+
+        Batch(Peer source, List<Block> headers, int startHeight, SettableFuture<Void> future) {
+            this.source = source;
+            this.headers = headers;
+            this.startHeight = startHeight;
+            this.future = future;
+            this.bodies = new Block[headers.size()];
+        }
+
+        void start() {
+            int period = Math.max(stallTimeoutMillis / 2, 1);
+            stallCheck = executor.scheduleWithFixedDelay(this, period, period, TimeUnit.MILLISECONDS);
+            fill();
+        }
+
+        // Periodic stall check.
+        @Override
+        public void run() {
+            if (future.isDone())
+                return;
+            if (!source.isDownloadData()) {
+                fail(new CancellationException(source + " lost download peer status"));
+                return;
+            }
+            long now = Utils.currentTimeMillis();
+            Set<Peer> connected = new HashSet<>(peerGroup.getConnectedPeers());
+            for (Request request : new ArrayList<>(requests.values())) {
+                if (!connected.contains(request.peer) || now - request.time >= stallTimeoutMillis) {
+                    log.info("{}: block {} not received after {} ms, requesting it from another peer", request.peer,
+                            headers.get(request.index).getHash(), now - request.time);
+                    excluded.add(request.peer);
+                    release(request);
+                    if (!isReceived(request.index))
+                        retries.add(request.index);
+                }
+            }
+            fill();
+        }
+
+        // Requests blocks from every peer with room in its window, spreading them one at a time across peers.
+        private void fill() {
+            List<Peer> peers = new ArrayList<>();
+            for (Peer peer : peerGroup.getConnectedPeers()) {
+                if (peer.getPeerVersionMessage().hasBlockChain() && !excluded.contains(peer))
+                    peers.add(peer);
+            }
+            if (peers.isEmpty() && !excluded.isEmpty()) {
+                // Better to retry a slow peer than to stop.
+                excluded.clear();
+                fill();
+                return;
+            }
+            // Bounds how many bodies can wait for a missing block before them.
+            int limit = Math.min(headers.size(), next + windowSize * Math.max(peers.size(), 1) * 2);
+            boolean requested = true;
+            while (requested) {
+                // Blocks may have arrived from the peer which stalled on them since they were queued to retry.
+                while (!retries.isEmpty() && isReceived(retries.peek()))
+                    retries.poll();
+                requested = false;
+                for (Peer peer : peers) {
+                    Integer window = windows.get(peer);
+                    if (window != null && window >= windowSize)
+                        continue;
+                    int index;
+                    if (!retries.isEmpty())
+                        index = retries.peek();
+                    else if (nextToRequest < limit)
+                        index = nextToRequest;
+                    else
+                        return;
+                    if (peer.getBestHeight() < startHeight + index)
+                        continue;
+                    if (!retries.isEmpty())
+                        retries.poll();
+                    else
+                        nextToRequest++;
+                    request(peer, index);
+                    requested = true;
+                }
+            }
+        }
+
+        private void request(Peer peer, int index) {
+            final Request request = new Request(peer, index, Utils.currentTimeMillis());
+            requests.put(index, request);
+            Integer window = windows.get(peer);
+            windows.put(peer, window == null ? 1 : window + 1);
+            outstanding.add(request);
+            request.future = peer.getBlock(headers.get(index).getHash());
+            Futures.addCallback(request.future, new FutureCallback<Block>() {
+                @Override
+                public void onSuccess(Block block) {
+                    outstanding.remove(request);
+                    received(request, block);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    outstanding.remove(request);
+                    // The peer doesn't have the block, or the request was cancelled.
+                    if (future.isDone() || !request.active)
+                        return;
+                    excluded.add(request.peer);
+                    release(request);
+                    if (!isReceived(request.index))
+                        retries.add(request.index);
+                    fill();
+                }
+            }, executor);
+        }
+
+        // Whether the block was received, whether or not it has been connected yet.
+        private boolean isReceived(int index) {
+            return index < next || bodies[index] != null;
+        }
+
+        // Cancels the requests for the given block, or all of them if it's -1, so that the peers forget about them.
+        private void cancelRequests(int index) {
+            for (Request request : new ArrayList<>(outstanding)) {
+                if (index != -1 && request.index != index)
+                    continue;
+                outstanding.remove(request);
+                release(request);
+                if (request.future != null)
+                    request.future.cancel(false);
+            }
+        }
+
+        private void release(Request request) {
+            if (!request.active)
+                return;
+            request.active = false;
+            if (requests.get(request.index) == request)
+                requests.remove(request.index);
+            windows.put(request.peer, windows.get(request.peer) - 1);
+        }
+
+        private void received(Request request, Block block) {
+            if (future.isDone())
+                return;
+            release(request);
+            int index = request.index;
+            // The block may have been received from another peer after this one stalled.
+            if (!isReceived(index)) {
+                bodies[index] = block;
+                retries.remove(index);
+                // Requested again from another peer after this one stalled, or the other way around.
+                cancelRequests(index);
+            }
+            try {
+                while (next < bodies.length && bodies[next] != null) {
+                    Block body = bodies[next];
+                    bodies[next++] = null;
+                    source.connectDownloadedBlock(body);
+                }
+            } catch (VerificationException | PrunedException e) {
+                fail(e);
+                return;
+            }
+            if (next == bodies.length)
+                finish();
+            else
+                fill();
+        }
+
+        private void finish() {
+            cancelStallCheck();
+            future.set(null);
+        }
+
+        void fail(Throwable t) {
+            cancelStallCheck();
+            future.setException(t);
+        }
+
+        private void cancelStallCheck() {
+            if (stallCheck != null)
+                stallCheck.cancel(false);
+            cancelRequests(-1);
+            if (batch == this)
+                batch = null;
+        }
+    }
+}
@@ -27,6 +27,7 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static java.lang.Math.*;
@@ -41,7 +42,8 @@ import static java.lang.Math.*;
  * a useful privacy feature - if you have spare bandwidth the false positive rate can be increased so the remote peer
  * gets a noisy picture of what transactions are relevant to your wallet.</p>
  * 
- * <p>Instances of this class are not safe for use by multiple threads.</p>
+ * <p>Instances of this class are safe for use by multiple threads. Matching never locks, so many threads can apply
+ * the same filter to blocks at once, and elements inserted concurrently are never lost.</p>
  */
 public class BloomFilter extends Message {
     /** The BLOOM_UPDATE_* constants control when the bloom filter is auto-updated by the peer using
@@ -53,7 +55,9 @@ public class BloomFilter extends Message {
         UPDATE_P2PUBKEY_ONLY //2
     }
     
-    private byte[] data;
+    // The bits of the filter, in the order of the serialized data. They are replaced as a whole by setMatchAll and
+    // merge, otherwise bits are only ever set.
+    private volatile Bits bits;
     private long hashFuncs;
     private long nTweak;
     private byte nFlags;
@@ -112,9 +116,9 @@ public class BloomFilter extends Message {
         //                        Size required for a given number of elements and false-positive rate
         int size = (int)(-1  / (pow(log(2), 2)) * elements * log(falsePositiveRate));
         size = max(1, min(size, (int) MAX_FILTER_SIZE * 8) / 8);
-        data = new byte[size];
+        bits = new Bits(size);
         // Optimal number of hash functions for a given filter size and element count.
-        hashFuncs = (int)(data.length * 8 / (double)elements * log(2));
+        hashFuncs = (int)(size * 8 / (double)elements * log(2));
         hashFuncs = max(1, min(hashFuncs, MAX_HASH_FUNCS));
         this.nTweak = randomNonce;
         this.nFlags = (byte)(0xff & updateFlag.ordinal());
@@ -124,19 +128,20 @@ public class BloomFilter extends Message {
      * Returns the theoretical false positive rate of this filter if were to contain the given number of elements.
      */
     public double getFalsePositiveRate(int elements) {
-        return pow(1 - pow(E, -1.0 * (hashFuncs * elements) / (data.length * 8)), hashFuncs);
+        return pow(1 - pow(E, -1.0 * (hashFuncs * elements) / (bits.size * 8)), hashFuncs);
     }
 
     @Override
     public String toString() {
-        return "Bloom Filter of size " + data.length + " with " + hashFuncs + " hash functions.";
+        return "Bloom Filter of size " + bits.size + " with " + hashFuncs + " hash functions.";
     }
 
     @Override
     protected void parse() throws ProtocolException {
-        data = readByteArray();
+        byte[] data = readByteArray();
         if (data.length > MAX_FILTER_SIZE)
             throw new ProtocolException ("Bloom filter out of size range.");
+        bits = new Bits(data);
         hashFuncs = readUint32();
         if (hashFuncs > MAX_HASH_FUNCS)
             throw new ProtocolException("Bloom filter hash function count out of range");
@@ -150,6 +155,7 @@ public class BloomFilter extends Message {
      */
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        byte[] data = bits.toBytes();
         stream.write(new VarInt(data.length).encode());
         stream.write(data);
         Utils.uint32ToByteStreamLE(hashFuncs, stream);
@@ -166,6 +172,12 @@ public class BloomFilter extends Message {
      * See this <a href="https://github.com/aappleby/smhasher/blob/master/src/MurmurHash3.cpp">C++ code for the original.</a>
      */
     public static int murmurHash3(byte[] data, long nTweak, int hashNum, byte[] object) {
+        int h1 = murmurHash3(object, hashNum, nTweak);
+        return (int)((h1&0xFFFFFFFFL) % (data.length * 8));
+    }
+
+    /** Computes MurmurHash3 over the object in one pass, with the seed of the given hash function. */
+    private static int murmurHash3(byte[] object, int hashNum, long nTweak) {
         int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
         final int c1 = 0xcc9e2d51;
         final int c2 = 0x1b873593;
@@ -205,37 +217,114 @@ public class BloomFilter extends Message {
                 break;
         }
 
+        return murmurFinish(h1, object.length);
+    }
+
+    /**
+     * Mixes each 4 byte block of the object, and the remaining bytes as the last one. This is the part of MurmurHash3
+     * that doesn't depend on the seed, so it only needs to be done once for all hash functions of the filter.
+     */
+    private static int[] murmurBlocks(byte[] object) {
+        final int c1 = 0xcc9e2d51;
+        final int c2 = 0x1b873593;
+
+        int numBlocks = object.length / 4;
+        int[] blocks = new int[numBlocks + 1];
+        for (int b = 0; b < numBlocks; b++) {
+            int i = b * 4;
+            int k1 = (object[i] & 0xFF) |
+                  ((object[i+1] & 0xFF) << 8) |
+                  ((object[i+2] & 0xFF) << 16) |
+                  ((object[i+3] & 0xFF) << 24);
+
+            k1 *= c1;
+            k1 = rotateLeft32(k1, 15);
+            k1 *= c2;
+            blocks[b] = k1;
+        }
+
+        int tail = numBlocks * 4;
+        int k1 = 0;
+        switch(object.length & 3)
+        {
+            case 3:
+                k1 ^= (object[tail + 2] & 0xff) << 16;
+                // Fall through.
+            case 2:
+                k1 ^= (object[tail + 1] & 0xff) << 8;
+                // Fall through.
+            case 1:
+                k1 ^= (object[tail] & 0xff);
+                k1 *= c1; k1 = rotateLeft32(k1, 15); k1 *= c2;
+                // Fall through.
+            default:
+                // Do nothing.
+                break;
+        }
+        // Without remaining bytes this is 0, which leaves the hash unchanged.
+        blocks[numBlocks] = k1;
+        return blocks;
+    }
+
+    /** Finishes MurmurHash3 over blocks from {@link #murmurBlocks(byte[])} with the seed of the given hash function. */
+    private static int murmurHash3(int[] blocks, int length, int hashNum, long nTweak) {
+        int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
+
+        // body
+        int numBlocks = blocks.length - 1;
+        for (int i = 0; i < numBlocks; i++) {
+            h1 ^= blocks[i];
+            h1 = rotateLeft32(h1, 13);
+            h1 = h1*5+0xe6546b64;
+        }
+        h1 ^= blocks[numBlocks];
+        return murmurFinish(h1, length);
+    }
+
+    private static int murmurFinish(int h1, int length) {
         // finalization
-        h1 ^= object.length;
+        h1 ^= length;
         h1 ^= h1 >>> 16;
         h1 *= 0x85ebca6b;
         h1 ^= h1 >>> 13;
         h1 *= 0xc2b2ae35;
         h1 ^= h1 >>> 16;
-        
-        return (int)((h1&0xFFFFFFFFL) % (data.length * 8));
+        return h1;
     }
-    
+
     /**
      * Returns true if the given object matches the filter either because it was inserted, or because we have a
      * false-positive.
      */
-    public synchronized boolean contains(byte[] object) {
-        for (int i = 0; i < hashFuncs; i++) {
-            if (!Utils.checkBitLE(data, murmurHash3(data, nTweak, i, object)))
+    public boolean contains(byte[] object) {
+        Bits bits = this.bits;
+        long bitCount = bits.size * 8L;
+        // Most objects don't match and are rejected by the first hash function, so only prepare the blocks of the
+        // object for the others once that passed.
+        if (!bits.get((int)((murmurHash3(object, 0, nTweak)&0xFFFFFFFFL) % bitCount)))
+            return false;
+        int[] blocks = murmurBlocks(object);
+        for (int i = 1; i < hashFuncs; i++) {
+            int h1 = murmurHash3(blocks, object.length, i, nTweak);
+            if (!bits.get((int)((h1&0xFFFFFFFFL) % bitCount)))
                 return false;
         }
         return true;
     }
     
     /** Insert the given arbitrary data into the filter */
-    public synchronized void insert(byte[] object) {
-        for (int i = 0; i < hashFuncs; i++)
-            Utils.setBitLE(data, murmurHash3(data, nTweak, i, object));
+    public void insert(byte[] object) {
+        Bits bits = this.bits;
+        long bitCount = bits.size * 8L;
+        int[] blocks = murmurBlocks(object);
+        for (int i = 0; i < hashFuncs; i++) {
+            int h1 = murmurHash3(blocks, object.length, i, nTweak);
+            bits.set((int)((h1&0xFFFFFFFFL) % bitCount));
+        }
     }
 
     /** Inserts the given key and equivalent hashed form (for the address). */
-    public synchronized void insert(ECKey key) {
+    public void insert(ECKey key) {
         insert(key.getPubKey());
         insert(key.getPubKeyHash());
     }
@@ -247,23 +336,25 @@ public class BloomFilter extends Message {
      * Solved blocks will then be send just as Merkle trees of tx hashes, meaning a constant 32 bytes of data for each
      * transaction instead of 100-300 bytes as per usual.
      */
-    public synchronized void setMatchAll() {
-        data = new byte[] {(byte) 0xff};
+    public void setMatchAll() {
+        bits = new Bits(new byte[] {(byte) 0xff});
     }
 
     /**
      * Copies filter into this. Filter must have the same size, hash function count and nTweak or an
      * IllegalArgumentException will be thrown.
      */
-    public synchronized void merge(BloomFilter filter) {
+    public void merge(BloomFilter filter) {
         if (!this.matchesAll() && !filter.matchesAll()) {
-            checkArgument(filter.data.length == this.data.length &&
+            Bits bits = this.bits;
+            Bits other = filter.bits;
+            checkArgument(other.size == bits.size &&
                           filter.hashFuncs == this.hashFuncs &&
                           filter.nTweak == this.nTweak);
-            for (int i = 0; i < data.length; i++)
-                this.data[i] |= filter.data[i];
+            for (int i = 0; i < bits.words.length(); i++)
+                bits.or(i, other.words.get(i));
         } else {
-            this.data = new byte[] {(byte) 0xff};
+            setMatchAll();
         }
     }
 
@@ -271,18 +362,15 @@ public class BloomFilter extends Message {
      * Returns true if this filter will match anything. See {@link org.bitcoinj.core.BloomFilter#setMatchAll()}
      * for when this can be a useful thing to do.
      */
-    public synchronized boolean matchesAll() {
-        for (byte b : data)
-            if (b != (byte) 0xff)
-                return false;
-        return true;
+    public boolean matchesAll() {
+        return bits.isFull();
     }
 
     /**
      * The update flag controls how application of the filter to a block modifies the filter. See the enum javadocs
      * for information on what occurs and when.
      */
-    public synchronized BloomUpdate getUpdateFlag() {
+    public BloomUpdate getUpdateFlag() {
         if (nFlags == 0)
             return BloomUpdate.UPDATE_NONE;
         else if (nFlags == 1)
@@ -299,7 +387,7 @@ public class BloomFilter extends Message {
      * matched transactions are also matched. However it means this filter can be mutated by the operation. The returned
      * filtered block already has the matched transactions associated with it.
      */
-    public synchronized FilteredBlock applyAndUpdate(Block block) {
+    public FilteredBlock applyAndUpdate(Block block) {
         List<Transaction> txns = block.getTransactions();
         List<Sha256Hash> txHashes = new ArrayList<>(txns.size());
         List<Transaction> matched = Lists.newArrayList();
@@ -319,7 +407,7 @@ public class BloomFilter extends Message {
         return filteredBlock;
     }
 
-    public synchronized boolean applyAndUpdate(Transaction tx) {
+    public boolean applyAndUpdate(Transaction tx) {
         if (contains(tx.getHash().getBytes()))
             return true;
         boolean found = false;
@@ -351,15 +439,71 @@ public class BloomFilter extends Message {
     }
     
     @Override
-    public synchronized boolean equals(Object o) {
+    public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         BloomFilter other = (BloomFilter) o;
-        return hashFuncs == other.hashFuncs && nTweak == other.nTweak && Arrays.equals(data, other.data);
+        return hashFuncs == other.hashFuncs && nTweak == other.nTweak && Arrays.equals(bits.toBytes(), other.bits.toBytes());
     }
 
     @Override
-    public synchronized int hashCode() {
-        return Objects.hashCode(hashFuncs, nTweak, Arrays.hashCode(data));
+    public int hashCode() {
+        return Objects.hashCode(hashFuncs, nTweak, Arrays.hashCode(bits.toBytes()));
+    }
+
+    /**
+     * The bits of a filter, packed little endian into 64 bit words so that bit n of the filter is bit n % 8 of byte
+     * n / 8 of the serialized data. Bits are set with compare and swap, which makes reading and setting them safe
+     * from several threads without locking.
+     */
+    private static final class Bits {
+        /** The size of the filter in bytes. */
+        final int size;
+        final AtomicLongArray words;
+
+        Bits(int size) {
+            this.size = size;
+            this.words = new AtomicLongArray((size + 7) / 8);
+        }
+
+        Bits(byte[] data) {
+            this(data.length);
+            for (int i = 0; i < data.length; i++)
+                or(i / 8, (data[i] & 0xFFL) << (8 * (i % 8)));
+        }
+
+        boolean get(int bit) {
+            return (words.get(bit >>> 6) & (1L << bit)) != 0;
+        }
+
+        void set(int bit) {
+            or(bit >>> 6, 1L << bit);
+        }
+
+        void or(int index, long mask) {
+            long word;
+            do {
+                word = words.get(index);
+                if ((word | mask) == word)
+                    return;
+            } while (!words.compareAndSet(index, word, word | mask));
+        }
+
+        boolean isFull() {
+            for (int i = 0; i < words.length(); i++) {
+                int bytes = min(8, size - i * 8);
+                long full = bytes == 8 ? -1L : (1L << (8 * bytes)) - 1;
+                if ((words.get(i) & full) != full)
+                    return false;
+            }
+            return true;
+        }
+
+        byte[] toBytes() {
+            byte[] data = new byte[size];
+            for (int i = 0; i < size; i++)
+                data[i] = (byte) (words.get(i / 8) >>> (8 * (i % 8)));
+            return data;
+        }
     }
 }
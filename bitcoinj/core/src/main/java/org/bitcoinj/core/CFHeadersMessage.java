@@ -0,0 +1,125 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Sent in response to a {@link GetCFHeadersMessage}. It holds the filter hashes of a range of blocks ending at
+ * the stop hash, and the filter header of the block preceding the range. This is enough to compute the filter
+ * headers of the whole range, see {@link #getFilterHeaders()}. Please consult
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP 157</a> for more information.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class CFHeadersMessage extends Message {
+    private int filterType;
+    private Sha256Hash stopHash;
+    private Sha256Hash previousFilterHeader;
+    private List<Sha256Hash> filterHashes;
+
+    public CFHeadersMessage(NetworkParameters params, int filterType, Sha256Hash stopHash,
+                            Sha256Hash previousFilterHeader, List<Sha256Hash> filterHashes) {
+        super(params);
+        this.filterType = filterType;
+        this.stopHash = stopHash;
+        this.previousFilterHeader = previousFilterHeader;
+        this.filterHashes = ImmutableList.copyOf(filterHashes);
+    }
+
+    public CFHeadersMessage(NetworkParameters params, byte[] payload) throws ProtocolException {
+        super(params, payload, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readBytes(1)[0] & 0xff;
+        stopHash = readHash();
+        previousFilterHeader = readHash();
+        long numHashes = readVarInt();
+        if (numHashes > GetCFHeadersMessage.MAX_BLOCKS)
+            throw new ProtocolException("Too many filter hashes: got " + numHashes + " which is larger than " +
+                    GetCFHeadersMessage.MAX_BLOCKS);
+        ImmutableList.Builder<Sha256Hash> hashes = ImmutableList.builder();
+        for (int i = 0; i < numHashes; i++)
+            hashes.add(readHash());
+        filterHashes = hashes.build();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        stream.write(stopHash.getReversedBytes());
+        stream.write(previousFilterHeader.getReversedBytes());
+        stream.write(new VarInt(filterHashes.size()).encode());
+        for (Sha256Hash hash : filterHashes)
+            stream.write(hash.getReversedBytes());
+    }
+
+    public int getFilterType() {
+        return filterType;
+    }
+
+    public Sha256Hash getStopHash() {
+        return stopHash;
+    }
+
+    public Sha256Hash getPreviousFilterHeader() {
+        return previousFilterHeader;
+    }
+
+    public List<Sha256Hash> getFilterHashes() {
+        return filterHashes;
+    }
+
+    /** Chains the filter hashes onto the previous filter header, returning the filter header of every block. */
+    public List<Sha256Hash> getFilterHeaders() {
+        List<Sha256Hash> headers = new ArrayList<>(filterHashes.size());
+        Sha256Hash header = previousFilterHeader;
+        for (Sha256Hash filterHash : filterHashes) {
+            header = GolombCodedSet.computeFilterHeader(filterHash, header);
+            headers.add(header);
+        }
+        return headers;
+    }
+
+    @Override
+    public String toString() {
+        return "cfheaders: type " + filterType + ", " + filterHashes.size() + " hashes up to " + stopHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CFHeadersMessage other = (CFHeadersMessage) o;
+        return filterType == other.filterType && stopHash.equals(other.stopHash) &&
+                previousFilterHeader.equals(other.previousFilterHeader) && filterHashes.equals(other.filterHashes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(filterType, stopHash, previousFilterHeader, filterHashes);
+    }
+}
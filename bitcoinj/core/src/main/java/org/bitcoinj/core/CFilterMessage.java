@@ -0,0 +1,105 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.base.Objects;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * <p>Carries the compact block filter of a single block, sent in response to a {@link GetCFiltersMessage}. See
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP 157</a> and {@link GolombCodedSet}
+ * for how to use it.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class CFilterMessage extends Message {
+    private int filterType;
+    private Sha256Hash blockHash;
+    private byte[] filterBytes;
+
+    public CFilterMessage(NetworkParameters params, int filterType, Sha256Hash blockHash, byte[] filterBytes) {
+        super(params);
+        this.filterType = filterType;
+        this.blockHash = blockHash;
+        this.filterBytes = filterBytes;
+    }
+
+    public CFilterMessage(NetworkParameters params, GolombCodedSet filter) {
+        this(params, GolombCodedSet.BASIC_FILTER_TYPE, filter.getBlockHash(), filter.getBytes());
+    }
+
+    public CFilterMessage(NetworkParameters params, byte[] payload) throws ProtocolException {
+        super(params, payload, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readBytes(1)[0] & 0xff;
+        blockHash = readHash();
+        filterBytes = readByteArray();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        stream.write(blockHash.getReversedBytes());
+        stream.write(new VarInt(filterBytes.length).encode());
+        stream.write(filterBytes);
+    }
+
+    public int getFilterType() {
+        return filterType;
+    }
+
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    /**
+     * Decodes the filter. Only the basic filter type is understood.
+     *
+     * @throws ProtocolException if the filter is of another type or malformed.
+     */
+    public GolombCodedSet getFilter() throws ProtocolException {
+        if (filterType != GolombCodedSet.BASIC_FILTER_TYPE)
+            throw new ProtocolException("Unknown filter type " + filterType);
+        return new GolombCodedSet(blockHash, filterBytes);
+    }
+
+    @Override
+    public String toString() {
+        return "cfilter: type " + filterType + " for " + blockHash + ", " + filterBytes.length + " bytes";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CFilterMessage other = (CFilterMessage) o;
+        return filterType == other.filterType && blockHash.equals(other.blockHash) &&
+                Arrays.equals(filterBytes, other.filterBytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(filterType, blockHash, Arrays.hashCode(filterBytes));
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.util.List;
+
+/**
+ * An interface which provides the scripts to match against <a href="https://github.com/bitcoin/bips/blob/master/bip-0158.mediawiki">BIP 158</a>
+ * compact block filters, when syncing with {@link PeerGroup#setCompactFilterSyncEnabled(boolean)}. It is usually
+ * implemented by a {@link PeerFilterProvider}, which still provides the fast catchup time in that mode.
+ */
+public interface CompactFilterProvider {
+    /**
+     * Returns the output scripts the provider is interested in. Blocks whose basic filter matches any of them are
+     * downloaded in full. As the filter also commits to the scripts of the outputs spent by a block, this covers
+     * both payments to and spends from those scripts. Called from the network thread for every batch of headers.
+     */
+    List<byte[]> getCompactFilterElements();
+}
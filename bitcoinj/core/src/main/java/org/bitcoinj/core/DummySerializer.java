@@ -16,6 +16,8 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.net.ByteBufferPool;
+
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
@@ -102,5 +104,10 @@ class DummySerializer extends MessageSerializer {
     public void serialize(Message message, OutputStream out) throws IOException {
         throw new UnsupportedOperationException(DEFAULT_EXCEPTION_MESSAGE);
     }
+
+    @Override
+    public ByteBuffer[] serialize(Message message, ByteBufferPool pool) throws IOException {
+        throw new UnsupportedOperationException(DEFAULT_EXCEPTION_MESSAGE);
+    }
     
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Adds a single element to the {@link BloomFilter} previously loaded on the remote peer, as defined by
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0037.mediawiki">BIP 37</a>. This avoids resending the
+ * whole filter when only a few elements were added to it.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class FilterAddMessage extends Message {
+    /** The maximum size of an element, which is the maximum size of a script element. */
+    public static final int MAX_DATA_SIZE = 520;
+
+    private byte[] data;
+
+    public FilterAddMessage(NetworkParameters params, byte[] data) {
+        super(params);
+        checkArgument(data.length <= MAX_DATA_SIZE, "Bloom filter element too large: %s bytes", data.length);
+        this.data = data;
+    }
+
+    public FilterAddMessage(NetworkParameters params, byte[] payload, int offset) throws ProtocolException {
+        super(params, payload, offset);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        data = readByteArray();
+        if (data.length > MAX_DATA_SIZE)
+            throw new ProtocolException("Bloom filter element out of size range.");
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(new VarInt(data.length).encode());
+        stream.write(data);
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return "filteradd: " + Utils.HEX.encode(data);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return Arrays.equals(data, ((FilterAddMessage) o).data);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(data);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.base.Objects;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>Requests the hashes of the compact block filters of a range of blocks, as defined by
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP 157</a>, together with the filter
+ * header preceding the range. The peer answers with a single {@link CFHeadersMessage}. Comparing the filter headers
+ * served by several peers is how a client can detect a peer serving bogus filters.</p>
+ *
+ * <p>Only peers advertising {@link VersionMessage#NODE_COMPACT_FILTERS} serve this message.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class GetCFHeadersMessage extends Message {
+    /** The maximum number of filter headers that may be requested at once. */
+    public static final int MAX_BLOCKS = 2000;
+
+    private int filterType;
+    private long startHeight;
+    private Sha256Hash stopHash;
+
+    public GetCFHeadersMessage(NetworkParameters params, int filterType, long startHeight, Sha256Hash stopHash) {
+        super(params);
+        this.filterType = filterType;
+        this.startHeight = startHeight;
+        this.stopHash = stopHash;
+    }
+
+    public GetCFHeadersMessage(NetworkParameters params, byte[] payload) throws ProtocolException {
+        super(params, payload, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readBytes(1)[0] & 0xff;
+        startHeight = readUint32();
+        stopHash = readHash();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        Utils.uint32ToByteStreamLE(startHeight, stream);
+        stream.write(stopHash.getReversedBytes());
+    }
+
+    public int getFilterType() {
+        return filterType;
+    }
+
+    public long getStartHeight() {
+        return startHeight;
+    }
+
+    public Sha256Hash getStopHash() {
+        return stopHash;
+    }
+
+    @Override
+    public String toString() {
+        return "getcfheaders: type " + filterType + " from " + startHeight + " to " + stopHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        GetCFHeadersMessage other = (GetCFHeadersMessage) o;
+        return filterType == other.filterType && startHeight == other.startHeight && stopHash.equals(other.stopHash);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(filterType, startHeight, stopHash);
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.primitives.UnsignedBytes;
+import org.bitcoinj.script.ScriptOpCodes;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * <p>A Golomb-coded set is a compact, probabilistic encoding of a set of byte strings, as defined by
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0158.mediawiki">BIP 158</a>. Full nodes serve one such
+ * filter per block (see {@link CFilterMessage}) which commits to every output script created in the block and to
+ * the scripts of every output it spends. A client can then test locally whether a block might be relevant to it and
+ * download it in full only if so, without revealing anything about its addresses to the remote node.</p>
+ *
+ * <p>Like Bloom filters, matches may be false positives but there are no false negatives. Only the "basic" filter
+ * type with its fixed parameters is supported.</p>
+ *
+ * <p>Instances of this class are immutable.</p>
+ */
+public class GolombCodedSet {
+    /** The filter type byte of the basic filter. */
+    public static final int BASIC_FILTER_TYPE = 0;
+    /** Number of bits of each value that are stored verbatim after the unary coded quotient. */
+    public static final int BASIC_FILTER_P = 19;
+    /** Inverse of the false positive rate of the basic filter. */
+    public static final long BASIC_FILTER_M = 784931;
+
+    private final Sha256Hash blockHash;
+    private final byte[] bytes;
+    private final long n;
+    private final int dataOffset;
+
+    /**
+     * Wraps the serialized filter for the given block: a variable length integer holding the number of elements,
+     * followed by the Golomb-Rice coded deltas.
+     */
+    public GolombCodedSet(Sha256Hash blockHash, byte[] bytes) throws ProtocolException {
+        this.blockHash = blockHash;
+        this.bytes = bytes;
+        try {
+            VarInt varInt = new VarInt(bytes, 0);
+            this.n = varInt.value;
+            this.dataOffset = varInt.getOriginalSizeInBytes();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new ProtocolException(e);
+        }
+        if (n < 0 || n > 0xFFFFFFFFL)
+            throw new ProtocolException("Too many elements in filter: " + n);
+    }
+
+    /**
+     * Builds the basic filter for the given block, for which the scripts of the spent outputs have to be provided
+     * as they are not part of the block itself. This is what a full node does; clients only need to match.
+     */
+    public static GolombCodedSet buildBasicFilter(Block block, Collection<byte[]> spentOutputScripts) {
+        SortedSet<byte[]> elements = new TreeSet<>(UnsignedBytes.lexicographicalComparator());
+        List<Transaction> transactions = block.getTransactions();
+        if (transactions != null) {
+            for (Transaction tx : transactions) {
+                for (TransactionOutput output : tx.getOutputs()) {
+                    byte[] script = output.getScriptBytes();
+                    if (script.length == 0 || (script[0] & 0xff) == ScriptOpCodes.OP_RETURN)
+                        continue;
+                    elements.add(script);
+                }
+            }
+        }
+        for (byte[] script : spentOutputScripts) {
+            if (script.length > 0)
+                elements.add(script);
+        }
+        return build(block.getHash(), elements);
+    }
+
+    /** Builds a basic filter for the given block hash containing the given elements, which must not repeat. */
+    public static GolombCodedSet build(Sha256Hash blockHash, Collection<byte[]> elements) {
+        long[] values = hashedSetConstruct(blockHash, elements, elements.size());
+        Arrays.sort(values);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        byte[] count = new VarInt(values.length).encode();
+        stream.write(count, 0, count.length);
+        BitWriter writer = new BitWriter(stream);
+        long last = 0;
+        for (long value : values) {
+            long delta = value - last;
+            last = value;
+            for (long q = delta >>> BASIC_FILTER_P; q > 0; q--)
+                writer.writeBit(true);
+            writer.writeBit(false);
+            writer.writeBits(delta, BASIC_FILTER_P);
+        }
+        writer.flush();
+        return new GolombCodedSet(blockHash, stream.toByteArray());
+    }
+
+    /** Returns true if the filter may contain the given element. */
+    public boolean match(byte[] element) {
+        return matchAny(Collections.singletonList(element));
+    }
+
+    /**
+     * Returns true if the filter may contain any of the given elements. This is much cheaper than querying the
+     * elements one by one, as the filter is decoded only once.
+     */
+    public boolean matchAny(Collection<byte[]> elements) {
+        if (n == 0 || elements.isEmpty())
+            return false;
+        long[] targets = hashedSetConstruct(blockHash, elements, n);
+        Arrays.sort(targets);
+        BitReader reader = new BitReader(bytes, dataOffset);
+        int target = 0;
+        long value = 0;
+        for (long i = 0; i < n; i++) {
+            long q = 0;
+            while (reader.readBit())
+                q++;
+            value += (q << BASIC_FILTER_P) | reader.readBits(BASIC_FILTER_P);
+            while (targets[target] < value) {
+                if (++target == targets.length)
+                    return false;
+            }
+            if (targets[target] == value)
+                return true;
+        }
+        return false;
+    }
+
+    /** Hashes the elements into the range [0, N * M) with a SipHash keyed by the first half of the block hash. */
+    private static long[] hashedSetConstruct(Sha256Hash blockHash, Collection<byte[]> elements, long n) {
+        byte[] key = blockHash.getReversedBytes();
+        long k0 = Utils.readInt64(key, 0);
+        long k1 = Utils.readInt64(key, 8);
+        long range = n * BASIC_FILTER_M;
+        long[] values = new long[elements.size()];
+        int i = 0;
+        for (byte[] element : elements)
+            values[i++] = multiplyHigh(sipHash24(k0, k1, element), range);
+        return values;
+    }
+
+    /** Returns the upper 64 bits of the unsigned 128 bit product of a and b. */
+    static long multiplyHigh(long a, long b) {
+        long aLo = a & 0xFFFFFFFFL, aHi = a >>> 32;
+        long bLo = b & 0xFFFFFFFFL, bHi = b >>> 32;
+        long hiLo = aHi * bLo;
+        long cross = ((aLo * bLo) >>> 32) + (hiLo & 0xFFFFFFFFL) + aLo * bHi;
+        return aHi * bHi + (hiLo >>> 32) + (cross >>> 32);
+    }
+
+    /** SipHash-2-4 as specified by Aumasson and Bernstein, with the key given as two little endian words. */
+    static long sipHash24(long k0, long k1, byte[] data) {
+        long v0 = 0x736f6d6570736575L ^ k0;
+        long v1 = 0x646f72616e646f6dL ^ k1;
+        long v2 = 0x6c7967656e657261L ^ k0;
+        long v3 = 0x7465646279746573L ^ k1;
+        int end = data.length & ~7;
+        for (int i = 0; i < end; i += 8) {
+            long m = Utils.readInt64(data, i);
+            v3 ^= m;
+            for (int round = 0; round < 2; round++) {
+                v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+                v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+                v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+                v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+            }
+            v0 ^= m;
+        }
+        long m = ((long) data.length) << 56;
+        for (int i = data.length - 1; i >= end; i--)
+            m |= (data[i] & 0xffL) << (8 * (i - end));
+        v3 ^= m;
+        for (int round = 0; round < 2; round++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        v0 ^= m;
+        v2 ^= 0xff;
+        for (int round = 0; round < 4; round++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        return v0 ^ v1 ^ v2 ^ v3;
+    }
+
+    /** Returns the double SHA-256 of the serialized filter, as committed to by the filter headers. */
+    public Sha256Hash getFilterHash() {
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bytes));
+    }
+
+    /** Returns the filter header of this filter, chained onto the header of the filter of the previous block. */
+    public Sha256Hash getFilterHeader(Sha256Hash previousFilterHeader) {
+        return computeFilterHeader(getFilterHash(), previousFilterHeader);
+    }
+
+    /** Chains the given filter hash onto the previous filter header, as done for the cfheaders message. */
+    public static Sha256Hash computeFilterHeader(Sha256Hash filterHash, Sha256Hash previousFilterHeader) {
+        byte[] filterHashBytes = filterHash.getReversedBytes();
+        byte[] previousBytes = previousFilterHeader.getReversedBytes();
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(filterHashBytes, 0, filterHashBytes.length,
+                previousBytes, 0, previousBytes.length));
+    }
+
+    /** Returns the hash of the block this filter belongs to, which also keys the element hashes. */
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    /** Returns the number of elements in the filter. */
+    public long getN() {
+        return n;
+    }
+
+    /** Returns the serialized filter. The returned array must not be modified. */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "Golomb-coded set of " + n + " elements for block " + blockHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        GolombCodedSet other = (GolombCodedSet) o;
+        return blockHash.equals(other.blockHash) && Arrays.equals(bytes, other.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return blockHash.hashCode() * 31 + Arrays.hashCode(bytes);
+    }
+
+    /** Writes bits most significant first, as the filter encoding requires. */
+    private static class BitWriter {
+        private final ByteArrayOutputStream stream;
+        private int current;
+        private int count;
+
+        BitWriter(ByteArrayOutputStream stream) {
+            this.stream = stream;
+        }
+
+        void writeBit(boolean bit) {
+            current = (current << 1) | (bit ? 1 : 0);
+            if (++count == 8) {
+                stream.write(current);
+                current = 0;
+                count = 0;
+            }
+        }
+
+        void writeBits(long value, int bits) {
+            for (int i = bits - 1; i >= 0; i--)
+                writeBit(((value >>> i) & 1) == 1);
+        }
+
+        void flush() {
+            if (count > 0) {
+                stream.write(current << (8 - count));
+                current = 0;
+                count = 0;
+            }
+        }
+    }
+
+    private static class BitReader {
+        private final byte[] bytes;
+        private int bitPosition;
+
+        BitReader(byte[] bytes, int offset) {
+            this.bytes = bytes;
+            this.bitPosition = offset * 8;
+        }
+
+        boolean readBit() {
+            int index = bitPosition >>> 3;
+            if (index >= bytes.length)
+                throw new ProtocolException("Filter data ends prematurely");
+            boolean bit = ((bytes[index] >>> (7 - (bitPosition & 7))) & 1) == 1;
+            bitPosition++;
+            return bit;
+        }
+
+        long readBits(int bits) {
+            long value = 0;
+            for (int i = 0; i < bits; i++)
+                value = (value << 1) | (readBit() ? 1 : 0);
+            return value;
+        }
+    }
+}
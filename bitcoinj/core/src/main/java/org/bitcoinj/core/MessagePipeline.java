@@ -0,0 +1,278 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.net.ByteBufferPool;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Parses and processes the messages received from peers on a pool of worker threads, leaving the thread which reads
+ * from the network to only split the bytes into messages. A block which takes long to parse, or to connect to the
+ * chain, then no longer holds up reading from all the other peers.</p>
+ *
+ * <p>The messages of each peer are still processed one at a time, in the order they were received, though those of
+ * different peers are processed at the same time, as they are with a {@link org.bitcoinj.net.BlockingClientManager}.
+ * When more than a given number of bytes of a peer's messages are waiting, reading from that peer is paused until
+ * half of them have been processed.</p>
+ *
+ * <p>Set a pipeline on a {@link PeerGroup} with {@link PeerGroup#setMessagePipeline(MessagePipeline)}, before it
+ * connects to peers. It can be shared by several peer groups, and should be shut down when none uses it any more.</p>
+ */
+public class MessagePipeline {
+    /** How many bytes of a peer's messages may wait to be processed before reading from it is paused, by default. */
+    public static final int DEFAULT_MAX_QUEUED_BYTES = 8 * 1024 * 1024;
+    // How many messages of a peer a worker processes before letting the other peers' messages have a turn.
+    private static final int BATCH_SIZE = 16;
+
+    private final ThreadPoolExecutor executor;
+    private final int maxQueuedBytes;
+
+    private final AtomicInteger queuedMessages = new AtomicInteger();
+    private final AtomicInteger peakQueuedMessages = new AtomicInteger();
+    private final AtomicLong processedMessages = new AtomicLong();
+    private final AtomicLong queueNanos = new AtomicLong();
+    private final AtomicLong parseNanos = new AtomicLong();
+    private final AtomicLong processNanos = new AtomicLong();
+    private final AtomicLong readPauses = new AtomicLong();
+
+    /** Creates a pipeline with a worker for each processor, but at least two, and the default limit of each peer. */
+    public MessagePipeline() {
+        this(Math.max(2, Runtime.getRuntime().availableProcessors()), DEFAULT_MAX_QUEUED_BYTES);
+    }
+
+    /**
+     * @param threads how many messages can be processed at the same time
+     * @param maxQueuedBytes how many bytes of a peer's messages may wait before reading from it is paused
+     */
+    public MessagePipeline(int threads, int maxQueuedBytes) {
+        checkArgument(threads > 0 && maxQueuedBytes > 0);
+        this.maxQueuedBytes = maxQueuedBytes;
+        // Peers have at most one task queued each, so the queue is bounded by the number of peers.
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ContextPropagatingThreadFactory("Message pipeline"));
+        // Start the threads here so they inherit the context of the caller.
+        executor.prestartAllCoreThreads();
+    }
+
+    /** Returns how many received messages are waiting to be processed, across all peers. */
+    public int getQueuedMessages() {
+        return queuedMessages.get();
+    }
+
+    /** Returns the most messages which have been waiting to be processed at once. */
+    public int getPeakQueuedMessages() {
+        return peakQueuedMessages.get();
+    }
+
+    /** Returns how many messages have been processed. */
+    public long getProcessedMessages() {
+        return processedMessages.get();
+    }
+
+    /** Returns the average time messages waited between being received and being parsed, in milliseconds. */
+    public double getAverageQueueMillis() {
+        return average(queueNanos);
+    }
+
+    /** Returns the average time taken to check and parse a message, in milliseconds. */
+    public double getAverageParseMillis() {
+        return average(parseNanos);
+    }
+
+    /** Returns the average time taken to process a parsed message, in milliseconds. */
+    public double getAverageProcessMillis() {
+        return average(processNanos);
+    }
+
+    /** Returns how many times reading from a peer was paused because too many of its messages were waiting. */
+    public long getReadPauses() {
+        return readPauses.get();
+    }
+
+    /**
+     * Stops the worker threads once the messages already queued have been processed. Peers which receive messages
+     * afterwards are disconnected.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d queued (peak %d), %d processed, average ms queued %.2f, parsing %.2f, processing %.2f, %d read pauses",
+                getQueuedMessages(), getPeakQueuedMessages(), getProcessedMessages(), getAverageQueueMillis(),
+                getAverageParseMillis(), getAverageProcessMillis(), getReadPauses());
+    }
+
+    private double average(AtomicLong nanos) {
+        long count = processedMessages.get();
+        return count == 0 ? 0 : nanos.get() / 1e6 / count;
+    }
+
+    PeerQueue newQueue(PeerSocketHandler handler) {
+        return new PeerQueue(handler);
+    }
+
+    private static class Frame {
+        final BitcoinSerializer.BitcoinPacketHeader header;
+        final ByteBuffer payload;
+        @Nullable final ByteBufferPool pool;
+        final long receivedNanos;
+
+        Frame(BitcoinSerializer.BitcoinPacketHeader header, ByteBuffer payload, @Nullable ByteBufferPool pool) {
+            this.header = header;
+            this.payload = payload;
+            this.pool = pool;
+            this.receivedNanos = System.nanoTime();
+        }
+
+        void release() {
+            if (pool != null)
+                pool.release(payload);
+        }
+    }
+
+    /**
+     * The messages of one peer, processed in order by one worker at a time.
+     *
+     * <p>Lock order: the queue's monitor is taken before the lock of the peer's connection, which pausing and resuming
+     * reading takes. The connection must therefore never call into its queue whilst holding its own lock, which
+     * {@link org.bitcoinj.net.ConnectionHandler} doesn't, as it tells the peer the connection closed after letting
+     * go of it.</p>
+     */
+    class PeerQueue implements Runnable {
+        private final PeerSocketHandler handler;
+        @GuardedBy("this") private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+        @GuardedBy("this") private long queuedBytes;
+        @GuardedBy("this") private boolean scheduled, paused, closed;
+
+        PeerQueue(PeerSocketHandler handler) {
+            this.handler = handler;
+        }
+
+        /**
+         * Queues a received message, pausing reading from the peer if it's too far behind. The payload is released to
+         * the given pool, if any, once parsed or dropped.
+         */
+        void add(BitcoinSerializer.BitcoinPacketHeader header, ByteBuffer payload, @Nullable ByteBufferPool pool) {
+            boolean schedule = false;
+            synchronized (this) {
+                if (closed) {
+                    if (pool != null)
+                        pool.release(payload);
+                    return;
+                }
+                frames.add(new Frame(header, payload, pool));
+                queuedBytes += header.size;
+                // Pause while holding the lock so a worker can't resume reading before it's paused.
+                if (!paused && queuedBytes > maxQueuedBytes) {
+                    paused = true;
+                    readPauses.incrementAndGet();
+                    handler.writeTarget.setReadPaused(true);
+                }
+                if (!scheduled)
+                    schedule = scheduled = true;
+            }
+            int queued = queuedMessages.incrementAndGet();
+            int peak;
+            while (queued > (peak = peakQueuedMessages.get()) && !peakQueuedMessages.compareAndSet(peak, queued));
+            if (schedule) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // The pipeline was shut down, so nothing would ever process the peer's messages.
+                    close();
+                    handler.close();
+                }
+            }
+        }
+
+        /** Drops the messages not yet processed, as the connection closed. */
+        void close() {
+            synchronized (this) {
+                closed = true;
+                queuedMessages.addAndGet(-frames.size());
+                for (Frame frame : frames)
+                    frame.release();
+                frames.clear();
+                queuedBytes = 0;
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    Frame frame;
+                    synchronized (this) {
+                        frame = frames.poll();
+                        if (frame == null) {
+                            scheduled = false;
+                            return;
+                        }
+                        queuedBytes -= frame.header.size;
+                        if (paused && queuedBytes <= maxQueuedBytes / 2) {
+                            paused = false;
+                            handler.writeTarget.setReadPaused(false);
+                        }
+                    }
+                    queuedMessages.decrementAndGet();
+                    long start = System.nanoTime();
+                    queueNanos.addAndGet(start - frame.receivedNanos);
+                    try {
+                        Message message;
+                        try {
+                            message = handler.serializer.deserializePayload(frame.header, frame.payload);
+                        } finally {
+                            frame.release();
+                        }
+                        long parsed = System.nanoTime();
+                        parseNanos.addAndGet(parsed - start);
+                        handler.processMessage(message);
+                        processNanos.addAndGet(System.nanoTime() - parsed);
+                    } catch (Exception e) {
+                        close();
+                        handler.exceptionCaught(e);
+                    } finally {
+                        processedMessages.incrementAndGet();
+                    }
+                }
+                // Give the other peers a turn before carrying on. A pipeline which was shut down takes no new tasks,
+                // so the rest of the peer's messages are processed here instead.
+                try {
+                    executor.execute(this);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // Carry on with the next batch.
+                }
+            }
+        }
+    }
+}
@@ -18,6 +18,8 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.net.ByteBufferPool;
+
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
@@ -163,5 +165,15 @@ public abstract class MessageSerializer {
      * it does not support serializing the given message.
      */
     public abstract void serialize(Message message, OutputStream out) throws IOException, UnsupportedOperationException;
-    
+
+    /**
+     * Writes message into buffers taken from the given pool, ready to be written from their positions to their
+     * limits. The caller owns the buffers, and should release them to the pool once written.
+     *
+     * @throws UnsupportedOperationException if this serializer/deserializer
+     * does not support serialization. This can occur either because it's a dummy
+     * serializer (i.e. for messages with no network parameters), or because
+     * it does not support serializing the given message.
+     */
+    public abstract ByteBuffer[] serialize(Message message, ByteBufferPool pool) throws IOException, UnsupportedOperationException;
 }
@@ -0,0 +1,153 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Holds the blocks that {@link AbstractBlockChain} received but can't plug into the chain yet, eg because they were
+ * created whilst we were downloading the block chain or a peer sent them out of order. The blocks are indexed by the
+ * hash of their previous block as well as their own, so that connecting a block finds its orphan children directly
+ * rather than by scanning the whole pool.</p>
+ *
+ * <p>The pool is capped by the size of the blocks it holds: when adding a block goes over the cap, the oldest orphans
+ * are evicted. They are downloaded again if they are still needed once their parent connects.</p>
+ *
+ * <p>Not thread safe, guarded by the lock of the block chain.</p>
+ */
+class OrphanBlockPool {
+    private static final Logger log = LoggerFactory.getLogger(OrphanBlockPool.class);
+
+    // Holds a block header and, optionally, a list of tx hashes or block's transactions
+    static class OrphanBlock {
+        final Block block;
+        final List<Sha256Hash> filteredTxHashes;
+        final Map<Sha256Hash, Transaction> filteredTxn;
+        final long size;
+
+        OrphanBlock(Block block, @Nullable List<Sha256Hash> filteredTxHashes, @Nullable Map<Sha256Hash, Transaction> filteredTxn) {
+            final boolean filtered = filteredTxHashes != null && filteredTxn != null;
+            Preconditions.checkArgument((block.transactions == null && filtered)
+                                        || (block.transactions != null && !filtered));
+            this.block = block;
+            this.filteredTxHashes = filteredTxHashes;
+            this.filteredTxn = filteredTxn;
+            long size = block.getOptimalEncodingMessageSize();
+            if (filtered) {
+                size += (long) filteredTxHashes.size() * Sha256Hash.LENGTH;
+                for (Transaction tx : filteredTxn.values())
+                    size += tx.getOptimalEncodingMessageSize();
+            }
+            this.size = size;
+        }
+    }
+
+    // In insertion order, so that the oldest orphans are evicted first.
+    private final LinkedHashMap<Sha256Hash, OrphanBlock> blocks = new LinkedHashMap<>();
+    private final ListMultimap<Sha256Hash, OrphanBlock> children = LinkedListMultimap.create();
+    private long maxBytes;
+    private long bytes;
+    private long evicted;
+
+    OrphanBlockPool(long maxBytes) {
+        setMaxBytes(maxBytes);
+    }
+
+    void setMaxBytes(long maxBytes) {
+        checkArgument(maxBytes > 0);
+        this.maxBytes = maxBytes;
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** Adds an orphan, evicting the oldest ones if the pool grows too large. The new orphan itself is always kept. */
+    void add(OrphanBlock orphan) {
+        Sha256Hash hash = orphan.block.getHash();
+        if (blocks.containsKey(hash))
+            return;
+        blocks.put(hash, orphan);
+        children.put(orphan.block.getPrevBlockHash(), orphan);
+        bytes += orphan.size;
+        Iterator<OrphanBlock> iter = blocks.values().iterator();
+        while (bytes > maxBytes && blocks.size() > 1) {
+            OrphanBlock oldest = iter.next();
+            iter.remove();
+            children.remove(oldest.block.getPrevBlockHash(), oldest);
+            bytes -= oldest.size;
+            evicted++;
+            log.info("Evicted orphan block {}, {} orphans of {} bytes left", oldest.block.getHash(), blocks.size(), bytes);
+        }
+    }
+
+    @Nullable
+    OrphanBlock get(Sha256Hash hash) {
+        return blocks.get(hash);
+    }
+
+    boolean contains(Sha256Hash hash) {
+        return blocks.containsKey(hash);
+    }
+
+    /** Removes and returns one of the orphans whose previous block is the given one, or null if there is none. */
+    @Nullable
+    OrphanBlock pollChild(Sha256Hash prevHash) {
+        List<OrphanBlock> list = children.get(prevHash);
+        if (list.isEmpty())
+            return null;
+        OrphanBlock orphan = list.remove(0);
+        blocks.remove(orphan.block.getHash());
+        bytes -= orphan.size;
+        return orphan;
+    }
+
+    /** Removes all the orphans and returns their hashes. */
+    Set<Sha256Hash> drain() {
+        Set<Sha256Hash> hashes = new HashSet<>(blocks.keySet());
+        blocks.clear();
+        children.clear();
+        bytes = 0;
+        return hashes;
+    }
+
+    int size() {
+        return blocks.size();
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    long getEvicted() {
+        return evicted;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.bitcoinj.utils.DaemonThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Hashes the transactions of a {@link Block}, builds its merkle tree and runs the checks of its transactions which
+ * don't depend on each other, spread over a pool of threads shared by all blocks. Each level of the tree is built in
+ * parallel, from the level below it. Small blocks, and all blocks on a single processor, are handled on the calling
+ * thread, with the same results. The pool is a plain executor rather than a fork-join pool, as the latter is missing
+ * from Android before API 21 and full blocks do reach Android clients.
+ */
+final class ParallelBlockVerifier {
+    // Below twice these many items a job is run on the calling thread, as handing it out costs more than it saves.
+    private static final int TRANSACTIONS_PER_TASK = 32;
+    private static final int NODES_PER_TASK = 512;
+
+    private static final int PROCESSORS = Runtime.getRuntime().availableProcessors();
+
+    private ParallelBlockVerifier() {
+    }
+
+    // Created on first use, so that clients which only ever see headers and filtered blocks never start its threads.
+    // The calling thread takes a share of each job, so one thread fewer than there are processors is enough.
+    private static class PoolHolder {
+        static final ExecutorService POOL = Executors.newFixedThreadPool(PROCESSORS - 1,
+                new DaemonThreadFactory("Block verifier"));
+    }
+
+    private interface Job {
+        void run(int index);
+    }
+
+    private static void runRange(Job job, int from, int to) {
+        for (int i = from; i < to; i++)
+            job.run(i);
+    }
+
+    // Splits the range into one slice per processor, no smaller than the grain, and runs the first slice on the
+    // calling thread whilst the pool runs the others.
+    private static void forEach(int count, int grain, final Job job) {
+        if (PROCESSORS < 2 || count < grain * 2) {
+            runRange(job, 0, count);
+            return;
+        }
+        int slices = Math.min(PROCESSORS, count / grain);
+        int sliceSize = (count + slices - 1) / slices;
+        List<FutureTask<Void>> tasks = new ArrayList<>(slices - 1);
+        for (int from = sliceSize; from < count; from += sliceSize) {
+            final int start = from, end = Math.min(from + sliceSize, count);
+            FutureTask<Void> task = new FutureTask<>(new Runnable() {
+                @Override
+                public void run() {
+                    runRange(job, start, end);
+                }
+            }, null);
+            tasks.add(task);
+            PoolHolder.POOL.execute(task);
+        }
+        runRange(job, 0, sliceSize);
+        for (FutureTask<Void> task : tasks) {
+            try {
+                // The slices are short and bounded, so this waits for them even if interrupted.
+                Uninterruptibles.getUninterruptibly(task);
+            } catch (ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+    }
+
+    // Blocks built from a list of transactions keep them in a linked list, which the jobs would walk on every index.
+    private static List<Transaction> randomAccess(List<Transaction> transactions) {
+        return transactions instanceof RandomAccess ? transactions : new ArrayList<>(transactions);
+    }
+
+    /** Caches the hashes of transactions just parsed from the given block payload, taken from their bytes in it. */
+    static void hashTransactions(final List<Transaction> transactions, final byte[] payload) {
+        forEach(transactions.size(), TRANSACTIONS_PER_TASK, new Job() {
+            @Override
+            public void run(int index) {
+                transactions.get(index).hashParsedBytes(payload);
+            }
+        });
+    }
+
+    /**
+     * Returns the merkle tree of the given transactions, as a list of the leaves followed by each level up to the
+     * root. Transactions whose hash isn't cached are hashed in parallel.
+     */
+    static List<byte[]> buildMerkleTree(List<Transaction> blockTransactions) {
+        final List<Transaction> transactions = randomAccess(blockTransactions);
+        final byte[][] leaves = new byte[transactions.size()][];
+        forEach(leaves.length, TRANSACTIONS_PER_TASK, new Job() {
+            @Override
+            public void run(int index) {
+                leaves[index] = transactions.get(index).getHash().getBytes();
+            }
+        });
+        ArrayList<byte[]> tree = new ArrayList<>(leaves.length * 2 + 1);
+        tree.addAll(Arrays.asList(leaves));
+        byte[][] level = leaves;
+        while (level.length > 1) {
+            final byte[][] below = level;
+            final byte[][] above = new byte[(below.length + 1) / 2][];
+            forEach(above.length, NODES_PER_TASK, new Job() {
+                @Override
+                public void run(int index) {
+                    // The right hand node is the left hand one again if this level has an odd number of them.
+                    int left = index * 2;
+                    int right = Math.min(left + 1, below.length - 1);
+                    above[index] = hashPair(below[left], below[right]);
+                }
+            });
+            tree.addAll(Arrays.asList(above));
+            level = above;
+        }
+        return tree;
+    }
+
+    // The hashes in the tree are kept in big endian form, so they are reversed to be hashed together.
+    private static byte[] hashPair(byte[] left, byte[] right) {
+        byte[] pair = new byte[64];
+        for (int i = 0; i < 32; i++) {
+            pair[31 - i] = left[i];
+            pair[63 - i] = right[i];
+        }
+        return Utils.reverseBytes(Sha256Hash.hashTwice(pair));
+    }
+
+    /** Returns the number of signature operations in the scripts of the given transactions. */
+    static int countSigOps(List<Transaction> blockTransactions) {
+        final List<Transaction> transactions = randomAccess(blockTransactions);
+        final int[] sigOps = new int[transactions.size()];
+        forEach(sigOps.length, TRANSACTIONS_PER_TASK, new Job() {
+            @Override
+            public void run(int index) {
+                sigOps[index] = transactions.get(index).getSigOpCount();
+            }
+        });
+        int total = 0;
+        for (int count : sigOps)
+            total += count;
+        return total;
+    }
+
+    /**
+     * Calls {@link Transaction#verify()} on each of the given transactions, throwing the exception of the first one
+     * which fails, as verifying them one after the other would.
+     */
+    static void verifyTransactions(List<Transaction> blockTransactions) throws VerificationException {
+        final List<Transaction> transactions = randomAccess(blockTransactions);
+        final VerificationException[] failures = new VerificationException[transactions.size()];
+        forEach(failures.length, TRANSACTIONS_PER_TASK, new Job() {
+            @Override
+            public void run(int index) {
+                try {
+                    transactions.get(index).verify();
+                } catch (VerificationException e) {
+                    failures[index] = e;
+                }
+            }
+        });
+        for (VerificationException failure : failures)
+            if (failure != null)
+                throw failure;
+    }
+}
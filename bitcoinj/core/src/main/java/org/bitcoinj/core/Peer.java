@@ -37,6 +37,7 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.Executor;
@@ -101,6 +102,19 @@ public class Peer extends PeerSocketHandler {
     @GuardedBy("lock") private boolean downloadBlockBodies = true;
     // Whether to request filtered blocks instead of full blocks if the protocol version allows for them.
     @GuardedBy("lock") private boolean useFilteredBlocks = false;
+    // If set, the chain is synced as headers plus BIP 157 compact filters, and only the blocks whose filter matches
+    // one of the scripts of the provider are downloaded in full. See setCompactFilterProvider.
+    @GuardedBy("lock") @Nullable private CompactFilterProvider compactFilterProvider;
+    // If set, the chain is synced headers first and the bodies of the blocks after the fast catchup time are
+    // downloaded from all the peers of the group. See setBlockBodyDownloader.
+    @GuardedBy("lock") @Nullable private BlockBodyDownloader blockBodyDownloader;
+    // Whether headers were requested or a batch of them is being matched against compact filters or having its
+    // bodies downloaded. Blocks announced in the meantime don't start another download, the next getheaders picks
+    // them up.
+    @GuardedBy("lock") private boolean headerBatchInFlight;
+    // How many compact filters are requested per getcfilters message during chain download. Smaller than the
+    // protocol limit so that matching blocks are connected, and progress reported, whilst later filters stream in.
+    private static final int COMPACT_FILTER_CHUNK_SIZE = 100;
     // The current Bloom filter set on the connection, used to tell the remote peer what transactions to send us.
     private volatile BloomFilter vBloomFilter;
     // The last filtered block we received, we're waiting to fill it out with transactions.
@@ -147,6 +161,18 @@ public class Peer extends PeerSocketHandler {
     private final CopyOnWriteArrayList<GetDataRequest> getDataFutures;
     @GuardedBy("getAddrFutures") private final LinkedList<SettableFuture<AddressMessage>> getAddrFutures;
     @Nullable @GuardedBy("lock") private LinkedList<SettableFuture<UTXOsMessage>> getutxoFutures;
+    // A getcfilters request in flight. The peer answers with one cfilter message per block, the last one being for
+    // the stop hash.
+    private static class CFilterRequest {
+        public CFilterRequest(Sha256Hash stopHash) {
+            this.stopHash = stopHash;
+        }
+        final Sha256Hash stopHash;
+        final List<CFilterMessage> filters = new ArrayList<>();
+        final SettableFuture<List<CFilterMessage>> future = SettableFuture.create();
+    }
+    @Nullable @GuardedBy("lock") private LinkedList<CFilterRequest> cfilterRequests;
+    @Nullable @GuardedBy("lock") private LinkedList<SettableFuture<CFHeadersMessage>> cfheadersFutures;
 
     // Outstanding pings against this peer and how long the last one took to complete.
     private final ReentrantLock lastPingTimesLock = new ReentrantLock();
@@ -416,6 +442,7 @@ public class Peer extends PeerSocketHandler {
 
     @Override
     public void connectionClosed() {
+        discardQueuedMessages();
         for (final ListenerRegistration<PeerDisconnectedEventListener> registration : disconnectedEventListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -510,6 +537,10 @@ public class Peer extends PeerSocketHandler {
             processVersionAck((VersionAck) m);
         } else if (m instanceof UTXOsMessage) {
             processUTXOMessage((UTXOsMessage) m);
+        } else if (m instanceof CFilterMessage) {
+            processCFilter((CFilterMessage) m);
+        } else if (m instanceof CFHeadersMessage) {
+            processCFHeaders((CFHeadersMessage) m);
         } else if (m instanceof RejectMessage) {
             log.error("{} {}: Received {}", this, getPeerVersionMessage().subVer, m);
         } else {
@@ -530,6 +561,42 @@ public class Peer extends PeerSocketHandler {
             future.set(m);
     }
 
+    protected void processCFilter(CFilterMessage m) {
+        CFilterRequest completed = null;
+        lock.lock();
+        try {
+            CFilterRequest request = cfilterRequests != null ? cfilterRequests.peekFirst() : null;
+            if (request == null) {
+                log.warn("{}: Received cfilter we did not ask for: {}", this, m.getBlockHash());
+                return;
+            }
+            request.filters.add(m);
+            if (m.getBlockHash().equals(request.stopHash) || request.filters.size() > GetCFiltersMessage.MAX_BLOCKS)
+                completed = cfilterRequests.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+        if (completed == null)
+            return;
+        if (completed.filters.size() > GetCFiltersMessage.MAX_BLOCKS)
+            completed.future.setException(new ProtocolException("Peer sent more filters than requested"));
+        else
+            completed.future.set(completed.filters);
+    }
+
+    protected void processCFHeaders(CFHeadersMessage m) {
+        SettableFuture<CFHeadersMessage> future = null;
+        lock.lock();
+        try {
+            if (cfheadersFutures != null)
+                future = cfheadersFutures.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+        if (future != null)
+            future.set(m);
+    }
+
     private void processAddressMessage(AddressMessage m) {
         SettableFuture<AddressMessage> future;
         synchronized (getAddrFutures) {
@@ -664,6 +731,8 @@ public class Peer extends PeerSocketHandler {
         // request the full blocks from that point on instead.
         boolean downloadBlockBodies;
         long fastCatchupTimeSecs;
+        CompactFilterProvider compactFilterProvider;
+        BlockBodyDownloader blockBodyDownloader;
 
         lock.lock();
         try {
@@ -674,10 +743,21 @@ public class Peer extends PeerSocketHandler {
             }
             fastCatchupTimeSecs = this.fastCatchupTimeSecs;
             downloadBlockBodies = this.downloadBlockBodies;
+            compactFilterProvider = this.compactFilterProvider;
+            blockBodyDownloader = this.blockBodyDownloader;
         } finally {
             lock.unlock();
         }
 
+        if (compactFilterProvider != null) {
+            processCompactFilterHeaders(m.getBlockHeaders(), compactFilterProvider, fastCatchupTimeSecs);
+            return;
+        }
+        if (blockBodyDownloader != null) {
+            processHeadersFirst(m.getBlockHeaders(), blockBodyDownloader, fastCatchupTimeSecs);
+            return;
+        }
+
         try {
             checkState(!downloadBlockBodies, toString());
             for (int i = 0; i < m.getBlockHeaders().size(); i++) {
@@ -737,6 +817,219 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    private void processCompactFilterHeaders(List<Block> headers, CompactFilterProvider provider,
+                                             long fastCatchupTimeSecs) {
+        // Runs in network loop thread for this peer, as do the callbacks of the requests made for this batch.
+        try {
+            if (!vDownloadData) {
+                log.info("Lost download peer status, throwing away downloaded headers.");
+                finishHeaderBatch(false);
+                return;
+            }
+            // Blocks before the fast catchup time can't contain anything relevant, so don't fetch their filters.
+            int skipped = 0;
+            while (skipped < headers.size() && headers.get(skipped).getTimeSeconds() < fastCatchupTimeSecs)
+                connectDownloadedBlock(headers.get(skipped++));
+            List<Block> batch = new ArrayList<>(headers.subList(skipped, headers.size()));
+            if (batch.isEmpty()) {
+                // An empty headers message means we caught up with the peer.
+                finishHeaderBatch(!headers.isEmpty());
+                return;
+            }
+            new CompactFilterBatch(batch, checkHeaderBatch(batch), provider).processNextChunk();
+        } catch (VerificationException | PrunedException | BlockStoreException e) {
+            headerBatchFailed(e);
+        }
+    }
+
+    private void processHeadersFirst(List<Block> headers, BlockBodyDownloader downloader, long fastCatchupTimeSecs) {
+        // Runs in network loop thread for this peer. The bodies are connected to the chain by the downloader.
+        try {
+            if (!vDownloadData) {
+                log.info("Lost download peer status, throwing away downloaded headers.");
+                finishHeaderBatch(false);
+                return;
+            }
+            // Blocks before the fast catchup time can't contain anything relevant, so only their headers are needed.
+            int skipped = 0;
+            while (skipped < headers.size() && headers.get(skipped).getTimeSeconds() < fastCatchupTimeSecs)
+                connectDownloadedBlock(headers.get(skipped++));
+            List<Block> batch = new ArrayList<>(headers.subList(skipped, headers.size()));
+            if (batch.isEmpty()) {
+                // An empty headers message means we caught up with the peer.
+                finishHeaderBatch(!headers.isEmpty());
+                return;
+            }
+            // Check the proof of work of the whole batch before asking other peers for any of the bodies.
+            int startHeight = checkHeaderBatch(batch);
+            for (Block header : batch)
+                header.verifyHeader();
+            Futures.addCallback(downloader.download(this, batch, startHeight), new FutureCallback<Void>() {
+                @Override
+                public void onSuccess(Void result) {
+                    // Ask for more headers: either there are more, or we learn that we caught up.
+                    finishHeaderBatch(true);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    if (t instanceof CancellationException) {
+                        log.info("{}: Block body download cancelled: {}", Peer.this, t.getMessage());
+                        finishHeaderBatch(false);
+                    } else {
+                        headerBatchFailed(t);
+                    }
+                }
+            }, Threading.SAME_THREAD);
+        } catch (VerificationException | PrunedException | BlockStoreException e) {
+            headerBatchFailed(e);
+        }
+    }
+
+    // Checks that the headers follow each other and connect to the chain, returns the height of the first one.
+    private int checkHeaderBatch(List<Block> batch) throws BlockStoreException {
+        StoredBlock prev = checkNotNull(blockChain).getBlockStore().get(batch.get(0).getPrevBlockHash());
+        if (prev == null)
+            throw new ProtocolException("Got unconnected header from peer: " + batch.get(0).getHashAsString());
+        for (int i = 1; i < batch.size(); i++) {
+            if (!batch.get(i).getPrevBlockHash().equals(batch.get(i - 1).getHash()))
+                throw new ProtocolException("Got non-contiguous headers from peer: " + batch.get(i).getHashAsString());
+        }
+        return prev.getHeight() + 1;
+    }
+
+    /**
+     * Syncs the blocks of one headers message using compact filters. The filters of the whole batch are requested up
+     * front, then matched chunk by chunk: the matching blocks of a chunk are downloaded and the chunk connected to the
+     * chain before moving on to the next one, so blocks are always added in order.
+     */
+    private class CompactFilterBatch {
+        private final List<Block> headers;
+        private final CompactFilterProvider provider;
+        private final List<ListenableFuture<List<CFilterMessage>>> filterRequests = new ArrayList<>();
+        private int chunk;
+
+        CompactFilterBatch(List<Block> headers, int startHeight, CompactFilterProvider provider) {
+            this.headers = headers;
+            this.provider = provider;
+            for (int i = 0; i < headers.size(); i += COMPACT_FILTER_CHUNK_SIZE) {
+                int end = Math.min(i + COMPACT_FILTER_CHUNK_SIZE, headers.size());
+                filterRequests.add(getCFilters(startHeight + i, headers.get(end - 1).getHash()));
+            }
+        }
+
+        void processNextChunk() {
+            if (chunk == filterRequests.size()) {
+                // Ask for more headers: either there are more, or we learn that we caught up.
+                finishHeaderBatch(true);
+                return;
+            }
+            Futures.addCallback(filterRequests.get(chunk), new FutureCallback<List<CFilterMessage>>() {
+                @Override
+                public void onSuccess(List<CFilterMessage> filters) {
+                    try {
+                        matchChunk(filters);
+                    } catch (VerificationException e) {
+                        headerBatchFailed(e);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    headerBatchFailed(t);
+                }
+            }, Threading.SAME_THREAD);
+        }
+
+        private void matchChunk(List<CFilterMessage> filters) {
+            int start = chunk * COMPACT_FILTER_CHUNK_SIZE;
+            final List<Block> chunkHeaders = headers.subList(start, Math.min(start + COMPACT_FILTER_CHUNK_SIZE, headers.size()));
+            if (filters.size() != chunkHeaders.size())
+                throw new ProtocolException("Expected " + chunkHeaders.size() + " compact filters, got " + filters.size());
+            List<byte[]> elements = provider.getCompactFilterElements();
+            List<ListenableFuture<Block>> blockRequests = new ArrayList<>();
+            for (int i = 0; i < chunkHeaders.size(); i++) {
+                Sha256Hash hash = chunkHeaders.get(i).getHash();
+                CFilterMessage filter = filters.get(i);
+                if (!filter.getBlockHash().equals(hash))
+                    throw new ProtocolException("Got compact filter for unexpected block " + filter.getBlockHash());
+                if (filter.getFilter().matchAny(elements))
+                    blockRequests.add(getBlock(hash));
+            }
+            if (!blockRequests.isEmpty())
+                log.info("{}: {} of {} compact filters matched", Peer.this, blockRequests.size(), chunkHeaders.size());
+            Futures.addCallback(Futures.allAsList(blockRequests), new FutureCallback<List<Block>>() {
+                @Override
+                public void onSuccess(List<Block> blocks) {
+                    try {
+                        connectChunk(chunkHeaders, blocks);
+                    } catch (VerificationException | PrunedException e) {
+                        headerBatchFailed(e);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    headerBatchFailed(t);
+                }
+            }, Threading.SAME_THREAD);
+        }
+
+        private void connectChunk(List<Block> chunkHeaders, List<Block> blocks) throws PrunedException {
+            Map<Sha256Hash, Block> bodies = new HashMap<>();
+            for (Block block : blocks)
+                bodies.put(block.getHash(), block);
+            for (Block header : chunkHeaders) {
+                if (!vDownloadData) {
+                    log.info("Lost download peer status, throwing away downloaded headers.");
+                    finishHeaderBatch(false);
+                    return;
+                }
+                Block body = bodies.get(header.getHash());
+                connectDownloadedBlock(body != null ? body : header);
+            }
+            chunk++;
+            processNextChunk();
+        }
+    }
+
+    void connectDownloadedBlock(Block block) throws PrunedException {
+        if (checkNotNull(blockChain).add(block)) {
+            // The block was successfully linked into the chain. Notify the user of our progress.
+            invokeOnBlocksDownloaded(block, null);
+        } else {
+            // We only ever add blocks in the order of the headers we were sent, so this can't be a block that was
+            // solved in the meantime.
+            throw new ProtocolException("Got unconnected header from peer: " + block.getHashAsString());
+        }
+    }
+
+    private void finishHeaderBatch(boolean requestMore) {
+        lock.lock();
+        try {
+            headerBatchInFlight = false;
+            // Prevent the next request being seen as a duplicate, the chain head might not have moved.
+            lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
+            if (requestMore && vDownloadData)
+                blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void headerBatchFailed(Throwable t) {
+        // The peer sent us something inconsistent or couldn't serve what it advertised. Drop it so that the
+        // PeerGroup picks another download peer.
+        log.warn("{}: Headers first chain download failed, disconnecting", this, t);
+        lock.lock();
+        try {
+            headerBatchInFlight = false;
+        } finally {
+            lock.unlock();
+        }
+        close();
+    }
+
     protected void processGetData(GetDataMessage getdata) {
         log.info("{}: Received getdata message: {}", getAddress(), getdata.toString());
         ArrayList<Message> items = new ArrayList<>();
@@ -1235,6 +1528,14 @@ public class Peer extends PeerSocketHandler {
 
         lock.lock();
         try {
+            if (blocks.size() > 0 && downloadData && blockChain != null
+                    && (compactFilterProvider != null || blockBodyDownloader != null)) {
+                // When syncing headers first, blocks are only fetched once their header is known. Ask for the headers
+                // of the announced blocks instead, unless a batch is in progress which will do that anyway.
+                if (!headerBatchInFlight)
+                    blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+                blocks.clear();
+            }
             if (blocks.size() > 0 && downloadData && blockChain != null) {
                 // Ideally, we'd only ask for the data here if we actually needed it. However that can imply a lot of
                 // disk IO to figure out what we've got. Normally peers will not send us inv for things we already have
@@ -1327,8 +1628,15 @@ public class Peer extends PeerSocketHandler {
     private ListenableFuture sendSingleGetData(GetDataMessage getdata) {
         // This does not need to be locked.
         Preconditions.checkArgument(getdata.getItems().size() == 1);
-        GetDataRequest req = new GetDataRequest(getdata.getItems().get(0).hash, SettableFuture.create());
+        final GetDataRequest req = new GetDataRequest(getdata.getItems().get(0).hash, SettableFuture.create());
         getDataFutures.add(req);
+        // Forget the request if the caller cancels the future, rather than keeping it until the peer disconnects.
+        req.future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                getDataFutures.remove(req);
+            }
+        }, Threading.SAME_THREAD);
         sendMessage(getdata);
         return req.future;
     }
@@ -1371,6 +1679,41 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /**
+     * Makes the chain download use <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP 157</a>
+     * compact block filters instead of Bloom filters: headers are downloaded first, then the filters of the blocks
+     * after the fast catchup time, and only the blocks whose filter matches one of the scripts of the provider are
+     * downloaded in full. Unlike with Bloom filters, the remote peer learns nothing about the scripts we are
+     * interested in. The peer must serve compact filters, see {@link VersionMessage#isCompactFilteringSupported()}.
+     *
+     * @param provider the scripts to match, or null to download the chain as usual.
+     */
+    public void setCompactFilterProvider(@Nullable CompactFilterProvider provider) {
+        lock.lock();
+        try {
+            this.compactFilterProvider = provider;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes the chain download headers first: this peer only sends the headers, and once a batch of them is validated
+     * the bodies of its blocks after the fast catchup time are downloaded by the given downloader, usually from all
+     * the peers of the group at once, and connected to the chain in order. Used by
+     * {@link PeerGroup#setHeadersFirstSyncEnabled(boolean)}.
+     *
+     * @param downloader the downloader of the block bodies, or null to download the chain as usual.
+     */
+    void setBlockBodyDownloader(@Nullable BlockBodyDownloader downloader) {
+        lock.lock();
+        try {
+            this.blockBodyDownloader = downloader;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Links the given wallet to this peer. If you have multiple peers, you should use a {@link PeerGroup} to manage
      * them and use the {@link PeerGroup#addWallet(Wallet)} method instead of registering the wallet with each peer
@@ -1469,11 +1812,14 @@ public class Peer extends PeerSocketHandler {
         lastGetBlocksBegin = chainHeadHash;
         lastGetBlocksEnd = toHash;
 
-        if (downloadBlockBodies) {
+        if (downloadBlockBodies && compactFilterProvider == null && blockBodyDownloader == null) {
             GetBlocksMessage message = new GetBlocksMessage(params, blockLocator, toHash);
             sendMessage(message);
         } else {
-            // Downloading headers for a while instead of full blocks.
+            // Downloading headers for a while instead of full blocks, or for the whole chain when we get the bodies
+            // of the blocks we need by matching their compact filters or separately from all peers.
+            if (compactFilterProvider != null || blockBodyDownloader != null)
+                headerBatchInFlight = true;
             GetHeadersMessage message = new GetHeadersMessage(params, blockLocator, toHash);
             sendMessage(message);
         }
@@ -1736,6 +2082,26 @@ public class Peer extends PeerSocketHandler {
         maybeRestartChainDownload();
     }
 
+    /**
+     * <p>Adds elements to the Bloom filter on this connection by sending a {@link FilterAddMessage} for each of
+     * them, instead of resending the whole filter. The elements are also inserted into the filter returned by
+     * {@link #getBloomFilter()}, so that it keeps matching the filter of the remote peer.</p>
+     *
+     * <p>This is ignored if no filter was set or the remote peer doesn't support Bloom filtering. You should not use
+     * this method if your app uses a {@link PeerGroup}, use {@link PeerGroup#addBloomFilterElements(List)}.</p>
+     */
+    public void addBloomFilterElements(List<byte[]> elements) {
+        final VersionMessage ver = vPeerVersionMessage;
+        final BloomFilter filter = vBloomFilter;
+        if (ver == null || !ver.isBloomFilteringSupported() || filter == null)
+            return;
+        log.debug("{}: Adding {} elements to Bloom filter", this, elements.size());
+        for (byte[] element : elements) {
+            filter.insert(element);
+            sendMessage(new FilterAddMessage(params, element));
+        }
+    }
+
     private void maybeRestartChainDownload() {
         lock.lock();
         try {
@@ -1823,6 +2189,53 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /**
+     * Asks the remote peer for the basic compact filters of the blocks from the given height up to the block with the
+     * given hash, which must be on the best chain of the peer. The returned future completes with the filters in
+     * order once the one for the stop hash was received. At most {@link GetCFiltersMessage#MAX_BLOCKS} filters can
+     * be requested at once.
+     *
+     * @throws ProtocolException if this peer doesn't serve compact filters.
+     */
+    public ListenableFuture<List<CFilterMessage>> getCFilters(long startHeight, Sha256Hash stopHash) {
+        lock.lock();
+        try {
+            if (!getPeerVersionMessage().isCompactFilteringSupported())
+                throw new ProtocolException("Peer does not serve compact block filters");
+            CFilterRequest request = new CFilterRequest(stopHash);
+            if (cfilterRequests == null)
+                cfilterRequests = new LinkedList<>();
+            cfilterRequests.add(request);
+            sendMessage(new GetCFiltersMessage(params, GolombCodedSet.BASIC_FILTER_TYPE, startHeight, stopHash));
+            return request.future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Asks the remote peer for the basic filter hashes of the blocks from the given height up to the block with the
+     * given hash, along with the filter header preceding them. Comparing the filter headers of several peers allows
+     * detecting a peer that serves bogus filters.
+     *
+     * @throws ProtocolException if this peer doesn't serve compact filters.
+     */
+    public ListenableFuture<CFHeadersMessage> getCFHeaders(long startHeight, Sha256Hash stopHash) {
+        lock.lock();
+        try {
+            if (!getPeerVersionMessage().isCompactFilteringSupported())
+                throw new ProtocolException("Peer does not serve compact block filters");
+            SettableFuture<CFHeadersMessage> future = SettableFuture.create();
+            if (cfheadersFutures == null)
+                cfheadersFutures = new LinkedList<>();
+            cfheadersFutures.add(future);
+            sendMessage(new GetCFHeadersMessage(params, GolombCodedSet.BASIC_FILTER_TYPE, startHeight, stopHash));
+            return future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Returns true if this peer will use getdata/notfound messages to walk backwards through transaction dependencies
      * before handing the transaction off to the wallet. The wallet can do risk analysis on pending/recent transactions
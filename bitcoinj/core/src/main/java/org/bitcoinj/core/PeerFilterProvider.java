@@ -20,7 +20,9 @@ package org.bitcoinj.core;
 /**
  * An interface which provides the information required to properly filter data downloaded from Peers.
  * Note that an implementer is responsible for calling {@link PeerGroup#recalculateFastCatchupAndFilter(org.bitcoinj.core.PeerGroup.FilterRecalculateMode)}
- * whenever a change occurs which effects the data provided via this interface.
+ * whenever a change occurs which effects the data provided via this interface. If the provider only gained elements,
+ * it can report them with {@link PeerGroup#addBloomFilterElements(java.util.List)} instead, which avoids resending
+ * the whole filter to peers.
  */
 public interface PeerFilterProvider {
     /**
@@ -282,6 +282,29 @@ public class PeerGroup implements TransactionBroadcaster {
     /** Whether bloom filter support is enabled when using a non FullPrunedBlockchain*/
     private volatile boolean vBloomFilteringEnabled = true;
 
+    /** Whether the chain is synced using compact block filters instead of bloom filters */
+    private volatile boolean vCompactFilterSyncEnabled = false;
+
+    /** Whether the chain is synced headers first, with the block bodies downloaded from all peers */
+    private volatile boolean vHeadersFirstSyncEnabled = false;
+
+    /** Parses and processes the messages of newly connected peers off the network thread, if set */
+    @Nullable private volatile MessagePipeline vMessagePipeline;
+    private final BlockBodyDownloader blockBodyDownloader;
+
+    // Gathers the scripts to match against compact filters from the filter providers that support it.
+    private final CompactFilterProvider compactFilterProvider = new CompactFilterProvider() {
+        @Override
+        public List<byte[]> getCompactFilterElements() {
+            List<byte[]> elements = new ArrayList<>();
+            for (PeerFilterProvider provider : peerFilterProviders) {
+                if (provider instanceof CompactFilterProvider)
+                    elements.addAll(((CompactFilterProvider) provider).getCompactFilterElements());
+            }
+            return elements;
+        }
+    };
+
     /** See {@link #PeerGroup(Context)} */
     public PeerGroup(NetworkParameters params) {
         this(params, null);
@@ -327,6 +350,7 @@ public class PeerGroup implements TransactionBroadcaster {
         peerFilterProviders = new CopyOnWriteArrayList<>();
 
         executor = createPrivateExecutor();
+        blockBodyDownloader = new BlockBodyDownloader(this, executor, BlockBodyDownloader.DEFAULT_WINDOW_SIZE);
 
         // This default sentinel value will be overridden by one of two actions:
         //   - adding a peer discovery source sets it to the default
@@ -614,7 +638,8 @@ public class PeerGroup implements TransactionBroadcaster {
         try {
             boolean spvMode = chain != null && !chain.shouldVerifyTransactions();
             boolean willSendFilter = spvMode && peerFilterProviders.size() > 0 && vBloomFilteringEnabled;
-            ver.relayTxesBeforeFilter = !willSendFilter;
+            // When syncing with compact filters no filter is ever sent, and we don't want all transactions either.
+            ver.relayTxesBeforeFilter = !willSendFilter && !vCompactFilterSyncEnabled;
         } finally {
             lock.unlock();
         }
@@ -1267,7 +1292,7 @@ public class PeerGroup implements TransactionBroadcaster {
             public void go() {
                 checkState(!lock.isHeldByCurrentThread());
                 // Fully verifying mode doesn't use this optimization (it can't as it needs to see all transactions).
-                if ((chain != null && chain.shouldVerifyTransactions()) || !vBloomFilteringEnabled)
+                if ((chain != null && chain.shouldVerifyTransactions()) || (!vBloomFilteringEnabled && !vCompactFilterSyncEnabled))
                     return;
                 // We only ever call bloomFilterMerger.calculate on jobQueue, so we cannot be calculating two filters at once.
                 FilterMerger.Result result = bloomFilterMerger.calculate(ImmutableList.copyOf(peerFilterProviders /* COW */));
@@ -1285,6 +1310,9 @@ public class PeerGroup implements TransactionBroadcaster {
                     default:
                         throw new UnsupportedOperationException();
                 }
+                // Compact filters are matched locally, only the fast catchup time is of use then.
+                if (vCompactFilterSyncEnabled)
+                    send = false;
                 if (send) {
                     for (Peer peer : peers /* COW */) {
                         // Only query the mempool if this recalculation request is not in order to lower the observed FP
@@ -1313,6 +1341,69 @@ public class PeerGroup implements TransactionBroadcaster {
         return future;
     }
     
+    /**
+     * <p>Adds elements to the bloom filter given to peers, without recalculating it from all filter providers. This is
+     * meant for a {@link PeerFilterProvider} which gained a few elements, such as new outputs to watch, and saves
+     * resending the whole filter to every peer. The provider must already include the elements in its
+     * {@link PeerFilterProvider#getBloomFilterElementCount()} and {@link PeerFilterProvider#getBloomFilter(int, double, long)}.</p>
+     *
+     * <p>The elements are sent to connected peers with {@link FilterAddMessage}s for as long as the filter stays
+     * within the element count it was sized for and its false positive rate stays within the configured rate.
+     * After that, and if there is no filter yet, the filter is recalculated and resent as by
+     * {@link #recalculateFastCatchupAndFilter(FilterRecalculateMode)} with {@link FilterRecalculateMode#SEND_IF_CHANGED}.</p>
+     *
+     * @return a future that completes once the filter has been updated (note: this does not mean acknowledged by remote peers).
+     */
+    public ListenableFuture<BloomFilter> addBloomFilterElements(final List<byte[]> elements) {
+        final SettableFuture<BloomFilter> future = SettableFuture.create();
+        Runnable command = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    go();
+                } catch (Throwable e) {
+                    log.error("Exception when trying to add to Bloom filter", e);  // The executor swallows exceptions :(
+                    future.setException(e);
+                }
+            }
+
+            public void go() {
+                checkState(!lock.isHeldByCurrentThread());
+                if ((chain != null && chain.shouldVerifyTransactions()) || (!vBloomFilteringEnabled && !vCompactFilterSyncEnabled)) {
+                    future.set(null);
+                    return;
+                }
+                // Compact filters are matched locally and bloom filters aren't sent then, only the fast catchup
+                // time can change, so go the usual way.
+                // We only ever use bloomFilterMerger on jobQueue, so the filter can't be recalculated concurrently.
+                if (vCompactFilterSyncEnabled || !bloomFilterMerger.insert(elements)) {
+                    Futures.addCallback(recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED),
+                            new FutureCallback<BloomFilter>() {
+                        @Override
+                        public void onSuccess(BloomFilter result) {
+                            future.set(result);
+                        }
+
+                        @Override
+                        public void onFailure(Throwable t) {
+                            future.setException(t);
+                        }
+                    });
+                    return;
+                }
+                for (Peer peer : peers /* COW */)
+                    peer.addBloomFilterElements(elements);
+                future.set(bloomFilterMerger.getLastFilter());
+            }
+        };
+        try {
+            executor.execute(command);
+        } catch (RejectedExecutionException e) {
+            // Can happen during shutdown.
+        }
+        return future;
+    }
+
     /**
      * <p>Sets the false positive rate of bloom filters given to peers. The default is {@link #DEFAULT_BLOOM_FILTER_FP_RATE}.</p>
      *
@@ -1392,6 +1483,7 @@ public class PeerGroup implements TransactionBroadcaster {
         ver.time = Utils.currentTimeSeconds();
 
         Peer peer = createPeer(address, ver);
+        peer.setMessagePipeline(vMessagePipeline);
         peer.addConnectedEventListener(Threading.SAME_THREAD, startupListener);
         peer.addDisconnectedEventListener(Threading.SAME_THREAD, startupListener);
         peer.setMinProtocolVersion(vMinRequiredProtocolVersion);
@@ -1458,7 +1550,10 @@ public class PeerGroup implements TransactionBroadcaster {
             // downloading from multiple peers and handle the case when a new peer comes along
             // with a longer chain after we thought we were done.
             if (!peers.isEmpty()) {
-                startBlockChainDownloadFromPeer(peers.iterator().next()); // Will add the new download listener
+                // When syncing with compact filters, only some peers can serve the chain.
+                Peer peer = vCompactFilterSyncEnabled ? selectDownloadPeer(peers) : peers.iterator().next();
+                if (peer != null)
+                    startBlockChainDownloadFromPeer(peer); // Will add the new download listener
             }
         } finally {
             lock.unlock();
@@ -1520,7 +1615,8 @@ public class PeerGroup implements TransactionBroadcaster {
             // Give the peer a filter that can be used to probabilistically drop transactions that
             // aren't relevant to our wallet. We may still receive some false positives, which is
             // OK because it helps improve wallet privacy. Old nodes will just ignore the message.
-            if (bloomFilterMerger.getLastFilter() != null) peer.setBloomFilter(bloomFilterMerger.getLastFilter());
+            if (bloomFilterMerger.getLastFilter() != null && !vCompactFilterSyncEnabled)
+                peer.setBloomFilter(bloomFilterMerger.getLastFilter());
             peer.setDownloadData(false);
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
@@ -1528,7 +1624,7 @@ public class PeerGroup implements TransactionBroadcaster {
             if (downloadPeer == null) {
                 // Kick off chain download if we aren't already doing it.
                 setDownloadPeer(selectDownloadPeer(peers));
-                boolean shouldDownloadChain = downloadListener != null && chain != null;
+                boolean shouldDownloadChain = downloadListener != null && chain != null && downloadPeer != null;
                 if (shouldDownloadChain) {
                     startBlockChainDownloadFromPeer(downloadPeer);
                 }
@@ -1618,6 +1714,9 @@ public class PeerGroup implements TransactionBroadcaster {
                 downloadPeer.setDownloadData(true);
                 if (chain != null)
                     downloadPeer.setDownloadParameters(fastCatchupTimeSecs, bloomFilterMerger.getLastFilter() != null);
+                downloadPeer.setCompactFilterProvider(vCompactFilterSyncEnabled ? compactFilterProvider : null);
+                boolean headersFirst = vHeadersFirstSyncEnabled && !vCompactFilterSyncEnabled;
+                downloadPeer.setBlockBodyDownloader(headersFirst ? blockBodyDownloader : null);
             }
         } finally {
             lock.unlock();
@@ -2194,6 +2293,15 @@ public class PeerGroup implements TransactionBroadcaster {
         //  - Chain height is reasonable (majority of nodes)
         //  - High enough protocol version for the features we want (but we'll settle for less)
         //  - Randomly, to try and spread the load.
+        if (vCompactFilterSyncEnabled) {
+            // Only peers serving compact filters can be used to download the chain.
+            List<Peer> filterPeers = new ArrayList<>();
+            for (Peer peer : peers) {
+                if (peer.getPeerVersionMessage().isCompactFilteringSupported())
+                    filterPeers.add(peer);
+            }
+            peers = filterPeers;
+        }
         if (peers.isEmpty())
             return null;
         // Make sure we don't select a peer that is behind/synchronizing itself.
@@ -2295,4 +2403,70 @@ public class PeerGroup implements TransactionBroadcaster {
     public boolean isBloomFilteringEnabled() {
         return vBloomFilteringEnabled;
     }
+
+    /**
+     * <p>Syncs the chain using <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP 157</a>
+     * compact block filters instead of Bloom filters. The download peer fetches the headers, then the filters of the
+     * blocks after the fast catchup time, and downloads in full only the blocks whose filter matches a script of one
+     * of the filter providers implementing {@link CompactFilterProvider}. No filter is ever sent to remote peers, so
+     * they learn nothing about what we are interested in, at the cost of downloading the filters.</p>
+     *
+     * <p>Only peers advertising {@link VersionMessage#NODE_COMPACT_FILTERS} are used as download peer, and
+     * transactions are not relayed to us in this mode. Call before starting the chain download.</p>
+     */
+    public void setCompactFilterSyncEnabled(boolean compactFilterSyncEnabled) {
+        this.vCompactFilterSyncEnabled = compactFilterSyncEnabled;
+        updateVersionMessageRelayTxesBeforeFilter(getVersionMessage());
+    }
+
+    /** Returns whether the chain is synced using compact block filters: defaults to false. */
+    public boolean isCompactFilterSyncEnabled() {
+        return vCompactFilterSyncEnabled;
+    }
+
+    /**
+     * <p>Syncs the chain headers first. The download peer only sends the headers, and once a batch of them connects
+     * to the chain and has valid proof of work, the blocks after the fast catchup time are requested from all the
+     * connected peers at once, each peer having a window of blocks in flight. The blocks are connected to the chain
+     * in order whichever peer served them, and a block not served within the stall timeout (see
+     * {@link #setHeadersFirstStallTimeoutMillis(int)}) is requested from another peer.</p>
+     *
+     * <p>Full blocks are downloaded in this mode rather than filtered blocks, so it is best suited when Bloom
+     * filtering is disabled. It has no effect when syncing with compact filters, which fetch the matching blocks
+     * themselves. Call before starting the chain download.</p>
+     */
+    public void setHeadersFirstSyncEnabled(boolean headersFirstSyncEnabled) {
+        this.vHeadersFirstSyncEnabled = headersFirstSyncEnabled;
+    }
+
+    /** Returns whether the chain is synced headers first: defaults to false. */
+    public boolean isHeadersFirstSyncEnabled() {
+        return vHeadersFirstSyncEnabled;
+    }
+
+    /**
+     * <p>Hands the messages received from peers connected from now on to the given pipeline, which parses and
+     * processes them on its own threads, each peer's in order, so that the network thread only reads them. A peer
+     * which sends messages faster than they are processed is read from again once it has caught up. Set to null, the
+     * default, to process messages on the network thread.</p>
+     *
+     * <p>The pipeline is not shut down when the peer group stops.</p>
+     */
+    public void setMessagePipeline(@Nullable MessagePipeline messagePipeline) {
+        this.vMessagePipeline = messagePipeline;
+    }
+
+    /** Returns the pipeline messages from newly connected peers are processed on, or null if there is none. */
+    @Nullable
+    public MessagePipeline getMessagePipeline() {
+        return vMessagePipeline;
+    }
+
+    /**
+     * Sets how long a peer has to serve a block requested during a headers first sync before the block is requested
+     * from another peer, defaults to 10 seconds.
+     */
+    public void setHeadersFirstStallTimeoutMillis(int stallTimeoutMillis) {
+        blockBodyDownloader.setStallTimeoutMillis(stallTimeoutMillis);
+    }
 }
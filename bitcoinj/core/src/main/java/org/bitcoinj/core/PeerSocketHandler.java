@@ -17,6 +17,7 @@
 package org.bitcoinj.core;
 
 import org.bitcoinj.net.AbstractTimeoutHandler;
+import org.bitcoinj.net.ByteBufferPool;
 import org.bitcoinj.net.MessageWriteTarget;
 import org.bitcoinj.net.StreamConnection;
 import org.bitcoinj.utils.Threading;
@@ -24,7 +25,8 @@ import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
@@ -32,6 +34,7 @@ import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -42,7 +45,14 @@ import static com.google.common.base.Preconditions.*;
 public abstract class PeerSocketHandler extends AbstractTimeoutHandler implements StreamConnection {
     private static final Logger log = LoggerFactory.getLogger(PeerSocketHandler.class);
 
-    private final MessageSerializer serializer;
+    // Outbound messages are serialized into direct buffers from this pool, shared by all peers, which the socket
+    // channels write from without further copies. Most messages fit the smallest buffers.
+    private static final ByteBufferPool writeBuffers = new ByteBufferPool(true, 256 * 1024, 4 * 1024 * 1024);
+    // Inbound messages too big for the read buffer, like blocks, are gathered in heap buffers from this pool, shared by
+    // all peers, and parsed straight out of them. So are all messages handed to a message pipeline.
+    private static final ByteBufferPool payloadBuffers = new ByteBufferPool(false, 4 * 1024 * 1024, 16 * 1024 * 1024);
+
+    final MessageSerializer serializer;
     protected PeerAddress peerAddress;
     // If we close() before we know our writeTarget, set this to true to call writeTarget.closeConnection() right away.
     private boolean closePending = false;
@@ -51,10 +61,19 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
     // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
-    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
-    private byte[] largeReadBuffer;
-    private int largeReadBufferPos;
-    private BitcoinSerializer.BitcoinPacketHeader header;
+    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes, taken from
+    // payloadBuffers and filled up to its position. The network thread owns it while it holds readLock.
+    @GuardedBy("readLock") private ByteBuffer largeReadBuffer;
+    @GuardedBy("readLock") private BitcoinSerializer.BitcoinPacketHeader header;
+    // Held by the network thread throughout receiveBytes. Other threads only try to take it, so that closing the
+    // connection from them never waits on message processing, which may itself wait on the closing thread. Not a
+    // cycle detecting lock for the same reason.
+    private final ReentrantLock readLock = new ReentrantLock();
+    // Set once the connection closed, after which a partly received message is given back to the pool by whichever
+    // thread holds readLock last.
+    private volatile boolean readClosed;
+    // When set, received messages are handed to a pipeline to be parsed and processed rather than on the network thread.
+    @Nullable private volatile MessagePipeline.PeerQueue messageQueue;
 
     private Lock lock = Threading.lock("PeerSocketHandler");
 
@@ -83,11 +102,9 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
+            // The write target releases the buffers to the pool once written.
+            writeTarget.writeBuffers(serializer.serialize(message, writeBuffers), writeBuffers);
         } catch (IOException e) {
             exceptionCaught(e);
         }
@@ -115,6 +132,60 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         close();
     }
 
+    /**
+     * Returns the pool of buffers which messages received by all peers are gathered in when they don't fit the read
+     * buffer, for setting how much memory it keeps with {@link ByteBufferPool#setMaxPooledBytes(long)} and for its
+     * statistics.
+     */
+    public static ByteBufferPool getPayloadBufferPool() {
+        return payloadBuffers;
+    }
+
+    /**
+     * Hands the messages received from now on to the given pipeline, to be parsed and processed on its threads, or
+     * processes them on the network thread again if null. Should be set before the connection opens.
+     */
+    public void setMessagePipeline(@Nullable MessagePipeline pipeline) {
+        messageQueue = pipeline == null ? null : pipeline.newQueue(this);
+    }
+
+    /**
+     * Drops any partly received message and those still waiting in the message pipeline, as the connection closed.
+     * May be called on any thread. If the network thread is in {@link #receiveBytes(ByteBuffer)}, it gives back the
+     * partly received message itself once it returns.
+     */
+    void discardQueuedMessages() {
+        MessagePipeline.PeerQueue queue = messageQueue;
+        if (queue != null)
+            queue.close();
+        readClosed = true;
+        // The lock is reentrant, so the network thread closing the connection from within receiveBytes would get it
+        // whilst the buffer is in use. It leaves the buffer to be given back once receiveBytes returns instead.
+        if (!readLock.isHeldByCurrentThread() && readLock.tryLock()) {
+            try {
+                releaseLargeReadBuffer();
+            } finally {
+                readLock.unlock();
+            }
+        }
+    }
+
+    @GuardedBy("readLock")
+    private void releaseLargeReadBuffer() {
+        if (largeReadBuffer != null) {
+            payloadBuffers.release(largeReadBuffer);
+            largeReadBuffer = null;
+            header = null;
+        }
+    }
+
+    // Copies as many bytes as fit from src, usually the direct read buffer, into the heap buffer dst.
+    private static void transfer(ByteBuffer src, ByteBuffer dst) {
+        int length = Math.min(src.remaining(), dst.remaining());
+        src.get(dst.array(), dst.arrayOffset() + dst.position(), length);
+        dst.position(dst.position() + length);
+    }
+
     /**
      * Called every time a message is received from the network
      */
@@ -122,8 +193,28 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
     @Override
     public int receiveBytes(ByteBuffer buff) {
+        readLock.lock();
+        try {
+            return receiveBytesLocked(buff);
+        } finally {
+            readLock.unlock();
+            // The connection may have closed on another thread whilst we held the lock, in which case the partly
+            // received message is ours to give back. That thread set readClosed before failing to take the lock.
+            if (readClosed && readLock.tryLock()) {
+                try {
+                    releaseLargeReadBuffer();
+                } finally {
+                    readLock.unlock();
+                }
+            }
+        }
+    }
+
+    @GuardedBy("readLock")
+    private int receiveBytesLocked(ByteBuffer buff) {
         checkArgument(buff.position() == 0 &&
                 buff.capacity() >= BitcoinSerializer.BitcoinPacketHeader.HEADER_LENGTH + 4);
+        MessagePipeline.PeerQueue queue = messageQueue;
         try {
             // Repeatedly try to deserialize messages until we hit a BufferUnderflowException
             boolean firstMessage = true;
@@ -133,24 +224,46 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     // This can only happen in the first iteration
                     checkState(firstMessage);
                     // Read new bytes into the largeReadBuffer
-                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
-                    buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
-                    largeReadBufferPos += bytesToGet;
+                    transfer(buff, largeReadBuffer);
                     // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
+                    if (!largeReadBuffer.hasRemaining()) {
                         // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
+                        ByteBuffer payload = largeReadBuffer;
                         largeReadBuffer = null;
+                        payload.flip();
+                        if (queue != null) {
+                            queue.add(header, payload, payloadBuffers);
+                        } else {
+                            try {
+                                processMessage(serializer.deserializePayload(header, payload));
+                            } finally {
+                                payloadBuffers.release(payload);
+                            }
+                        }
                         header = null;
                         firstMessage = false;
                     } else // ...or just returning if we don't have enough bytes yet
                         return buff.position();
                 }
                 // Now try to deserialize any messages left in buff
-                Message message;
+                Message message = null;
+                BitcoinSerializer.BitcoinPacketHeader nextHeader = null;
+                ByteBuffer payload = null;
                 int preSerializePosition = buff.position();
                 try {
-                    message = serializer.deserialize(buff);
+                    if (queue == null) {
+                        message = serializer.deserialize(buff);
+                    } else {
+                        // Only split off the message here, leaving checking and parsing it to the pipeline
+                        serializer.seekPastMagicBytes(buff);
+                        nextHeader = serializer.deserializeHeader(buff);
+                        if (buff.remaining() < nextHeader.size)
+                            throw new BufferUnderflowException();
+                        payload = payloadBuffers.acquire(nextHeader.size);
+                        payload.limit(nextHeader.size);
+                        transfer(buff, payload);
+                        payload.flip();
+                    }
                 } catch (BufferUnderflowException e) {
                     // If we went through the whole buffer without a full message, we need to use the largeReadBuffer
                     if (firstMessage && buff.limit() == buff.capacity()) {
@@ -161,9 +274,9 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                             header = serializer.deserializeHeader(buff);
                             // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
                             // left in buff
-                            largeReadBuffer = new byte[header.size];
-                            largeReadBufferPos = buff.remaining();
-                            buff.get(largeReadBuffer, 0, largeReadBufferPos);
+                            largeReadBuffer = payloadBuffers.acquire(header.size);
+                            largeReadBuffer.limit(header.size);
+                            transfer(buff, largeReadBuffer);
                         } catch (BufferUnderflowException e1) {
                             // If we went through a whole buffer's worth of bytes without getting a header, give up
                             // In cases where the buff is just really small, we could create a second largeReadBuffer
@@ -178,8 +291,11 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     }
                     return buff.position();
                 }
-                // Process our freshly deserialized message
-                processMessage(message);
+                // Process our freshly deserialized message, or queue the one split off
+                if (queue != null)
+                    queue.add(nextHeader, payload, payloadBuffers);
+                else
+                    processMessage(message);
                 firstMessage = false;
             }
         } catch (Exception e) {
@@ -222,7 +338,7 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     }
 
     /** Catch any exceptions, logging them and then closing the channel. */
-    private void exceptionCaught(Exception e) {
+    void exceptionCaught(Exception e) {
         PeerAddress addr = getAddress();
         String s = addr == null ? "?" : addr.toString();
         if (e instanceof ConnectException || e instanceof IOException) {
@@ -0,0 +1,244 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.Script.VerifyFlag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Checks the input scripts of the transactions in blocks connected by a {@link FullPrunedBlockChain}, on a pool of
+ * threads which lives as long as the chain. The inputs are handed out in batches as soon as their transaction has been
+ * connected, so that they are checked whilst the rest of the block is applied to the set of unspent outputs, and the
+ * inputs of a big transaction are spread over all the threads. Idle threads steal batches from busy ones.</p>
+ *
+ * <p>Once a block turns out to be invalid, the batches of its inputs still waiting are skipped, leaving the threads
+ * free for the next block.</p>
+ */
+public class ScriptVerificationPipeline {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerificationPipeline.class);
+
+    /** How many inputs are checked together by default. */
+    public static final int DEFAULT_INPUTS_PER_BATCH = 32;
+
+    private final ForkJoinPool pool;
+    private final int inputsPerBatch;
+
+    private final AtomicInteger queuedInputs = new AtomicInteger();
+    private final AtomicLong verifiedInputs = new AtomicLong();
+    // The time spent connecting blocks whose inputs were being checked.
+    private final AtomicLong verificationNanos = new AtomicLong();
+
+    /**
+     * @param context the context the threads run in
+     * @param threads how many inputs can be checked at the same time
+     * @param inputsPerBatch how many inputs are handed to a thread at once
+     */
+    public ScriptVerificationPipeline(final Context context, int threads, int inputsPerBatch) {
+        checkNotNull(context);
+        checkArgument(threads > 0 && inputsPerBatch > 0);
+        this.inputsPerBatch = inputsPerBatch;
+        // Batches are taken in the order they were handed out, as the earliest failure is the one reported.
+        pool = new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+                    @Override
+                    protected void onStart() {
+                        super.onStart();
+                        Context.propagate(context);
+                    }
+                };
+                thread.setName("Script verification");
+                return thread;
+            }
+        }, null, true);
+    }
+
+    /** Returns how many inputs have been handed out and are still to be checked. */
+    public int getQueuedInputs() {
+        return queuedInputs.get();
+    }
+
+    /** Returns how many inputs have been checked. */
+    public long getVerifiedInputs() {
+        return verifiedInputs.get();
+    }
+
+    /** Returns how many inputs have been checked per second of connecting the blocks they are in. */
+    public double getInputsPerSecond() {
+        long nanos = verificationNanos.get();
+        return nanos == 0 ? 0 : verifiedInputs.get() * 1e9 / nanos;
+    }
+
+    /** Stops the threads once the inputs already handed out have been checked. */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d inputs checked, %.0f inputs/sec, %d queued", getVerifiedInputs(),
+                getInputsPerSecond(), getQueuedInputs());
+    }
+
+    /** Starts checking the inputs of a block, which the caller must finish or cancel. */
+    BlockVerification begin() {
+        return new BlockVerification();
+    }
+
+    /** The inputs of one block, numbered in the order they appear in it. */
+    class BlockVerification {
+        private final long startNanos = System.nanoTime();
+        private final List<ForkJoinTask<?>> submitted = new ArrayList<>();
+        @Nullable private Batch batch;
+        private int inputs;
+        private volatile boolean cancelled;
+        // The first input which failed, after which no more inputs need to be checked.
+        private volatile int failedInput = Integer.MAX_VALUE;
+        @GuardedBy("this") @Nullable private VerificationException failure;
+
+        /**
+         * Hands out the inputs of a transaction which has been connected, whose outputs they spend have the given
+         * scripts. The transaction must not be changed any more.
+         */
+        void add(Transaction tx, List<Script> prevOutScripts, Set<VerifyFlag> verifyFlags) {
+            // Threads serialize the transaction to check its inputs. With parse retain mode, the first serialization
+            // caches the bytes, so it's done here rather than by several threads at once.
+            if (tx.serializer.isParseRetainMode())
+                tx.unsafeBitcoinSerialize();
+            int index = 0;
+            for (Script prevOutScript : prevOutScripts) {
+                if (batch == null)
+                    batch = new Batch(inputs);
+                batch.add(tx, index++, prevOutScript, verifyFlags);
+                inputs++;
+                if (batch.size() == inputsPerBatch)
+                    submit();
+            }
+        }
+
+        private void submit() {
+            queuedInputs.addAndGet(batch.size());
+            submitted.add(pool.submit(batch));
+            batch = null;
+        }
+
+        /**
+         * Waits for all the inputs to be checked, then throws the exception of the first which failed, in the order of
+         * the block.
+         */
+        void finish() throws VerificationException {
+            if (batch != null)
+                submit();
+            try {
+                for (ForkJoinTask<?> task : submitted) {
+                    try {
+                        task.get();
+                    } catch (InterruptedException e) {
+                        cancel();
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException(e); // Shouldn't happen
+                    } catch (ExecutionException e) {
+                        cancel();
+                        log.error("Script.correctlySpends threw a non-normal exception: " + e.getCause());
+                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", e);
+                    }
+                }
+            } finally {
+                verificationNanos.addAndGet(System.nanoTime() - startNanos);
+            }
+            synchronized (this) {
+                if (failure != null)
+                    throw failure;
+            }
+        }
+
+        /** Skips the inputs not yet checked, as the block is invalid for another reason. Doesn't wait. */
+        void cancel() {
+            cancelled = true;
+        }
+
+        private synchronized void fail(int input, VerificationException e) {
+            if (input < failedInput) {
+                failedInput = input;
+                failure = e;
+            }
+        }
+
+        private class Batch implements Runnable {
+            private final int firstInput;
+            private final List<Transaction> txs = new ArrayList<>(inputsPerBatch);
+            private final List<Integer> indexes = new ArrayList<>(inputsPerBatch);
+            private final List<Script> prevOutScripts = new ArrayList<>(inputsPerBatch);
+            private final List<Set<VerifyFlag>> verifyFlags = new ArrayList<>(inputsPerBatch);
+
+            Batch(int firstInput) {
+                this.firstInput = firstInput;
+            }
+
+            void add(Transaction tx, int index, Script prevOutScript, Set<VerifyFlag> flags) {
+                txs.add(tx);
+                indexes.add(index);
+                prevOutScripts.add(prevOutScript);
+                verifyFlags.add(flags);
+            }
+
+            int size() {
+                return txs.size();
+            }
+
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < txs.size(); i++) {
+                        // Inputs after one which failed don't change the outcome.
+                        if (cancelled || firstInput + i > failedInput)
+                            continue;
+                        Transaction tx = txs.get(i);
+                        int index = indexes.get(i);
+                        try {
+                            tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutScripts.get(i),
+                                    verifyFlags.get(i));
+                            verifiedInputs.incrementAndGet();
+                        } catch (VerificationException e) {
+                            fail(firstInput + i, e);
+                        }
+                    }
+                } finally {
+                    queuedInputs.addAndGet(-txs.size());
+                }
+            }
+        }
+    }
+}
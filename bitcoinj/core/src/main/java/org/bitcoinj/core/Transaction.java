@@ -36,6 +36,7 @@ import org.spongycastle.crypto.params.KeyParameter;
 
 import javax.annotation.Nullable;
 import java.io.*;
+import java.security.MessageDigest;
 import java.util.*;
 
 import static org.bitcoinj.core.Utils.*;
@@ -129,6 +130,12 @@ public class Transaction extends ChildMessage {
 
     // This is an in memory helper only.
     private Sha256Hash hash;
+    // Where the witnesses start in the payload this was parsed from, or zero if there are none. Lets the hash be taken
+    // from the payload rather than from serializing this again. In memory helper only.
+    private transient int witnessOffset;
+
+    // BIP143 hashes shared by the signature hashes of all inputs, see hashForSignatureWitness. In memory helper only.
+    @Nullable private WitnessSigHashContext witnessSigHashContext;
 
     // Data about how confirmed this tx is. Serialized, may be null.
     @Nullable private TransactionConfidence confidence;
@@ -265,6 +272,23 @@ public class Transaction extends ChildMessage {
         this.hash = hash;
     }
 
+    /**
+     * Hashes the bytes this transaction was parsed from, found in the given array at the same offset as they were
+     * parsed from, leaving out the segwit marker, flag and witnesses as {@link #getHash()} does, and caches the hash.
+     */
+    void hashParsedBytes(byte[] bytes) {
+        MessageDigest digest = Sha256Hash.newDigest();
+        if (witnessOffset == 0) {
+            digest.update(bytes, offset, length);
+        } else {
+            // The version, then the inputs and outputs between the flag and the witnesses, then the lock time.
+            digest.update(bytes, offset, 4);
+            digest.update(bytes, offset + 6, witnessOffset - offset - 6);
+            digest.update(bytes, offset + length - 4, 4);
+        }
+        hash = Sha256Hash.wrapReversed(digest.digest(digest.digest()));
+    }
+
     public String getHashAsString() {
         return getHash().toString();
     }
@@ -552,6 +576,15 @@ public class Transaction extends ChildMessage {
 
     @Override
     protected void unCache() {
+        unCacheKeepingSigHashContext();
+        witnessSigHashContext = null;
+    }
+
+    /**
+     * Invalidates the cached serialization and hash, but not the BIP143 sighash context. Used when only input scripts
+     * change, as they aren't committed to by the shared hashes.
+     */
+    void unCacheKeepingSigHashContext() {
         super.unCache();
         hash = null;
     }
@@ -597,6 +630,7 @@ public class Transaction extends ChildMessage {
         boolean witSupported = (protocolVersion >= NetworkParameters.ProtocolVersion.WITNESS_VERSION.getBitcoinProtocolVersion())
                 && (transactionOptions & TransactionOptions.WITNESS) != 0;
         cursor = offset;
+        witnessOffset = 0;
 
         version = readUint32();
         optimalEncodingMessageSize = 4;
@@ -618,6 +652,7 @@ public class Transaction extends ChildMessage {
         }
         if (((flags & 1) != 0) && witSupported) {
             flags ^= 1;
+            witnessOffset = cursor;
             readWitness();
         }
         if (flags != 0) {
@@ -1169,84 +1204,131 @@ public class Transaction extends ChildMessage {
         //
         //   https://en.bitcoin.it/wiki/Contracts
 
-        try {
-            // Create a copy of this transaction to operate upon because we need make changes to the inputs and outputs.
-            // It would not be thread-safe to change the attributes of the transaction object itself.
-            Transaction tx = this.params.getDefaultSerializer().makeTransaction(this.bitcoinSerialize());
-
-            // Clear input scripts in preparation for signing. If we're signing a fresh
-            // transaction that step isn't very helpful, but it doesn't add much cost relative to the actual
-            // EC math so we'll do it anyway.
-            for (int i = 0; i < tx.inputs.size(); i++) {
-                tx.inputs.get(i).clearScriptBytes();
-            }
+        // The simplified transaction is streamed straight into the digest rather than built as a modified copy of
+        // this one, which would mean serializing and parsing the whole transaction once per input. This also keeps
+        // the method from touching any state of the transaction object itself, so it's thread-safe.
+
+        // This step has no purpose beyond being synchronized with Bitcoin Core's bugs. OP_CODESEPARATOR
+        // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
+        // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
+        // the design we use today where scripts are executed independently but share a stack. This left the
+        // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
+        // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
+        // do it, we could split off the main chain.
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+
+        TransactionInput signedInput = inputs.get(inputIndex);
+        boolean hashNone = (sigHashType & 0x1f) == SigHash.NONE.value;
+        boolean hashSingle = (sigHashType & 0x1f) == SigHash.SINGLE.value;
+        boolean anyoneCanPay = (sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value;
+        if (hashSingle && inputIndex >= outputs.size()) {
+            // The input index is beyond the number of outputs, it's a buggy signature made by a broken
+            // Bitcoin implementation. Bitcoin Core also contains a bug in handling this case:
+            // any transaction output that is signed in this case will result in both the signed output
+            // and any future outputs to this public key being steal-able by anyone who has
+            // the resulting signature and the public key (both of which are part of the signed tx input).
+
+            // Bitcoin Core's bug is that SignatureHash was supposed to return a hash and on this codepath it
+            // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
+            return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+        }
 
-            // This step has no purpose beyond being synchronized with Bitcoin Core's bugs. OP_CODESEPARATOR
-            // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
-            // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
-            // the design we use today where scripts are executed independently but share a stack. This left the
-            // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
-            // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
-            // do it, we could split off the main chain.
-            connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
-
-            // Set the input to the script of its output. Bitcoin Core does this but the step has no obvious purpose as
-            // the signature covers the hash of the prevout transaction which obviously includes the output script
-            // already. Perhaps it felt safer to him in some way, or is another leftover from how the code was written.
-            TransactionInput input = tx.inputs.get(inputIndex);
-            input.setScriptBytes(connectedScript);
-
-            if ((sigHashType & 0x1f) == SigHash.NONE.value) {
-                // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
-                tx.outputs = new ArrayList<>(0);
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < tx.inputs.size(); i++)
-                    if (i != inputIndex)
-                        tx.inputs.get(i).setSequenceNumber(0);
-            } else if ((sigHashType & 0x1f) == SigHash.SINGLE.value) {
-                // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
-                if (inputIndex >= tx.outputs.size()) {
-                    // The input index is beyond the number of outputs, it's a buggy signature made by a broken
-                    // Bitcoin implementation. Bitcoin Core also contains a bug in handling this case:
-                    // any transaction output that is signed in this case will result in both the signed output
-                    // and any future outputs to this public key being steal-able by anyone who has
-                    // the resulting signature and the public key (both of which are part of the signed tx input).
-
-                    // Bitcoin Core's bug is that SignatureHash was supposed to return a hash and on this codepath it
-                    // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
-                    return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
-                }
-                // In SIGHASH_SINGLE the outputs after the matching input index are deleted, and the outputs before
-                // that position are "nulled out". Unintuitively, the value in a "null" transaction is set to -1.
-                tx.outputs = new ArrayList<>(tx.outputs.subList(0, inputIndex + 1));
-                for (int i = 0; i < inputIndex; i++)
-                    tx.outputs.set(i, new TransactionOutput(tx.params, tx, Coin.NEGATIVE_SATOSHI, new byte[] {}));
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < tx.inputs.size(); i++)
-                    if (i != inputIndex)
-                        tx.inputs.get(i).setSequenceNumber(0);
+        MessageDigest digest = Sha256Hash.newDigest();
+        byte[] scratch = new byte[36];
+        uint32ToByteArrayLE(version, scratch, 0);
+        digest.update(scratch, 0, 4);
+
+        // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
+        // of other inputs. For example, this is useful for building assurance contracts.
+        List<TransactionInput> signedInputs = anyoneCanPay ? Collections.singletonList(signedInput) : inputs;
+        digest.update(scratch, 0, writeVarInt(signedInputs.size(), scratch, 0));
+        for (int i = 0; i < signedInputs.size(); i++) {
+            TransactionInput input = signedInputs.get(i);
+            digest.update(scratch, 0, writeOutpoint(input.getOutpoint(), scratch, 0));
+            long sequence = input.getSequenceNumber();
+            if (anyoneCanPay || i == inputIndex) {
+                // Set the input to the script of its output. Bitcoin Core does this but the step has no obvious
+                // purpose as the signature covers the hash of the prevout transaction which obviously includes the
+                // output script already. Perhaps it felt safer to him in some way, or is another leftover from how
+                // the code was written.
+                digest.update(scratch, 0, writeVarInt(connectedScript.length, scratch, 0));
+                digest.update(connectedScript);
+            } else {
+                // All other input scripts are cleared. If we're signing a fresh transaction that step isn't very
+                // helpful, but it doesn't add much cost relative to the actual EC math so we'll do it anyway.
+                digest.update((byte) 0);
+                // With SIGHASH_NONE or SIGHASH_SINGLE the signature isn't broken by new versions of the
+                // transaction issued by other parties.
+                if (hashNone || hashSingle)
+                    sequence = 0;
             }
+            uint32ToByteArrayLE(sequence, scratch, 0);
+            digest.update(scratch, 0, 4);
+        }
 
-            if ((sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value) {
-                // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
-                // of other inputs. For example, this is useful for building assurance contracts.
-                tx.inputs = new ArrayList<TransactionInput>();
-                tx.inputs.add(input);
-            }
+        if (hashNone) {
+            // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
+            digest.update((byte) 0);
+        } else if (hashSingle) {
+            // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
+            // In SIGHASH_SINGLE the outputs after the matching input index are deleted, and the outputs before
+            // that position are "nulled out". Unintuitively, the value in a "null" transaction is set to -1.
+            digest.update(scratch, 0, writeVarInt(inputIndex + 1, scratch, 0));
+            uint64ToByteArrayLE(Coin.NEGATIVE_SATOSHI.value, scratch, 0);
+            scratch[8] = 0;
+            for (int i = 0; i < inputIndex; i++)
+                digest.update(scratch, 0, 9);
+            updateWithOutput(digest, scratch, outputs.get(inputIndex));
+        } else {
+            digest.update(scratch, 0, writeVarInt(outputs.size(), scratch, 0));
+            for (TransactionOutput output : outputs)
+                updateWithOutput(digest, scratch, output);
+        }
 
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(tx.length == UNKNOWN_LENGTH ? 256 : tx.length + 4);
-            tx.transactionOptions = TransactionOptions.NONE;
-            tx.bitcoinSerialize(bos);
-            // We also have to write a hash type (sigHashType is actually an unsigned char)
-            uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
-            // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
-            // however then we would expect that it is IS reversed.
-            Sha256Hash hash = Sha256Hash.twiceOf(bos.toByteArray());
-            bos.close();
-
-            return hash;
-        } catch (IOException e) {
-            throw new RuntimeException(e);  // Cannot happen.
+        uint32ToByteArrayLE(lockTime, scratch, 0);
+        // We also have to write a hash type (sigHashType is actually an unsigned char)
+        uint32ToByteArrayLE(0x000000ff & sigHashType, scratch, 4);
+        digest.update(scratch, 0, 8);
+        // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
+        // however then we would expect that it is IS reversed.
+        return Sha256Hash.wrap(digest.digest(digest.digest()));
+    }
+
+    private static void updateWithOutput(MessageDigest digest, byte[] scratch, TransactionOutput output) {
+        byte[] script = output.getScriptBytes();
+        uint64ToByteArrayLE(output.getValue().value, scratch, 0);
+        digest.update(scratch, 0, writeVarInt(script.length, scratch, 8));
+        digest.update(script);
+    }
+
+    /** Writes the outpoint in wire format, returning the offset just past it. */
+    private static int writeOutpoint(TransactionOutPoint outpoint, byte[] buf, int offset) {
+        byte[] hash = outpoint.getHash().getBytes();
+        for (int i = 0; i < 32; i++)
+            buf[offset + i] = hash[31 - i];
+        uint32ToByteArrayLE(outpoint.getIndex(), buf, offset + 32);
+        return offset + 36;
+    }
+
+    /** Writes the value as a {@link VarInt}, returning the offset just past it. */
+    private static int writeVarInt(long value, byte[] buf, int offset) {
+        switch (VarInt.sizeOf(value)) {
+            case 1:
+                buf[offset] = (byte) value;
+                return offset + 1;
+            case 3:
+                buf[offset] = (byte) 253;
+                buf[offset + 1] = (byte) value;
+                buf[offset + 2] = (byte) (value >> 8);
+                return offset + 3;
+            case 5:
+                buf[offset] = (byte) 254;
+                uint32ToByteArrayLE(value, buf, offset + 1);
+                return offset + 5;
+            default:
+                buf[offset] = (byte) 255;
+                uint64ToByteArrayLE(value, buf, offset + 1);
+                return offset + 9;
         }
     }
 
@@ -1274,68 +1356,117 @@ public class Transaction extends ChildMessage {
     public synchronized Sha256Hash hashForSignatureWitness(int inputIndex, byte[] connectedScript, Coin prevValue,
                                                            SigHash type, boolean anyoneCanPay) {
         byte sigHashType = (byte) TransactionSignature.calcSigHashValue(type, anyoneCanPay);
-        ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(length == UNKNOWN_LENGTH ? 256 : length + 4);
-        try {
-            byte[] hashPrevouts = new byte[32];
-            byte[] hashSequence = new byte[32];
-            byte[] hashOutputs = new byte[32];
-            anyoneCanPay = (sigHashType & SIGHASH_ANYONECANPAY_VALUE) == SIGHASH_ANYONECANPAY_VALUE;
-
-            if (!anyoneCanPay) {
-                ByteArrayOutputStream bosHashPrevouts = new UnsafeByteArrayOutputStream(256);
-                for (int i = 0; i < this.inputs.size(); ++i) {
-                    bosHashPrevouts.write(this.inputs.get(i).getOutpoint().getHash().getReversedBytes());
-                    uint32ToByteStreamLE(this.inputs.get(i).getOutpoint().getIndex(), bosHashPrevouts);
-                }
-                hashPrevouts = Sha256Hash.hashTwice(bosHashPrevouts.toByteArray());
+        anyoneCanPay = (sigHashType & SIGHASH_ANYONECANPAY_VALUE) == SIGHASH_ANYONECANPAY_VALUE;
+        WitnessSigHashContext context = witnessSigHashContext;
+        if (context == null)
+            witnessSigHashContext = context = new WitnessSigHashContext();
+
+        byte[] hashPrevouts = WitnessSigHashContext.ZERO;
+        byte[] hashSequence = WitnessSigHashContext.ZERO;
+        byte[] hashOutputs = WitnessSigHashContext.ZERO;
+        if (!anyoneCanPay)
+            hashPrevouts = context.getHashPrevouts(inputs);
+        if (!anyoneCanPay && type != SigHash.SINGLE && type != SigHash.NONE)
+            hashSequence = context.getHashSequence(inputs);
+        if (type != SigHash.SINGLE && type != SigHash.NONE)
+            hashOutputs = context.getHashOutputs(outputs);
+        else if (type == SigHash.SINGLE && inputIndex < outputs.size())
+            hashOutputs = context.hashOutputs(outputs, inputIndex, inputIndex + 1);
+
+        TransactionInput input = inputs.get(inputIndex);
+        byte[] buf = context.buffer(156 + VarInt.sizeOf(connectedScript.length) + connectedScript.length);
+        uint32ToByteArrayLE(version, buf, 0);
+        System.arraycopy(hashPrevouts, 0, buf, 4, 32);
+        System.arraycopy(hashSequence, 0, buf, 36, 32);
+        int offset = writeOutpoint(input.getOutpoint(), buf, 68);
+        offset = writeVarInt(connectedScript.length, buf, offset);
+        System.arraycopy(connectedScript, 0, buf, offset, connectedScript.length);
+        offset += connectedScript.length;
+        uint64ToByteArrayLE(prevValue.getValue(), buf, offset);
+        uint32ToByteArrayLE(input.getSequenceNumber(), buf, offset + 8);
+        System.arraycopy(hashOutputs, 0, buf, offset + 12, 32);
+        uint32ToByteArrayLE(lockTime, buf, offset + 44);
+        uint32ToByteArrayLE(0x000000ff & sigHashType, buf, offset + 48);
+        return Sha256Hash.wrap(context.hashTwice(buf, offset + 52));
+    }
+
+    /**
+     * Holds the BIP143 hashPrevouts, hashSequence and hashOutputs of a transaction, which are the same for every
+     * input, together with a scratch buffer the preimages are written into. Computing them once per transaction
+     * rather than once per input keeps signing linear in the number of inputs. The context is dropped whenever
+     * inputs or outputs change, see {@link #unCache()}.
+     */
+    private static final class WitnessSigHashContext {
+        private static final byte[] ZERO = new byte[32];
+
+        private final MessageDigest digest = Sha256Hash.newDigest();
+        private byte[] buffer = new byte[256];
+        @Nullable private byte[] hashPrevouts;
+        @Nullable private byte[] hashSequence;
+        @Nullable private byte[] hashOutputs;
+
+        byte[] getHashPrevouts(List<TransactionInput> inputs) {
+            if (hashPrevouts == null) {
+                byte[] buf = buffer(inputs.size() * 36);
+                int offset = 0;
+                for (TransactionInput input : inputs)
+                    offset = writeOutpoint(input.getOutpoint(), buf, offset);
+                hashPrevouts = hashTwice(buf, offset);
             }
+            return hashPrevouts;
+        }
 
-            if (!anyoneCanPay && type != SigHash.SINGLE && type != SigHash.NONE) {
-                ByteArrayOutputStream bosSequence = new UnsafeByteArrayOutputStream(256);
-                for (int i = 0; i < this.inputs.size(); ++i) {
-                    uint32ToByteStreamLE(this.inputs.get(i).getSequenceNumber(), bosSequence);
+        byte[] getHashSequence(List<TransactionInput> inputs) {
+            if (hashSequence == null) {
+                byte[] buf = buffer(inputs.size() * 4);
+                int offset = 0;
+                for (TransactionInput input : inputs) {
+                    uint32ToByteArrayLE(input.getSequenceNumber(), buf, offset);
+                    offset += 4;
                 }
-                hashSequence = Sha256Hash.hashTwice(bosSequence.toByteArray());
+                hashSequence = hashTwice(buf, offset);
             }
+            return hashSequence;
+        }
 
-            if (type != SigHash.SINGLE && type != SigHash.NONE) {
-                ByteArrayOutputStream bosHashOutputs = new UnsafeByteArrayOutputStream(256);
-                for (int i = 0; i < this.outputs.size(); ++i) {
-                    uint64ToByteStreamLE(
-                            BigInteger.valueOf(this.outputs.get(i).getValue().getValue()),
-                            bosHashOutputs
-                    );
-                    bosHashOutputs.write(new VarInt(this.outputs.get(i).getScriptBytes().length).encode());
-                    bosHashOutputs.write(this.outputs.get(i).getScriptBytes());
-                }
-                hashOutputs = Sha256Hash.hashTwice(bosHashOutputs.toByteArray());
-            } else if (type == SigHash.SINGLE && inputIndex < outputs.size()) {
-                ByteArrayOutputStream bosHashOutputs = new UnsafeByteArrayOutputStream(256);
-                uint64ToByteStreamLE(
-                        BigInteger.valueOf(this.outputs.get(inputIndex).getValue().getValue()),
-                        bosHashOutputs
-                );
-                bosHashOutputs.write(new VarInt(this.outputs.get(inputIndex).getScriptBytes().length).encode());
-                bosHashOutputs.write(this.outputs.get(inputIndex).getScriptBytes());
-                hashOutputs = Sha256Hash.hashTwice(bosHashOutputs.toByteArray());
+        byte[] getHashOutputs(List<TransactionOutput> outputs) {
+            if (hashOutputs == null)
+                hashOutputs = hashOutputs(outputs, 0, outputs.size());
+            return hashOutputs;
+        }
+
+        byte[] hashOutputs(List<TransactionOutput> outputs, int from, int to) {
+            int size = 0;
+            for (int i = from; i < to; i++) {
+                int scriptLength = outputs.get(i).getScriptBytes().length;
+                size += 8 + VarInt.sizeOf(scriptLength) + scriptLength;
+            }
+            byte[] buf = buffer(size);
+            int offset = 0;
+            for (int i = from; i < to; i++) {
+                TransactionOutput output = outputs.get(i);
+                byte[] script = output.getScriptBytes();
+                uint64ToByteArrayLE(output.getValue().getValue(), buf, offset);
+                offset = writeVarInt(script.length, buf, offset + 8);
+                System.arraycopy(script, 0, buf, offset, script.length);
+                offset += script.length;
             }
-            uint32ToByteStreamLE(version, bos);
-            bos.write(hashPrevouts);
-            bos.write(hashSequence);
-            bos.write(inputs.get(inputIndex).getOutpoint().getHash().getReversedBytes());
-            uint32ToByteStreamLE(inputs.get(inputIndex).getOutpoint().getIndex(), bos);
-            bos.write(new VarInt(connectedScript.length).encode());
-            bos.write(connectedScript);
-            uint64ToByteStreamLE(BigInteger.valueOf(prevValue.getValue()), bos);
-            uint32ToByteStreamLE(inputs.get(inputIndex).getSequenceNumber(), bos);
-            bos.write(hashOutputs);
-            uint32ToByteStreamLE(this.lockTime, bos);
-            uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
-        } catch (IOException e) {
-            throw new RuntimeException(e);  // Cannot happen.
+            return hashTwice(buf, offset);
         }
 
-        return Sha256Hash.twiceOf(bos.toByteArray());
+        /** Returns the scratch buffer, grown to hold at least the given number of bytes. */
+        byte[] buffer(int size) {
+            if (buffer.length < size)
+                buffer = new byte[Math.max(size, buffer.length * 2)];
+            return buffer;
+        }
+
+        byte[] hashTwice(byte[] buf, int length) {
+            digest.update(buf, 0, length);
+            byte[] first = digest.digest();
+            digest.update(first);
+            return digest.digest();
+        }
     }
 
     @Override
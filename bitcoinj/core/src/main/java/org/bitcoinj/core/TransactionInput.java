@@ -239,7 +239,15 @@ public class TransactionInput extends ChildMessage {
      * @param scriptBytes the scriptBytes to set
      */
     void setScriptBytes(byte[] scriptBytes) {
-        unCache();
+        // Signers set the scriptSig of one input after another. The BIP143 sighash context of the parent doesn't cover
+        // scriptSigs, so keep it around rather than recomputing it for every input.
+        if (parent != null) {
+            payload = null;
+            recached = false;
+            getParentTransaction().unCacheKeepingSigHashContext();
+        } else {
+            unCache();
+        }
         this.scriptSig = null;
         int oldLength = length;
         this.scriptBytes = scriptBytes;
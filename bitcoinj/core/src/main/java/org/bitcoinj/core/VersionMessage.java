@@ -51,6 +51,8 @@ public class VersionMessage extends Message {
     public static final int NODE_GETUTXOS = 1 << 1;
     /** Indicates that a node can be asked for blocks and transactions including witness data. */
     public static final int NODE_WITNESS = 1 << 3;
+    /** Indicates that a node serves BIP 157 compact block filters. */
+    public static final int NODE_COMPACT_FILTERS = 1 << 6;
 
     /**
      * The version number of the protocol spoken.
@@ -296,4 +298,9 @@ public class VersionMessage extends Message {
     public boolean isWitnessSupported() {
         return (localServices & NODE_WITNESS) == NODE_WITNESS;
     }
+
+    /** Returns true if the service bits indicate that compact block filters can be requested from this peer. */
+    public boolean isCompactFilteringSupported() {
+        return (localServices & NODE_COMPACT_FILTERS) == NODE_COMPACT_FILTERS;
+    }
 }
@@ -21,6 +21,7 @@ import org.bitcoinj.core.*;
 import org.slf4j.*;
 
 import javax.annotation.*;
+import javax.annotation.concurrent.*;
 import javax.net.*;
 import java.io.*;
 import java.net.*;
@@ -45,6 +46,8 @@ public class BlockingClient implements MessageWriteTarget {
     private Socket socket;
     private volatile boolean vCloseRequested = false;
     private SettableFuture<SocketAddress> connectFuture;
+    private final Object readPauseLock = new Object();
+    @GuardedBy("readPauseLock") private boolean readPaused = false;
 
     /**
      * <p>Creates a new client to the given server address using the given {@link StreamConnection} to decode the data.
@@ -78,7 +81,7 @@ public class BlockingClient implements MessageWriteTarget {
                     connection.connectionOpened();
                     connectFuture.set(serverAddress);
                     InputStream stream = socket.getInputStream();
-                    runReadLoop(stream, connection);
+                    runReadLoop(stream, connection, BlockingClient.this);
                 } catch (Exception e) {
                     if (!vCloseRequested) {
                         log.error("Error trying to open/read from connection: {}: {}", serverAddress, e.getMessage());
@@ -106,11 +109,17 @@ public class BlockingClient implements MessageWriteTarget {
      * and feeds them to the provided {@link StreamConnection}, for example, a {@link Peer}.
      */
     public static void runReadLoop(InputStream stream, StreamConnection connection) throws Exception {
+        runReadLoop(stream, connection, null);
+    }
+
+    private static void runReadLoop(InputStream stream, StreamConnection connection, @Nullable BlockingClient client) throws Exception {
         ByteBuffer dbuf = ByteBuffer.allocateDirect(Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
         byte[] readBuff = new byte[dbuf.capacity()];
         while (true) {
             // TODO Kill the message duplication here
             checkState(dbuf.remaining() > 0 && dbuf.remaining() <= readBuff.length);
+            if (client != null)
+                client.awaitReadResumed();
             int read = stream.read(readBuff, 0, Math.max(1, Math.min(dbuf.remaining(), stream.available())));
             if (read == -1)
                 return;
@@ -136,6 +145,9 @@ public class BlockingClient implements MessageWriteTarget {
         // Closes the channel, triggering an exception in the network-handling thread triggering connectionClosed()
         try {
             vCloseRequested = true;
+            synchronized (readPauseLock) {
+                readPauseLock.notifyAll();
+            }
             socket.close();
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -155,6 +167,55 @@ public class BlockingClient implements MessageWriteTarget {
         }
     }
 
+    @Override
+    public synchronized void writeBuffers(ByteBuffer[] buffers, @Nullable ByteBufferPool pool) throws IOException {
+        try {
+            OutputStream stream = socket.getOutputStream();
+            byte[] chunk = null;
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasArray()) {
+                    stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                } else {
+                    // Direct buffers have to be copied out, a chunk at a time.
+                    if (chunk == null)
+                        chunk = new byte[Math.min(Math.max(buffer.remaining(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND)];
+                    ByteBuffer view = buffer.duplicate();
+                    while (view.hasRemaining()) {
+                        int count = Math.min(view.remaining(), chunk.length);
+                        view.get(chunk, 0, count);
+                        stream.write(chunk, 0, count);
+                    }
+                }
+            }
+            stream.flush();
+        } catch (IOException e) {
+            log.error("Error writing message to connection, closing connection", e);
+            closeConnection();
+            throw e;
+        } finally {
+            if (pool != null) {
+                for (ByteBuffer buffer : buffers)
+                    pool.release(buffer);
+            }
+        }
+    }
+
+    @Override
+    public void setReadPaused(boolean paused) {
+        synchronized (readPauseLock) {
+            readPaused = paused;
+            readPauseLock.notifyAll();
+        }
+    }
+
+    // Blocks the read loop for as long as reading is paused, unless the connection is being closed.
+    private void awaitReadResumed() throws InterruptedException {
+        synchronized (readPauseLock) {
+            while (readPaused && !vCloseRequested)
+                readPauseLock.wait();
+        }
+    }
+
     /** Returns a future that completes once connection has occurred at the socket level or with an exception if failed to connect. */
     public ListenableFuture<SocketAddress> getConnectFuture() {
         return connectFuture;
@@ -0,0 +1,161 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A pool of {@link ByteBuffer}s in power of two size classes, which can be shared by many connections so that
+ * messages go through buffers used again and again, rather than through arrays allocated for each message.</p>
+ *
+ * <p>Released buffers are kept up to a total capacity, beyond which, like buffers bigger than the largest size class,
+ * they are left to the garbage collector. A buffer must not be used after it is released, nor released twice.</p>
+ *
+ * <p>The pool counts how often a buffer could be handed out again rather than allocated, and how many bytes of its
+ * buffers are in use, for tuning its sizes.</p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public class ByteBufferPool {
+    /** The capacity of the smallest buffers handed out. */
+    public static final int MIN_BUFFER_SIZE = 512;
+    private static final int MIN_SIZE_CLASS = Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+
+    private final boolean direct;
+    private final int maxBufferSize;
+    private volatile long maxPooledBytes;
+    private final List<Queue<ByteBuffer>> sizeClasses;
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    // Bytes of size classed buffers handed out and not yet released.
+    private final AtomicLong bytesInUse = new AtomicLong();
+    private final AtomicLong peakBytesInUse = new AtomicLong();
+
+    /**
+     * @param direct whether to allocate direct buffers, which channels can write from and read into without copying
+     * @param maxBufferSize the capacity of the largest buffers kept, rounded up to a power of two
+     * @param maxPooledBytes how many bytes of released buffers to keep at most
+     */
+    public ByteBufferPool(boolean direct, int maxBufferSize, long maxPooledBytes) {
+        checkArgument(maxBufferSize >= MIN_BUFFER_SIZE && maxBufferSize <= 1 << 30);
+        checkArgument(maxPooledBytes >= 0);
+        this.direct = direct;
+        this.maxBufferSize = roundUp(maxBufferSize);
+        this.maxPooledBytes = maxPooledBytes;
+        int count = sizeClass(this.maxBufferSize) + 1;
+        sizeClasses = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            sizeClasses.add(new ConcurrentLinkedQueue<ByteBuffer>());
+    }
+
+    /** Returns a cleared buffer with a capacity of at least the given size. */
+    public ByteBuffer acquire(int size) {
+        checkArgument(size >= 0);
+        if (size > maxBufferSize) {
+            misses.incrementAndGet();
+            return allocate(size);
+        }
+        int capacity = roundUp(Math.max(size, MIN_BUFFER_SIZE));
+        long inUse = bytesInUse.addAndGet(capacity);
+        long peak;
+        while (inUse > (peak = peakBytesInUse.get()) && !peakBytesInUse.compareAndSet(peak, inUse));
+        ByteBuffer buffer = sizeClasses.get(sizeClass(capacity)).poll();
+        if (buffer == null) {
+            misses.incrementAndGet();
+            return allocate(capacity);
+        }
+        hits.incrementAndGet();
+        pooledBytes.addAndGet(-capacity);
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Gives back a buffer from {@link #acquire(int)}, to be handed out again. */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (buffer.isDirect() != direct || capacity > maxBufferSize || capacity < MIN_BUFFER_SIZE ||
+                Integer.bitCount(capacity) != 1)
+            return;
+        bytesInUse.addAndGet(-capacity);
+        if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+            pooledBytes.addAndGet(-capacity);
+            return;
+        }
+        sizeClasses.get(sizeClass(capacity)).offer(buffer);
+    }
+
+    /** Returns how many bytes of released buffers are kept for reuse. */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * Sets how many bytes of released buffers to keep at most. Lowering it doesn't drop the buffers already kept, but
+     * they are left to the garbage collector as they are released again.
+     */
+    public void setMaxPooledBytes(long maxPooledBytes) {
+        checkArgument(maxPooledBytes >= 0);
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /** Returns how many bytes of released buffers are kept at most. */
+    public long getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    /** Returns the share of buffers handed out that were used before, rather than allocated. */
+    public double getHitRate() {
+        long hits = this.hits.get(), total = hits + misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /** Returns how many bytes of the buffers handed out, not counting those bigger than the largest size class, are in use. */
+    public long getBytesInUse() {
+        return bytesInUse.get();
+    }
+
+    /** Returns the most bytes of buffers which have been in use at once, as counted by {@link #getBytesInUse()}. */
+    public long getPeakBytesInUse() {
+        return peakBytesInUse.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.1f%% hit rate, %d bytes in use (peak %d), %d of %d bytes pooled", getHitRate() * 100,
+                getBytesInUse(), getPeakBytesInUse(), getPooledBytes(), getMaxPooledBytes());
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static int roundUp(int size) {
+        return Integer.bitCount(size) == 1 ? size : Integer.highestOneBit(size) << 1;
+    }
+
+    private static int sizeClass(int capacity) {
+        return Integer.numberOfTrailingZeros(capacity) - MIN_SIZE_CLASS;
+    }
+}
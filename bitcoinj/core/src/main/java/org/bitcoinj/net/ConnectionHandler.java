@@ -28,9 +28,8 @@ import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Arrays;
+import java.util.ArrayDeque;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -50,6 +49,8 @@ class ConnectionHandler implements MessageWriteTarget {
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
+    // How many queued buffers are handed to the channel in one gathering write.
+    private static final int MAX_GATHERED_BUFFERS = 64;
 
     // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
     // class into non-Java classes.
@@ -61,7 +62,22 @@ class ConnectionHandler implements MessageWriteTarget {
     @GuardedBy("lock") private boolean closeCalled = false;
 
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
-    @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<>();
+    @GuardedBy("lock") private final ArrayDeque<QueuedBuffer> bytesToWrite = new ArrayDeque<>();
+
+    private static class QueuedBuffer {
+        final ByteBuffer buffer;
+        @Nullable final ByteBufferPool pool;
+
+        QueuedBuffer(ByteBuffer buffer, @Nullable ByteBufferPool pool) {
+            this.buffer = buffer;
+            this.pool = pool;
+        }
+
+        void release() {
+            if (pool != null)
+                pool.release(buffer);
+        }
+    }
 
     private Set<ConnectionHandler> connectedHandlers;
 
@@ -112,14 +128,18 @@ class ConnectionHandler implements MessageWriteTarget {
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
+            // Push as much of the outbound ByteBuff queue as possible into the OS' network buffer, gathering several
+            // buffers into each write, and give back the buffers which were written in full.
+            while (!bytesToWrite.isEmpty()) {
+                ByteBuffer[] buffs = new ByteBuffer[Math.min(bytesToWrite.size(), MAX_GATHERED_BUFFERS)];
+                Iterator<QueuedBuffer> bytesIterator = bytesToWrite.iterator();
+                for (int i = 0; i < buffs.length; i++)
+                    buffs[i] = bytesIterator.next().buffer;
+                bytesToWriteRemaining -= channel.write(buffs);
+                while (!bytesToWrite.isEmpty() && !bytesToWrite.peek().buffer.hasRemaining())
+                    bytesToWrite.poll().release();
+                // The buffers are written in order, so if the last one isn't done the OS' buffer is full.
+                if (buffs[buffs.length - 1].hasRemaining()) {
                     setWriteOps();
                     break;
                 }
@@ -135,6 +155,11 @@ class ConnectionHandler implements MessageWriteTarget {
 
     @Override
     public void writeBytes(byte[] message) throws IOException {
+        writeBuffers(new ByteBuffer[] { ByteBuffer.wrap(message) }, null);
+    }
+
+    @Override
+    public void writeBuffers(ByteBuffer[] buffers, @Nullable ByteBufferPool pool) throws IOException {
         boolean andUnlock = true;
         lock.lock();
         try {
@@ -143,12 +168,18 @@ class ConnectionHandler implements MessageWriteTarget {
             // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
             // register our SelectionKey to wakeup when we have free outbound buffer space available.
 
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
+            long length = 0;
+            for (ByteBuffer buffer : buffers)
+                length += buffer.remaining();
+            if (bytesToWriteRemaining + length > OUTBOUND_BUFFER_BYTE_COUNT) {
+                release(buffers, pool);
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
+            }
+            // Just queue the buffers as they are and call tryWriteBytes. If the connection closes before they are
+            // written they are released in connectionClosed().
+            for (ByteBuffer buffer : buffers)
+                bytesToWrite.offer(new QueuedBuffer(buffer, pool));
+            bytesToWriteRemaining += length;
             setWriteOps();
         } catch (IOException e) {
             lock.unlock();
@@ -168,6 +199,33 @@ class ConnectionHandler implements MessageWriteTarget {
         }
     }
 
+    // Called by the message pipeline with the peer's queue locked, so the connection must not call into the queue
+    // with lock held.
+    @Override
+    public void setReadPaused(boolean paused) {
+        lock.lock();
+        try {
+            if (paused) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                // Refresh the selector to make sure it gets the new interestOps
+                key.selector().wakeup();
+            }
+        } catch (CancelledKeyException e) {
+            // The connection is closing, so there is nothing left to read.
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void release(ByteBuffer[] buffers, @Nullable ByteBufferPool pool) {
+        if (pool == null)
+            return;
+        for (ByteBuffer buffer : buffers)
+            pool.release(buffer);
+    }
+
     // May NOT be called with lock held
     @Override
     public void closeConnection() {
@@ -186,6 +244,10 @@ class ConnectionHandler implements MessageWriteTarget {
         try {
             callClosed = !closeCalled;
             closeCalled = true;
+            for (QueuedBuffer queued : bytesToWrite)
+                queued.release();
+            bytesToWrite.clear();
+            bytesToWriteRemaining = 0;
         } finally {
             lock.unlock();
         }
@@ -18,10 +18,12 @@ package org.bitcoinj.net;
 
 import com.google.common.collect.Lists;
 import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.FilterAddMessage;
 import org.bitcoinj.core.PeerFilterProvider;
 import com.google.common.collect.ImmutableList;
 
 import java.util.LinkedList;
+import java.util.List;
 
 // This code is unit tested by the PeerGroup tests.
 
@@ -43,6 +45,8 @@ public class FilterMerger {
 
     private volatile double vBloomFilterFPRate;
     private int lastBloomFilterElementCount;
+    // The number of elements actually in lastFilter, including ones inserted after it was calculated
+    private int lastFilterElements;
     private BloomFilter lastFilter;
 
     public FilterMerger(double bloomFilterFPRate) {
@@ -91,6 +95,7 @@ public class FilterMerger {
 
                 result.changed = !filter.equals(lastFilter);
                 result.filter = lastFilter = filter;
+                lastFilterElements = elements;
             }
             // Now adjust the earliest key time backwards by a week to handle the case of clock drift. This can occur
             // both in block header timestamps and if the users clock was out of sync when the key was first created
@@ -104,6 +109,27 @@ public class FilterMerger {
         }
     }
 
+    /**
+     * Inserts elements into the last calculated filter, as long as it keeps within the element count it was sized for
+     * and its false positive rate stays within the configured rate. Otherwise nothing is inserted and false is
+     * returned, and a new filter should be calculated instead.
+     */
+    public boolean insert(List<byte[]> elements) {
+        if (lastFilter == null || lastFilter.matchesAll())
+            return false;
+        int total = lastFilterElements + elements.size();
+        if (total > lastBloomFilterElementCount || lastFilter.getFalsePositiveRate(total) > vBloomFilterFPRate)
+            return false;
+        for (byte[] element : elements) {
+            if (element.length > FilterAddMessage.MAX_DATA_SIZE)
+                return false;
+        }
+        for (byte[] element : elements)
+            lastFilter.insert(element);
+        lastFilterElements = total;
+        return true;
+    }
+
     public void setBloomFilterFPRate(double bloomFilterFPRate) {
         this.vBloomFilterFPRate = bloomFilterFPRate;
     }
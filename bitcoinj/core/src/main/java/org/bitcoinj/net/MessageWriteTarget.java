@@ -16,16 +16,29 @@
 
 package org.bitcoinj.net;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A target to which messages can be written/connection can be closed
  */
 public interface MessageWriteTarget {
     /**
-     * Writes the given bytes to the remote server.
+     * Writes the given bytes to the remote server. The array may be queued as it is, so must not be changed after.
      */
     void writeBytes(byte[] message) throws IOException;
+    /**
+     * Writes the given buffers, each from its position to its limit, to the remote server. The buffers may be queued
+     * as they are, and are released to the given pool, if any, once written or when writing them fails.
+     */
+    void writeBuffers(ByteBuffer[] buffers, @Nullable ByteBufferPool pool) throws IOException;
+    /**
+     * Stops or resumes reading from the remote server, so that a connection whose messages can't be processed as fast
+     * as they arrive holds them back rather than buffering them without limit. Bytes already read may still be
+     * delivered after reading is paused.
+     */
+    void setReadPaused(boolean paused);
     /**
      * Closes the connection to the server, triggering the {@link StreamConnection#connectionClosed()}
      * event on the network-handling thread where all callbacks occur.
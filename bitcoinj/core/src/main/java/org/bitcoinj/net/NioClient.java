@@ -21,6 +21,8 @@ import com.google.common.base.*;
 import com.google.common.util.concurrent.*;
 import org.slf4j.*;
 
+import javax.annotation.*;
+
 import java.io.*;
 import java.net.*;
 import java.nio.*;
@@ -123,4 +125,14 @@ public class NioClient implements MessageWriteTarget {
     public synchronized void writeBytes(byte[] message) throws IOException {
         handler.writeTarget.writeBytes(message);
     }
+
+    @Override
+    public synchronized void writeBuffers(ByteBuffer[] buffers, @Nullable ByteBufferPool pool) throws IOException {
+        handler.writeTarget.writeBuffers(buffers, pool);
+    }
+
+    @Override
+    public synchronized void setReadPaused(boolean paused) {
+        handler.writeTarget.setReadPaused(paused);
+    }
 }
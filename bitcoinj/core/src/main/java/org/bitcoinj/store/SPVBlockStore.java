@@ -37,6 +37,10 @@ import static com.google.common.base.Preconditions.*;
  * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
  * but as they are virtually unheard of this is not a significant risk.
+ *
+ * <p>Lookups that miss the in-memory caches are answered from an open-addressed hash index kept in a sibling file
+ * (see {@link #getIndexFile(File)}), so they cost a probe or two regardless of capacity. The index is derived data:
+ * if it is missing, stale or was not closed cleanly it is rebuilt from the ring buffer when the store is opened.</p>
  */
 public class SPVBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
@@ -44,6 +48,9 @@ public class SPVBlockStore implements BlockStore {
     /** The default number of headers that will be stored in the ring buffer. */
     public static final int DEFAULT_CAPACITY = 5000;
     public static final String HEADER_MAGIC = "SPVB";
+    public static final String INDEX_HEADER_MAGIC = "SPVI";
+    /** Suffix appended to the chain file name to form the name of the index file. */
+    public static final String INDEX_FILE_SUFFIX = ".idx";
 
     protected volatile MappedByteBuffer buffer;
     protected final int capacity;
@@ -81,6 +88,13 @@ public class SPVBlockStore implements BlockStore {
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
 
+    // The hash index: a linear probing table of record numbers (plus one, so zero means empty) keyed by the last
+    // four bytes of the block hash. The table is always at least twice the capacity so probe chains stay short.
+    protected volatile MappedByteBuffer indexBuffer;
+    protected RandomAccessFile indexRandomAccessFile = null;
+    protected final int indexSlots;
+    private final byte[] probeScratch = new byte[32];
+
     /**
      * Creates and initializes an SPV block store that can hold {@link #DEFAULT_CAPACITY} blocks. Will create the given
      * file if it's missing. This operation will block on disk.
@@ -103,6 +117,7 @@ public class SPVBlockStore implements BlockStore {
         this.params = checkNotNull(params);
         checkArgument(capacity > 0);
         this.capacity = capacity;
+        this.indexSlots = getIndexSlots(capacity);
         try {
             boolean exists = file.exists();
             // Set up the backing file.
@@ -111,6 +126,13 @@ public class SPVBlockStore implements BlockStore {
             if (!exists) {
                 log.info("Creating new SPV block chain file " + file);
                 randomAccessFile.setLength(fileSize);
+            } else if (randomAccessFile.length() < fileSize &&
+                    (randomAccessFile.length() - FILE_PROLOGUE_BYTES) % RECORD_SIZE == 0) {
+                // Growing the ring is safe: the new records are zeroed, and the write cursor will simply overwrite
+                // the oldest headers first before moving on into the new space.
+                log.info("Growing SPV block chain file " + file + " from " + randomAccessFile.length() + " to " +
+                        fileSize + " bytes");
+                randomAccessFile.setLength(fileSize);
             } else if (randomAccessFile.length() != fileSize) {
                 throw new BlockStoreException("File size on disk does not match expected size: " +
                         randomAccessFile.length() + " vs " + fileSize);
@@ -135,11 +157,15 @@ public class SPVBlockStore implements BlockStore {
                 buffer.get(header);
                 if (!new String(header, Charsets.US_ASCII).equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                openIndex(getIndexFile(file));
             } else {
+                buffer.put(HEADER_MAGIC.getBytes(Charsets.US_ASCII));
+                openIndex(getIndexFile(file));
                 initNewStore(params);
             }
         } catch (Exception e) {
             try {
+                if (indexRandomAccessFile != null) indexRandomAccessFile.close();
                 if (randomAccessFile != null) randomAccessFile.close();
             } catch (IOException e2) {
                 throw new BlockStoreException(e2);
@@ -148,10 +174,162 @@ public class SPVBlockStore implements BlockStore {
         }
     }
 
+    /** Returns the file the hash index for the given chain file is kept in. */
+    public static File getIndexFile(File file) {
+        return new File(file.getPath() + INDEX_FILE_SUFFIX);
+    }
+
+    private void openIndex(File indexFile) throws IOException {
+        // The ring carries a random tag which the index must echo. It changes whenever the chain file is recreated,
+        // which stops us from trusting an index left behind by a previous, deleted chain file.
+        long tag = buffer.getLong(STORE_TAG_OFFSET);
+        if (tag == 0) {
+            tag = new Random().nextLong() | 1;
+            buffer.putLong(STORE_TAG_OFFSET, tag);
+        }
+
+        boolean exists = indexFile.exists();
+        indexRandomAccessFile = new RandomAccessFile(indexFile, "rw");
+        long indexFileSize = getIndexFileSize(capacity);
+        boolean valid = exists && indexRandomAccessFile.length() == indexFileSize;
+        if (!valid)
+            indexRandomAccessFile.setLength(indexFileSize);
+        indexBuffer = indexRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexFileSize);
+
+        byte[] header = new byte[4];
+        indexBuffer.get(header);
+        valid = valid && new String(header, Charsets.US_ASCII).equals(INDEX_HEADER_MAGIC)
+                && indexBuffer.getInt(INDEX_CAPACITY_OFFSET) == capacity
+                && indexBuffer.getLong(INDEX_TAG_OFFSET) == tag
+                && indexBuffer.getInt(INDEX_STATE_OFFSET) == INDEX_STATE_CLEAN;
+        if (!valid) {
+            log.info("Rebuilding SPV block chain index " + indexFile);
+            indexBuffer.position(0);
+            indexBuffer.put(INDEX_HEADER_MAGIC.getBytes(Charsets.US_ASCII));
+            indexBuffer.putInt(INDEX_CAPACITY_OFFSET, capacity);
+            indexBuffer.putLong(INDEX_TAG_OFFSET, tag);
+            lock.lock();
+            try {
+                rebuildIndex();
+            } finally {
+                lock.unlock();
+            }
+        }
+        // Until close() marks it clean again, a crash leaves the index flagged for a rebuild on the next open.
+        indexBuffer.putInt(INDEX_STATE_OFFSET, INDEX_STATE_DIRTY);
+        indexBuffer.force();
+    }
+
+    private void rebuildIndex() {
+        checkState(lock.isHeldByCurrentThread());
+        for (int slot = 0; slot < indexSlots; slot++)
+            indexBuffer.putInt(INDEX_PROLOGUE_BYTES + slot * 4, 0);
+        // Walk the ring from the oldest record to the newest, so that if a header was stored more than once the
+        // index ends up pointing at its most recent copy.
+        final int fileSize = getFileSize(capacity);
+        int cursor = buffer.getInt(4);
+        if (cursor < FILE_PROLOGUE_BYTES || cursor > fileSize)
+            return;  // Brand new store, the cursor hasn't been set yet.
+        for (int i = 0; i < capacity; i++) {
+            if (cursor == fileSize)
+                cursor = FILE_PROLOGUE_BYTES;
+            if (!isEmptyRecord(cursor))
+                indexInsert(cursor);
+            cursor += RECORD_SIZE;
+        }
+    }
+
+    private boolean isEmptyRecord(int offset) {
+        buffer.position(offset);
+        buffer.get(probeScratch);
+        for (byte b : probeScratch)
+            if (b != 0)
+                return false;
+        return true;
+    }
+
+    private int firstSlot(int hashCode) {
+        // Block hashes are uniformly distributed in their last bytes already, which is what hashCode() uses.
+        return hashCode & (indexSlots - 1);
+    }
+
+    private int getSlot(int slot) {
+        return indexBuffer.getInt(INDEX_PROLOGUE_BYTES + slot * 4);
+    }
+
+    private void setSlot(int slot, int value) {
+        indexBuffer.putInt(INDEX_PROLOGUE_BYTES + slot * 4, value);
+    }
+
+    private static int recordOffset(int slotValue) {
+        return FILE_PROLOGUE_BYTES + (slotValue - 1) * RECORD_SIZE;
+    }
+
+    private static int slotValue(int recordOffset) {
+        return (recordOffset - FILE_PROLOGUE_BYTES) / RECORD_SIZE + 1;
+    }
+
+    private boolean recordMatches(int offset, byte[] hashBytes) {
+        buffer.position(offset);
+        buffer.get(probeScratch);
+        return Arrays.equals(probeScratch, hashBytes);
+    }
+
+    /** Returns the slot holding the given hash, or -1 if it isn't in the index. */
+    private int indexFind(byte[] hashBytes, int hashCode) {
+        final int mask = indexSlots - 1;
+        for (int slot = firstSlot(hashCode); ; slot = (slot + 1) & mask) {
+            int value = getSlot(slot);
+            if (value == 0)
+                return -1;
+            if (recordMatches(recordOffset(value), hashBytes))
+                return slot;
+        }
+    }
+
+    /** Points the index entry for the hash stored at the given record offset to that record. */
+    private void indexInsert(int offset) {
+        final byte[] hashBytes = new byte[32];
+        buffer.position(offset);
+        buffer.get(hashBytes);
+        final int mask = indexSlots - 1;
+        int slot = firstSlot(buffer.getInt(offset + 28));
+        while (true) {
+            int value = getSlot(slot);
+            if (value == 0 || recordMatches(recordOffset(value), hashBytes))
+                break;
+            slot = (slot + 1) & mask;
+        }
+        setSlot(slot, slotValue(offset));
+    }
+
+    /** Removes the index entry for the record at the given offset, if the index still points at that record. */
+    private void indexRemove(int offset) {
+        final byte[] hashBytes = new byte[32];
+        buffer.position(offset);
+        buffer.get(hashBytes);
+        int slot = indexFind(hashBytes, buffer.getInt(offset + 28));
+        if (slot == -1 || getSlot(slot) != slotValue(offset))
+            return;  // A newer copy of the same header owns the entry.
+        // Backward shift deletion: pull later members of the probe chain into the hole so no tombstones are needed.
+        final int mask = indexSlots - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; ; next = (next + 1) & mask) {
+            int value = getSlot(next);
+            if (value == 0)
+                break;
+            int home = firstSlot(buffer.getInt(recordOffset(value) + 28));
+            // Move the entry if its home slot is not cyclically within (hole, next].
+            boolean movable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (movable) {
+                setSlot(hole, value);
+                hole = next;
+            }
+        }
+        setSlot(hole, 0);
+    }
+
     private void initNewStore(NetworkParameters params) throws Exception {
-        byte[] header;
-        header = HEADER_MAGIC.getBytes("US-ASCII");
-        buffer.put(header);
         // Insert the genesis block.
         lock.lock();
         try {
@@ -170,6 +348,16 @@ public class SPVBlockStore implements BlockStore {
         return RECORD_SIZE * capacity + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
     }
 
+    /** Returns the size in bytes of the index file that is used alongside a chain file of the given capacity. */
+    public static final int getIndexFileSize(int capacity) {
+        return getIndexSlots(capacity) * 4 + INDEX_PROLOGUE_BYTES;
+    }
+
+    private static int getIndexSlots(int capacity) {
+        // Keep the load factor at or below one half.
+        return Integer.highestOneBit(capacity) << 2;
+    }
+
     @Override
     public void put(StoredBlock block) throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
@@ -182,12 +370,16 @@ public class SPVBlockStore implements BlockStore {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
+            // Forget about whatever header we are about to overwrite.
+            if (!isEmptyRecord(cursor))
+                indexRemove(cursor);
             buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
             notFoundCache.remove(hash);
             buffer.put(hash.getBytes());
             block.serializeCompact(buffer);
             setRingCursor(buffer, buffer.position());
+            indexInsert(cursor);
             blockCache.put(hash, block);
         } finally { lock.unlock(); }
     }
@@ -206,32 +398,15 @@ public class SPVBlockStore implements BlockStore {
             if (notFoundCache.get(hash) != null)
                 return null;
 
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize(capacity);
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, NOT_FOUND_MARKER);
-            return null;
+            int slot = indexFind(hash.getBytes(), hash.hashCode());
+            if (slot == -1) {
+                notFoundCache.put(hash, NOT_FOUND_MARKER);
+                return null;
+            }
+            // indexFind() leaves the buffer positioned just after the matching hash.
+            StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
+            blockCache.put(hash, storedBlock);
+            return storedBlock;
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
         } finally { lock.unlock(); }
@@ -278,11 +453,17 @@ public class SPVBlockStore implements BlockStore {
     public void close() throws BlockStoreException {
         try {
             buffer.force();
+            // Only mark the index clean once the ring it describes has reached the disk.
+            indexBuffer.putInt(INDEX_STATE_OFFSET, INDEX_STATE_CLEAN);
+            indexBuffer.force();
             if (System.getProperty("os.name").toLowerCase().contains("win")) {
                 log.info("Windows mmap hack: Forcing buffer cleaning");
                 WindowsMMapHack.forceRelease(buffer);
+                WindowsMMapHack.forceRelease(indexBuffer);
             }
             buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
+            indexBuffer = null;
+            indexRandomAccessFile.close();
             randomAccessFile.close();
         } catch (IOException e) {
             throw new BlockStoreException(e);
@@ -300,6 +481,7 @@ public class SPVBlockStore implements BlockStore {
     //   4 header bytes = "SPVB"
     //   4 cursor bytes, which indicate the offset from the first kb where the next block header should be written.
     //   32 bytes for the hash of the chain head
+    //    8 bytes random tag identifying this file to its index (zero in files written by older versions)
     //
     // For each header (128 bytes)
     //   32 bytes hash of the header
@@ -307,6 +489,22 @@ public class SPVBlockStore implements BlockStore {
     //    4 bytes of height
     //   80 bytes of block header data
     protected static final int FILE_PROLOGUE_BYTES = 1024;
+    private static final int STORE_TAG_OFFSET = 40;
+
+    // Index file format:
+    //   4 header bytes = "SPVI"
+    //   4 bytes capacity of the ring the index was built for
+    //   8 bytes copy of the ring's tag
+    //   4 bytes state, clean if the index was flushed after the ring on close
+    //  12 bytes reserved
+    //
+    // Followed by a power of two number of 4 byte slots, each zero or one plus the number of a ring record.
+    protected static final int INDEX_PROLOGUE_BYTES = 32;
+    private static final int INDEX_CAPACITY_OFFSET = 4;
+    private static final int INDEX_TAG_OFFSET = 8;
+    private static final int INDEX_STATE_OFFSET = 16;
+    private static final int INDEX_STATE_DIRTY = 0;
+    private static final int INDEX_STATE_CLEAN = 1;
 
     /** Returns the offset from the file start where the latest block should be written (end of prev block). */
     private int getRingCursor(ByteBuffer buffer) {
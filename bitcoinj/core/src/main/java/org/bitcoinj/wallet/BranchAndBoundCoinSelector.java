@@ -0,0 +1,224 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A {@link CoinSelector} which first looks for a combination of outputs adding up to the target closely enough
+ * that no change is needed, by a branch and bound search like the one of Bitcoin Core. If there is none, it picks the
+ * smallest single output covering the target, or failing that the largest outputs until the target is covered.</p>
+ *
+ * <p>When this is the coin selector of a {@link Wallet}, or of a {@link SendRequest}, the wallet selects straight from
+ * its unspent outputs kept ordered by value, rather than listing and sorting all of them first. Completing a payment
+ * from a wallet with many outputs then only looks at the few outputs around the target value.</p>
+ *
+ * <p>Like {@link DefaultCoinSelector} only outputs of confirmed transactions, or of pending transactions created by the
+ * wallet and seen on the network, are selected.</p>
+ */
+public class BranchAndBoundCoinSelector implements CoinSelector {
+    /** How many combinations the search tries before giving up. */
+    static final int MAX_TRIES = 100000;
+    /** How many of the largest outputs not above the target the search considers. */
+    static final int MAX_SEARCH_OUTPUTS = 1000;
+
+    private final Coin costOfChange;
+
+    /** Creates a selector which accepts paying up to {@link Transaction#MIN_NONDUST_OUTPUT} to avoid change. */
+    public BranchAndBoundCoinSelector() {
+        this(Transaction.MIN_NONDUST_OUTPUT);
+    }
+
+    /**
+     * Creates a selector which accepts an excess of up to the given value, which then goes to change or fees, for a
+     * combination of outputs found by the search.
+     */
+    public BranchAndBoundCoinSelector(Coin costOfChange) {
+        checkArgument(costOfChange.signum() >= 0);
+        this.costOfChange = costOfChange;
+    }
+
+    @Override
+    public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+        TreeSet<TransactionOutput> byValue = new TreeSet<>(SpendableOutputIndex.VALUE_ORDER);
+        byValue.addAll(candidates);
+        return select(target, byValue, Predicates.<TransactionOutput>alwaysTrue());
+    }
+
+    /** Sub-classes can override this to customize whether transactions are usable. */
+    protected boolean shouldSelect(Transaction tx) {
+        return tx == null || DefaultCoinSelector.isSelectable(tx);
+    }
+
+    /**
+     * Selects from the given outputs in ascending order of value, skipping those the predicate rejects. Only the
+     * outputs needed are looked at, unless the target can't be reached.
+     */
+    CoinSelection select(Coin target, NavigableSet<TransactionOutput> byValue, Predicate<TransactionOutput> eligible) {
+        List<TransactionOutput> selected = new ArrayList<>();
+        if (byValue.isEmpty())
+            return new CoinSelection(Coin.ZERO, selected);
+        if (target.compareTo(NetworkParameters.MAX_MONEY) >= 0) {
+            // Asked for everything, eg to compute a balance.
+            long total = 0;
+            for (TransactionOutput output : byValue) {
+                if (isEligible(output, eligible)) {
+                    selected.add(output);
+                    total += output.getValue().value;
+                }
+            }
+            return new CoinSelection(Coin.valueOf(total), selected);
+        }
+
+        long upper = target.value + costOfChange.value;
+        List<TransactionOutput> found = search(target.value, upper, byValue, eligible);
+        if (found != null)
+            return selection(found);
+
+        // The smallest single output covering the target.
+        for (TransactionOutput output : notBelow(byValue, target.value)) {
+            if (isEligible(output, eligible)) {
+                selected.add(output);
+                return selection(selected);
+            }
+        }
+        // The largest outputs below the target until it is covered, or all of them if it can't be.
+        long total = 0;
+        for (TransactionOutput output : below(byValue, target.value).descendingSet()) {
+            if (total >= target.value)
+                break;
+            if (isEligible(output, eligible)) {
+                selected.add(output);
+                total += output.getValue().value;
+            }
+        }
+        return new CoinSelection(Coin.valueOf(total), selected);
+    }
+
+    // Looks for outputs adding up to between target and upper, the closest to target, or returns null.
+    private List<TransactionOutput> search(long target, long upper, NavigableSet<TransactionOutput> byValue,
+                                           Predicate<TransactionOutput> eligible) {
+        List<TransactionOutput> outputs = new ArrayList<>();
+        for (TransactionOutput output : below(byValue, upper + 1).descendingSet()) {
+            if (outputs.size() == MAX_SEARCH_OUTPUTS)
+                break;
+            if (isEligible(output, eligible))
+                outputs.add(output);
+        }
+        int n = outputs.size();
+        long[] values = new long[n];
+        // remaining[i] is the sum of values[i] and all the values after it.
+        long[] remaining = new long[n + 1];
+        for (int i = n - 1; i >= 0; i--) {
+            values[i] = outputs.get(i).getValue().value;
+            remaining[i] = remaining[i + 1] + values[i];
+        }
+        if (remaining[0] < target)
+            return null;
+
+        // Depth first over include/exclude decisions, largest values first, including before excluding.
+        boolean[] included = new boolean[n];
+        boolean[] best = null;
+        long bestExcess = Long.MAX_VALUE;
+        long total = 0;
+        int i = 0;
+        for (int tries = 0; tries < MAX_TRIES; tries++) {
+            boolean backtrack;
+            if (total + remaining[i] < target || total > upper) {
+                backtrack = true;
+            } else if (total >= target) {
+                if (total - target < bestExcess) {
+                    bestExcess = total - target;
+                    best = included.clone();
+                    if (bestExcess == 0)
+                        break;
+                }
+                backtrack = true;
+            } else {
+                // Not there yet, and remaining[i] >= target - total > 0 so i < n.
+                backtrack = false;
+            }
+            if (backtrack) {
+                // Exclude the last included output and carry on from the one after it.
+                i--;
+                while (i >= 0 && !included[i])
+                    i--;
+                if (i < 0)
+                    break;
+                included[i] = false;
+                total -= values[i];
+                i++;
+            } else {
+                included[i] = true;
+                total += values[i];
+                i++;
+            }
+        }
+        if (best == null)
+            return null;
+        List<TransactionOutput> result = new ArrayList<>();
+        for (int j = 0; j < n; j++) {
+            if (best[j])
+                result.add(outputs.get(j));
+        }
+        return result;
+    }
+
+    private boolean isEligible(TransactionOutput output, Predicate<TransactionOutput> eligible) {
+        return shouldSelect(output.getParentTransaction()) && eligible.apply(output);
+    }
+
+    private static CoinSelection selection(List<TransactionOutput> outputs) {
+        long total = 0;
+        for (TransactionOutput output : outputs)
+            total += output.getValue().value;
+        return new CoinSelection(Coin.valueOf(total), outputs);
+    }
+
+    // The outputs worth less than the given value.
+    private static NavigableSet<TransactionOutput> below(NavigableSet<TransactionOutput> byValue, long value) {
+        if (value > byValue.last().getValue().value)
+            return byValue;
+        return byValue.headSet(probe(byValue, value), false);
+    }
+
+    // The outputs worth at least the given value.
+    private static NavigableSet<TransactionOutput> notBelow(NavigableSet<TransactionOutput> byValue, long value) {
+        if (value > byValue.last().getValue().value)
+            return new TreeSet<>(SpendableOutputIndex.VALUE_ORDER);
+        return byValue.tailSet(probe(byValue, value), true);
+    }
+
+    // An output without a parent, ordered before all the outputs of the same value. Its value is at most that of an
+    // existing output, so within the limits of the network.
+    private static TransactionOutput probe(NavigableSet<TransactionOutput> byValue, long value) {
+        NetworkParameters params = byValue.first().getParams();
+        return new TransactionOutput(params, null, Coin.valueOf(value), new byte[0]);
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.TransactionOutput;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * <p>The unspent outputs of a wallet, which is what {@link Wallet#myUnspents} holds, additionally ordered by value as
+ * they are added and removed. This lets {@link BranchAndBoundCoinSelector} find the outputs it needs without listing
+ * and sorting all of them on every payment.</p>
+ *
+ * <p>The balances of the wallet are kept as running totals, so {@link Wallet#getBalance(Wallet.BalanceType)} doesn't
+ * need to go through all the outputs. Outputs of transactions not yet settled in the chain, that is pending ones and
+ * immature coinbases, can become available or stop being so as their confidence changes, so these few are looked at
+ * again whenever an available balance is asked for. Outputs the wallet can't sign for, normally only those of
+ * watched scripts, are likewise checked again for a spendable balance, as keys may have been added since. Everything
+ * else only changes as outputs are added and removed, except when keys are removed or transactions are disconnected
+ * from the chain, after which {@link #invalidate()} has the totals worked out again.</p>
+ *
+ * <p>Guarded by the wallet lock, like the rest of the wallet state.</p>
+ */
+class SpendableOutputIndex extends HashSet<TransactionOutput> {
+    /** Orders outputs by value, ties broken by outpoint. Outputs without a parent come first among their value. */
+    static final Comparator<TransactionOutput> VALUE_ORDER = new Comparator<TransactionOutput>() {
+        @Override
+        public int compare(TransactionOutput a, TransactionOutput b) {
+            int c = Long.compare(a.getValue().value, b.getValue().value);
+            if (c != 0 || a == b)
+                return c;
+            Sha256Hash aHash = a.getParentTransactionHash(), bHash = b.getParentTransactionHash();
+            if (aHash == null || bHash == null)
+                return aHash == bHash ? 0 : aHash == null ? -1 : 1;
+            c = aHash.compareTo(bHash);
+            if (c != 0)
+                return c;
+            c = Integer.compare(indexOf(a), indexOf(b));
+            if (c != 0)
+                return c;
+            // Outputs not actually part of their parent.
+            return Integer.compare(System.identityHashCode(a), System.identityHashCode(b));
+        }
+
+        private int indexOf(TransactionOutput output) {
+            List<TransactionOutput> outputs = output.getParentTransaction().getOutputs();
+            for (int i = 0; i < outputs.size(); i++) {
+                if (outputs.get(i) == output)
+                    return i;
+            }
+            return -1;
+        }
+    };
+
+    private final Wallet wallet;
+    private final TreeSet<TransactionOutput> byValue = new TreeSet<>(VALUE_ORDER);
+    private final Set<TransactionOutput> unsignable = new HashSet<>();
+    // The outputs of unsettled transactions, with whether they were available when last looked at.
+    private final Map<TransactionOutput, Boolean> unsettled = new HashMap<>();
+    private long estimated, estimatedSpendable, available, availableSpendable;
+    private boolean stale;
+
+    SpendableOutputIndex(Wallet wallet) {
+        this.wallet = wallet;
+    }
+
+    @Override
+    public boolean add(TransactionOutput output) {
+        if (!super.add(output))
+            return false;
+        byValue.add(output);
+        if (!stale)
+            track(output);
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!super.remove(o))
+            return false;
+        byValue.remove(o);
+        if (!stale)
+            untrack((TransactionOutput) o);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        byValue.clear();
+        unsignable.clear();
+        unsettled.clear();
+        estimated = estimatedSpendable = available = availableSpendable = 0;
+        stale = false;
+    }
+
+    @Override
+    public Iterator<TransactionOutput> iterator() {
+        final Iterator<TransactionOutput> iter = super.iterator();
+        return new Iterator<TransactionOutput>() {
+            private TransactionOutput last;
+
+            @Override
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+
+            @Override
+            public TransactionOutput next() {
+                return last = iter.next();
+            }
+
+            @Override
+            public void remove() {
+                iter.remove();
+                byValue.remove(last);
+                if (!stale)
+                    untrack(last);
+            }
+        };
+    }
+
+    /** The outputs in ascending order of value. Must not be modified. */
+    NavigableSet<TransactionOutput> byValue() {
+        return byValue;
+    }
+
+    /**
+     * Works the balances out again from all the outputs when next needed, after changes which can't be followed as
+     * they happen: keys being removed, or transactions being disconnected from the chain.
+     */
+    void invalidate() {
+        stale = true;
+    }
+
+    /** Whether the wallet can sign for the given output, see {@link Wallet#canSignFor(org.bitcoinj.script.Script)}. */
+    boolean isSignable(TransactionOutput output) {
+        if (!contains(output))
+            return wallet.canSignFor(output.getScriptPubKey());
+        if (stale)
+            rebuild();
+        if (!unsignable.contains(output))
+            return true;
+        if (!wallet.canSignFor(output.getScriptPubKey()))
+            return false;
+        markSignable(output);
+        return true;
+    }
+
+    /** The balance of the given type, as if selected by {@link DefaultCoinSelector} from all the outputs. */
+    Coin getBalance(Wallet.BalanceType balanceType) {
+        if (stale)
+            rebuild();
+        switch (balanceType) {
+            case ESTIMATED:
+                return Coin.valueOf(estimated);
+            case ESTIMATED_SPENDABLE:
+                recheckUnsignable();
+                return Coin.valueOf(estimatedSpendable);
+            case AVAILABLE:
+                recheckUnsettled();
+                return Coin.valueOf(available);
+            case AVAILABLE_SPENDABLE:
+                recheckUnsettled();
+                recheckUnsignable();
+                return Coin.valueOf(availableSpendable);
+            default:
+                throw new AssertionError("Unknown balance type");  // Unreachable.
+        }
+    }
+
+    private void track(TransactionOutput output) {
+        boolean signable = wallet.canSignFor(output.getScriptPubKey());
+        if (!signable)
+            unsignable.add(output);
+        Transaction tx = output.getParentTransaction();
+        boolean available = isAvailable(tx);
+        if (!isSettled(tx))
+            unsettled.put(output, available);
+        count(output.getValue().value, signable, available);
+    }
+
+    private void untrack(TransactionOutput output) {
+        boolean signable = !unsignable.remove(output);
+        Boolean available = unsettled.remove(output);
+        count(-output.getValue().value, signable, available == null || available);
+    }
+
+    private void count(long value, boolean signable, boolean available) {
+        estimated += value;
+        if (signable)
+            estimatedSpendable += value;
+        if (available)
+            this.available += value;
+        if (available && signable)
+            availableSpendable += value;
+    }
+
+    private void rebuild() {
+        unsignable.clear();
+        unsettled.clear();
+        estimated = estimatedSpendable = available = availableSpendable = 0;
+        stale = false;
+        for (TransactionOutput output : byValue)
+            track(output);
+    }
+
+    private void recheckUnsettled() {
+        Iterator<Map.Entry<TransactionOutput, Boolean>> iter = unsettled.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<TransactionOutput, Boolean> entry = iter.next();
+            TransactionOutput output = entry.getKey();
+            Transaction tx = output.getParentTransaction();
+            boolean available = isAvailable(tx);
+            if (available != entry.getValue()) {
+                long value = available ? output.getValue().value : -output.getValue().value;
+                this.available += value;
+                if (!unsignable.contains(output))
+                    availableSpendable += value;
+                entry.setValue(available);
+            }
+            if (isSettled(tx))
+                iter.remove();
+        }
+    }
+
+    private void recheckUnsignable() {
+        if (unsignable.isEmpty())
+            return;
+        for (TransactionOutput output : new ArrayList<>(unsignable)) {
+            if (wallet.canSignFor(output.getScriptPubKey()))
+                markSignable(output);
+        }
+    }
+
+    private void markSignable(TransactionOutput output) {
+        unsignable.remove(output);
+        long value = output.getValue().value;
+        estimatedSpendable += value;
+        Boolean available = unsettled.get(output);
+        if (available == null || available)
+            availableSpendable += value;
+    }
+
+    // Whether the default coin selector would select outputs of the transaction for the available balance.
+    private static boolean isAvailable(Transaction tx) {
+        return DefaultCoinSelector.isSelectable(tx) && tx.isMature();
+    }
+
+    // Whether the outputs of the transaction are available, and will stay so until a reorganisation.
+    private static boolean isSettled(Transaction tx) {
+        return tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING && tx.isMature();
+    }
+}
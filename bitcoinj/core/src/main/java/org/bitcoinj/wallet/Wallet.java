@@ -160,8 +160,10 @@ public class Wallet extends BaseTaggableObject
     protected final Map<Sha256Hash, Transaction> transactions;
 
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
-    // Used to speed up various calculations.
-    protected final HashSet<TransactionOutput> myUnspents = Sets.newHashSet();
+    // Used to speed up various calculations. Also kept ordered by value, for the BranchAndBoundCoinSelector, and
+    // summed up into the balances.
+    private final SpendableOutputIndex spendableOutputs = new SpendableOutputIndex(this);
+    protected final HashSet<TransactionOutput> myUnspents = spendableOutputs;
 
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
@@ -225,6 +227,10 @@ public class Wallet extends BaseTaggableObject
     private boolean insideReorg;
     private Map<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanged;
     protected volatile WalletFiles vFileManager;
+    // The transactions changed since the wallet journal last took them, tracked only whilst a WalletJournal is in use,
+    // and whether anything else it saves may have changed.
+    @Nullable private Set<Sha256Hash> journalChangedTxs;
+    private final AtomicBoolean journalStateChanged = new AtomicBoolean();
     // Object that is used to send transactions asynchronously when the wallet requires it.
     protected volatile TransactionBroadcaster vTransactionBroadcaster;
     // UNIX time in seconds. Money controlled by keys created before this time will be automatically respent to a key
@@ -249,6 +255,9 @@ public class Wallet extends BaseTaggableObject
     // If this is set then the wallet selects spendable candidate outputs from a UTXO provider.
     @Nullable private volatile UTXOProvider vUTXOProvider;
 
+    // If this is set then every balance kept by spendableOutputs is checked against one calculated from all outputs.
+    @GuardedBy("lock") private boolean checkBalances;
+
     /**
      * Creates a new, empty wallet with a randomly chosen seed and no transactions. Make sure to provide for sufficient
      * backup! Any keys will be derived from the seed. If you want to restore a wallet from disk instead, see
@@ -348,6 +357,7 @@ public class Wallet extends BaseTaggableObject
                     try {
                         checkBalanceFuturesLocked(null);
                         Transaction tx = getTransaction(confidence.getTransactionHash());
+                        markChangedForJournal(tx);
                         queueOnTransactionConfidenceChanged(tx);
                         maybeQueueOnWalletChanged();
                     } finally {
@@ -605,11 +615,14 @@ public class Wallet extends BaseTaggableObject
      * @return Whether the key was removed or not.
      */
     public boolean removeKey(ECKey key) {
+        lock.lock();
         keyChainGroupLock.lock();
         try {
+            spendableOutputs.invalidate();
             return keyChainGroup.removeImportedKey(key);
         } finally {
             keyChainGroupLock.unlock();
+            lock.unlock();
         }
     }
 
@@ -1062,6 +1075,7 @@ public class Wallet extends BaseTaggableObject
      * See {@link org.bitcoinj.wallet.DeterministicKeyChain#markKeyAsUsed(DeterministicKey)} for more info on this.
      */
     private void markKeysAsUsed(Transaction tx) {
+        journalStateChanged.set(true);
         keyChainGroupLock.lock();
         try {
             for (TransactionOutput o : tx.getOutputs()) {
@@ -1460,6 +1474,8 @@ public class Wallet extends BaseTaggableObject
 
     /** If auto saving is enabled, do an immediate sync write to disk ignoring any delays. */
     protected void saveNow() {
+        // Saving right away is what the methods changing keys, scripts, extensions and so on do.
+        journalStateChanged.set(true);
         WalletFiles files = vFileManager;
         if (files != null) {
             try {
@@ -1474,6 +1490,37 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    private void markChangedForJournal(Transaction tx) {
+        if (journalChangedTxs != null)
+            journalChangedTxs.add(tx.getHash());
+    }
+
+    /**
+     * Starts keeping track of the transactions changed from now on for {@link WalletJournal}, forgetting those changed
+     * so far, or stops if false. Called with the wallet lock held.
+     */
+    void trackChangesForJournal(boolean enabled) {
+        checkState(lock.isHeldByCurrentThread());
+        journalChangedTxs = enabled ? new HashSet<Sha256Hash>() : null;
+        journalStateChanged.set(false);
+    }
+
+    /**
+     * Returns the hashes of the transactions changed or removed since the last call, or since tracking started. Called
+     * with the wallet lock held.
+     */
+    Set<Sha256Hash> takeChangedTransactionsForJournal() {
+        checkState(lock.isHeldByCurrentThread());
+        Set<Sha256Hash> changed = checkNotNull(journalChangedTxs);
+        journalChangedTxs = new HashSet<>();
+        return changed;
+    }
+
+    /** Returns whether anything saved besides the transactions and the last seen block may have changed since the last call. */
+    boolean takeStateChangedForJournal() {
+        return journalStateChanged.getAndSet(false);
+    }
+
     /**
      * Uses protobuf serialization to save the wallet to the given file stream. To learn more about this file format, see
      * {@link WalletProtobufSerializer}.
@@ -1499,23 +1546,18 @@ public class Wallet extends BaseTaggableObject
 
     /**
      * <p>Returns a wallet deserialized from the given file. Extensions previously saved with the wallet can be
-     * deserialized by calling @{@link WalletExtension#deserializeWalletExtension(Wallet, byte[])}}</p>
+     * deserialized by calling @{@link WalletExtension#deserializeWalletExtension(Wallet, byte[])}}. Changes journaled
+     * next to the file by {@link WalletFiles#setJournalEnabled(boolean)} are replayed.</p>
      *
      * @param file the wallet file to read
      * @param walletExtensions extensions possibly added to the wallet.
      */
     public static Wallet loadFromFile(File file, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
-        try {
-            FileInputStream stream = null;
-            try {
-                stream = new FileInputStream(file);
-                return loadFromFileStream(stream, walletExtensions);
-            } finally {
-                if (stream != null) stream.close();
-            }
-        } catch (IOException e) {
-            throw new UnreadableWalletException("Could not open file", e);
+        Wallet wallet = new WalletProtobufSerializer().readWallet(file, false, walletExtensions);
+        if (!wallet.isConsistent()) {
+            log.error("Loaded an inconsistent wallet");
         }
+        return wallet;
     }
 
     /**
@@ -1924,6 +1966,7 @@ public class Wallet extends BaseTaggableObject
             if (tmp != null)
                 tx = tmp;
         }
+        markChangedForJournal(tx);
 
         boolean wasPending = pending.remove(txHash) != null;
         if (wasPending)
@@ -2012,7 +2055,7 @@ public class Wallet extends BaseTaggableObject
         //    own spends. If users want to know when a broadcast tx becomes confirmed, they need to use tx confidence
         //    listeners.
         if (!insideReorg && bestChain) {
-            Coin newBalance = getBalance();  // This is slow.
+            Coin newBalance = getBalance();
             log.info("Balance is now: " + newBalance.toFriendlyString());
             if (!wasPending) {
                 int diff = valueDifference.signum();
@@ -2086,6 +2129,9 @@ public class Wallet extends BaseTaggableObject
             return;
         for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : confidenceChanged.entrySet()) {
             final Transaction tx = entry.getKey();
+            // Depth isn't journaled, see WalletJournal.
+            if (entry.getValue() != TransactionConfidence.Listener.ChangeReason.DEPTH)
+                markChangedForJournal(tx);
             tx.getConfidence().queueListeners(entry.getValue());
             queueOnTransactionConfidenceChanged(tx);
         }
@@ -2131,8 +2177,11 @@ public class Wallet extends BaseTaggableObject
                         // included once again. We could have a separate was-in-chain-and-now-isn't confidence type
                         // but this way is backwards compatible with existing software, and the new state probably
                         // wouldn't mean anything different to just remembering peers anyway.
-                        if (confidence.incrementDepthInBlocks() > context.getEventHorizon())
+                        if (confidence.incrementDepthInBlocks() > context.getEventHorizon()) {
+                            if (confidence.numBroadcastPeers() > 0 || confidence.getLastBroadcastedAt() != null)
+                                markChangedForJournal(tx);
                             confidence.clearBroadcastBy();
+                        }
                         confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
                     }
                 }
@@ -2375,6 +2424,8 @@ public class Wallet extends BaseTaggableObject
      */
     private void maybeMovePool(Transaction tx, String context) {
         checkState(lock.isHeldByCurrentThread());
+        // Called whenever outputs of tx were spent or unspent, whether or not it moves.
+        markChangedForJournal(tx);
         if (tx.isEveryOwnedOutputSpent(this)) {
             // There's nothing left I can spend in this transaction.
             if (unspent.remove(tx.getHash()) != null) {
@@ -2867,6 +2918,7 @@ public class Wallet extends BaseTaggableObject
      */
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
+        markChangedForJournal(tx);
         transactions.put(tx.getHash(), tx);
         switch (pool) {
         case UNSPENT:
@@ -3007,6 +3059,8 @@ public class Wallet extends BaseTaggableObject
     }
 
     private void clearTransactions() {
+        if (journalChangedTxs != null)
+            journalChangedTxs.addAll(transactions.keySet());
         unspent.clear();
         spent.clear();
         pending.clear();
@@ -3064,6 +3118,7 @@ public class Wallet extends BaseTaggableObject
                             if (output == null) continue;
                             if (output.isMineOrWatched(this))
                                 checkState(myUnspents.add(output));
+                            markChangedForJournal(output.getParentTransaction());
                             input.disconnect();
                         }
                         for (TransactionOutput output : tx.getOutputs())
@@ -3071,6 +3126,7 @@ public class Wallet extends BaseTaggableObject
 
                         i.remove();
                         transactions.remove(tx.getHash());
+                        markChangedForJournal(tx);
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getHashAsString());
                     } else {
@@ -3493,23 +3549,55 @@ public class Wallet extends BaseTaggableObject
     }
 
     /**
-     * Returns the balance of this wallet as calculated by the provided balanceType.
+     * Returns the balance of this wallet as calculated by the provided balanceType. The balances are kept up to date
+     * as outputs are received and spent, so this is cheap, unless there is a {@link UTXOProvider} or, for the available
+     * balances, a coin selector other than {@link DefaultCoinSelector} or {@link BranchAndBoundCoinSelector}.
      */
     public Coin getBalance(BalanceType balanceType) {
         lock.lock();
         try {
-            if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
-                List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
-                CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
-                return selection.valueGathered;
-            } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
-                List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
-                Coin value = Coin.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
-            } else {
-                throw new AssertionError("Unknown balance type");  // Unreachable.
+            // The running totals are of the wallet's own outputs, as the default coin selector would select them.
+            boolean available = balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE;
+            if (vUTXOProvider != null || available && coinSelector.getClass() != DefaultCoinSelector.class &&
+                    coinSelector.getClass() != BranchAndBoundCoinSelector.class)
+                return calculateBalance(balanceType);
+            Coin balance = spendableOutputs.getBalance(balanceType);
+            if (checkBalances) {
+                Coin calculated = calculateBalance(balanceType);
+                checkState(balance.equals(calculated), "%s balance is %s, but was kept as %s", balanceType,
+                        calculated.toFriendlyString(), balance.toFriendlyString());
             }
+            return balance;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Works the balance out from all the candidate outputs, without the running totals.
+    private Coin calculateBalance(BalanceType balanceType) {
+        if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
+            List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
+            CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
+            return selection.valueGathered;
+        } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
+            List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
+            Coin value = Coin.ZERO;
+            for (TransactionOutput out : all) value = value.add(out.getValue());
+            return value;
+        } else {
+            throw new AssertionError("Unknown balance type");  // Unreachable.
+        }
+    }
+
+    /**
+     * Makes {@link #getBalance(BalanceType)} check each balance kept as outputs come and go against one calculated
+     * from all of them, throwing an {@link IllegalStateException} if they differ. This is slow, and meant for tests.
+     */
+    @VisibleForTesting
+    public void setCheckBalances(boolean checkBalances) {
+        lock.lock();
+        try {
+            this.checkBalances = checkBalances;
         } finally {
             lock.unlock();
         }
@@ -3584,7 +3672,7 @@ public class Wallet extends BaseTaggableObject
         final ListIterator<BalanceFutureRequest> it = balanceFutureRequests.listIterator();
         while (it.hasNext()) {
             final BalanceFutureRequest req = it.next();
-            Coin val = getBalance(req.type);   // This could be slow for lots of futures.
+            Coin val = getBalance(req.type);
             if (val.compareTo(req.value) < 0) continue;
             // Found one that's finished.
             it.remove();
@@ -3959,14 +4047,19 @@ public class Wallet extends BaseTaggableObject
             // Calculate a list of ALL potential candidates for spending and then ask a coin selector to provide us
             // with the actual outputs that'll be used to gather the required amount of value. In this way, users
             // can customize coin selection policies. The call below will ignore immature coinbases and outputs
-            // we don't have the keys for.
-            List<TransactionOutput> candidates = calculateAllSpendCandidates(true, req.missingSigsMode == MissingSigsMode.THROW);
+            // we don't have the keys for. The BranchAndBoundCoinSelector selects from the index of our outputs
+            // instead, without listing them.
+            boolean excludeUnsignable = req.missingSigsMode == MissingSigsMode.THROW;
+            boolean indexed = !req.emptyWallet && vUTXOProvider == null
+                    && (req.coinSelector == null ? coinSelector : req.coinSelector) instanceof BranchAndBoundCoinSelector;
+            List<TransactionOutput> candidates = indexed ? null : calculateAllSpendCandidates(true, excludeUnsignable);
 
             CoinSelection bestCoinSelection;
             TransactionOutput bestChangeOutput = null;
             if (!req.emptyWallet) {
                 // This can throw InsufficientMoneyException.
-                FeeCalculation feeCalculation = calculateFee(req, value, originalInputs, req.ensureMinRequiredFee, candidates);
+                FeeCalculation feeCalculation = calculateFee(req, value, originalInputs, req.ensureMinRequiredFee,
+                        candidates, excludeUnsignable);
                 bestCoinSelection = feeCalculation.bestCoinSelection;
                 bestChangeOutput = feeCalculation.bestChangeOutput;
             } else {
@@ -4122,7 +4215,7 @@ public class Wallet extends BaseTaggableObject
             if (vUTXOProvider == null) {
                 candidates = new ArrayList<>(myUnspents.size());
                 for (TransactionOutput output : myUnspents) {
-                    if (excludeUnsignable && !canSignFor(output.getScriptPubKey())) continue;
+                    if (excludeUnsignable && !spendableOutputs.isSignable(output)) continue;
                     Transaction transaction = checkNotNull(output.getParentTransaction());
                     if (excludeImmatureCoinbases && !transaction.isMature())
                         continue;
@@ -4408,6 +4501,10 @@ public class Wallet extends BaseTaggableObject
             insideReorg = true;
             checkState(onWalletChangedSuppressions == 0);
             onWalletChangedSuppressions++;
+            // Confidence changes aren't relayed during the re-org, and it can touch any transaction, so all of them are
+            // journaled again. Re-orgs are rare.
+            if (journalChangedTxs != null)
+                journalChangedTxs.addAll(transactions.keySet());
 
             // Map block hash to transactions that appear in it. We ensure that the map values are sorted according
             // to their relative position within those blocks.
@@ -4496,6 +4593,8 @@ public class Wallet extends BaseTaggableObject
             subtractDepth(depthToSubtract, spent.values());
             subtractDepth(depthToSubtract, unspent.values());
             subtractDepth(depthToSubtract, dead.values());
+            // Outputs confirmed in the old chain may be pending or immature coinbases again.
+            spendableOutputs.invalidate();
 
             // The effective last seen block is now the split point so set the lastSeenBlockHash.
             setLastBlockSeenHash(splitPoint.getHeader().getHash());
@@ -4815,6 +4914,13 @@ public class Wallet extends BaseTaggableObject
 
     public FeeCalculation calculateFee(SendRequest req, Coin value, List<TransactionInput> originalInputs,
                                        boolean needAtLeastReferenceFee, List<TransactionOutput> candidates) throws InsufficientMoneyException {
+        return calculateFee(req, value, originalInputs, needAtLeastReferenceFee, checkNotNull(candidates), true);
+    }
+
+    // Without candidates, selects from the index of our outputs with the BranchAndBoundCoinSelector.
+    private FeeCalculation calculateFee(SendRequest req, Coin value, List<TransactionInput> originalInputs,
+                                        boolean needAtLeastReferenceFee, @Nullable List<TransactionOutput> candidates,
+                                        final boolean excludeUnsignable) throws InsufficientMoneyException {
         checkState(lock.isHeldByCurrentThread());
         // There are 3 possibilities for what adding change might do:
         // 1) No effect
@@ -4847,8 +4953,21 @@ public class Wallet extends BaseTaggableObject
 
             // Of the coins we could spend, pick some that we actually will spend.
             CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
-            // selector is allowed to modify candidates list.
-            CoinSelection selection = selector.select(valueNeeded, new LinkedList<>(candidates));
+            CoinSelection selection;
+            if (candidates != null) {
+                // selector is allowed to modify candidates list.
+                selection = selector.select(valueNeeded, new LinkedList<>(candidates));
+            } else {
+                selection = ((BranchAndBoundCoinSelector) selector).select(valueNeeded, spendableOutputs.byValue(),
+                        new Predicate<TransactionOutput>() {
+                            @Override
+                            public boolean apply(TransactionOutput output) {
+                                if (excludeUnsignable && !spendableOutputs.isSignable(output))
+                                    return false;
+                                return output.getParentTransaction().isMature();
+                            }
+                        });
+            }
             // Can we afford this?
             if (selection.valueGathered.compareTo(valueNeeded) < 0) {
                 valueMissing = valueNeeded.subtract(selection.valueGathered);
@@ -44,11 +44,13 @@ public class WalletFiles {
     private final ScheduledThreadPoolExecutor executor;
     private final File file;
     private final AtomicBoolean savePending;
+    private final AtomicBoolean compactionPending = new AtomicBoolean();
     private final long delay;
     private final TimeUnit delayTimeUnit;
     private final Callable<Void> saver;
 
     private volatile Listener vListener;
+    @Nullable private volatile WalletJournal journal;
 
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
@@ -109,6 +111,23 @@ public class WalletFiles {
         this.vListener = checkNotNull(listener);
     }
 
+    /**
+     * <p>If enabled, saves append what changed in the wallet to a journal next to the wallet file instead of rewriting
+     * the whole file, which is what most of the cost of saving a large wallet is. The journal is compacted into the
+     * wallet file on the auto-save thread once it grows large. The first save after enabling the journal writes the
+     * whole file.</p>
+     *
+     * <p>The journal is replayed by {@link Wallet#loadFromFile(File, WalletExtension...)}, so the wallet file can't be
+     * read alone while journaling is on. Disabling journaling folds the journal back into the wallet file on the next
+     * save.</p>
+     */
+    public void setJournalEnabled(boolean enabled) {
+        WalletJournal old = journal;
+        if (old != null)
+            old.close();
+        journal = enabled ? new WalletJournal(wallet, file) : null;
+    }
+
     /** Actually write the wallet file to disk, using an atomic rename when possible. Runs on the current thread. */
     public void saveNow() throws IOException {
         // Can be called by any thread. However the wallet is locked whilst saving, so we can have two saves in flight
@@ -122,18 +141,51 @@ public class WalletFiles {
 
     private void saveNowInternal() throws IOException {
         final Stopwatch watch = Stopwatch.createStarted();
-        File directory = file.getAbsoluteFile().getParentFile();
-        File temp = File.createTempFile("wallet", null, directory);
         final Listener listener = vListener;
-        if (listener != null)
-            listener.onBeforeAutoSave(temp);
-        wallet.saveToFile(temp, file);
-        if (listener != null)
-            listener.onAfterAutoSave(file);
+        final WalletJournal journal = this.journal;
+        if (journal != null) {
+            if (journal.append(listener))
+                scheduleCompaction(journal);
+        } else {
+            File directory = file.getAbsoluteFile().getParentFile();
+            File temp = File.createTempFile("wallet", null, directory);
+            if (listener != null)
+                listener.onBeforeAutoSave(temp);
+            wallet.saveToFile(temp, file);
+            File journalFile = WalletJournal.getJournalFile(file);
+            if (journalFile.exists() && !journalFile.delete())
+                log.warn("Failed to delete stale wallet journal {}", journalFile);
+            if (listener != null)
+                listener.onAfterAutoSave(file);
+        }
         watch.stop();
         log.info("Save completed in {}", watch);
     }
 
+    private void scheduleCompaction(final WalletJournal journal) {
+        if (compactionPending.getAndSet(true))
+            return;   // Already pending.
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    compactionPending.set(false);
+                    // Journaling may have been turned off since, in which case the next save writes the whole file.
+                    if (WalletFiles.this.journal != journal)
+                        return;
+                    try {
+                        journal.compact(vListener);
+                    } catch (IOException e) {
+                        log.error("Failed to compact wallet journal", e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            compactionPending.set(false);
+            // Shutting down, the journal is compacted by a later save.
+        }
+    }
+
     /** Queues up a save in the background. Useful for not very important wallet changes. */
     public void saveLater() {
         if (savePending.getAndSet(true))
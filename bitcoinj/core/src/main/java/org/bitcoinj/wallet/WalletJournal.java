@@ -0,0 +1,438 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.common.base.Objects;
+import com.google.protobuf.ByteString;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.wallet.WalletTransaction.Pool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * <p>Persists a wallet as a snapshot, the usual wallet file, plus a journal next to it holding what changed since the
+ * snapshot was written. A save appends the transactions the wallet changed or removed since the last save, the last
+ * seen block, and the rest of the wallet (keys, extensions and so on) when the wallet may have changed it, so that its
+ * cost follows the size of the change rather than the size of the wallet. Once the journal has grown large compared to
+ * the snapshot it is compacted into a fresh snapshot and an empty journal.</p>
+ *
+ * <p>The journal is a sequence of records, each made of a type byte, the length of the payload, the payload and its
+ * CRC-32. It starts with the SHA-256 hash of the snapshot it applies to, so that a journal left over next to a
+ * snapshot written some other way is ignored. A record torn by a crash is ignored, along with anything after it. If an
+ * append fails, the next save compacts rather than appending after what may be a torn record.</p>
+ *
+ * <p>The depth of building transactions is not journaled: it follows from the height of the last seen block, and
+ * is recomputed when replaying. Otherwise every block would rewrite every confirmed transaction.</p>
+ *
+ * <p>Changes made to a wallet transaction directly rather than through the wallet, such as setting its memo, are only
+ * journaled once the wallet changes that transaction again, and are otherwise saved by the next compaction.</p>
+ *
+ * <p>Instances are guarded by the wallet lock. A wallet keeps track of its changes for one journal at a time.</p>
+ */
+class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    private static final byte RECORD_HEADER = 0;
+    private static final byte RECORD_STATE = 1;
+    private static final byte RECORD_TRANSACTIONS = 2;
+    private static final byte RECORD_REMOVED = 3;
+    private static final byte RECORD_LAST_SEEN_BLOCK = 4;
+
+    /** The journal is compacted once it is larger than this fraction of the snapshot, but no smaller than below. */
+    static final double COMPACTION_RATIO = 0.5;
+    static final long MIN_COMPACTION_BYTES = 256 * 1024;
+
+    private final Wallet wallet;
+    private final File walletFile;
+    private final File journalFile;
+
+    // Whether the journal file applies to the snapshot last written by this instance, and holds everything up to the
+    // last append. False until the first compaction, and after an append failed.
+    private boolean appendable;
+    // Set once the journal is no longer used, after which the wallet doesn't keep track of changes for it.
+    private boolean closed;
+    // What was last written for the rest of the wallet and for the last seen block.
+    private byte[] writtenState;
+    @Nullable private Sha256Hash writtenLastSeenHash;
+    private int writtenLastSeenHeight;
+    private long writtenLastSeenTimeSecs;
+    private long snapshotBytes, journalBytes;
+
+    WalletJournal(Wallet wallet, File walletFile) {
+        this.wallet = wallet;
+        this.walletFile = walletFile;
+        this.journalFile = getJournalFile(walletFile);
+    }
+
+    /** Returns the journal of the given wallet file. */
+    static File getJournalFile(File walletFile) {
+        return new File(walletFile.getPath() + ".journal");
+    }
+
+    /**
+     * Appends what changed since the last save to the journal. The first save compacts instead, as the journal can
+     * only start from a snapshot this instance wrote, and so does the first save after an append failed.
+     *
+     * @return whether the journal grew enough to be compacted.
+     */
+    boolean append(@Nullable WalletFiles.Listener listener) throws IOException {
+        wallet.lock.lock();
+        try {
+            if (!appendable) {
+                compact(listener);
+                return false;
+            }
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            Set<Sha256Hash> changedTxs = wallet.takeChangedTransactionsForJournal();
+            byte[] state = null;
+            // Receiving transactions marks keys as used, which may derive more.
+            if (wallet.takeStateChangedForJournal() || !changedTxs.isEmpty()) {
+                state = new WalletProtobufSerializer().walletToProto(wallet, false).toByteArray();
+                if (Arrays.equals(state, writtenState))
+                    state = null;
+                else
+                    writeRecord(records, RECORD_STATE, state);
+            }
+
+            Sha256Hash lastSeenHash = wallet.getLastBlockSeenHash();
+            int lastSeenHeight = wallet.getLastBlockSeenHeight();
+            long lastSeenTimeSecs = wallet.getLastBlockSeenTimeSecs();
+            boolean lastSeenChanged = !Objects.equal(lastSeenHash, writtenLastSeenHash)
+                    || lastSeenHeight != writtenLastSeenHeight || lastSeenTimeSecs != writtenLastSeenTimeSecs;
+            if (lastSeenChanged && state == null) {
+                // Written like WalletProtobufSerializer writes these fields of the whole wallet.
+                Protos.Wallet.Builder lastSeen = Protos.Wallet.newBuilder()
+                        .setNetworkIdentifier(wallet.getNetworkParameters().getId());
+                if (lastSeenHash != null) {
+                    lastSeen.setLastSeenBlockHash(WalletProtobufSerializer.hashToByteString(lastSeenHash));
+                    lastSeen.setLastSeenBlockHeight(lastSeenHeight);
+                }
+                if (lastSeenTimeSecs > 0)
+                    lastSeen.setLastSeenBlockTimeSecs(lastSeenTimeSecs);
+                writeRecord(records, RECORD_LAST_SEEN_BLOCK, lastSeen.build().toByteArray());
+            }
+
+            Protos.Wallet.Builder changed = Protos.Wallet.newBuilder()
+                    .setNetworkIdentifier(wallet.getNetworkParameters().getId());
+            ByteArrayOutputStream removed = new ByteArrayOutputStream();
+            for (Sha256Hash hash : changedTxs) {
+                WalletTransaction wtx = getWalletTransaction(hash);
+                if (wtx != null)
+                    changed.addTransaction(WalletProtobufSerializer.makeTxProto(wtx));
+                else
+                    removed.write(hash.getBytes());
+            }
+            if (changed.getTransactionCount() > 0)
+                writeRecord(records, RECORD_TRANSACTIONS, changed.build().toByteArray());
+            if (removed.size() > 0)
+                writeRecord(records, RECORD_REMOVED, removed.toByteArray());
+
+            if (records.size() > 0) {
+                try {
+                    FileOutputStream stream = new FileOutputStream(journalFile, true);
+                    try {
+                        records.writeTo(stream);
+                        stream.flush();
+                        stream.getFD().sync();
+                    } finally {
+                        stream.close();
+                    }
+                } catch (IOException e) {
+                    // The changes taken from the wallet are in no file now, and a torn record would hide any appended
+                    // after it, so the next save writes a fresh snapshot.
+                    appendable = false;
+                    truncate(journalBytes);
+                    throw e;
+                }
+                journalBytes += records.size();
+                if (state != null)
+                    writtenState = state;
+                writtenLastSeenHash = lastSeenHash;
+                writtenLastSeenHeight = lastSeenHeight;
+                writtenLastSeenTimeSecs = lastSeenTimeSecs;
+                log.info("Journaled {} transactions, {} bytes, journal is {} bytes", changedTxs.size(),
+                        records.size(), journalBytes);
+            }
+            return journalBytes > Math.max(MIN_COMPACTION_BYTES, (long) (snapshotBytes * COMPACTION_RATIO));
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    @Nullable
+    private WalletTransaction getWalletTransaction(Sha256Hash hash) {
+        for (Pool pool : Pool.values()) {
+            Transaction tx = wallet.getTransactionPool(pool).get(hash);
+            if (tx != null)
+                return new WalletTransaction(pool, tx);
+        }
+        return null;
+    }
+
+    // Cuts off what a failed append may have written, so that the journal reads the same as before it.
+    private void truncate(long length) {
+        try {
+            RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+            try {
+                file.setLength(length);
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to truncate wallet journal after a failed write", e);
+        }
+    }
+
+    /** Writes a fresh snapshot of the wallet and starts an empty journal for it. */
+    void compact(@Nullable WalletFiles.Listener listener) throws IOException {
+        wallet.lock.lock();
+        try {
+            File directory = walletFile.getAbsoluteFile().getParentFile();
+            File temp = File.createTempFile("wallet", null, directory);
+            if (listener != null)
+                listener.onBeforeAutoSave(temp);
+            MessageDigest digest = Sha256Hash.newDigest();
+            FileOutputStream stream = new FileOutputStream(temp);
+            try {
+                OutputStream output = new DigestOutputStream(stream, digest);
+                new WalletProtobufSerializer().writeWallet(wallet, output);
+                output.flush();
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            writeRecord(header, RECORD_HEADER, digest.digest());
+            File tempJournal = File.createTempFile("journal", null, directory);
+            stream = new FileOutputStream(tempJournal);
+            try {
+                header.writeTo(stream);
+                stream.flush();
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+
+            // Until the new snapshot is in place the old journal still applies to the old one. After that the old
+            // journal, if the new one isn't in place yet, is ignored as its header doesn't match the new snapshot.
+            appendable = false;
+            rename(temp, walletFile);
+            rename(tempJournal, journalFile);
+            if (listener != null)
+                listener.onAfterAutoSave(walletFile);
+
+            snapshotBytes = walletFile.length();
+            journalBytes = header.size();
+            wallet.trackChangesForJournal(!closed);
+            writtenState = new WalletProtobufSerializer().walletToProto(wallet, false).toByteArray();
+            writtenLastSeenHash = wallet.getLastBlockSeenHash();
+            writtenLastSeenHeight = wallet.getLastBlockSeenHeight();
+            writtenLastSeenTimeSecs = wallet.getLastBlockSeenTimeSecs();
+            appendable = !closed;
+            log.info("Compacted wallet journal, snapshot is {} bytes", snapshotBytes);
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /** Stops the wallet keeping track of changes for this journal, as it is no longer used. */
+    void close() {
+        wallet.lock.lock();
+        try {
+            wallet.trackChangesForJournal(false);
+            appendable = false;
+            closed = true;
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (Utils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            to = to.getCanonicalFile();
+            if (to.exists() && !to.delete())
+                throw new IOException("Failed to delete " + to + " for replacement");
+        }
+        if (!from.renameTo(to))
+            throw new IOException("Failed to rename " + from + " to " + to);
+    }
+
+    private static void writeRecord(ByteArrayOutputStream records, byte type, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        DataOutputStream output = new DataOutputStream(records);
+        output.writeByte(type);
+        output.writeInt(payload.length);
+        output.write(payload);
+        output.writeInt((int) crc.getValue());
+        output.flush();
+    }
+
+    private static class Record {
+        final byte type;
+        final byte[] payload;
+
+        Record(byte type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+
+    // Returns null at the end of the journal, or at a record which was not completely written.
+    @Nullable
+    private static Record readRecord(DataInputStream input) throws IOException {
+        try {
+            int type = input.read();
+            if (type == -1)
+                return null;
+            int length = input.readInt();
+            if (length < 0 || length > WalletProtobufSerializer.WALLET_SIZE_LIMIT) {
+                log.warn("Ignoring wallet journal record of invalid length {}", length);
+                return null;
+            }
+            byte[] payload = new byte[length];
+            input.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if (input.readInt() != (int) crc.getValue()) {
+                log.warn("Ignoring corrupt wallet journal record");
+                return null;
+            }
+            return new Record((byte) type, payload);
+        } catch (EOFException e) {
+            log.warn("Ignoring incomplete wallet journal record");
+            return null;
+        }
+    }
+
+    /**
+     * Reads the given wallet file and replays its journal, if there is one. Without a journal this is just
+     * {@link WalletProtobufSerializer#parseToProto(InputStream)}.
+     */
+    static Protos.Wallet read(File walletFile) throws IOException {
+        MessageDigest digest = Sha256Hash.newDigest();
+        Protos.Wallet snapshot;
+        InputStream input = new DigestInputStream(new BufferedInputStream(new FileInputStream(walletFile)), digest);
+        try {
+            snapshot = WalletProtobufSerializer.parseToProto(input);
+            // The whole file must go through the digest.
+            byte[] buffer = new byte[4096];
+            while (input.read(buffer) != -1);
+        } finally {
+            input.close();
+        }
+        File journalFile = getJournalFile(walletFile);
+        if (!journalFile.exists())
+            return snapshot;
+        DataInputStream journal = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            return replay(snapshot, digest.digest(), journal);
+        } finally {
+            journal.close();
+        }
+    }
+
+    private static Protos.Wallet replay(Protos.Wallet snapshot, byte[] snapshotHash, DataInputStream journal)
+            throws IOException {
+        Record header = readRecord(journal);
+        if (header == null || header.type != RECORD_HEADER || !Arrays.equals(header.payload, snapshotHash)) {
+            log.info("Ignoring wallet journal written for another snapshot");
+            return snapshot;
+        }
+        Protos.Wallet state = snapshot.toBuilder().clearTransaction().build();
+        Map<ByteString, Protos.Transaction> txs = new LinkedHashMap<>();
+        for (Protos.Transaction tx : snapshot.getTransactionList())
+            txs.put(tx.getHash(), tx);
+        int records = 0;
+        Record record;
+        while ((record = readRecord(journal)) != null) {
+            switch (record.type) {
+                case RECORD_STATE:
+                    state = Protos.Wallet.parseFrom(record.payload);
+                    break;
+                case RECORD_TRANSACTIONS:
+                    for (Protos.Transaction tx : Protos.Wallet.parseFrom(record.payload).getTransactionList())
+                        txs.put(tx.getHash(), tx);
+                    break;
+                case RECORD_LAST_SEEN_BLOCK:
+                    Protos.Wallet lastSeen = Protos.Wallet.parseFrom(record.payload);
+                    Protos.Wallet.Builder builder = state.toBuilder()
+                            .clearLastSeenBlockHash().clearLastSeenBlockHeight().clearLastSeenBlockTimeSecs();
+                    if (lastSeen.hasLastSeenBlockHash())
+                        builder.setLastSeenBlockHash(lastSeen.getLastSeenBlockHash());
+                    if (lastSeen.hasLastSeenBlockHeight())
+                        builder.setLastSeenBlockHeight(lastSeen.getLastSeenBlockHeight());
+                    if (lastSeen.hasLastSeenBlockTimeSecs())
+                        builder.setLastSeenBlockTimeSecs(lastSeen.getLastSeenBlockTimeSecs());
+                    state = builder.build();
+                    break;
+                case RECORD_REMOVED:
+                    for (int offset = 0; offset < record.payload.length; offset += Sha256Hash.LENGTH)
+                        txs.remove(ByteString.copyFrom(record.payload, offset, Sha256Hash.LENGTH));
+                    break;
+                default:
+                    throw new IOException("Unknown wallet journal record type " + record.type);
+            }
+            records++;
+        }
+        if (records == 0)
+            return snapshot;
+        log.info("Replayed {} wallet journal records", records);
+
+        Protos.Wallet.Builder wallet = state.toBuilder();
+        for (Protos.Transaction tx : txs.values()) {
+            if (state.hasLastSeenBlockHeight() && tx.hasConfidence()
+                    && tx.getConfidence().getType() == Protos.TransactionConfidence.Type.BUILDING
+                    && tx.getConfidence().hasAppearedAtHeight()) {
+                int depth = state.getLastSeenBlockHeight() - tx.getConfidence().getAppearedAtHeight() + 1;
+                if (depth != tx.getConfidence().getDepth()) {
+                    Protos.Transaction.Builder builder = tx.toBuilder();
+                    builder.getConfidenceBuilder().setDepth(depth);
+                    tx = builder.build();
+                }
+            }
+            wallet.addTransaction(tx);
+        }
+        return wallet.build();
+    }
+}
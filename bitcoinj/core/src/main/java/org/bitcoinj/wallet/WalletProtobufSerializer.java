@@ -24,10 +24,12 @@ import org.bitcoinj.crypto.KeyCrypterScrypt;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.signers.LocalTransactionSigner;
 import org.bitcoinj.signers.TransactionSigner;
+import org.bitcoinj.utils.DaemonThreadFactory;
 import org.bitcoinj.utils.ExchangeRate;
 import org.bitcoinj.utils.Fiat;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedInputStream;
@@ -39,6 +41,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -46,6 +50,11 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -74,7 +83,9 @@ public class WalletProtobufSerializer {
     /** Current version used for serializing wallets. A version higher than this is considered from the future. */
     public static final int CURRENT_WALLET_VERSION = Protos.Wallet.getDefaultInstance().getVersion();
     // 512 MB
-    private static final int WALLET_SIZE_LIMIT = 512 * 1024 * 1024;
+    static final int WALLET_SIZE_LIMIT = 512 * 1024 * 1024;
+    // Transactions are decoded in batches of this size, in parallel if there are several.
+    private static final int DECODE_BATCH_SIZE = 64;
     // Used for de-serialization
     protected Map<ByteString, Transaction> txMap;
 
@@ -161,15 +172,22 @@ public class WalletProtobufSerializer {
      * additional data fields set, before serialization takes place.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
+        return walletToProto(wallet, true);
+    }
+
+    /** Converts the given wallet like {@link #walletToProto(Wallet)}, optionally leaving out the transactions. */
+    Protos.Wallet walletToProto(Wallet wallet, boolean withTransactions) {
         Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
         walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
         if (wallet.getDescription() != null) {
             walletBuilder.setDescription(wallet.getDescription());
         }
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
-            Protos.Transaction txProto = makeTxProto(wtx);
-            walletBuilder.addTransaction(txProto);
+        if (withTransactions) {
+            for (WalletTransaction wtx : wallet.getWalletTransactions()) {
+                Protos.Transaction txProto = makeTxProto(wtx);
+                walletBuilder.addTransaction(txProto);
+            }
         }
 
         walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
@@ -248,7 +266,7 @@ public class WalletProtobufSerializer {
         }
     }
 
-    private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
+    static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
 
@@ -428,15 +446,93 @@ public class WalletProtobufSerializer {
      * @throws UnreadableWalletException thrown in various error conditions (see description).
      */
     public Wallet readWallet(InputStream input, boolean forceReset, @Nullable WalletExtension[] extensions) throws UnreadableWalletException {
+        // Rather than parsing the whole wallet first, transactions are handed to the decoder as they are read and the
+        // rest of the wallet is parsed at the end.
+        CodedInputStream codedInput = CodedInputStream.newInstance(input);
+        codedInput.setSizeLimit(WALLET_SIZE_LIMIT);
+        ByteString.Output rest = ByteString.newOutput();
+        CodedOutputStream restOutput = CodedOutputStream.newInstance(rest);
+        // Transactions read before the network identifier, which is normally first.
+        List<ByteString> early = new ArrayList<>();
+        NetworkParameters params = null;
+        TransactionDecoder decoder = null;
+        try {
+            int tag;
+            while ((tag = codedInput.readTag()) != 0) {
+                int field = WireFormat.getTagFieldNumber(tag);
+                if (field == Protos.Wallet.TRANSACTION_FIELD_NUMBER
+                        && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                    ByteString encoded = codedInput.readBytes();
+                    if (forceReset)
+                        continue;
+                    if (decoder != null)
+                        decoder.add(encoded);
+                    else
+                        early.add(encoded);
+                } else if (field == Protos.Wallet.NETWORK_IDENTIFIER_FIELD_NUMBER && params == null
+                        && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                    String paramsID = codedInput.readString();
+                    restOutput.writeString(field, paramsID);
+                    params = NetworkParameters.fromID(paramsID);
+                    if (params == null)
+                        throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+                    decoder = new TransactionDecoder(params);
+                    for (ByteString encoded : early)
+                        decoder.add(encoded);
+                    early = null;
+                } else {
+                    codedInput.skipField(tag, restOutput);
+                }
+            }
+            restOutput.flush();
+            // Fails if the network identifier, which is required, is missing.
+            CodedInputStream restInput = rest.toByteString().newCodedInput();
+            restInput.setSizeLimit(WALLET_SIZE_LIMIT);
+            Protos.Wallet walletProto = Protos.Wallet.parseFrom(restInput);
+            List<DecodedTransaction> txs = decoder.finish();
+            return readWallet(params, extensions, walletProto, txs, forceReset);
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
+        } catch (IllegalStateException e) {
+            throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
+        } catch (IllegalArgumentException e) {
+            throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
+        } finally {
+            if (decoder != null)
+                decoder.close();
+        }
+    }
+
+    /**
+     * <p>Loads wallet data from the given file like {@link #readWallet(InputStream, boolean, WalletExtension[])}, and
+     * replays the journal written next to it by {@link WalletFiles#setJournalEnabled(boolean)} if there is one.</p>
+     *
+     * @throws UnreadableWalletException thrown in various error conditions (see description).
+     */
+    public Wallet readWallet(File file, boolean forceReset, @Nullable WalletExtension[] extensions) throws UnreadableWalletException {
+        try {
+            // Without a journal the file is streamed like any other input. With one, the transactions of the replayed
+            // wallet are still decoded in parallel.
+            if (WalletJournal.getJournalFile(file).exists())
+                return readWallet(WalletJournal.read(file), forceReset, extensions);
+            InputStream input = new FileInputStream(file);
+            try {
+                return readWallet(input, forceReset, extensions);
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not parse file to protobuf", e);
+        }
+    }
+
+    private Wallet readWallet(Protos.Wallet walletProto, boolean forceReset, @Nullable WalletExtension[] extensions) throws UnreadableWalletException {
         try {
-            Protos.Wallet walletProto = parseToProto(input);
             final String paramsID = walletProto.getNetworkIdentifier();
             NetworkParameters params = NetworkParameters.fromID(paramsID);
             if (params == null)
                 throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
             return readWallet(params, extensions, walletProto, forceReset);
-        } catch (IOException e) {
-            throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
         } catch (IllegalStateException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
         } catch (IllegalArgumentException e) {
@@ -478,10 +574,28 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
                              Protos.Wallet walletProto, boolean forceReset) throws UnreadableWalletException {
+        checkReadable(params, walletProto);
+        List<DecodedTransaction> txs = Collections.emptyList();
+        if (!forceReset) {
+            TransactionDecoder decoder = new TransactionDecoder(params);
+            for (Protos.Transaction txProto : walletProto.getTransactionList())
+                decoder.add(txProto);
+            txs = decoder.finish();
+        }
+        return readWallet(params, extensions, walletProto, txs, forceReset);
+    }
+
+    private static void checkReadable(NetworkParameters params, Protos.Wallet walletProto) throws UnreadableWalletException {
         if (walletProto.getVersion() > CURRENT_WALLET_VERSION)
             throw new UnreadableWalletException.FutureVersion();
         if (!walletProto.getNetworkIdentifier().equals(params.getId()))
             throw new UnreadableWalletException.WrongNetwork();
+    }
+
+    // The transactions of walletProto are ignored in favour of the given ones, already decoded.
+    private Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions, Protos.Wallet walletProto,
+                              List<DecodedTransaction> txs, boolean forceReset) throws UnreadableWalletException {
+        checkReadable(params, walletProto);
 
         // Read the scrypt parameters that specify how encryption and decryption is performed.
         KeyChainGroup keyChainGroup;
@@ -518,14 +632,15 @@ public class WalletProtobufSerializer {
             wallet.setLastBlockSeenHeight(-1);
             wallet.setLastBlockSeenTimeSecs(0);
         } else {
-            // Read all transactions and insert into the txMap.
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                readTransaction(txProto, wallet.getParams());
+            // Insert all transactions into the txMap.
+            for (DecodedTransaction decoded : txs) {
+                if (txMap.put(decoded.proto.getHash(), decoded.tx) != null)
+                    throw new UnreadableWalletException("Wallet contained duplicate transaction " + decoded.tx.getHash());
             }
 
             // Update transaction outputs to point to inputs that spend them
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                WalletTransaction wtx = connectTransactionOutputs(params, txProto);
+            for (DecodedTransaction decoded : txs) {
+                WalletTransaction wtx = connectTransactionOutputs(params, decoded.proto);
                 wallet.addWalletTransaction(wtx);
             }
 
@@ -625,7 +740,8 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(codedInput);
     }
 
-    private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
+    // Runs on the decoding threads, so must not touch the state of the serializer.
+    private Transaction decodeTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
 
         tx.setVersion(txProto.getVersion());
@@ -695,9 +811,105 @@ public class WalletProtobufSerializer {
         Sha256Hash protoHash = byteStringToHash(txProto.getHash());
         if (!tx.getHash().equals(protoHash))
             throw new UnreadableWalletException(String.format(Locale.US, "Transaction did not deserialize completely: %s vs %s", tx.getHash(), protoHash));
-        if (txMap.containsKey(txProto.getHash()))
-            throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(txProto.getHash()));
-        txMap.put(txProto.getHash(), tx);
+        return tx;
+    }
+
+    private static class DecodedTransaction {
+        final Protos.Transaction proto;
+        final Transaction tx;
+
+        DecodedTransaction(Protos.Transaction proto, Transaction tx) {
+            this.proto = proto;
+            this.tx = tx;
+        }
+    }
+
+    /**
+     * Decodes and hashes transactions in batches on a pool of threads whilst the rest of the wallet is being read,
+     * keeping their order. Without spare processors, or for wallets too small for it to pay off, the batches are
+     * decoded on the calling thread.
+     */
+    private class TransactionDecoder {
+        private final NetworkParameters params;
+        private final List<FutureTask<List<DecodedTransaction>>> batches = new ArrayList<>();
+        // Either encoded or parsed transactions, depending on where they come from.
+        private List<Object> batch = new ArrayList<>(DECODE_BATCH_SIZE);
+        @Nullable private ExecutorService pool;
+
+        TransactionDecoder(NetworkParameters params) {
+            this.params = params;
+        }
+
+        void add(ByteString encoded) {
+            addToBatch(encoded);
+        }
+
+        void add(Protos.Transaction parsed) {
+            addToBatch(parsed);
+        }
+
+        private void addToBatch(Object tx) {
+            batch.add(tx);
+            if (batch.size() == DECODE_BATCH_SIZE)
+                submit(true);
+        }
+
+        private void submit(boolean more) {
+            final List<Object> txs = batch;
+            batch = new ArrayList<>(DECODE_BATCH_SIZE);
+            FutureTask<List<DecodedTransaction>> task = new FutureTask<>(new Callable<List<DecodedTransaction>>() {
+                @Override
+                public List<DecodedTransaction> call() throws Exception {
+                    List<DecodedTransaction> decoded = new ArrayList<>(txs.size());
+                    for (Object tx : txs) {
+                        Protos.Transaction proto = tx instanceof ByteString
+                                ? Protos.Transaction.parseFrom((ByteString) tx) : (Protos.Transaction) tx;
+                        decoded.add(new DecodedTransaction(proto, decodeTransaction(proto, params)));
+                    }
+                    return decoded;
+                }
+            });
+            batches.add(task);
+            // Only worth it if there is more than one batch.
+            // Plain threads rather than a fork-join pool, which older Android versions lack.
+            int processors = Runtime.getRuntime().availableProcessors();
+            if (pool == null && more && processors > 1)
+                pool = Executors.newFixedThreadPool(processors, new DaemonThreadFactory("Wallet decoder"));
+            if (pool != null)
+                pool.execute(task);
+            else
+                task.run();
+        }
+
+        /** Waits for all the transactions to be decoded and returns them in the order they were added. */
+        List<DecodedTransaction> finish() throws UnreadableWalletException {
+            if (!batch.isEmpty())
+                submit(false);
+            List<DecodedTransaction> decoded = new ArrayList<>(batches.size() * DECODE_BATCH_SIZE);
+            try {
+                for (FutureTask<List<DecodedTransaction>> task : batches)
+                    decoded.addAll(task.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof UnreadableWalletException)
+                    throw (UnreadableWalletException) cause;
+                if (cause instanceof IOException)
+                    throw new UnreadableWalletException("Could not parse input stream to protobuf", cause);
+                Throwables.propagateIfPossible(cause);
+                throw new RuntimeException(cause);
+            } finally {
+                close();
+            }
+            return decoded;
+        }
+
+        void close() {
+            if (pool != null)
+                pool.shutdownNow();
+        }
     }
 
     private WalletTransaction connectTransactionOutputs(final NetworkParameters params,
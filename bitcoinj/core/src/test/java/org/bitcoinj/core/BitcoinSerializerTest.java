@@ -17,6 +17,7 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.net.ByteBufferPool;
 import org.bitcoinj.params.MainNetParams;
 import org.junit.Test;
 
@@ -235,4 +236,52 @@ public class BitcoinSerializerTest {
         ByteArrayOutputStream bos = new ByteArrayOutputStream(ADDRESS_MESSAGE_BYTES.length);
         serializer.serialize(unknownMessage, bos);
     }
+
+    @Test
+    public void testSerializeIntoPooledBuffers() throws Exception {
+        MessageSerializer serializer = MainNetParams.get().getDefaultSerializer();
+        // The smallest buffers don't fit the transaction, so it is written across two of them.
+        ByteBufferPool pool = new ByteBufferPool(true, ByteBufferPool.MIN_BUFFER_SIZE, 1024 * 1024);
+        Transaction tx = (Transaction) serializer.deserialize(ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES));
+        assertArrayEquals(TRANSACTION_MESSAGE_BYTES, gather(serializer.serialize(tx, pool), pool));
+
+        // Messages without cached bytes are serialized straight into the buffers.
+        Transaction copy = new Transaction(MainNetParams.get(), tx.bitcoinSerialize());
+        copy.getInput(0).setSequenceNumber(tx.getInput(0).getSequenceNumber());
+        assertArrayEquals(TRANSACTION_MESSAGE_BYTES, gather(serializer.serialize(copy, pool), pool));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(new Ping(1), bos);
+        assertArrayEquals(bos.toByteArray(), gather(serializer.serialize(new Ping(1), pool), pool));
+        assertTrue(pool.getPooledBytes() > 0);
+    }
+
+    @Test
+    public void testDeserializeInPlace() throws Exception {
+        MessageSerializer serializer = MainNetParams.get().getDefaultSerializer();
+        Transaction expected = (Transaction) serializer.deserialize(ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES));
+        // The message sits in the middle of a bigger array, as it does in a pooled buffer.
+        byte[] array = new byte[TRANSACTION_MESSAGE_BYTES.length + 100];
+        Arrays.fill(array, (byte) 0xff);
+        System.arraycopy(TRANSACTION_MESSAGE_BYTES, 0, array, 10, TRANSACTION_MESSAGE_BYTES.length);
+        ByteBuffer buffer = ByteBuffer.wrap(array, 10, TRANSACTION_MESSAGE_BYTES.length + 50).slice();
+        Transaction tx = (Transaction) serializer.deserialize(buffer);
+        assertEquals(TRANSACTION_MESSAGE_BYTES.length, buffer.position());
+
+        // The transaction doesn't depend on the array once parsed.
+        Arrays.fill(array, (byte) 0);
+        assertEquals(expected, tx);
+        assertArrayEquals(expected.bitcoinSerialize(), tx.bitcoinSerialize());
+    }
+
+    private static byte[] gather(ByteBuffer[] buffers, ByteBufferPool pool) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : buffers) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            bos.write(bytes, 0, bytes.length);
+            pool.release(buffer);
+        }
+        return bos.toByteArray();
+    }
 }
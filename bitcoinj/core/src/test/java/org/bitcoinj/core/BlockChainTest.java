@@ -35,7 +35,9 @@ import org.junit.Test;
 
 import java.math.BigInteger;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 import static org.bitcoinj.core.Coin.*;
@@ -149,6 +151,62 @@ public class BlockChainTest {
         assertEquals(chain.getChainHead().getHeader(), b3.cloneAsHeader());
     }
 
+    @Test
+    public void orphansConnectInAnyOrder() throws Exception {
+        List<Block> blocks = new ArrayList<>();
+        Block prev = PARAMS.getGenesisBlock();
+        // Short of the first difficulty transition of the unit test params.
+        for (int i = 0; i < 8; i++) {
+            prev = prev.createNextBlock(coinbaseTo);
+            blocks.add(prev);
+        }
+        // A fork off the fifth block, received before its parent too.
+        Block fork = blocks.get(4).createNextBlock(coinbaseTo);
+        assertFalse(chain.add(fork));
+        for (int i = blocks.size() - 1; i > 0; i--)
+            assertFalse(chain.add(blocks.get(i)));
+        assertEquals(8, chain.getOrphanBlockCount());
+        assertTrue(chain.getOrphanBlockBytes() > 0);
+        assertEquals(blocks.get(1), chain.getOrphanRoot(blocks.get(7).getHash()));
+
+        assertTrue(chain.add(blocks.get(0)));
+        assertEquals(blocks.get(7).cloneAsHeader(), chain.getChainHead().getHeader());
+        assertEquals(fork.getHash(), blockStore.get(fork.getHash()).getHeader().getHash());
+        assertEquals(0, chain.getOrphanBlockCount());
+        assertEquals(0, chain.getOrphanBlockBytes());
+        assertEquals(0, chain.getOrphanBlocksEvicted());
+    }
+
+    @Test
+    public void orphansEvictedOverCap() throws Exception {
+        Block b1 = PARAMS.getGenesisBlock().createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block b3 = b2.createNextBlock(coinbaseTo);
+        Block b4 = b3.createNextBlock(coinbaseTo);
+        // Room for two orphans.
+        chain.setMaxOrphanBlockBytes(b2.getOptimalEncodingMessageSize() * 2 + 1);
+        assertFalse(chain.add(b2));
+        assertFalse(chain.add(b3));
+        assertFalse(chain.add(b4));
+        assertEquals(2, chain.getOrphanBlockCount());
+        assertEquals(1, chain.getOrphanBlocksEvicted());
+        assertFalse(chain.isOrphan(b2.getHash()));
+        assertEquals(b3, chain.getOrphanRoot(b4.getHash()));
+
+        // The evicted block has to be received again before its children connect.
+        assertTrue(chain.add(b1));
+        assertEquals(b1.cloneAsHeader(), chain.getChainHead().getHeader());
+        assertTrue(chain.add(b2));
+        assertEquals(b4.cloneAsHeader(), chain.getChainHead().getHeader());
+        assertEquals(0, chain.getOrphanBlockCount());
+
+        // A single orphan larger than the cap is kept.
+        chain.setMaxOrphanBlockBytes(1);
+        Block b6 = b4.createNextBlock(coinbaseTo).createNextBlock(coinbaseTo);
+        assertFalse(chain.add(b6));
+        assertTrue(chain.isOrphan(b6.getHash()));
+    }
+
     @Test
     public void difficultyTransitions() throws Exception {
         // Add a bunch of blocks in a loop until we reach a difficulty transition point. The unit test params have an
@@ -30,7 +30,9 @@ import org.bitcoinj.wallet.Wallet.BalanceType;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.List;
@@ -70,6 +72,46 @@ public class BlockTest {
         assertEquals("00000000a6e5eb79dcec11897af55e90cd571a4335383a3ccfbc12ec81085935", block.getHashAsString());
     }
     
+    @Test
+    public void testParallelMerkleTree() throws Exception {
+        // A segwit transaction, whose hash leaves out the marker, flag and witnesses.
+        byte[] witnessTx = HEX.decode("01000000000102fff7f7881a8099afa6940d42d1e7f6362bec38171ea3edf433541db4e4ad969f00000000494830450221008b9d1dc26ba6a9cb62127b02742fa9d754cd3bebf337f7a55d114c8e5cdd30be022040529b194ba3f9281a99f2b1c0a19c0489bc22ede944ccf4ecbab4cc618ef3ed01eeffffffef51e1b804cc89d182d279655c3aa89e815b1b309fe287d9b2b55d57b90ec68a0100000000ffffffff02202cb206000000001976a9148280b37df378db99f66f85c95a783a76ac7a6d5988ac9093510d000000001976a9143bde42dbee7e4dbe6a21b2d50ce2f0167faa815988ac000247304402203609e17b84f6a7d30c80bfa610b5b4542f32a8a0d5447a12fb1366d7f01cc44a0220573a954c4518331561406f90300e8f3358f51928d43c212a8caed02de67eebee0121025476c2e83188368da1ff3e292e7acafcdb3566bb0ad253f62fc70f07aeee635711000000");
+        // Enough transactions, and an odd number of them, for the leaves and the lower levels to be split up.
+        Block small = PARAMS.getDefaultSerializer().makeBlock(blockBytes);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(blockBytes, 0, Block.HEADER_SIZE);
+        int count = 25 * small.getTransactions().size() + 1;
+        bos.write(new VarInt(count).encode());
+        for (int i = 0; i < 25; i++)
+            for (Transaction tx : small.getTransactions())
+                bos.write(tx.bitcoinSerialize());
+        bos.write(witnessTx);
+        Block block = PARAMS.getDefaultSerializer().makeBlock(bos.toByteArray());
+        assertEquals(count, block.getTransactions().size());
+
+        // Compare with hashes of the serialized transactions, built into a tree one node after the other.
+        List<byte[]> expected = new ArrayList<>();
+        for (Transaction tx : block.getTransactions()) {
+            Sha256Hash hash = new Transaction(PARAMS, tx.bitcoinSerialize()).getHash();
+            assertEquals(hash, tx.getHash());
+            expected.add(hash.getBytes());
+        }
+        int levelOffset = 0;
+        for (int levelSize = count; levelSize > 1; levelSize = (levelSize + 1) / 2) {
+            for (int left = 0; left < levelSize; left += 2) {
+                int right = Math.min(left + 1, levelSize - 1);
+                expected.add(Utils.reverseBytes(Sha256Hash.hashTwice(
+                        Utils.reverseBytes(expected.get(levelOffset + left)), 0, 32,
+                        Utils.reverseBytes(expected.get(levelOffset + right)), 0, 32)));
+            }
+            levelOffset += levelSize;
+        }
+        List<byte[]> tree = ParallelBlockVerifier.buildMerkleTree(block.getTransactions());
+        assertEquals(expected.size(), tree.size());
+        for (int i = 0; i < tree.size(); i++)
+            assertArrayEquals(expected.get(i), tree.get(i));
+    }
+
     @SuppressWarnings("deprecation")
     @Test
     public void testDate() throws Exception {
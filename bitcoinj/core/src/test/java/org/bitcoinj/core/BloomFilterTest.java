@@ -66,6 +66,47 @@ public class BloomFilterTest {
         assertTrue(Arrays.equals(HEX.decode("03ce4299050000000100008002"), filter.unsafeBitcoinSerialize()));
     }
 
+    @Test
+    public void serializeRoundTripAndMatchAll() throws Exception {
+        // 11 bytes, so the last word of the filter is only partly used.
+        BloomFilter filter = new BloomFilter(10, 0.01, 5);
+        for (int i = 0; i < 10; i++)
+            filter.insert(new byte[] {(byte) i});
+        BloomFilter copy = new BloomFilter(MainNetParams.get(), filter.bitcoinSerialize());
+        assertEquals(filter, copy);
+        assertArrayEquals(filter.bitcoinSerialize(), copy.bitcoinSerialize());
+        for (int i = 0; i < 10; i++)
+            assertTrue(copy.contains(new byte[] {(byte) i}));
+        assertFalse(copy.matchesAll());
+
+        copy.setMatchAll();
+        assertTrue(copy.matchesAll());
+        assertTrue(copy.contains(new byte[] {42}));
+        filter.merge(copy);
+        assertTrue(filter.matchesAll());
+    }
+
+    @Test
+    public void concurrentInserts() throws Exception {
+        final BloomFilter filter = new BloomFilter(4000, 0.001, 0);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t * 1000;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = offset; i < offset + 1000; i++)
+                        filter.insert(Utils.HEX.decode(String.format("%08x", i)));
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        for (int i = 0; i < 4000; i++)
+            assertTrue(filter.contains(Utils.HEX.decode(String.format("%08x", i))));
+    }
+
     @Test
     public void walletTest() throws Exception {
         NetworkParameters params = MainNetParams.get();
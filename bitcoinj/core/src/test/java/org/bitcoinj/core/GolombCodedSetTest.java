@@ -0,0 +1,164 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.TestNet3Params;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.bitcoinj.core.Utils.HEX;
+import static org.junit.Assert.*;
+
+public class GolombCodedSetTest {
+    @Test
+    public void sipHashTestVectors() {
+        // From the SipHash reference implementation: key 00..0f.
+        byte[] key = new byte[16];
+        for (int i = 0; i < key.length; i++)
+            key[i] = (byte) i;
+        long k0 = Utils.readInt64(key, 0), k1 = Utils.readInt64(key, 8);
+        assertEquals(0x726fdb47dd0e0e31L, GolombCodedSet.sipHash24(k0, k1, new byte[0]));
+        byte[] message = new byte[15];
+        for (int i = 0; i < message.length; i++)
+            message[i] = (byte) i;
+        assertEquals(0xa129ca6149be45e5L, GolombCodedSet.sipHash24(k0, k1, message));
+    }
+
+    @Test
+    public void multiplyHigh() {
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            long a = random.nextLong(), b = random.nextLong();
+            BigInteger expected = new BigInteger(Long.toUnsignedString(a))
+                    .multiply(new BigInteger(Long.toUnsignedString(b))).shiftRight(64);
+            assertEquals(expected.longValue(), GolombCodedSet.multiplyHigh(a, b));
+        }
+    }
+
+    @Test
+    public void testNetGenesisFilter() {
+        // Test vector from BIP 158.
+        Block genesis = TestNet3Params.get().getGenesisBlock();
+        GolombCodedSet filter = GolombCodedSet.buildBasicFilter(genesis, Collections.<byte[]>emptyList());
+        assertEquals("019dfca8", HEX.encode(filter.getBytes()));
+        assertEquals(1, filter.getN());
+        assertEquals("21584579b7eb08997773e5aeff3a7f932700042d0ed2a6129012b7d7ae81b750",
+                filter.getFilterHeader(Sha256Hash.ZERO_HASH).toString());
+        byte[] coinbaseScript = genesis.getTransactions().get(0).getOutput(0).getScriptBytes();
+        assertTrue(filter.match(coinbaseScript));
+        assertFalse(filter.match(new byte[] {1, 2, 3}));
+    }
+
+    @Test
+    public void matchAny() {
+        Random random = new Random(42);
+        Sha256Hash blockHash = Sha256Hash.wrap(randomBytes(random, 32));
+        List<byte[]> elements = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            elements.add(randomBytes(random, 25));
+        GolombCodedSet filter = GolombCodedSet.build(blockHash, elements);
+        assertEquals(1000, filter.getN());
+        for (byte[] element : elements)
+            assertTrue(filter.match(element));
+
+        List<byte[]> others = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            others.add(randomBytes(random, 25));
+        // With a false positive rate of 1/784931 this should practically never match.
+        assertFalse(filter.matchAny(others));
+        others.add(elements.get(500));
+        assertTrue(filter.matchAny(others));
+
+        // The same elements hash to other values for another block.
+        GolombCodedSet decoded = new GolombCodedSet(Sha256Hash.wrap(randomBytes(random, 32)), filter.getBytes());
+        assertFalse(decoded.matchAny(elements.subList(0, 10)));
+    }
+
+    @Test
+    public void emptyFilter() {
+        GolombCodedSet filter = GolombCodedSet.build(Sha256Hash.ZERO_HASH, Collections.<byte[]>emptyList());
+        assertEquals("00", HEX.encode(filter.getBytes()));
+        assertFalse(filter.match(new byte[] {1}));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void truncatedFilter() {
+        Random random = new Random(7);
+        List<byte[]> elements = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            elements.add(randomBytes(random, 25));
+        byte[] bytes = GolombCodedSet.build(Sha256Hash.ZERO_HASH, elements).getBytes();
+        byte[] truncated = new byte[bytes.length / 2];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        List<byte[]> others = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            others.add(randomBytes(random, 25));
+        // Some of these hash beyond the values still present, so decoding runs out of data.
+        new GolombCodedSet(Sha256Hash.ZERO_HASH, truncated).matchAny(others);
+    }
+
+    @Test
+    public void messageRoundTrips() {
+        NetworkParameters params = UnitTestParams.get();
+        MessageSerializer serializer = params.getDefaultSerializer();
+        Block genesis = TestNet3Params.get().getGenesisBlock();
+        GolombCodedSet filter = GolombCodedSet.buildBasicFilter(genesis, Collections.<byte[]>emptyList());
+
+        CFilterMessage cfilter = new CFilterMessage(params, filter);
+        CFilterMessage cfilterCopy = (CFilterMessage) roundTrip(serializer, cfilter);
+        assertEquals(cfilter, cfilterCopy);
+        assertEquals(filter, cfilterCopy.getFilter());
+
+        GetCFiltersMessage getcfilters = new GetCFiltersMessage(params, GolombCodedSet.BASIC_FILTER_TYPE, 5,
+                genesis.getHash());
+        assertEquals(getcfilters, roundTrip(serializer, getcfilters));
+        GetCFHeadersMessage getcfheaders = new GetCFHeadersMessage(params, GolombCodedSet.BASIC_FILTER_TYPE, 5,
+                genesis.getHash());
+        assertEquals(getcfheaders, roundTrip(serializer, getcfheaders));
+
+        CFHeadersMessage cfheaders = new CFHeadersMessage(params, GolombCodedSet.BASIC_FILTER_TYPE, genesis.getHash(),
+                Sha256Hash.ZERO_HASH, Collections.singletonList(filter.getFilterHash()));
+        CFHeadersMessage cfheadersCopy = (CFHeadersMessage) roundTrip(serializer, cfheaders);
+        assertEquals(cfheaders, cfheadersCopy);
+        assertEquals(filter.getFilterHeader(Sha256Hash.ZERO_HASH), cfheadersCopy.getFilterHeaders().get(0));
+    }
+
+    private static Message roundTrip(MessageSerializer serializer, Message message) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            serializer.serialize(message, bos);
+            return serializer.deserialize(ByteBuffer.wrap(bos.toByteArray()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
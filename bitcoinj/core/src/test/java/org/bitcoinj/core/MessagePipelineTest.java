@@ -0,0 +1,177 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.net.ByteBufferPool;
+import org.bitcoinj.net.MessageWriteTarget;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MessagePipelineTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private MessagePipeline pipeline;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (pipeline != null)
+            pipeline.shutdown();
+    }
+
+    // Records the messages it processes, holding up the first until allowed to carry on.
+    private static class TestHandler extends PeerSocketHandler {
+        final List<Long> nonces = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch processed;
+        final CountDownLatch carryOn;
+
+        TestHandler(int expectedMessages, CountDownLatch carryOn) {
+            super(PARAMS, new InetSocketAddress("127.0.0.1", 2000));
+            this.processed = new CountDownLatch(expectedMessages);
+            this.carryOn = carryOn;
+        }
+
+        @Override
+        protected void processMessage(Message m) throws Exception {
+            carryOn.await();
+            nonces.add(((Ping) m).getNonce());
+            processed.countDown();
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+    }
+
+    private static class TestWriteTarget implements MessageWriteTarget {
+        volatile boolean readPaused, closed;
+        volatile int pauses;
+
+        @Override
+        public void writeBytes(byte[] message) {
+        }
+
+        @Override
+        public void writeBuffers(ByteBuffer[] buffers, @Nullable ByteBufferPool pool) {
+        }
+
+        @Override
+        public void setReadPaused(boolean paused) {
+            if (paused)
+                pauses++;
+            readPaused = paused;
+        }
+
+        @Override
+        public void closeConnection() {
+            closed = true;
+        }
+    }
+
+    // Pings with the nonces 0 to count - 1, serialized one after the other.
+    private static ByteBuffer pings(int count) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++)
+            PARAMS.getDefaultSerializer().serialize(new Ping(i), bytes);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    @Test
+    public void processesInOrder() throws Exception {
+        pipeline = new MessagePipeline(4, MessagePipeline.DEFAULT_MAX_QUEUED_BYTES);
+        TestHandler handler = new TestHandler(100, new CountDownLatch(0));
+        handler.setWriteTarget(new TestWriteTarget());
+        handler.setMessagePipeline(pipeline);
+        ByteBuffer buff = pings(100);
+        assertEquals(buff.limit(), handler.receiveBytes(buff));
+
+        assertTrue(handler.processed.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; i++)
+            assertEquals(i, (long) handler.nonces.get(i));
+        // The count is taken just after the last message is processed.
+        for (int i = 0; i < 100 && pipeline.getProcessedMessages() < 100; i++)
+            Thread.sleep(10);
+        assertEquals(100, pipeline.getProcessedMessages());
+        assertEquals(0, pipeline.getQueuedMessages());
+        assertTrue(pipeline.getPeakQueuedMessages() > 0);
+        assertEquals(0, pipeline.getReadPauses());
+    }
+
+    @Test
+    public void pausesReadingWhenBehind() throws Exception {
+        // Each ping has an eight byte payload, so reading pauses past four queued pings.
+        pipeline = new MessagePipeline(1, 32);
+        CountDownLatch carryOn = new CountDownLatch(1);
+        TestHandler handler = new TestHandler(10, carryOn);
+        TestWriteTarget target = new TestWriteTarget();
+        handler.setWriteTarget(target);
+        handler.setMessagePipeline(pipeline);
+        handler.receiveBytes(pings(10));
+        assertTrue(target.readPaused);
+        assertEquals(1, pipeline.getReadPauses());
+
+        carryOn.countDown();
+        assertTrue(handler.processed.await(10, TimeUnit.SECONDS));
+        assertFalse(target.readPaused);
+        assertEquals(1, target.pauses);
+    }
+
+    @Test
+    public void closesOnBadMessage() throws Exception {
+        pipeline = new MessagePipeline(1, MessagePipeline.DEFAULT_MAX_QUEUED_BYTES);
+        CountDownLatch carryOn = new CountDownLatch(1);
+        TestHandler handler = new TestHandler(1, carryOn);
+        TestWriteTarget target = new TestWriteTarget();
+        handler.setWriteTarget(target);
+        handler.setMessagePipeline(pipeline);
+        ByteBuffer buff = pings(3);
+        // Corrupt the payload of the second ping, which only fails its checksum once parsed.
+        buff.put(32 + 24, (byte) 0xff);
+        assertEquals(buff.limit(), handler.receiveBytes(buff));
+        assertFalse(target.closed);
+
+        carryOn.countDown();
+        assertTrue(handler.processed.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 100 && !target.closed; i++)
+            Thread.sleep(10);
+        assertTrue(target.closed);
+        assertEquals(Collections.singletonList(0L), handler.nonces);
+        assertEquals(0, pipeline.getQueuedMessages());
+    }
+}
@@ -498,6 +498,113 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(d.peer, peerGroup.getDownloadPeer());*/
     }
 
+    @Test
+    public void compactFilterSync() throws Exception {
+        peerGroup.setCompactFilterSyncEnabled(true);
+        peerGroup.start();
+        // A peer that doesn't serve compact filters can't be used to download the chain.
+        InboundMessageQueuer p1 = connectPeer(1);
+        assertNull(peerGroup.getDownloadPeer());
+        VersionMessage filterVersion = new VersionMessage(PARAMS, 1);
+        filterVersion.clientVersion = remoteVersionMessage.clientVersion;
+        filterVersion.localServices = VersionMessage.NODE_NETWORK | VersionMessage.NODE_COMPACT_FILTERS;
+        InboundMessageQueuer p2 = connectPeer(2, filterVersion);
+        assertEquals(p2.peer, peerGroup.getDownloadPeer());
+
+        peerGroup.startBlockChainDownload(new DownloadProgressTracker());
+        assertTrue(outbound(p2) instanceof GetHeadersMessage);
+        // No Bloom filter is ever sent, and transactions aren't relayed to us.
+        assertNull(outbound(p1));
+        assertNull(p1.lastReceivedFilter);
+        assertFalse(peerGroup.getVersionMessage().relayTxesBeforeFilter);
+    }
+
+    @Test
+    public void headersFirstSync() throws Exception {
+        peerGroup.setHeadersFirstSyncEnabled(true);
+        peerGroup.setHeadersFirstStallTimeoutMillis(500);
+        peerGroup.start();
+        // Blocks after the fast catchup time, so that their bodies are downloaded.
+        List<Block> blocks = new ArrayList<>();
+        Map<Sha256Hash, Block> blocksByHash = new HashMap<>();
+        List<Block> headers = new ArrayList<>();
+        Block prev = blockStore.getChainHead().getHeader();
+        for (int height = 1; height <= 8; height++) {
+            prev = prev.createNextBlock(new ECKey().toAddress(PARAMS), Block.BLOCK_VERSION_GENESIS,
+                    Utils.currentTimeSeconds() + height, height);
+            prev.solve();
+            blocks.add(prev);
+            blocksByHash.put(prev.getHash(), prev);
+            headers.add(prev.cloneAsHeader());
+        }
+        VersionMessage ver = new VersionMessage(PARAMS, blocks.size());
+        ver.clientVersion = remoteVersionMessage.clientVersion;
+        ver.localServices = VersionMessage.NODE_NETWORK;
+        InboundMessageQueuer p1 = connectPeer(1, ver);
+        InboundMessageQueuer p2 = connectPeer(2, ver);
+        InboundMessageQueuer p3 = connectPeer(3, ver);
+        assertEquals(p1.peer, peerGroup.getDownloadPeer());
+
+        peerGroup.startBlockChainDownload(new DownloadProgressTracker());
+        assertTrue(outbound(p1) instanceof GetHeadersMessage);
+        inbound(p1, new HeadersMessage(PARAMS, headers));
+        pingAndWait(p1);
+        peerGroup.waitForJobQueue();
+        // The bodies are requested from all the peers. The third one never answers.
+        List<Sha256Hash> stalled = requestedBlocks(p3);
+        assertFalse(stalled.isEmpty());
+        int answered = 0;
+        for (InboundMessageQueuer p : Arrays.asList(p1, p2)) {
+            List<Sha256Hash> requested = requestedBlocks(p);
+            assertFalse(requested.isEmpty());
+            for (Sha256Hash hash : requested) {
+                inbound(p, blocksByHash.get(hash));
+                answered++;
+            }
+        }
+        assertEquals(blocks.size(), answered + stalled.size());
+        pingAndWait(p1);
+        pingAndWait(p2);
+        peerGroup.waitForJobQueue();
+        // Only the blocks before the first one asked to the stalled peer can be connected.
+        int firstStalled = blocks.indexOf(blocksByHash.get(stalled.get(0)));
+        assertEquals(firstStalled, blockChain.getBestChainHeight());
+
+        // After the stall timeout, the missing blocks are requested from the other peers.
+        Set<Sha256Hash> rerequested = new HashSet<>();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (rerequested.size() < stalled.size() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            for (InboundMessageQueuer p : Arrays.asList(p1, p2)) {
+                for (Sha256Hash hash : requestedBlocks(p)) {
+                    rerequested.add(hash);
+                    inbound(p, blocksByHash.get(hash));
+                }
+            }
+        }
+        assertEquals(new HashSet<>(stalled), rerequested);
+        pingAndWait(p1);
+        pingAndWait(p2);
+        peerGroup.waitForJobQueue();
+        assertEquals(blocks.get(blocks.size() - 1), blockChain.getChainHead().getHeader());
+        // Then the download peer asks for more headers.
+        Message m;
+        while ((m = outbound(p1)) instanceof GetDataMessage);
+        assertTrue(m instanceof GetHeadersMessage);
+    }
+
+    private List<Sha256Hash> requestedBlocks(InboundMessageQueuer p) throws Exception {
+        List<Sha256Hash> hashes = new ArrayList<>();
+        Message m;
+        while ((m = outbound(p)) != null) {
+            if (m instanceof GetDataMessage) {
+                for (InventoryItem item : ((GetDataMessage) m).getItems())
+                    hashes.add(item.hash);
+            }
+        }
+        return hashes;
+    }
+
     @Test
     public void peerTimeoutTest() throws Exception {
         final int timeout = 100;
@@ -672,6 +779,33 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertFalse(f1.contains(key.getPubKeyHash()));
     }
 
+    @Test
+    public void addBloomFilterElements() throws Exception {
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        peerGroup.waitForJobQueue();
+        BloomFilter f1 = p1.lastReceivedFilter;
+        assertNotNull(f1);
+        while (outbound(p1) != null);
+        // A few elements are added to the filter of the peers without resending it.
+        byte[] element = new byte[] {1, 2, 3, 4};
+        assertFalse(f1.contains(element));
+        BloomFilter filter = peerGroup.addBloomFilterElements(ImmutableList.of(element)).get();
+        assertTrue(filter.contains(element));
+        assertTrue(peerOf(p1).getBloomFilter().contains(element));
+        FilterAddMessage add = (FilterAddMessage) outbound(p1);
+        assertArrayEquals(element, add.getData());
+        assertNull(outbound(p1));
+        // Adding more than the filter was sized for causes it to be recalculated and resent instead.
+        List<byte[]> elements = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            elements.add(Utils.HEX.decode(String.format("%08x", i)));
+        peerGroup.addBloomFilterElements(elements).get();
+        assertEquals(BloomFilter.class, outbound(p1).getClass());
+        assertEquals(MemoryPoolMessage.class, outbound(p1).getClass());
+        assertNull(outbound(p1));
+    }
+
     @Test
     public void waitForNumPeers1() throws Exception {
         ListenableFuture<List<Peer>> future = peerGroup.waitForPeers(3);
@@ -506,6 +506,59 @@ public class PeerTest extends TestWithNetworkConnections {
         closePeer(peer);
     }
 
+    @Test
+    public void compactFilterChainDownload() throws Exception {
+        connectWithVersion(70001, VersionMessage.NODE_NETWORK | VersionMessage.NODE_COMPACT_FILTERS);
+        // Only the block paying to our address matches its filter, so only that one is downloaded in full.
+        Block b1 = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).block;
+        blockChain.add(b1);
+        Block b2 = makeSolvedTestBlock(b1);
+        Transaction tx = createFakeTx(PARAMS, COIN, address);
+        Block b3 = makeSolvedTestBlock(b2, tx);
+        Block b4 = makeSolvedTestBlock(b3);
+        final byte[] myScript = tx.getOutput(0).getScriptBytes();
+        peer.setCompactFilterProvider(new CompactFilterProvider() {
+            @Override
+            public List<byte[]> getCompactFilterElements() {
+                return ImmutableList.of(myScript);
+            }
+        });
+
+        peer.startBlockChainDownload();
+        GetHeadersMessage getheaders = (GetHeadersMessage) outbound(writeTarget);
+        assertEquals(b1.getHash(), getheaders.getLocator().get(0));
+        inbound(writeTarget, new HeadersMessage(PARAMS, b2.cloneAsHeader(), b3.cloneAsHeader(), b4.cloneAsHeader()));
+        GetCFiltersMessage getcfilters = (GetCFiltersMessage) outbound(writeTarget);
+        assertEquals(new GetCFiltersMessage(PARAMS, GolombCodedSet.BASIC_FILTER_TYPE, 2, b4.getHash()), getcfilters);
+        List<byte[]> noSpends = ImmutableList.of();
+        inbound(writeTarget, new CFilterMessage(PARAMS, GolombCodedSet.buildBasicFilter(b2, noSpends)));
+        inbound(writeTarget, new CFilterMessage(PARAMS, GolombCodedSet.buildBasicFilter(b3, noSpends)));
+        inbound(writeTarget, new CFilterMessage(PARAMS, GolombCodedSet.buildBasicFilter(b4, noSpends)));
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(1, getdata.getItems().size());
+        assertEquals(b3.getHash(), getdata.getItems().get(0).hash);
+        assertEquals(b1.getHash(), blockChain.getChainHead().getHeader().getHash());
+        inbound(writeTarget, b3);
+
+        // All blocks are connected, and we ask whether there are more.
+        getheaders = (GetHeadersMessage) outbound(writeTarget);
+        assertEquals(b4.getHash(), getheaders.getLocator().get(0));
+        assertEquals(b4.getHash(), blockChain.getChainHead().getHeader().getHash());
+        assertNotNull(wallet.getTransaction(tx.getHash()));
+        inbound(writeTarget, new HeadersMessage(PARAMS));
+        pingAndWait(writeTarget);
+        assertNull(outbound(writeTarget));
+
+        // A new block is announced: we ask for its header rather than the block.
+        Block b5 = makeSolvedTestBlock(b4);
+        InventoryMessage inv = new InventoryMessage(PARAMS);
+        inv.addBlock(b5);
+        inbound(writeTarget, inv);
+        getheaders = (GetHeadersMessage) outbound(writeTarget);
+        assertEquals(b4.getHash(), getheaders.getLocator().get(0));
+        closePeer(peer);
+    }
+
     @Test
     public void pingPong() throws Exception {
         connect();
@@ -0,0 +1,114 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.Script.VerifyFlag;
+import org.bitcoinj.script.ScriptOpCodes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ScriptVerificationPipelineTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final Set<VerifyFlag> FLAGS = EnumSet.noneOf(VerifyFlag.class);
+    // Scripts which the empty script signature spends, doesn't spend, and fails on.
+    private static final Script TRUE = new Script(new byte[] {(byte) ScriptOpCodes.OP_TRUE});
+    private static final Script FALSE = new Script(new byte[] {(byte) ScriptOpCodes.OP_FALSE});
+    private static final Script RETURN = new Script(new byte[] {(byte) ScriptOpCodes.OP_RETURN});
+
+    private ScriptVerificationPipeline pipeline;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(PARAMS);
+        pipeline = new ScriptVerificationPipeline(context, 4, 8);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pipeline.shutdown();
+    }
+
+    private static Transaction spend(int inputs) {
+        Transaction tx = new Transaction(PARAMS);
+        for (int i = 0; i < inputs; i++)
+            tx.addInput(Sha256Hash.ZERO_HASH, i, new Script(new byte[0]));
+        tx.addOutput(Coin.COIN, new ECKey().toAddress(PARAMS));
+        return tx;
+    }
+
+    private static List<Script> scripts(int count) {
+        List<Script> scripts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            scripts.add(TRUE);
+        return scripts;
+    }
+
+    @Test
+    public void verifiesAllInputs() throws Exception {
+        ScriptVerificationPipeline.BlockVerification verification = pipeline.begin();
+        verification.add(spend(100), scripts(100), FLAGS);
+        verification.add(spend(3), scripts(3), FLAGS);
+        verification.finish();
+        assertEquals(103, pipeline.getVerifiedInputs());
+        assertEquals(0, pipeline.getQueuedInputs());
+        assertTrue(pipeline.getInputsPerSecond() > 0);
+    }
+
+    @Test
+    public void reportsFirstFailure() throws Exception {
+        List<Script> early = scripts(50);
+        early.set(2, FALSE);
+        List<Script> late = scripts(50);
+        late.set(30, RETURN);
+        ScriptVerificationPipeline.BlockVerification verification = pipeline.begin();
+        verification.add(spend(50), early, FLAGS);
+        verification.add(spend(50), late, FLAGS);
+        try {
+            verification.finish();
+            fail();
+        } catch (ScriptException e) {
+            // The failing input of the transaction added first wins, however the batches were scheduled.
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Script resulted in a non-true stack"));
+        }
+        assertEquals(0, pipeline.getQueuedInputs());
+
+        // The threads carry on with the next block.
+        verification = pipeline.begin();
+        verification.add(spend(20), scripts(20), FLAGS);
+        verification.finish();
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        ScriptVerificationPipeline.BlockVerification verification = pipeline.begin();
+        verification.cancel();
+        verification.add(spend(40), scripts(40), FLAGS);
+        verification.finish();
+        assertEquals(0, pipeline.getVerifiedInputs());
+        assertEquals(0, pipeline.getQueuedInputs());
+    }
+}
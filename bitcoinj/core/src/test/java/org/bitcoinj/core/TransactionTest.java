@@ -452,6 +452,82 @@ public class TransactionTest {
         }
     }
 
+    @Test
+    public void legacySigHashMatchesModifiedCopy() {
+        final Random random = new Random(1);
+        for (int round = 0; round < 50; round++) {
+            final Transaction tx = new Transaction(PARAMS);
+            tx.setVersion(random.nextInt());
+            tx.setLockTime(random.nextInt() & 0xffffffffL);
+            final int inputs = 1 + random.nextInt(4), outputs = 1 + random.nextInt(4);
+            for (int i = 0; i < inputs; i++) {
+                final TransactionInput input = tx.addInput(Sha256Hash.wrap(randomBytes(random, 32)),
+                        random.nextInt(10), new Script(new byte[0]));
+                input.setScriptBytes(randomBytes(random, random.nextInt(300)));
+                input.setSequenceNumber(random.nextInt() & 0xffffffffL);
+            }
+            for (int i = 0; i < outputs; i++)
+                tx.addOutput(new TransactionOutput(PARAMS, tx, Coin.valueOf(random.nextInt(Integer.MAX_VALUE)),
+                        randomBytes(random, random.nextInt(300))));
+            final byte[] connectedScript = new ScriptBuilder().op(OP_DUP).op(OP_CODESEPARATOR)
+                    .data(randomBytes(random, random.nextInt(100))).op(OP_CHECKSIG).build().getProgram();
+            for (int inputIndex = 0; inputIndex < inputs; inputIndex++) {
+                for (byte sigHashType : new byte[] {1, 2, 3, (byte) 0x81, (byte) 0x82, (byte) 0x83, 0,
+                        (byte) random.nextInt()}) {
+                    assertEquals(hashForSignatureOfModifiedCopy(tx, inputIndex, connectedScript, sigHashType),
+                            tx.hashForSignature(inputIndex, connectedScript, sigHashType));
+                }
+            }
+        }
+    }
+
+    /** The signature hash computed the way Bitcoin Core describes it, by modifying and serializing a copy of the tx. */
+    private static Sha256Hash hashForSignatureOfModifiedCopy(Transaction original, int inputIndex,
+                                                             byte[] connectedScript, byte sigHashType) {
+        final Transaction tx = new Transaction(original.getParams(), original.bitcoinSerialize());
+        for (TransactionInput input : tx.getInputs())
+            input.clearScriptBytes();
+        final TransactionInput input = tx.getInput(inputIndex);
+        input.setScriptBytes(Script.removeAllInstancesOfOp(connectedScript, OP_CODESEPARATOR));
+        final List<TransactionOutput> outputs = new ArrayList<>(tx.getOutputs());
+        List<TransactionInput> inputs = new ArrayList<>(tx.getInputs());
+        if ((sigHashType & 0x1f) == Transaction.SigHash.NONE.value) {
+            outputs.clear();
+            for (TransactionInput other : inputs)
+                if (other != input)
+                    other.setSequenceNumber(0);
+        } else if ((sigHashType & 0x1f) == Transaction.SigHash.SINGLE.value) {
+            if (inputIndex >= outputs.size())
+                return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+            outputs.subList(inputIndex + 1, outputs.size()).clear();
+            for (int i = 0; i < inputIndex; i++)
+                outputs.set(i, new TransactionOutput(tx.getParams(), tx, Coin.NEGATIVE_SATOSHI, new byte[0]));
+            for (TransactionInput other : inputs)
+                if (other != input)
+                    other.setSequenceNumber(0);
+        }
+        if ((sigHashType & Transaction.SigHash.ANYONECANPAY.value) == Transaction.SigHash.ANYONECANPAY.value)
+            inputs = Collections.singletonList(input);
+        final Transaction copy = new Transaction(tx.getParams());
+        copy.setVersion((int) tx.getVersion());
+        copy.setLockTime(tx.getLockTime());
+        for (TransactionInput in : inputs)
+            copy.addInput(new TransactionInput(tx.getParams(), copy, in.getScriptBytes(), in.getOutpoint()))
+                    .setSequenceNumber(in.getSequenceNumber());
+        for (TransactionOutput out : outputs)
+            copy.addOutput(new TransactionOutput(tx.getParams(), copy, out.getValue(), out.getScriptBytes()));
+        final byte[] serialized = copy.bitcoinSerialize();
+        final byte[] preimage = Arrays.copyOf(serialized, serialized.length + 4);
+        Utils.uint32ToByteArrayLE(0x000000ff & sigHashType, preimage, serialized.length);
+        return Sha256Hash.twiceOf(preimage);
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        final byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
     /**
      * Native P2WPKH transaction. From BIP-143.
      */
@@ -492,6 +568,40 @@ public class TransactionTest {
             tx, 1, scriptPubKey, value, Script.ALL_VERIFY_FLAGS);
     }
 
+    @Test
+    public void witnessSigHashContextInvalidation() {
+        final byte[] unsignedTxBin = HEX.decode("0100000002fff7f7881a8099afa6940d42d1e7f6362bec38171ea3edf433541db4e4ad969f0000000000eeffffffef51e1b804cc89d182d279655c3aa89e815b1b309fe287d9b2b55d57b90ec68a0100000000ffffffff02202cb206000000001976a9148280b37df378db99f66f85c95a783a76ac7a6d5988ac9093510d000000001976a9143bde42dbee7e4dbe6a21b2d50ce2f0167faa815988ac11000000");
+        final Transaction tx = new Transaction(MainNetParams.get(), unsignedTxBin);
+        final Script scriptCode = new Script(HEX.decode("00141d0f172a0ecb48aee1be1f2687d2963ae33f71a1")).scriptCode();
+        final Coin value = Coin.valueOf(6, 0);
+        final Sha256Hash sigHash = tx.hashForSignatureWitness(1, scriptCode, value, Transaction.SigHash.ALL, false);
+
+        // Input scripts aren't covered, so setting them leaves the hash alone.
+        tx.getInput(0).setScriptBytes(new byte[] {1, 2, 3});
+        assertEquals(sigHash, tx.hashForSignatureWitness(1, scriptCode, value, Transaction.SigHash.ALL, false));
+
+        // Changes to what the shared hashes commit to must be picked up.
+        tx.getInput(0).setSequenceNumber(0);
+        assertWitnessSigHashMatchesFreshCopy(tx, scriptCode, value);
+        tx.getOutput(0).setValue(Coin.COIN);
+        assertWitnessSigHashMatchesFreshCopy(tx, scriptCode, value);
+        tx.addOutput(Coin.CENT, ADDRESS);
+        assertWitnessSigHashMatchesFreshCopy(tx, scriptCode, value);
+        tx.addInput(Sha256Hash.ZERO_HASH, 1, new Script(new byte[0]));
+        assertWitnessSigHashMatchesFreshCopy(tx, scriptCode, value);
+    }
+
+    private static void assertWitnessSigHashMatchesFreshCopy(Transaction tx, Script scriptCode, Coin value) {
+        final Transaction copy = new Transaction(tx.getParams(), tx.bitcoinSerialize());
+        for (Transaction.SigHash type : new Transaction.SigHash[] {Transaction.SigHash.ALL, Transaction.SigHash.NONE,
+                Transaction.SigHash.SINGLE}) {
+            for (boolean anyoneCanPay : new boolean[] {false, true}) {
+                assertEquals(copy.hashForSignatureWitness(1, scriptCode, value, type, anyoneCanPay),
+                        tx.hashForSignatureWitness(1, scriptCode, value, type, anyoneCanPay));
+            }
+        }
+    }
+
     /**
      * P2WPKH nested in P2SH transaction. From BIP-143.
      */
@@ -0,0 +1,86 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ByteBufferPoolTest {
+    @Test
+    public void sizeClasses() {
+        ByteBufferPool pool = new ByteBufferPool(false, 4096, 1 << 20);
+        assertEquals(ByteBufferPool.MIN_BUFFER_SIZE, pool.acquire(0).capacity());
+        assertEquals(1024, pool.acquire(513).capacity());
+        assertEquals(4096, pool.acquire(4096).capacity());
+        // Bigger than the largest size class, so allocated as asked.
+        assertEquals(5000, pool.acquire(5000).capacity());
+    }
+
+    @Test
+    public void reuse() {
+        ByteBufferPool pool = new ByteBufferPool(true, 4096, 1 << 20);
+        ByteBuffer buffer = pool.acquire(1000);
+        assertTrue(buffer.isDirect());
+        buffer.put(new byte[10]);
+        pool.release(buffer);
+        assertEquals(1024, pool.getPooledBytes());
+        ByteBuffer again = pool.acquire(600);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(1024, again.limit());
+        assertEquals(0, pool.getPooledBytes());
+        assertNotSame(buffer, pool.acquire(600));
+    }
+
+    @Test
+    public void cap() {
+        ByteBufferPool pool = new ByteBufferPool(false, 4096, 2048);
+        ByteBuffer a = pool.acquire(2048), b = pool.acquire(2048);
+        pool.release(a);
+        pool.release(b);
+        assertEquals(2048, pool.getPooledBytes());
+        // Buffers not from the pool aren't kept.
+        pool.release(ByteBuffer.allocate(1000));
+        pool.release(ByteBuffer.allocateDirect(1024));
+        assertSame(a, pool.acquire(2048));
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void statistics() {
+        ByteBufferPool pool = new ByteBufferPool(false, 4096, 1 << 20);
+        ByteBuffer a = pool.acquire(1000), b = pool.acquire(3000);
+        assertEquals(0, pool.getHitRate(), 0);
+        assertEquals(1024 + 4096, pool.getBytesInUse());
+        pool.release(a);
+        pool.release(b);
+        assertEquals(0, pool.getBytesInUse());
+        assertSame(a, pool.acquire(1000));
+        assertEquals(1 / 3.0, pool.getHitRate(), 1e-9);
+        assertEquals(1024, pool.getBytesInUse());
+        assertEquals(1024 + 4096, pool.getPeakBytesInUse());
+
+        // Lowering the cap stops released buffers being kept.
+        pool.setMaxPooledBytes(0);
+        pool.release(a);
+        assertEquals(4096, pool.getPooledBytes());
+        assertNotSame(a, pool.acquire(1000));
+    }
+}
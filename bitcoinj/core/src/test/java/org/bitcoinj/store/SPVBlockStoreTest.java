@@ -24,8 +24,12 @@ import org.bitcoinj.params.UnitTestParams;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class SPVBlockStoreTest {
 
@@ -58,4 +62,106 @@ public class SPVBlockStoreTest {
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    private static File createTempStoreFile() throws Exception {
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockStore.getIndexFile(f).deleteOnExit();
+        return f;
+    }
+
+    private static List<StoredBlock> extendChain(SPVBlockStore store, NetworkParameters params, int count)
+            throws Exception {
+        Address to = new ECKey().toAddress(params);
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < count; i++) {
+            StoredBlock next = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(next);
+            store.setChainHead(next);
+            blocks.add(next);
+            prev = next;
+        }
+        return blocks;
+    }
+
+    @Test
+    public void indexFollowsRingWrapAround() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = createTempStoreFile();
+        final int capacity = 10;
+        SPVBlockStore store = new SPVBlockStore(params, f, capacity);
+        List<StoredBlock> blocks = extendChain(store, params, 35);
+        store.close();
+
+        // Reopen so that lookups have to go through the index rather than the caches.
+        store = new SPVBlockStore(params, f, capacity);
+        for (int i = 0; i < blocks.size(); i++) {
+            StoredBlock block = blocks.get(i);
+            if (i < blocks.size() - capacity)
+                assertNull(store.get(block.getHeader().getHash()));
+            else
+                assertEquals(block, store.get(block.getHeader().getHash()));
+        }
+        assertNull(store.get(params.getGenesisBlock().getHash()));
+        assertEquals(blocks.get(blocks.size() - 1), store.getChainHead());
+        store.close();
+    }
+
+    @Test
+    public void indexIsRebuiltWhenMissing() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = createTempStoreFile();
+        SPVBlockStore store = new SPVBlockStore(params, f);
+        List<StoredBlock> blocks = extendChain(store, params, 5);
+        store.close();
+
+        File indexFile = SPVBlockStore.getIndexFile(f);
+        assertTrue(indexFile.delete());
+        store = new SPVBlockStore(params, f);
+        for (StoredBlock block : blocks)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        assertEquals(blocks.get(blocks.size() - 1), store.getChainHead());
+        store.close();
+    }
+
+    @Test
+    public void staleIndexIsIgnored() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = createTempStoreFile();
+        SPVBlockStore store = new SPVBlockStore(params, f);
+        List<StoredBlock> blocks = extendChain(store, params, 5);
+        store.close();
+
+        // Recreating the chain file must not resurrect headers from the index of the old one.
+        assertTrue(f.delete());
+        store = new SPVBlockStore(params, f);
+        for (StoredBlock block : blocks)
+            assertNull(store.get(block.getHeader().getHash()));
+        assertEquals(params.getGenesisBlock(), store.getChainHead().getHeader());
+        store.close();
+    }
+
+    @Test
+    public void growCapacity() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = createTempStoreFile();
+        SPVBlockStore store = new SPVBlockStore(params, f, 10);
+        List<StoredBlock> blocks = extendChain(store, params, 15);
+        store.close();
+
+        store = new SPVBlockStore(params, f, 100);
+        assertEquals(SPVBlockStore.getFileSize(100), f.length());
+        for (int i = 5; i < blocks.size(); i++)
+            assertEquals(blocks.get(i), store.get(blocks.get(i).getHeader().getHash()));
+        List<StoredBlock> moreBlocks = extendChain(store, params, 50);
+        store.close();
+
+        store = new SPVBlockStore(params, f, 100);
+        for (StoredBlock block : moreBlocks)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        assertEquals(moreBlocks.get(moreBlocks.size() - 1), store.getChainHead());
+        store.close();
+    }
 }
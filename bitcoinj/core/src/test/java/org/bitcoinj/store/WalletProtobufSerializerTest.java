@@ -154,6 +154,51 @@ public class WalletProtobufSerializerTest {
         assertEquals(Purpose.RAISE_FEE, t1copy.getPurpose());
     }
 
+    @Test
+    public void manyTxs() throws Exception {
+        // Enough transactions to be decoded in several batches, one spending all the others.
+        Transaction spend = new Transaction(PARAMS);
+        for (int i = 0; i < 150; i++) {
+            Transaction tx = createFakeTx(PARAMS, CENT, myAddress);
+            myWallet.receivePending(tx, null);
+            spend.addInput(tx.getOutput(0));
+        }
+        spend.addOutput(CENT, new ECKey());
+        myWallet.receivePending(spend, null);
+        Wallet wallet1 = roundTrip(myWallet);
+        assertEquals(151, wallet1.getTransactions(true).size());
+        assertEquals(myWallet.getBalance(Wallet.BalanceType.ESTIMATED), wallet1.getBalance(Wallet.BalanceType.ESTIMATED));
+        Transaction spendCopy = wallet1.getTransaction(spend.getHash());
+        for (TransactionInput input : spendCopy.getInputs())
+            assertEquals(spendCopy, input.getConnectedOutput().getSpentBy().getParentTransaction());
+    }
+
+    @Test
+    public void networkIdentifierAfterTxs() throws Exception {
+        for (int i = 0; i < 3; i++)
+            myWallet.receivePending(createFakeTx(PARAMS, CENT, myAddress), null);
+        Protos.Wallet walletProto = new WalletProtobufSerializer().walletToProto(myWallet);
+        // Concatenated protobuf messages merge, so this is the same wallet with its transactions first.
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Protos.Wallet.newBuilder().addAllTransaction(walletProto.getTransactionList()).buildPartial().writeTo(output);
+        walletProto.toBuilder().clearTransaction().build().writeTo(output);
+        Wallet wallet1 = new WalletProtobufSerializer().readWallet(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(3, wallet1.getTransactions(true).size());
+        assertEquals(CENT.multiply(3), wallet1.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(WALLET_DESCRIPTION, wallet1.getDescription());
+    }
+
+    @Test
+    public void scriptsParsedOnUse() throws Exception {
+        Transaction t1 = createFakeTx(PARAMS, COIN, myAddress);
+        myWallet.receivePending(t1, null);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(myWallet, output);
+        Wallet wallet1 = new WalletProtobufSerializer().readWallet(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(COIN, wallet1.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(myAddress, wallet1.getTransaction(t1.getHash()).getOutput(0).getAddressFromP2PKHScript(PARAMS));
+    }
+
     @Test
     public void doubleSpend() throws Exception {
         // Check that we can serialize double spends correctly, as this is a slightly tricky case.
@@ -153,7 +153,7 @@ public class TestWithPeerGroup extends TestWithNetworkConnections {
     private void stepThroughInit(VersionMessage versionMessage, InboundMessageQueuer writeTarget) throws InterruptedException {
         checkState(writeTarget.nextMessageBlocking() instanceof VersionMessage);
         checkState(writeTarget.nextMessageBlocking() instanceof VersionAck);
-        if (versionMessage.isBloomFilteringSupported()) {
+        if (versionMessage.isBloomFilteringSupported() && !peerGroup.isCompactFilterSyncEnabled()) {
             checkState(writeTarget.nextMessageBlocking() instanceof BloomFilter);
             checkState(writeTarget.nextMessageBlocking() instanceof MemoryPoolMessage);
         }
@@ -48,6 +48,7 @@ public class TestWithWallet {
         BriefLogFormatter.init();
         Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
         wallet = new Wallet(PARAMS);
+        wallet.setCheckBalances(true);
         myKey = wallet.currentReceiveKey();
         myAddress = myKey.toAddress(PARAMS);
         blockStore = new MemoryBlockStore(PARAMS);
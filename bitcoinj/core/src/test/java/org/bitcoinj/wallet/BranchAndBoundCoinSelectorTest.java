@@ -0,0 +1,128 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.testing.*;
+import org.junit.*;
+
+import java.util.*;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class BranchAndBoundCoinSelectorTest extends TestWithWallet {
+    private BranchAndBoundCoinSelector selector;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        selector = new BranchAndBoundCoinSelector();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    // Confirmed outputs of the given values in cents.
+    private List<TransactionOutput> outputs(int... cents) {
+        List<TransactionOutput> outputs = new ArrayList<>();
+        for (int value : cents) {
+            Transaction tx = new Transaction(PARAMS);
+            tx.addOutput(CENT.multiply(value), myAddress);
+            tx.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+            outputs.add(tx.getOutput(0));
+        }
+        return outputs;
+    }
+
+    @Test
+    public void exactMatch() throws Exception {
+        CoinSelection selection = selector.select(CENT.multiply(7), outputs(5, 4, 3, 2));
+        assertEquals(CENT.multiply(7), selection.valueGathered);
+        assertEquals(2, selection.gathered.size());
+    }
+
+    @Test
+    public void exactMatchOfSmallOutputs() throws Exception {
+        // Only a combination of the three smallest outputs adds up to the target without change.
+        CoinSelection selection = selector.select(CENT.multiply(7), outputs(100, 5, 1, 1, 20));
+        assertEquals(CENT.multiply(7), selection.valueGathered);
+        assertEquals(3, selection.gathered.size());
+    }
+
+    @Test
+    public void smallestCoveringOutput() throws Exception {
+        List<TransactionOutput> outputs = outputs(1, 2, 10, 20);
+        CoinSelection selection = selector.select(CENT.multiply(9).add(MILLICOIN.multiply(5)), outputs);
+        assertEquals(Collections.singletonList(outputs.get(2)), new ArrayList<>(selection.gathered));
+    }
+
+    @Test
+    public void largestFirstBelowTarget() throws Exception {
+        List<TransactionOutput> outputs = outputs(1, 2, 3, 4);
+        CoinSelection selection = selector.select(CENT.multiply(6).add(MILLICOIN.multiply(5)), outputs);
+        assertEquals(CENT.multiply(7), selection.valueGathered);
+        assertTrue(selection.gathered.containsAll(Arrays.asList(outputs.get(3), outputs.get(2))));
+    }
+
+    @Test
+    public void insufficient() throws Exception {
+        CoinSelection selection = selector.select(COIN, outputs(1, 2, 3));
+        assertEquals(CENT.multiply(6), selection.valueGathered);
+        assertEquals(3, selection.gathered.size());
+    }
+
+    @Test
+    public void skipsUnselectable() throws Exception {
+        List<TransactionOutput> outputs = outputs(3, 4);
+        outputs.get(0).getParentTransaction().getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.PENDING);
+        CoinSelection selection = selector.select(CENT.multiply(3), outputs);
+        assertEquals(Collections.singletonList(outputs.get(1)), new ArrayList<>(selection.gathered));
+        assertEquals(CENT.multiply(4), selector.select(NetworkParameters.MAX_MONEY, outputs).valueGathered);
+    }
+
+    @Test
+    public void completeTxFromIndex() throws Exception {
+        wallet.setCoinSelector(selector);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT.multiply(50));
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT.multiply(30));
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT.multiply(20));
+        assertEquals(3, ((SpendableOutputIndex) wallet.myUnspents).byValue().size());
+
+        // Paying 80 cents needs no change, as the test context asks for no fees.
+        Address destination = new ECKey().toAddress(PARAMS);
+        SendRequest req = SendRequest.to(destination, CENT.multiply(80));
+        wallet.completeTx(req);
+        assertEquals(2, req.tx.getInputs().size());
+        assertEquals(1, req.tx.getOutputs().size());
+        wallet.commitTx(req.tx);
+        assertEquals(1, ((SpendableOutputIndex) wallet.myUnspents).byValue().size());
+        assertEquals(CENT.multiply(20), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+
+        // Spending more than is confirmed fails.
+        try {
+            wallet.completeTx(SendRequest.to(destination, CENT.multiply(30)));
+            fail();
+        } catch (InsufficientMoneyException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.bitcoinj.testing.TestWithWallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import static org.bitcoinj.testing.FakeTxBuilder.createFakeBlock;
+import static org.junit.Assert.*;
+
+public class WalletJournalTest extends TestWithWallet {
+    private File file;
+    private File journalFile;
+    private WalletFiles files;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("bitcoinj-unit-test", null);
+        journalFile = WalletJournal.getJournalFile(file);
+        files = new WalletFiles(wallet, file, 0, TimeUnit.SECONDS);
+        files.setJournalEnabled(true);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        files.shutdownAndWait();
+        file.delete();
+        journalFile.delete();
+        super.tearDown();
+    }
+
+    @Test
+    public void replaysJournal() throws Exception {
+        files.saveNow();
+        Sha256Hash snapshotHash = Sha256Hash.of(file);
+        long journalLength = journalFile.length();
+
+        Transaction tx1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, Coin.COIN);
+        files.saveNow();
+        ECKey key = wallet.freshReceiveKey();
+        Transaction tx2 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, Coin.CENT, key);
+        Transaction tx3 = sendMoneyToWallet(null, Coin.CENT);
+        files.saveNow();
+        // The changes went to the journal, the snapshot is untouched.
+        assertEquals(snapshotHash, Sha256Hash.of(file));
+        assertTrue(journalFile.length() > journalLength);
+
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertEquals(3, loaded.getTransactions(true).size());
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+        assertEquals(wallet.getBalance(Wallet.BalanceType.ESTIMATED), loaded.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(wallet.getLastBlockSeenHeight(), loaded.getLastBlockSeenHeight());
+        assertTrue(loaded.isPubKeyMine(key.getPubKey()));
+        // Depth isn't journaled but follows from the last seen block.
+        assertEquals(2, loaded.getTransaction(tx1.getHash()).getConfidence().getDepthInBlocks());
+        assertEquals(1, loaded.getTransaction(tx2.getHash()).getConfidence().getDepthInBlocks());
+        assertNotNull(loaded.getTransactionPool(WalletTransaction.Pool.PENDING).get(tx3.getHash()));
+    }
+
+    @Test
+    public void ignoresTornRecord() throws Exception {
+        files.saveNow();
+        Transaction tx1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, Coin.COIN);
+        files.saveNow();
+        long length = journalFile.length();
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, Coin.CENT);
+        files.saveNow();
+
+        // A crash in the middle of the last append.
+        RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+        raf.setLength(length + (raf.length() - length) / 2);
+        raf.close();
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertEquals(1, loaded.getTransactions(true).size());
+        assertNotNull(loaded.getTransaction(tx1.getHash()));
+        assertEquals(Coin.COIN, loaded.getBalance());
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        WalletJournal journal = new WalletJournal(wallet, file);
+        journal.compact(null);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, Coin.COIN);
+        assertFalse(journal.append(null));
+        long journalLength = journalFile.length();
+        Sha256Hash snapshotHash = Sha256Hash.of(file);
+
+        journal.compact(null);
+        assertNotEquals(snapshotHash, Sha256Hash.of(file));
+        assertTrue(journalFile.length() < journalLength);
+        // Nothing changed since the compaction, so nothing to append.
+        long compactedLength = journalFile.length();
+        journal.append(null);
+        assertEquals(compactedLength, journalFile.length());
+
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertEquals(1, loaded.getTransactions(true).size());
+        assertEquals(Coin.COIN, loaded.getBalance());
+    }
+
+    @Test
+    public void journalsOnlyWhatChanged() throws Exception {
+        for (int i = 0; i < 20; i++)
+            sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, Coin.CENT);
+        files.saveNow();
+        Transaction tx = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, Coin.COIN);
+        files.saveNow();
+        long length = journalFile.length();
+
+        // A block without wallet transactions only moves the last seen block.
+        FakeTxBuilder.BlockPair bp = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS);
+        wallet.notifyNewBestBlock(bp.storedBlock);
+        files.saveNow();
+        assertTrue(journalFile.length() - length < 200);
+        // Nothing changed since.
+        length = journalFile.length();
+        files.saveNow();
+        assertEquals(length, journalFile.length());
+
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertEquals(21, loaded.getTransactions(true).size());
+        assertEquals(wallet.getLastBlockSeenHash(), loaded.getLastBlockSeenHash());
+        assertEquals(wallet.getLastBlockSeenHeight(), loaded.getLastBlockSeenHeight());
+        assertEquals(2, loaded.getTransaction(tx.getHash()).getConfidence().getDepthInBlocks());
+    }
+
+    @Test
+    public void failedAppendCompactsNext() throws Exception {
+        files.saveNow();
+        Transaction tx = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, Coin.COIN);
+        // Appending fails as the journal can't be opened.
+        assertTrue(journalFile.delete());
+        assertTrue(journalFile.mkdir());
+        try {
+            files.saveNow();
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertTrue(journalFile.delete());
+
+        // The changes taken by the failed append go into a fresh snapshot.
+        Sha256Hash snapshotHash = Sha256Hash.of(file);
+        files.saveNow();
+        assertNotEquals(snapshotHash, Sha256Hash.of(file));
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertNotNull(loaded.getTransaction(tx.getHash()));
+        assertEquals(Coin.COIN, loaded.getBalance());
+    }
+
+    @Test
+    public void staleJournalIgnored() throws Exception {
+        files.saveNow();
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, Coin.COIN);
+        files.saveNow();
+        File journalCopy = File.createTempFile("bitcoinj-unit-test", null);
+        journalCopy.delete();
+        assertTrue(journalFile.renameTo(journalCopy));
+
+        // The wallet file is rewritten without the journal, then the old journal turns up again.
+        files.setJournalEnabled(false);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, Coin.CENT);
+        files.saveNow();
+        assertTrue(journalCopy.renameTo(journalFile));
+
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertEquals(2, loaded.getTransactions(true).size());
+        assertEquals(Coin.COIN.add(Coin.CENT), loaded.getBalance());
+    }
+
+    @Test
+    public void disablingRemovesJournal() throws Exception {
+        files.saveNow();
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, Coin.COIN);
+        files.saveNow();
+        assertTrue(journalFile.exists());
+        files.setJournalEnabled(false);
+        files.saveNow();
+        assertFalse(journalFile.exists());
+        assertEquals(Coin.COIN, Wallet.loadFromFile(file).getBalance());
+    }
+}
@@ -1660,6 +1660,41 @@ public class WalletTest extends TestWithWallet {
         wallet.createSend(OTHER_ADDRESS, CENT);
     }
 
+    @Test
+    public void watchingScriptsSpendableAfterImport() throws Exception {
+        ECKey watchedKey = new ECKey();
+        wallet.addWatchedAddress(watchedKey.toAddress(PARAMS));
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, CENT, watchedKey.toAddress(PARAMS));
+        assertEquals(CENT, wallet.getBalance(Wallet.BalanceType.AVAILABLE));
+        assertEquals(ZERO, wallet.getBalance(Wallet.BalanceType.AVAILABLE_SPENDABLE));
+        assertEquals(ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED_SPENDABLE));
+
+        wallet.importKey(watchedKey);
+        assertEquals(CENT, wallet.getBalance(Wallet.BalanceType.AVAILABLE_SPENDABLE));
+        assertEquals(CENT, wallet.getBalance(Wallet.BalanceType.ESTIMATED_SPENDABLE));
+        wallet.removeKey(watchedKey);
+        assertEquals(ZERO, wallet.getBalance(Wallet.BalanceType.AVAILABLE_SPENDABLE));
+        assertEquals(CENT, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
+    @Test
+    public void balancesWithCustomCoinSelector() throws Exception {
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, COIN);
+        Transaction tx = createFakeTx(PARAMS, CENT, myAddress);
+        wallet.receivePending(tx, null);
+        assertEquals(COIN, wallet.getBalance());
+        assertEquals(COIN.add(CENT), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+
+        // The running totals are of what the default coin selector would select, so aren't used for this one.
+        wallet.allowSpendingUnconfirmedTransactions();
+        assertEquals(COIN.add(CENT), wallet.getBalance());
+        wallet.setCoinSelector(new DefaultCoinSelector());
+        assertEquals(COIN, wallet.getBalance());
+
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, tx);
+        assertEquals(COIN.add(CENT), wallet.getBalance());
+    }
+
     @Test
     public void watchingScriptsSentFrom() throws Exception {
         int baseElements = wallet.getBloomFilterElementCount();
@@ -0,0 +1,128 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.examples;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures {@link BloomFilter#applyAndUpdate(Block)} on blocks the size of current mainnet blocks, for wallet filters
+ * of growing size, first from a single thread and then from several threads sharing the same filter, as done when
+ * serving filtered blocks to many peers.
+ *
+ * Usage: BloomFilterBenchmark [filter elements...]
+ */
+public class BloomFilterBenchmark {
+    private static final int TRANSACTIONS = 2500;
+    private static final int ROUNDS = 20;
+    private static final int THREADS = 4;
+
+    public static void main(String[] args) throws Exception {
+        final NetworkParameters params = UnitTestParams.get();
+        Context.propagate(new Context(params));
+        int[] elementCounts = {100, 1000, 10000};
+        if (args.length > 0) {
+            elementCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                elementCounts[i] = Integer.parseInt(args[i]);
+        }
+
+        final Block block = createBlock(params);
+        System.out.println("elements  blocks/s (1 thread)  blocks/s (" + THREADS + " threads)");
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        for (int elementCount : elementCounts) {
+            final BloomFilter filter = createFilter(elementCount);
+            // Warm up the JIT before timing.
+            for (int round = 0; round < ROUNDS; round++)
+                filter.applyAndUpdate(block);
+            long start = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++)
+                filter.applyAndUpdate(block);
+            double single = ROUNDS / ((System.nanoTime() - start) / 1e9);
+
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int round = 0; round < ROUNDS; round++)
+                            filter.applyAndUpdate(block);
+                        return null;
+                    }
+                });
+            }
+            start = System.nanoTime();
+            for (Future<Void> future : executor.invokeAll(tasks))
+                future.get();
+            double concurrent = THREADS * ROUNDS / ((System.nanoTime() - start) / 1e9);
+            System.out.println(String.format("%8d  %19.1f  %19.1f", elementCount, single, concurrent));
+        }
+        executor.shutdown();
+    }
+
+    private static BloomFilter createFilter(int elementCount) {
+        BloomFilter filter = new BloomFilter(elementCount, 0.0001, new Random().nextLong());
+        for (int i = 0; i < elementCount / 2; i++)
+            filter.insert(new ECKey());
+        return filter;
+    }
+
+    // A block of transactions spending two P2PKH outputs to two others, parsed like a block received from the network.
+    private static Block createBlock(NetworkParameters params) {
+        Random random = new Random(1);
+        ECKey key = new ECKey();
+        byte[] signature = new byte[72];
+        random.nextBytes(signature);
+        Script scriptSig = new ScriptBuilder().data(signature).data(key.getPubKey()).build();
+        List<Transaction> transactions = new ArrayList<>();
+        for (int i = 0; i < TRANSACTIONS; i++) {
+            Transaction tx = new Transaction(params);
+            for (int j = 0; j < 2; j++) {
+                byte[] hash = new byte[Sha256Hash.LENGTH];
+                random.nextBytes(hash);
+                tx.addInput(Sha256Hash.wrap(hash), j, scriptSig);
+            }
+            for (int j = 0; j < 2; j++) {
+                byte[] pubKeyHash = new byte[20];
+                random.nextBytes(pubKeyHash);
+                tx.addOutput(Coin.CENT, ScriptBuilder.createOutputScript(new Address(params, pubKeyHash)));
+            }
+            transactions.add(tx);
+        }
+        // The merkle root is calculated when serializing the block.
+        Block block = new Block(params, 1, Sha256Hash.ZERO_HASH, null, 0, 0, 0, transactions);
+        return params.getDefaultSerializer().makeBlock(block.bitcoinSerialize());
+    }
+}
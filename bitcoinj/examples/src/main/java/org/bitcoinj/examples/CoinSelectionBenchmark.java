@@ -0,0 +1,90 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.examples;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.wallet.BranchAndBoundCoinSelector;
+import org.bitcoinj.wallet.CoinSelector;
+import org.bitcoinj.wallet.DefaultCoinSelector;
+import org.bitcoinj.wallet.SendRequest;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletTransaction;
+
+import java.util.Random;
+
+/**
+ * Measures {@link Wallet#completeTx(SendRequest)} on a wallet with many unspent outputs, with the
+ * {@link DefaultCoinSelector} and with the {@link BranchAndBoundCoinSelector}, which selects from the index the wallet
+ * keeps of its outputs.
+ *
+ * Usage: CoinSelectionBenchmark [unspent outputs]
+ */
+public class CoinSelectionBenchmark {
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        Context.propagate(new Context(params));
+        int outputCount = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        Wallet wallet = createWallet(params, outputCount);
+        Address destination = new ECKey().toAddress(params);
+        System.out.println(outputCount + " unspent outputs, balance " + wallet.getBalance().toFriendlyString());
+        System.out.println("selector                     ms per payment");
+        for (CoinSelector selector : new CoinSelector[] { new DefaultCoinSelector(), new BranchAndBoundCoinSelector() }) {
+            wallet.setCoinSelector(selector);
+            Random random = new Random(2);
+            double best = Double.MAX_VALUE;
+            // The first round warms up the JIT.
+            for (int round = 0; round <= ROUNDS; round++) {
+                SendRequest req = SendRequest.to(destination, Coin.valueOf(1000000 + random.nextInt(100000000)));
+                long start = System.nanoTime();
+                wallet.completeTx(req);
+                double millis = (System.nanoTime() - start) / 1e6;
+                if (round > 0)
+                    best = Math.min(best, millis);
+            }
+            System.out.println(String.format("%-27s  %14.2f", selector.getClass().getSimpleName(), best));
+        }
+    }
+
+    // Confirmed transactions each paying the wallet an output of random value.
+    private static Wallet createWallet(NetworkParameters params, int outputCount) {
+        Random random = new Random(1);
+        Wallet wallet = new Wallet(params);
+        Address address = wallet.currentReceiveAddress();
+        for (int i = 0; i < outputCount; i++) {
+            Transaction tx = new Transaction(params);
+            byte[] hash = new byte[Sha256Hash.LENGTH];
+            random.nextBytes(hash);
+            tx.addInput(Sha256Hash.wrap(hash), 0, new Script(new byte[0]));
+            tx.addOutput(Coin.valueOf(100000 + random.nextInt(10000000)), address);
+            tx.getConfidence().setAppearedAtChainHeight(1 + i / 1000);
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+        }
+        wallet.setLastBlockSeenHeight(1 + outputCount / 1000);
+        return wallet;
+    }
+}
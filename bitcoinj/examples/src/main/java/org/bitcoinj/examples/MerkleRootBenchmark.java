@@ -0,0 +1,138 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.examples;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.MessageSerializer;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.utils.BlockFileLoader;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures hashing the transactions of big blocks read with a {@link BlockFileLoader} and building their merkle tree,
+ * which {@link Block} does in parallel, against doing the same work on one thread as blocks used to. Both sides start
+ * from freshly parsed copies of the transactions, whose hashes aren't cached yet, and must come to the merkle root in
+ * the block header.
+ *
+ * Usage: MerkleRootBenchmark [blk*.dat files...]
+ * Without files, the blocks of the reference client's data directory are read.
+ */
+public class MerkleRootBenchmark {
+    // Only blocks with this many transactions are measured, as few transactions are hashed on the calling thread.
+    private static final int MIN_TRANSACTIONS = 500;
+    private static final int MAX_BLOCKS = 200;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        NetworkParameters params = MainNetParams.get();
+        Context.propagate(new Context(params));
+        List<File> files = new ArrayList<>();
+        for (String arg : args)
+            files.add(new File(arg));
+        if (files.isEmpty())
+            files = BlockFileLoader.getReferenceClientBlockFileList();
+
+        List<byte[]> blocks = new ArrayList<>();
+        long transactions = 0;
+        for (Block block : new BlockFileLoader(params, files)) {
+            if (block.getTransactions() == null || block.getTransactions().size() < MIN_TRANSACTIONS)
+                continue;
+            blocks.add(block.bitcoinSerialize());
+            transactions += block.getTransactions().size();
+            if (blocks.size() == MAX_BLOCKS)
+                break;
+        }
+        System.out.println(String.format("%d blocks with %d transactions", blocks.size(), transactions));
+        if (blocks.isEmpty())
+            return;
+
+        MessageSerializer serializer = params.getDefaultSerializer();
+        List<Block> parsed = new ArrayList<>(blocks.size());
+        for (byte[] bytes : blocks)
+            parsed.add(serializer.makeBlock(bytes));
+        // Warm up the JIT before timing.
+        for (Block block : parsed) {
+            checkParallel(params, block, copyTransactions(params, block));
+            checkSerial(block, copyTransactions(params, block));
+        }
+        long parallelNanos = 0, serialNanos = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            List<List<Transaction>> copies = new ArrayList<>(parsed.size());
+            for (Block block : parsed)
+                copies.add(copyTransactions(params, block));
+            long start = System.nanoTime();
+            for (int i = 0; i < parsed.size(); i++)
+                checkParallel(params, parsed.get(i), copies.get(i));
+            parallelNanos += System.nanoTime() - start;
+
+            copies.clear();
+            for (Block block : parsed)
+                copies.add(copyTransactions(params, block));
+            start = System.nanoTime();
+            for (int i = 0; i < parsed.size(); i++)
+                checkSerial(parsed.get(i), copies.get(i));
+            serialNanos += System.nanoTime() - start;
+        }
+        System.out.println(String.format("parallel hashing and tree: %8.2f ms/block", parallelNanos / 1e6 / ROUNDS / blocks.size()));
+        System.out.println(String.format("serial hashing and tree:   %8.2f ms/block", serialNanos / 1e6 / ROUNDS / blocks.size()));
+    }
+
+    // Transactions parsed on their own have no cached hash, so they are serialized again to be hashed.
+    private static List<Transaction> copyTransactions(NetworkParameters params, Block block) {
+        List<Transaction> copies = new ArrayList<>(block.getTransactions().size());
+        for (Transaction tx : block.getTransactions())
+            copies.add(new Transaction(params, tx.bitcoinSerialize()));
+        return copies;
+    }
+
+    // Lets a block without a merkle root work it out, which hashes the transactions and builds the tree in parallel.
+    private static void checkParallel(NetworkParameters params, Block block, List<Transaction> transactions) {
+        Block copy = new Block(params, block.getVersion(), block.getPrevBlockHash(), null, block.getTimeSeconds(),
+                block.getDifficultyTarget(), block.getNonce(), transactions);
+        checkRoot(block, copy.getMerkleRoot());
+    }
+
+    // Hashes the serialized transactions and builds the tree one node after the other, as blocks used to.
+    private static void checkSerial(Block block, List<Transaction> transactions) {
+        List<byte[]> tree = new ArrayList<>();
+        for (Transaction tx : transactions)
+            tree.add(tx.getHash().getBytes());
+        int levelOffset = 0;
+        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
+            for (int left = 0; left < levelSize; left += 2) {
+                int right = Math.min(left + 1, levelSize - 1);
+                tree.add(Utils.reverseBytes(Sha256Hash.hashTwice(Utils.reverseBytes(tree.get(levelOffset + left)), 0,
+                        32, Utils.reverseBytes(tree.get(levelOffset + right)), 0, 32)));
+            }
+            levelOffset += levelSize;
+        }
+        checkRoot(block, Sha256Hash.wrap(tree.get(tree.size() - 1)));
+    }
+
+    private static void checkRoot(Block block, Sha256Hash root) {
+        if (!root.equals(block.getMerkleRoot()))
+            throw new IllegalStateException("Merkle root of " + block.getHashAsString() + " differs: " + root);
+    }
+}
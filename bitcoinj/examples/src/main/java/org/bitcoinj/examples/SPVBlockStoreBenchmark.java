@@ -0,0 +1,114 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.examples;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.SPVBlockStore;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures {@link SPVBlockStore#get(Sha256Hash)} latency for hits and misses against the capacity of the store.
+ * Each store is filled to capacity and reopened so that lookups go to the on-disk index rather than the caches.
+ *
+ * Usage: SPVBlockStoreBenchmark [capacity...]
+ */
+public class SPVBlockStoreBenchmark {
+    private static final int LOOKUPS = 200000;
+
+    public static void main(String[] args) throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        Context.propagate(new Context(params));
+        int[] capacities = {SPVBlockStore.DEFAULT_CAPACITY, 20000, 50000, 100000, 200000};
+        if (args.length > 0) {
+            capacities = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                capacities[i] = Integer.parseInt(args[i]);
+        }
+
+        System.out.println("capacity      hit ns/get     miss ns/get");
+        for (int capacity : capacities) {
+            File file = File.createTempFile("spvbench", null);
+            file.delete();
+            try {
+                List<Sha256Hash> hashes = fill(params, file, capacity);
+                long hitNanos = measure(params, file, capacity, hashes);
+                List<Sha256Hash> unknown = new ArrayList<Sha256Hash>();
+                Random random = new Random(capacity);
+                for (int i = 0; i < hashes.size(); i++)
+                    unknown.add(randomHash(random));
+                long missNanos = measure(params, file, capacity, unknown);
+                System.out.println(String.format("%8d  %14d  %14d", capacity, hitNanos, missNanos));
+            } finally {
+                file.delete();
+                SPVBlockStore.getIndexFile(file).delete();
+            }
+        }
+    }
+
+    private static List<Sha256Hash> fill(NetworkParameters params, File file, int capacity) throws Exception {
+        SPVBlockStore store = new SPVBlockStore(params, file, capacity);
+        Random random = new Random(capacity);
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(capacity);
+        // The store doesn't check proof of work or linkage, so synthetic headers are good enough here.
+        for (int height = 1; height < capacity; height++) {
+            Block header = new Block(params, Block.BLOCK_VERSION_GENESIS, randomHash(random), randomHash(random),
+                    height, Block.EASIEST_DIFFICULTY_TARGET, random.nextInt(), Collections.<Transaction>emptyList());
+            StoredBlock block = new StoredBlock(header, BigInteger.valueOf(height), height);
+            store.put(block);
+            hashes.add(header.getHash());
+        }
+        store.setChainHead(store.get(hashes.get(hashes.size() - 1)));
+        store.close();
+        return hashes;
+    }
+
+    /** Returns the mean latency in nanoseconds of looking up random entries of the given list on a cold store. */
+    private static long measure(NetworkParameters params, File file, int capacity, List<Sha256Hash> hashes)
+            throws Exception {
+        SPVBlockStore store = new SPVBlockStore(params, file, capacity);
+        try {
+            Random random = new Random(42);
+            // Warm up the JIT before timing.
+            for (int i = 0; i < LOOKUPS / 10; i++)
+                store.get(hashes.get(random.nextInt(hashes.size())));
+            long start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++)
+                store.get(hashes.get(random.nextInt(hashes.size())));
+            return (System.nanoTime() - start) / LOOKUPS;
+        } finally {
+            store.close();
+        }
+    }
+
+    private static Sha256Hash randomHash(Random random) {
+        byte[] bytes = new byte[Sha256Hash.LENGTH];
+        random.nextBytes(bytes);
+        return Sha256Hash.wrap(bytes);
+    }
+}
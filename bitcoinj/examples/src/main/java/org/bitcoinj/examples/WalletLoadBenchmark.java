@@ -0,0 +1,124 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.examples;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.wallet.Protos;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletProtobufSerializer;
+import org.bitcoinj.wallet.WalletTransaction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * Measures {@link WalletProtobufSerializer#readWallet(java.io.InputStream, org.bitcoinj.wallet.WalletExtension...)},
+ * which streams the transactions to the decoder as they are read, on synthetic wallets of growing history. As a
+ * baseline it measures parsing the whole wallet into a protocol buffer first and then reading that, which is how
+ * wallets used to be read. Transactions are decoded on all the available processors; run with
+ * -XX:ActiveProcessorCount=1 for the single threaded figures, where the baseline decodes them one after the other as
+ * before.
+ *
+ * Usage: WalletLoadBenchmark [transactions...]
+ */
+public class WalletLoadBenchmark {
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        Context.propagate(new Context(params));
+        int[] txCounts = {10000, 100000};
+        if (args.length > 0) {
+            txCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                txCounts[i] = Integer.parseInt(args[i]);
+        }
+
+        System.out.println(Runtime.getRuntime().availableProcessors() + " processors");
+        System.out.println("transactions      bytes  ms (baseline)  ms (streamed)");
+        for (int txCount : txCounts) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            new WalletProtobufSerializer().writeWallet(createWallet(params, txCount), output);
+            byte[] bytes = output.toByteArray();
+            double baseline = time(bytes, false);
+            double streamed = time(bytes, true);
+            System.out.println(String.format("%12d  %9d  %13.1f  %13.1f", txCount, bytes.length, baseline, streamed));
+        }
+    }
+
+    // Returns the best of a few rounds, after one to warm up the JIT.
+    private static double time(byte[] bytes, boolean streamed) throws Exception {
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round <= ROUNDS; round++) {
+            WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+            long start = System.nanoTime();
+            if (streamed) {
+                serializer.readWallet(new ByteArrayInputStream(bytes));
+            } else {
+                Protos.Wallet proto = WalletProtobufSerializer.parseToProto(new ByteArrayInputStream(bytes));
+                serializer.readWallet(NetworkParameters.fromID(proto.getNetworkIdentifier()), null, proto);
+            }
+            double millis = (System.nanoTime() - start) / 1e6;
+            if (round > 0)
+                best = Math.min(best, millis);
+        }
+        return best;
+    }
+
+    // A chain of confirmed transactions, each paying the wallet and spending the change of the one before.
+    private static Wallet createWallet(NetworkParameters params, int txCount) {
+        Random random = new Random(1);
+        Wallet wallet = new Wallet(params);
+        Address address = wallet.currentReceiveAddress();
+        byte[] signature = new byte[72];
+        random.nextBytes(signature);
+        byte[] pubKey = new byte[33];
+        random.nextBytes(pubKey);
+        Transaction prev = null;
+        for (int i = 0; i < txCount; i++) {
+            Transaction tx = new Transaction(params);
+            if (prev == null) {
+                byte[] hash = new byte[Sha256Hash.LENGTH];
+                random.nextBytes(hash);
+                tx.addInput(Sha256Hash.wrap(hash), 0, new ScriptBuilder().data(signature).data(pubKey).build());
+            } else {
+                TransactionOutput change = prev.getOutput(1);
+                TransactionInput input = tx.addInput(change);
+                input.setScriptSig(new ScriptBuilder().data(signature).data(pubKey).build());
+                change.markAsSpent(input);
+            }
+            tx.addOutput(Coin.CENT, address);
+            byte[] pubKeyHash = new byte[20];
+            random.nextBytes(pubKeyHash);
+            tx.addOutput(Coin.COIN, new Address(params, pubKeyHash));
+            tx.getConfidence().setAppearedAtChainHeight(i + 1);
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+            prev = tx;
+        }
+        return wallet;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.examples;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+
+import java.util.Random;
+
+/**
+ * Measures {@link Transaction#hashForSignatureWitness(int, byte[], Coin, Transaction.SigHash, boolean)} over every
+ * input of a transaction, as done when signing a segwit consolidation. The time per input should stay flat as the
+ * number of inputs grows.
+ *
+ * Usage: WitnessSigHashBenchmark [inputs...]
+ */
+public class WitnessSigHashBenchmark {
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args) throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        Context.propagate(new Context(params));
+        int[] inputCounts = {10, 100, 500, 2000};
+        if (args.length > 0) {
+            inputCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                inputCounts[i] = Integer.parseInt(args[i]);
+        }
+
+        ECKey key = new ECKey();
+        byte[] scriptCode = ScriptBuilder.createOutputScript(key.toAddress(params)).getProgram();
+        System.out.println("  inputs     ns/input     ns/tx");
+        for (int inputCount : inputCounts) {
+            Transaction tx = createTransaction(params, inputCount);
+            // Warm up the JIT before timing.
+            for (int round = 0; round < ROUNDS; round++)
+                signAll(tx, scriptCode);
+            long start = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++)
+                signAll(tx, scriptCode);
+            long nanosPerTx = (System.nanoTime() - start) / ROUNDS;
+            System.out.println(String.format("%8d  %11d  %8d", inputCount, nanosPerTx / inputCount, nanosPerTx));
+        }
+    }
+
+    private static Transaction createTransaction(NetworkParameters params, int inputCount) {
+        Random random = new Random(inputCount);
+        Transaction tx = new Transaction(params);
+        for (int i = 0; i < inputCount; i++) {
+            byte[] hash = new byte[Sha256Hash.LENGTH];
+            random.nextBytes(hash);
+            tx.addInput(Sha256Hash.wrap(hash), random.nextInt(4), new Script(new byte[0]));
+        }
+        tx.addOutput(Coin.COIN, new ECKey().toAddress(params));
+        tx.addOutput(Coin.CENT, new ECKey().toAddress(params));
+        return tx;
+    }
+
+    private static void signAll(Transaction tx, byte[] scriptCode) {
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            tx.hashForSignatureWitness(i, scriptCode, Coin.CENT, Transaction.SigHash.ALL, false);
+            // Mimic a signer filling in each input as it goes.
+            tx.getInput(i).setScriptSig(new Script(new byte[] {0x00}));
+        }
+        // Start the next round from a cold context, as a freshly built transaction would.
+        tx.getOutput(0).setValue(tx.getOutput(0).getValue());
+    }
+}
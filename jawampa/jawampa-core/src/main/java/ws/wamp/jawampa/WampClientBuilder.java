@@ -45,6 +45,7 @@ public class WampClientBuilder {
     int reconnectInterval = DEFAULT_RECONNECT_INTERVAL;
     boolean useStrictUriValidation = false;
     boolean closeOnErrors = true;
+    int maxInFlightMessages = 1;
     EnumSet<WampRoles> roles;
     List<WampSerialization> serializations = new ArrayList<WampSerialization>();
     String authId = null;
@@ -130,7 +131,7 @@ public class WampClientBuilder {
             new ClientConfiguration(
                 closeOnErrors, authId, authMethods, routerUri, realm,
                 useStrictUriValidation, rolesArray, nrReconnects, reconnectInterval,
-                connectorProvider, connector);
+                connectorProvider, connector, maxInFlightMessages);
         
         return new WampClient(clientConfig);
     }
@@ -255,6 +256,23 @@ public class WampClientBuilder {
         return this;
     }
     
+    /**
+     * Sets how many messages the client may hand to the transport before
+     * the first of them was written to the network.<br>
+     * With the default of 1 each message is only sent after the previous one
+     * was sent, which limits the throughput to one message per write.
+     * Higher values allow many calls to be in transit at the same time and
+     * allow the transport to flush them with a single write.
+     * @param maxInFlightMessages The maximum number of messages in flight. Must be > 0.
+     * @return The {@link WampClientBuilder} object
+     * @throws WampError if the number of messages is not positive
+     */
+    public WampClientBuilder withMaxInFlightMessages(int maxInFlightMessages) throws ApplicationError {
+        if (maxInFlightMessages < 1)
+            throw new ApplicationError(ApplicationError.INVALID_PARAMETER);
+        this.maxInFlightMessages = maxInFlightMessages;
+        return this;
+    }
     
     /**
      * Sets the amount of reconnect attempts to perform to a dealer.
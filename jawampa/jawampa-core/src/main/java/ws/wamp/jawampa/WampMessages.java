@@ -16,10 +16,12 @@
 
 package ws.wamp.jawampa;
 
+import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
@@ -35,6 +37,46 @@ public class WampMessages {
         public abstract JsonNode toObjectArray(ObjectMapper mapper)
                 throws WampError;
 
+        /**
+         * Writes the message to a generator which was created by the
+         * factory of the given mapper.<br>
+         * The default implementation writes the tree that is returned by
+         * {@link #toObjectArray(ObjectMapper)}. Messages which are sent
+         * frequently write their fields directly instead, which avoids
+         * building the tree for each message.
+         */
+        public void writeTo(JsonGenerator generator, ObjectMapper mapper)
+                throws IOException, WampError {
+            generator.writeTree(toObjectArray(mapper));
+        }
+
+        /** Writes a details or options dictionary, which is empty if it is null */
+        static void writeDict(JsonGenerator generator, ObjectNode dict)
+                throws IOException {
+            if (dict != null) {
+                generator.writeTree(dict);
+            } else {
+                generator.writeStartObject();
+                generator.writeEndObject();
+            }
+        }
+
+        /**
+         * Writes the optional Arguments|list and ArgumentsKw|dict elements.<br>
+         * An empty list is written if only ArgumentsKw are present.
+         */
+        static void writeArguments(JsonGenerator generator, ArrayNode arguments,
+                ObjectNode argumentsKw) throws IOException {
+            if (arguments != null) {
+                generator.writeTree(arguments);
+            } else if (argumentsKw != null) {
+                generator.writeStartArray();
+                generator.writeEndArray();
+            }
+            if (argumentsKw != null)
+                generator.writeTree(argumentsKw);
+        }
+
         public static WampMessage fromObjectArray(ArrayNode messageNode)
                 throws WampError {
             if (messageNode == null || messageNode.size() < 1
@@ -377,6 +419,19 @@ public class WampMessages {
             return messageNode;
         }
 
+        @Override
+        public void writeTo(JsonGenerator generator, ObjectMapper mapper)
+                throws IOException {
+            generator.writeStartArray();
+            generator.writeNumber(ID);
+            generator.writeNumber(requestType);
+            generator.writeNumber(requestId);
+            writeDict(generator, details);
+            generator.writeString(error);
+            writeArguments(generator, arguments, argumentsKw);
+            generator.writeEndArray();
+        }
+
         static class Factory implements WampMessageFactory {
             @Override
             public WampMessage fromObjectArray(ArrayNode messageNode) throws WampError {
@@ -452,6 +507,18 @@ public class WampMessages {
             return messageNode;
         }
 
+        @Override
+        public void writeTo(JsonGenerator generator, ObjectMapper mapper)
+                throws IOException {
+            generator.writeStartArray();
+            generator.writeNumber(ID);
+            generator.writeNumber(requestId);
+            writeDict(generator, options);
+            generator.writeString(topic);
+            writeArguments(generator, arguments, argumentsKw);
+            generator.writeEndArray();
+        }
+
         static class Factory implements WampMessageFactory {
             @Override
             public WampMessage fromObjectArray(ArrayNode messageNode) throws WampError {
@@ -720,6 +787,18 @@ public class WampMessages {
             return messageNode;
         }
 
+        @Override
+        public void writeTo(JsonGenerator generator, ObjectMapper mapper)
+                throws IOException {
+            generator.writeStartArray();
+            generator.writeNumber(ID);
+            generator.writeNumber(subscriptionId);
+            generator.writeNumber(publicationId);
+            writeDict(generator, details);
+            writeArguments(generator, arguments, argumentsKw);
+            generator.writeEndArray();
+        }
+
         static class Factory implements WampMessageFactory {
             @Override
             public WampMessage fromObjectArray(ArrayNode messageNode) throws WampError {
@@ -793,6 +872,18 @@ public class WampMessages {
             return messageNode;
         }
 
+        @Override
+        public void writeTo(JsonGenerator generator, ObjectMapper mapper)
+                throws IOException {
+            generator.writeStartArray();
+            generator.writeNumber(ID);
+            generator.writeNumber(requestId);
+            writeDict(generator, options);
+            generator.writeString(procedure);
+            writeArguments(generator, arguments, argumentsKw);
+            generator.writeEndArray();
+        }
+
         static class Factory implements WampMessageFactory {
             @Override
             public WampMessage fromObjectArray(ArrayNode messageNode) throws WampError {
@@ -863,6 +954,17 @@ public class WampMessages {
             return messageNode;
         }
 
+        @Override
+        public void writeTo(JsonGenerator generator, ObjectMapper mapper)
+                throws IOException {
+            generator.writeStartArray();
+            generator.writeNumber(ID);
+            generator.writeNumber(requestId);
+            writeDict(generator, details);
+            writeArguments(generator, arguments, argumentsKw);
+            generator.writeEndArray();
+        }
+
         static class Factory implements WampMessageFactory {
             @Override
             public WampMessage fromObjectArray(ArrayNode messageNode) throws WampError {
@@ -1092,6 +1194,18 @@ public class WampMessages {
             return messageNode;
         }
 
+        @Override
+        public void writeTo(JsonGenerator generator, ObjectMapper mapper)
+                throws IOException {
+            generator.writeStartArray();
+            generator.writeNumber(ID);
+            generator.writeNumber(requestId);
+            generator.writeNumber(registrationId);
+            writeDict(generator, details);
+            writeArguments(generator, arguments, argumentsKw);
+            generator.writeEndArray();
+        }
+
         static class Factory implements WampMessageFactory {
             @Override
             public WampMessage fromObjectArray(ArrayNode messageNode) throws WampError {
@@ -1162,6 +1276,17 @@ public class WampMessages {
             return messageNode;
         }
 
+        @Override
+        public void writeTo(JsonGenerator generator, ObjectMapper mapper)
+                throws IOException {
+            generator.writeStartArray();
+            generator.writeNumber(ID);
+            generator.writeNumber(requestId);
+            writeDict(generator, options);
+            writeArguments(generator, arguments, argumentsKw);
+            generator.writeEndArray();
+        }
+
         static class Factory implements WampMessageFactory {
             @Override
             public WampMessage fromObjectArray(ArrayNode messageNode) throws WampError {
@@ -42,11 +42,13 @@ import ws.wamp.jawampa.connection.IWampConnectionAcceptor;
 import ws.wamp.jawampa.connection.IWampConnectionFuture;
 import ws.wamp.jawampa.connection.IWampConnectionListener;
 import ws.wamp.jawampa.connection.IWampConnectionPromise;
+import ws.wamp.jawampa.connection.PreEncodedMessage;
 import ws.wamp.jawampa.connection.QueueingConnectionController;
 import ws.wamp.jawampa.connection.WampConnectionPromise;
 import ws.wamp.jawampa.internal.IdGenerator;
 import ws.wamp.jawampa.internal.IdValidator;
 import ws.wamp.jawampa.internal.RealmConfig;
+import ws.wamp.jawampa.internal.TopicIndex;
 import ws.wamp.jawampa.internal.UriValidator;
 import ws.wamp.jawampa.internal.Version;
 
@@ -77,16 +79,16 @@ public class WampRouter {
         final Map<String, Procedure> procedures = new HashMap<String, Procedure>();
         
         // Fields that are used for implementing subscription functionality
-        final EnumMap<SubscriptionFlags, Map<String, Subscription>> subscriptionsByFlags
-                = new EnumMap<SubscriptionFlags, Map<String, Subscription>>(SubscriptionFlags.class);
+        final EnumMap<SubscriptionFlags, TopicIndex<Subscription>> subscriptionsByFlags
+                = new EnumMap<SubscriptionFlags, TopicIndex<Subscription>>(SubscriptionFlags.class);
         final Map<Long, Subscription> subscriptionsById = new HashMap<Long, Subscription>();
         long lastUsedSubscriptionId = IdValidator.MIN_VALID_ID;
         
         public Realm(RealmConfig config) {
             this.config = config;
-            subscriptionsByFlags.put(SubscriptionFlags.Exact, new HashMap<String, Subscription>());
-            subscriptionsByFlags.put(SubscriptionFlags.Prefix, new HashMap<String, Subscription>());
-            subscriptionsByFlags.put(SubscriptionFlags.Wildcard, new HashMap<String, Subscription>());
+            for (SubscriptionFlags flags : SubscriptionFlags.values()) {
+                subscriptionsByFlags.put(flags, new TopicIndex<Subscription>(flags));
+            }
 
             // Expose the roles that are configured for the realm
             ObjectMapper objectMapper = new ObjectMapper();
@@ -181,14 +183,12 @@ public class WampRouter {
     static class Subscription {
         final String topic;
         final SubscriptionFlags flags;
-        final String components[]; // non-null only for wildcard type
         final long subscriptionId;
         final Set<ClientHandler> subscribers;
         
         public Subscription(String topic, SubscriptionFlags flags, long subscriptionId) {
             this.topic = topic;
             this.flags = flags;
-            this.components = flags == SubscriptionFlags.Wildcard ? topic.split("\\.", -1) : null;
             this.subscriptionId = subscriptionId;
             this.subscribers = new HashSet<ClientHandler>();
         }
@@ -205,6 +205,9 @@ public class WampRouter {
     final Map<String, Realm> realms;
     final Set<IConnectionController> idleChannels;
     
+    /** How many messages may be handed to a connection before the first of them was sent */
+    final int maxInFlightMessages;
+    
     /** The number of connections that have to be closed. This is important for shutdown */
     int connectionsToClose = 0;
     
@@ -225,7 +228,9 @@ public class WampRouter {
         return objectMapper;
     }
 
-    WampRouter(Map<String, RealmConfig> realms) {
+    WampRouter(Map<String, RealmConfig> realms, int maxInFlightMessages) {
+        
+        this.maxInFlightMessages = maxInFlightMessages;
         
         // Populate the realms from the configuration
         this.realms = new HashMap<String, Realm>();
@@ -339,7 +344,7 @@ public class WampRouter {
         @Override
         public IWampConnectionListener createNewConnectionListener() {
             ClientHandler newHandler = new ClientHandler();
-            IConnectionController newController = new QueueingConnectionController(eventLoop, newHandler);
+            IConnectionController newController = new QueueingConnectionController(eventLoop, newHandler, maxInFlightMessages);
             newHandler.controller = newController;
             return newController;
         }
@@ -710,7 +715,7 @@ public class WampRouter {
             }
 
             // Search if a subscription from any client on the realm to this topic exists
-            Map<String, Subscription> subscriptionMap = handler.realm.subscriptionsByFlags.get(flags);
+            TopicIndex<Subscription> subscriptionMap = handler.realm.subscriptionsByFlags.get(flags);
             Subscription subscription = subscriptionMap.get(sub.topic);
             if (subscription == null) {
                 // No client was subscribed to this URI up to now
@@ -818,36 +823,12 @@ public class WampRouter {
             long publicationId = IdGenerator.newRandomId(null); // Store that somewhere?
 
             // Get the subscriptions for this topic on the realm
-            Subscription exactSubscription = handler.realm.subscriptionsByFlags.get(SubscriptionFlags.Exact).get(pub.topic);
-            if (exactSubscription != null) {
-                publishEvent(handler, pub, publicationId, exactSubscription);
-            }
-
-            Map<String, Subscription> prefixSubscriptionMap = handler.realm.subscriptionsByFlags.get(SubscriptionFlags.Prefix);
-            for (Subscription prefixSubscription : prefixSubscriptionMap.values()) {
-                if (pub.topic.startsWith(prefixSubscription.topic)) {
-                    publishEvent(handler, pub, publicationId, prefixSubscription);
-                }
+            List<Subscription> matchingSubscriptions = new ArrayList<Subscription>();
+            for (TopicIndex<Subscription> index : handler.realm.subscriptionsByFlags.values()) {
+                index.addMatches(pub.topic, matchingSubscriptions);
             }
-
-            Map<String, Subscription> wildcardSubscriptionMap = handler.realm.subscriptionsByFlags.get(SubscriptionFlags.Wildcard);
-            String[] components = pub.topic.split("\\.", -1);
-            for (Subscription wildcardSubscription : wildcardSubscriptionMap.values()) {
-                boolean matched = true;
-                if (components.length == wildcardSubscription.components.length) {
-                    for (int i=0; i < components.length; i++) {
-                        if (wildcardSubscription.components[i].length() > 0
-                                && !components[i].equals(wildcardSubscription.components[i])) {
-                            matched = false;
-                            break;
-                        }
-                    }
-                }else
-                    matched = false;
-
-                if (matched) {
-                    publishEvent(handler, pub, publicationId, wildcardSubscription);
-                }
+            for (Subscription subscription : matchingSubscriptions) {
+                publishEvent(handler, pub, publicationId, subscription);
             }
 
             if (sendAcknowledge) {
@@ -864,8 +845,10 @@ public class WampRouter {
             details.put("topic", pub.topic);
         }
 
-        EventMessage ev = new EventMessage(subscription.subscriptionId, publicationId,
-                details, pub.arguments, pub.argumentsKw);
+        // The event is identical for all subscribers, so it is serialized
+        // only once per serialization and shared between their connections
+        PreEncodedMessage ev = new PreEncodedMessage(new EventMessage(subscription.subscriptionId,
+                publicationId, details, pub.arguments, pub.argumentsKw));
 
         for (ClientHandler receiver : subscription.subscribers) {
             if (receiver == publisher ) { // Potentially skip the publisher
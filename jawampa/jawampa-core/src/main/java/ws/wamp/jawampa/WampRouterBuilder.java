@@ -33,6 +33,7 @@ import ws.wamp.jawampa.internal.UriValidator;
 public class WampRouterBuilder {
     
     Map<String, RealmConfig> realms = new HashMap<String, RealmConfig>();
+    int maxInFlightMessages = 1;
 
     public WampRouterBuilder() {
         
@@ -47,7 +48,7 @@ public class WampRouterBuilder {
         if (realms.size() == 0)
             throw new ApplicationError(ApplicationError.INVALID_REALM);
         
-        return new WampRouter(realms);
+        return new WampRouter(realms, maxInFlightMessages);
     }
     
     /**
@@ -97,4 +98,20 @@ public class WampRouterBuilder {
         
         return this;
     }
+    
+    /**
+     * Sets how many messages the router may hand to the transport of a
+     * client connection before the first of them was written to the network.<br>
+     * The default of 1 sends each message only after the previous one
+     * was sent. Higher values allow the transport to flush results and
+     * events for a client with a single write.
+     * @param maxInFlightMessages The maximum number of messages in flight. Must be > 0.
+     * @return This WampRouterBuilder object
+     */
+    public WampRouterBuilder withMaxInFlightMessages(int maxInFlightMessages) throws ApplicationError {
+        if (maxInFlightMessages < 1)
+            throw new ApplicationError(ApplicationError.INVALID_PARAMETER);
+        this.maxInFlightMessages = maxInFlightMessages;
+        return this;
+    }
 }
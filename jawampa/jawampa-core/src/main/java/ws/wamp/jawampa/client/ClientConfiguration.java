@@ -55,6 +55,9 @@ public class ClientConfiguration {
     /** The connector which is used to create new connections to the remote peer */
     final IWampConnector connector;
 
+    /** How many messages may be sent before the first of them was acknowledged by the transport */
+    final int maxInFlightMessages;
+
     final ObjectNode helloDetails;
     
     public ClientConfiguration(
@@ -69,6 +72,25 @@ public class ClientConfiguration {
         int reconnectInterval,
         IWampConnectorProvider connectorProvider,
         IWampConnector connector)
+    {
+        this(closeClientOnErrors, authId, authMethods, routerUri, realm,
+             useStrictUriValidation, clientRoles, totalNrReconnects, reconnectInterval,
+             connectorProvider, connector, 1);
+    }
+    
+    public ClientConfiguration(
+        boolean closeClientOnErrors,
+        String authId,
+        List<ClientSideAuthentication> authMethods,
+        URI routerUri,
+        String realm,
+        boolean useStrictUriValidation,
+        WampRoles[] clientRoles,
+        int totalNrReconnects,
+        int reconnectInterval,
+        IWampConnectorProvider connectorProvider,
+        IWampConnector connector,
+        int maxInFlightMessages)
     {
         this.closeClientOnErrors = closeClientOnErrors;
         
@@ -87,6 +109,8 @@ public class ClientConfiguration {
         
         this.connectorProvider = connectorProvider;
         this.connector = connector;
+        
+        this.maxInFlightMessages = maxInFlightMessages;
 
         // Put the requested roles in the Hello message
         helloDetails = objectMapper.createObjectNode();
@@ -152,6 +176,11 @@ public class ClientConfiguration {
         return connector;
     }
 
+    /** How many messages may be sent before the first of them was acknowledged by the transport */
+    public int maxInFlightMessages() {
+        return maxInFlightMessages;
+    }
+
     public WampRoles[] clientRoles() {
         return clientRoles.clone();
     }
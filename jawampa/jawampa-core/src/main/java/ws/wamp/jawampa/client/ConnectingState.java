@@ -57,7 +57,8 @@ public class ConnectingState implements ClientState, IPendingWampConnectionListe
         
         // Starts an connection attempt to the router
         connectionController =
-            new QueueingConnectionController(stateController.scheduler(), new ClientConnectionListener(stateController));
+            new QueueingConnectionController(stateController.scheduler(), new ClientConnectionListener(stateController),
+                                             stateController.clientConfig().maxInFlightMessages());
         
         try {
             connectingCon =
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2015 Matthias Einwag
+ *
+ * The jawampa authors license this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package ws.wamp.jawampa.connection;
+
+import ws.wamp.jawampa.WampMessages.WampMessage;
+
+/**
+ * A connection which can accept several messages before pushing them
+ * to the remote peer together.<br>
+ * This allows a {@link QueueingConnectionController} which sends messages
+ * in a pipelined fashion to hand a whole batch of queued messages to the
+ * transport and to flush them with a single write to the network.
+ */
+public interface IWampBatchingConnection extends IWampConnection {
+    /**
+     * Queue a message for sending without pushing it to the remote peer.<br>
+     * The message will be sent with the next call to {@link #flush()}
+     * or {@link IWampConnection#sendMessage(WampMessage, IWampConnectionPromise)}.<br>
+     * This may not throw.
+     * 
+     * @param message The message to send
+     * @param promise The promise that must be fulfilled by the connection once
+     * the message was sent or when an error occured during sending.
+     */
+    void writeMessage(WampMessage message, IWampConnectionPromise<Void> promise);
+    
+    /**
+     * Push all messages that were queued through
+     * {@link #writeMessage(WampMessage, IWampConnectionPromise)} to the remote peer.<br>
+     * This may not throw.
+     */
+    void flush();
+}
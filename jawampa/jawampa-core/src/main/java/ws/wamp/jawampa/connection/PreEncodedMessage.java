@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 Matthias Einwag
+ *
+ * The jawampa authors license this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package ws.wamp.jawampa.connection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import ws.wamp.jawampa.WampError;
+import ws.wamp.jawampa.WampSerialization;
+import ws.wamp.jawampa.WampMessages.WampMessage;
+
+/**
+ * Wraps a message which is sent unchanged to many connections,
+ * like an event that is published to all subscribers of a topic.<br>
+ * The message is serialized at most once per {@link WampSerialization}
+ * and the encoded bytes are shared by all connections which use it.<br>
+ * Transports which don't know about pre-encoded messages can treat it
+ * like any other message.
+ */
+public class PreEncodedMessage extends WampMessage {
+
+    final WampMessage message;
+    /** The encoded message, indexed by the ordinal of the serialization */
+    final AtomicReferenceArray<byte[]> encoded =
+        new AtomicReferenceArray<byte[]>(WampSerialization.values().length);
+
+    public PreEncodedMessage(WampMessage message) {
+        this.message = message;
+    }
+
+    /** The wrapped message */
+    public WampMessage message() {
+        return message;
+    }
+
+    @Override
+    public JsonNode toObjectArray(ObjectMapper mapper) throws WampError {
+        return message.toObjectArray(mapper);
+    }
+
+    @Override
+    public void writeTo(JsonGenerator generator, ObjectMapper mapper)
+            throws IOException, WampError {
+        message.writeTo(generator, mapper);
+    }
+
+    /**
+     * Returns the message encoded with the given serialization.<br>
+     * This can be called from the threads of several connections at once.
+     * The returned array is shared and must not be modified.
+     *
+     * @param serialization The serialization of the connection
+     * @return The encoded message
+     */
+    public byte[] encoded(WampSerialization serialization) throws Exception {
+        byte[] bytes = encoded.get(serialization.ordinal());
+        if (bytes == null) {
+            ObjectMapper objectMapper = serialization.getObjectMapper();
+            ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+            JsonGenerator generator = objectMapper.getFactory().createGenerator(outStream);
+            message.writeTo(generator, objectMapper);
+            generator.close();
+            bytes = outStream.toByteArray();
+            // Concurrent encoders produce identical bytes, so keep whichever came first
+            if (!encoded.compareAndSet(serialization.ordinal(), null, bytes))
+                bytes = encoded.get(serialization.ordinal());
+        }
+        return bytes;
+    }
+}
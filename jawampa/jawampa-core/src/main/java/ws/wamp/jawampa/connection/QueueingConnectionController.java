@@ -30,10 +30,18 @@ public class QueueingConnectionController implements IConnectionController {
     static class QueuedMessage {
         public final WampMessage message;
         public final IWampConnectionPromise<Void> promise;
+        /** The promise that is handed to the underlying connection for this message */
+        final WampConnectionPromise<Void> sentPromise;
+        /** Whether the underlying connection has completed the send */
+        boolean completed = false;
+        /** The error of the send, if any */
+        Throwable error = null;
         
-        public QueuedMessage(WampMessage message, IWampConnectionPromise<Void> promise) {
+        public QueuedMessage(WampMessage message, IWampConnectionPromise<Void> promise,
+                ICompletionCallback<Void> sentHandler) {
             this.message = message;
             this.promise = promise;
+            this.sentPromise = new WampConnectionPromise<Void>(sentHandler, this);
         }
     }
     
@@ -57,29 +65,40 @@ public class QueueingConnectionController implements IConnectionController {
             tryScheduleAction(new Runnable() {
                 @Override
                 public void run() {
-                    // Dequeue the first element of the queue.
-                    // Queue might be empty if closed in between
-                    QueuedMessage first = queuedMessages.poll();
-                    if (future.isSuccess())
-                        first.promise.fulfill(null);
-                    else {
-                        first.promise.reject(future.error());
+                    // The message might already have been rejected if closed in between
+                    if (closeStatus == CloseStatus.Closed) return;
+                    
+                    QueuedMessage sent = (QueuedMessage)future.state();
+                    sent.completed = true;
+                    sent.error = future.isSuccess() ? null : future.error();
+                    
+                    // Complete the sends in the order in which they were issued.
+                    // The transport normally completes them in order anyway
+                    while (inFlightMessages.size() > 0 && inFlightMessages.peek().completed) {
+                        QueuedMessage first = inFlightMessages.remove();
+                        if (first.error == null)
+                            first.promise.fulfill(null);
+                        else {
+                            first.promise.reject(first.error);
+                        }
                     }
                     
+                    // Close was already started
+                    if (closeStatus == CloseStatus.CloseSent) return;
+                    
                     /** Whether to close after this call */
                     boolean sendClose =
-                        (closeStatus == CloseStatus.CloseNow) ||
-                        (closeStatus == CloseStatus.CloseAfterRemaining && queuedMessages.size() == 0);
+                        (closeStatus == CloseStatus.CloseNow && inFlightMessages.size() == 0) ||
+                        (closeStatus == CloseStatus.CloseAfterRemaining &&
+                         inFlightMessages.size() == 0 && queuedMessages.size() == 0);
                     
                     if (sendClose) {
                         // Close the connection now
                         closeStatus = CloseStatus.CloseSent;
                         connection.close(true, connectionClosedPromise);
-                    } else if (queuedMessages.size() >= 1) {
-                        // There's more to send
-                        WampMessage nextMessage = queuedMessages.peek().message;
-                        messageSentPromise.reset(messageSentHandler, null);
-                        connection.sendMessage(nextMessage, messageSentPromise);
+                    } else if (closeStatus != CloseStatus.CloseNow) {
+                        // There might be more to send
+                        sendQueued();
                     }
                 }
             });
@@ -97,8 +116,9 @@ public class QueueingConnectionController implements IConnectionController {
                     closeStatus = CloseStatus.Closed;
                     
                     // Complete all pending sends
-                    while (queuedMessages.size() > 0) {
-                        QueuedMessage nextMessage = queuedMessages.remove();
+                    while (inFlightMessages.size() > 0 || queuedMessages.size() > 0) {
+                        QueuedMessage nextMessage = inFlightMessages.size() > 0
+                            ? inFlightMessages.remove() : queuedMessages.remove();
                         nextMessage.promise.reject(
                             new ApplicationError(ApplicationError.TRANSPORT_CLOSED));
                         // This could theoretically cause side effects.
@@ -115,14 +135,6 @@ public class QueueingConnectionController implements IConnectionController {
         }
     };
     
-    /**
-     * Promise that will be fulfilled when the underlying connection
-     * has sent a single message. The promise will be reused for
-     * all messages that will be sent through this controller.
-     */
-    final WampConnectionPromise<Void> messageSentPromise =
-        new WampConnectionPromise<Void>(messageSentHandler, null);
-    
     /**
      * Promise that will be fulfilled when the connection was closed
      * and the close was acknowledged by the underlying connection.
@@ -138,7 +150,16 @@ public class QueueingConnectionController implements IConnectionController {
     /** The wrapped listener object */
     final IWampConnectionListener connectionListener;
     
-    /** Queued messages */
+    /**
+     * The maximum number of messages which are handed to the underlying
+     * connection before it has acknowledged the first one of them.<br>
+     * 1 means that a message is only sent after the previous one was sent.
+     */
+    final int maxInFlightMessages;
+    
+    /** Messages which were handed to the connection but are not yet sent */
+    Deque<QueuedMessage> inFlightMessages = new ArrayDeque<QueuedMessage>();
+    /** Messages which wait until there is room to hand them to the connection */
     Deque<QueuedMessage> queuedMessages = new ArrayDeque<QueuedMessage>();
     /** Holds the promise that will be fulfilled when the connection was closed */
     IWampConnectionPromise<Void> queuedClose = null;
@@ -149,8 +170,22 @@ public class QueueingConnectionController implements IConnectionController {
     
     public QueueingConnectionController(ScheduledExecutorService scheduler, 
             IWampConnectionListener connectionListener) {
+        this(scheduler, connectionListener, 1);
+    }
+    
+    /**
+     * Creates a controller which allows up to maxInFlightMessages messages to be
+     * handed to the connection before their sends were completed.<br>
+     * If the connection is an {@link IWampBatchingConnection} all messages that
+     * can be handed to it at once are flushed with a single write.
+     */
+    public QueueingConnectionController(ScheduledExecutorService scheduler, 
+            IWampConnectionListener connectionListener, int maxInFlightMessages) {
+        if (maxInFlightMessages < 1)
+            throw new IllegalArgumentException("maxInFlightMessages must be at least 1");
         this.scheduler = scheduler;
         this.connectionListener = connectionListener;
+        this.maxInFlightMessages = maxInFlightMessages;
     }
     
     @Override
@@ -182,6 +217,32 @@ public class QueueingConnectionController implements IConnectionController {
         } catch (RejectedExecutionException e) {}
     }
     
+    /**
+     * Hands as many queued messages to the connection as the
+     * in flight limit allows.
+     */
+    private void sendQueued() {
+        int toSend = Math.min(queuedMessages.size(),
+                              maxInFlightMessages - inFlightMessages.size());
+        if (toSend <= 0) return;
+        
+        if (toSend > 1 && connection instanceof IWampBatchingConnection) {
+            IWampBatchingConnection batchingConnection = (IWampBatchingConnection)connection;
+            for (int i = 0; i < toSend; i++) {
+                QueuedMessage next = queuedMessages.remove();
+                inFlightMessages.add(next);
+                batchingConnection.writeMessage(next.message, next.sentPromise);
+            }
+            batchingConnection.flush();
+        } else {
+            for (int i = 0; i < toSend; i++) {
+                QueuedMessage next = queuedMessages.remove();
+                inFlightMessages.add(next);
+                connection.sendMessage(next.message, next.sentPromise);
+            }
+        }
+    }
+    
     // IWampConnection members 
     
     @Override
@@ -199,14 +260,8 @@ public class QueueingConnectionController implements IConnectionController {
         if (closeStatus != CloseStatus.None)
             throw new IllegalStateException("close() was already called");
         
-        queuedMessages.add(new QueuedMessage(message, promise));
-        
-        // Check if there is already a send in progress
-        if (queuedMessages.size() == 1) {
-            // We are first in queue. Send immediately
-            messageSentPromise.reset(messageSentHandler, null);
-            connection.sendMessage(message, messageSentPromise);
-        }
+        queuedMessages.add(new QueuedMessage(message, promise, messageSentHandler));
+        sendQueued();
     }
 
     @Override
@@ -221,7 +276,7 @@ public class QueueingConnectionController implements IConnectionController {
         // Avoid forwarding of new incoming messages
         forwardIncoming = false;
         
-        if (queuedMessages.size() == 0) {
+        if (inFlightMessages.size() == 0) {
             // Can immediately start to close
             closeStatus = CloseStatus.CloseSent;
             connection.close(true, connectionClosedPromise);
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2015 Matthias Einwag
+ *
+ * The jawampa authors license this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package ws.wamp.jawampa.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ws.wamp.jawampa.SubscriptionFlags;
+
+/**
+ * Stores values by the topic of subscriptions with a given match policy
+ * and finds the values whose subscriptions match a published topic.<br>
+ * Prefix subscriptions are stored in a trie of characters, since a prefix
+ * subscription matches every topic which starts with its string.
+ * Wildcard subscriptions are stored in a trie of URI components in which
+ * empty components match any component.<br>
+ * Finding matches therefore takes time proportional to the length of the
+ * topic instead of to the number of subscriptions.
+ */
+public class TopicIndex<T> {
+
+    static class Node<T> {
+        /** Children by character (prefix) or component (wildcard) */
+        Map<Object, Node<T>> children;
+        /** The child for an empty wildcard component */
+        Node<T> wildcardChild;
+        T value;
+
+        boolean isEmpty() {
+            return value == null && wildcardChild == null
+                && (children == null || children.isEmpty());
+        }
+    }
+
+    final SubscriptionFlags flags;
+    final Map<String, T> byTopic = new HashMap<String, T>();
+    final Node<T> root = new Node<T>();
+
+    public TopicIndex(SubscriptionFlags flags) {
+        this.flags = flags;
+    }
+
+    public T get(String topic) {
+        return byTopic.get(topic);
+    }
+
+    public void put(String topic, T value) {
+        byTopic.put(topic, value);
+        if (flags == SubscriptionFlags.Exact) return;
+
+        Node<T> node = root;
+        for (Object key : keys(topic)) {
+            Node<T> child;
+            if (key == null) {
+                if (node.wildcardChild == null) node.wildcardChild = new Node<T>();
+                child = node.wildcardChild;
+            } else {
+                if (node.children == null) node.children = new HashMap<Object, Node<T>>();
+                child = node.children.get(key);
+                if (child == null) {
+                    child = new Node<T>();
+                    node.children.put(key, child);
+                }
+            }
+            node = child;
+        }
+        node.value = value;
+    }
+
+    public T remove(String topic) {
+        T removed = byTopic.remove(topic);
+        if (removed == null || flags == SubscriptionFlags.Exact) return removed;
+
+        // Walk down to the node of the topic and prune the nodes
+        // which are no longer used on the way back up
+        List<Object> keys = keys(topic);
+        List<Node<T>> path = new ArrayList<Node<T>>(keys.size() + 1);
+        Node<T> node = root;
+        path.add(node);
+        for (Object key : keys) {
+            node = key == null ? node.wildcardChild : node.children.get(key);
+            path.add(node);
+        }
+        node.value = null;
+        for (int i = keys.size() - 1; i >= 0 && path.get(i + 1).isEmpty(); i--) {
+            Node<T> parent = path.get(i);
+            Object key = keys.get(i);
+            if (key == null) parent.wildcardChild = null;
+            else parent.children.remove(key);
+        }
+        return removed;
+    }
+
+    public Collection<T> values() {
+        return byTopic.values();
+    }
+
+    public boolean isEmpty() {
+        return byTopic.isEmpty();
+    }
+
+    /**
+     * Adds all values whose subscription matches the given topic to the list.
+     * @param topic The topic of a publication
+     * @param matches The list to which the matching values are added
+     */
+    public void addMatches(String topic, List<T> matches) {
+        if (flags == SubscriptionFlags.Exact) {
+            T value = byTopic.get(topic);
+            if (value != null) matches.add(value);
+        } else if (flags == SubscriptionFlags.Prefix) {
+            // Every node on the path of the topic is a prefix of it
+            Node<T> node = root;
+            for (int i = 0; node != null; i++) {
+                if (node.value != null) matches.add(node.value);
+                if (i == topic.length() || node.children == null) break;
+                node = node.children.get(topic.charAt(i));
+            }
+        } else {
+            if (root.isEmpty()) return;
+            addWildcardMatches(root, topic, 0, matches);
+        }
+    }
+
+    private void addWildcardMatches(Node<T> node, String topic, int start, List<T> matches) {
+        int end = topic.indexOf('.', start);
+        boolean isLast = end < 0;
+        if (isLast) end = topic.length();
+
+        if (node.children != null) {
+            Node<T> child = node.children.get(topic.substring(start, end));
+            if (child != null) {
+                if (isLast) {
+                    if (child.value != null) matches.add(child.value);
+                } else {
+                    addWildcardMatches(child, topic, end + 1, matches);
+                }
+            }
+        }
+        if (node.wildcardChild != null) {
+            if (isLast) {
+                if (node.wildcardChild.value != null) matches.add(node.wildcardChild.value);
+            } else {
+                addWildcardMatches(node.wildcardChild, topic, end + 1, matches);
+            }
+        }
+    }
+
+    /**
+     * Returns the path of a topic in the trie.<br>
+     * These are the characters of a prefix topic and the components
+     * of a wildcard topic, where null stands for an empty component.
+     */
+    private List<Object> keys(String topic) {
+        List<Object> keys = new ArrayList<Object>();
+        if (flags == SubscriptionFlags.Prefix) {
+            for (int i = 0; i < topic.length(); i++) {
+                keys.add(topic.charAt(i));
+            }
+        } else {
+            int start = 0;
+            while (true) {
+                int end = topic.indexOf('.', start);
+                String component = topic.substring(start, end < 0 ? topic.length() : end);
+                keys.add(component.length() == 0 ? null : component);
+                if (end < 0) break;
+                start = end + 1;
+            }
+        }
+        return keys;
+    }
+}
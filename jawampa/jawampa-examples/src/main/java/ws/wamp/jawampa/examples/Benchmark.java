@@ -17,6 +17,7 @@
 package ws.wamp.jawampa.examples;
 
 import java.net.URI;
+import java.util.Arrays;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -32,17 +33,32 @@ import ws.wamp.jawampa.connection.IWampConnectorProvider;
 import ws.wamp.jawampa.transport.netty.NettyWampClientConnectorProvider;
 import ws.wamp.jawampa.transport.netty.SimpleWampWebsocketListener;
 
+/**
+ * Measures the call throughput and latency between two clients.<br>
+ * The benchmark is run once with stop-and-wait sends and once with
+ * pipelined sends, each time with {@link #WINDOW} calls outstanding.
+ */
 public class Benchmark {
     
     public static void main(String[] args) {
-        new Benchmark().start();
+        new Benchmark(1).start();
+        new Benchmark(PIPELINED_IN_FLIGHT_MESSAGES).start();
     }
     
     final static int TOTAL_CALLS = 10000;
+    /** The number of calls that are outstanding at the same time */
+    final static int WINDOW = 64;
+    /** The in flight limit that is used for the pipelined run */
+    final static int PIPELINED_IN_FLIGHT_MESSAGES = 64;
+    
+    final int maxInFlightMessages;
+    int nrCallsStarted = 0;
     int nrCalls = TOTAL_CALLS;
     int nrErrors = 0;
     long startTime;
     long stopTime;
+    /** The latency of each call in nanoseconds */
+    final long[] latencies = new long[TOTAL_CALLS];
     
     CountDownLatch waitLatch = new CountDownLatch(1);
     
@@ -50,12 +66,17 @@ public class Benchmark {
     WampClient client1;
     WampClient client2;
     
+    public Benchmark(int maxInFlightMessages) {
+        this.maxInFlightMessages = maxInFlightMessages;
+    }
+    
     public void start() {
         
         WampRouterBuilder routerBuilder = new WampRouterBuilder();
         WampRouter router;
         try {
             routerBuilder.addRealm("realm2");
+            routerBuilder.withMaxInFlightMessages(maxInFlightMessages);
             router = routerBuilder.build();
         } catch (ApplicationError e1) {
             e1.printStackTrace();
@@ -77,7 +98,8 @@ public class Benchmark {
                    .withUri("ws://localhost:8080/bench")
                    .withRealm("realm2")
                    .withInfiniteReconnects()
-                   .withReconnectInterval(1, TimeUnit.SECONDS);
+                   .withReconnectInterval(1, TimeUnit.SECONDS)
+                   .withMaxInFlightMessages(maxInFlightMessages);
             client1 = builder.build();
             client2 = builder.build();
         } catch (Exception e) {
@@ -129,7 +151,9 @@ public class Benchmark {
                         e.printStackTrace();
                     }
                     startTime = System.currentTimeMillis();
-                    makeNextCall();
+                    for (int i = 0; i < WINDOW && nrCallsStarted < TOTAL_CALLS; i++) {
+                        makeNextCall();
+                    }
                 }
             }
         });
@@ -142,11 +166,21 @@ public class Benchmark {
         } catch (InterruptedException e1) { }
             
         long duration = stopTime - startTime;
+        System.out.println("Max in flight messages: " + maxInFlightMessages
+                           + ", outstanding calls: " + WINDOW);
         System.out.println("Benchmark took " + duration + "ms");
         double durationS = (double) duration / (1000.0);
         System.out.println(TOTAL_CALLS + " took " + durationS + "s");
         double callsPerS = (double) TOTAL_CALLS / durationS;
         System.out.println("Equals " + callsPerS + " calls/s");
+        // Each call results in a CALL and a YIELD from the clients and an
+        // INVOCATION and a RESULT from the router
+        System.out.println("Equals " + 4 * callsPerS + " messages/s");
+        
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        System.out.println("Median latency: " + sorted[TOTAL_CALLS / 2] / 1000 + "us");
+        System.out.println("p99 latency: " + sorted[(int)(TOTAL_CALLS * 0.99)] / 1000 + "us");
         
         System.out.println("Nr of errors: " + nrErrors);
         
@@ -159,30 +193,31 @@ public class Benchmark {
     }
     
     void makeNextCall() {
+        final int callNr = nrCallsStarted++;
+        final long callStart = System.nanoTime();
         client2.call("testfunc", Integer.class, 7).subscribe(new Action1<Integer>() {
             @Override
             public void call(Integer t1) {
-                nrCalls--;
-                if (nrCalls != 0) {
-                    makeNextCall();
-                } else {
-                    stopTime = System.currentTimeMillis();
-                    waitLatch.countDown();
-                }
+                callCompleted(callNr, callStart);
             }
         }, new Action1<Throwable>() {
             @Override
             public void call(Throwable t1) {
-                nrCalls--;
                 nrErrors++;
-                if (nrCalls != 0) {
-                    makeNextCall();
-                } else {
-                    stopTime = System.currentTimeMillis();
-                    waitLatch.countDown();
-                }
+                callCompleted(callNr, callStart);
             }
             
         });
     }
+    
+    void callCompleted(int callNr, long callStart) {
+        latencies[callNr] = System.nanoTime() - callStart;
+        nrCalls--;
+        if (nrCallsStarted < TOTAL_CALLS) {
+            makeNextCall();
+        } else if (nrCalls == 0) {
+            stopTime = System.currentTimeMillis();
+            waitLatch.countDown();
+        }
+    }
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015 Matthias Einwag
+ *
+ * The jawampa authors license this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package ws.wamp.jawampa.examples;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import rx.functions.Action1;
+import ws.wamp.jawampa.PubSubData;
+import ws.wamp.jawampa.WampClient;
+import ws.wamp.jawampa.WampClientBuilder;
+import ws.wamp.jawampa.WampRouter;
+import ws.wamp.jawampa.WampRouterBuilder;
+import ws.wamp.jawampa.connection.IWampConnectorProvider;
+import ws.wamp.jawampa.transport.netty.NettyWampClientConnectorProvider;
+import ws.wamp.jawampa.transport.netty.SimpleWampWebsocketListener;
+
+/**
+ * Measures how long it takes until an event which is published through
+ * the router was received by all subscribers, for a growing number of
+ * subscribers.<br>
+ * Usage: PublishBenchmark [subscribers...]
+ */
+public class PublishBenchmark {
+
+    final static String TOPIC = "bench.topic";
+    final static int ROUNDS = 200;
+    /** The size of the string argument of each event */
+    final static int PAYLOAD_SIZE = 1024;
+
+    public static void main(String[] args) throws Exception {
+        int[] subscriberCounts = { 10, 50, 200 };
+        if (args.length > 0) {
+            subscriberCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                subscriberCounts[i] = Integer.parseInt(args[i]);
+        }
+
+        System.out.println("subscribers  median [us]  p99 [us]");
+        for (int subscriberCount : subscriberCounts) {
+            new PublishBenchmark().run(subscriberCount);
+        }
+    }
+
+    volatile CountDownLatch receivedLatch;
+
+    void run(int nrSubscribers) throws Exception {
+        WampRouter router = new WampRouterBuilder().addRealm("realm1").build();
+        SimpleWampWebsocketListener server =
+            new SimpleWampWebsocketListener(router, URI.create("ws://0.0.0.0:8080/bench"), null);
+        server.start();
+
+        IWampConnectorProvider connectorProvider = new NettyWampClientConnectorProvider();
+        WampClientBuilder builder = new WampClientBuilder();
+        builder.withConnectorProvider(connectorProvider)
+               .withUri("ws://localhost:8080/bench")
+               .withRealm("realm1");
+
+        // Connect the publisher and all subscribers
+        WampClient publisher = builder.build();
+        List<WampClient> subscribers = new ArrayList<WampClient>();
+        for (int i = 0; i < nrSubscribers; i++) {
+            subscribers.add(builder.build());
+        }
+        List<WampClient> clients = new ArrayList<WampClient>(subscribers);
+        clients.add(publisher);
+        final CountDownLatch connectedLatch = new CountDownLatch(clients.size());
+        for (WampClient client : clients) {
+            client.statusChanged().subscribe(new Action1<WampClient.State>() {
+                @Override
+                public void call(WampClient.State t1) {
+                    if (t1 instanceof WampClient.ConnectedState)
+                        connectedLatch.countDown();
+                }
+            });
+            client.open();
+        }
+        connectedLatch.await();
+
+        for (WampClient subscriber : subscribers) {
+            subscriber.makeSubscription(TOPIC).subscribe(new Action1<PubSubData>() {
+                @Override
+                public void call(PubSubData t1) {
+                    receivedLatch.countDown();
+                }
+            });
+        }
+        // Give the router time to process all subscriptions
+        Thread.sleep(1000);
+
+        char[] chars = new char[PAYLOAD_SIZE];
+        Arrays.fill(chars, 'x');
+        String payload = new String(chars);
+
+        // Warm up, then measure
+        long[] latencies = new long[ROUNDS];
+        for (int round = -ROUNDS; round < ROUNDS; round++) {
+            receivedLatch = new CountDownLatch(nrSubscribers);
+            long start = System.nanoTime();
+            publisher.publish(TOPIC, payload, round);
+            if (!receivedLatch.await(10, TimeUnit.SECONDS)) {
+                System.out.println("Timed out waiting for subscribers");
+                break;
+            }
+            if (round >= 0) latencies[round] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        System.out.println(String.format("%11d  %11d  %8d", nrSubscribers,
+            latencies[ROUNDS / 2] / 1000, latencies[(int)(ROUNDS * 0.99)] / 1000));
+
+        for (WampClient client : clients) {
+            client.close().toBlocking().last();
+        }
+        server.stop();
+        router.close().toBlocking().last();
+    }
+}
@@ -29,7 +29,7 @@ import ws.wamp.jawampa.WampMessages.WampMessage;
 import ws.wamp.jawampa.connection.IPendingWampConnection;
 import ws.wamp.jawampa.connection.IPendingWampConnectionListener;
 import ws.wamp.jawampa.connection.IWampClientConnectionConfig;
-import ws.wamp.jawampa.connection.IWampConnection;
+import ws.wamp.jawampa.connection.IWampBatchingConnection;
 import ws.wamp.jawampa.connection.IWampConnectionListener;
 import ws.wamp.jawampa.connection.IWampConnectionPromise;
 import ws.wamp.jawampa.connection.IWampConnector;
@@ -189,7 +189,7 @@ public class NettyWampClientConnectorProvider implements IWampConnectorProvider
                                 ConnectionEstablishedEvent ev = (ConnectionEstablishedEvent)evt;
                                 final WampSerialization serialization = ev.serialization();
                                 
-                                IWampConnection connection = new IWampConnection() {
+                                IWampBatchingConnection connection = new IWampBatchingConnection() {
                                     @Override
                                     public WampSerialization serialization() {
                                         return serialization;
@@ -214,6 +214,25 @@ public class NettyWampClientConnectorProvider implements IWampConnectorProvider
                                         });
                                     }
                                     
+                                    @Override
+                                    public void writeMessage(WampMessage message, final IWampConnectionPromise<Void> promise) {
+                                        ChannelFuture f = ctx.write(message);
+                                        f.addListener(new ChannelFutureListener() {
+                                            @Override
+                                            public void operationComplete(ChannelFuture future) throws Exception {
+                                                if (future.isSuccess() || future.isCancelled())
+                                                    promise.fulfill(null);
+                                                else
+                                                    promise.reject(future.cause());
+                                            }
+                                        });
+                                    }
+                                    
+                                    @Override
+                                    public void flush() {
+                                        ctx.flush();
+                                    }
+                                    
                                     @Override
                                     public void close(boolean sendRemaining, final IWampConnectionPromise<Void> promise) {
                                         // sendRemaining is ignored. Remaining data is always sent
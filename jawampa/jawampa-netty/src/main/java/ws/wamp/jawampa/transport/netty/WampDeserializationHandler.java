@@ -16,13 +16,17 @@
 
 package ws.wamp.jawampa.transport.netty;
 
+import java.io.IOException;
 import java.util.List;
 
 import ws.wamp.jawampa.WampMessages.WampMessage;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufInputStream;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFutureListener;
@@ -92,8 +96,7 @@ public class WampDeserializationHandler extends MessageToMessageDecoder<WebSocke
 
             // If we receive an invalid frame on of the following functions will throw
             // This will lead Netty to closing the connection
-            ArrayNode arr = objectMapper.readValue(
-                    new ByteBufInputStream(textFrame.content()), ArrayNode.class);
+            ArrayNode arr = readArray(objectMapper, textFrame.content());
 
             if (logger.isDebugEnabled()) {
                 logger.debug("Deserialized Wamp Message: {}", arr.toString());
@@ -110,8 +113,7 @@ public class WampDeserializationHandler extends MessageToMessageDecoder<WebSocke
 
             // If we receive an invalid frame on of the following functions will throw
             // This will lead Netty to closing the connection
-            ArrayNode arr = objectMapper.readValue(
-                    new ByteBufInputStream(binaryFrame.content()), ArrayNode.class);
+            ArrayNode arr = readArray(objectMapper, binaryFrame.content());
 
             if (logger.isDebugEnabled()) {
                 logger.debug("Deserialized Wamp Message: {}", arr.toString());
@@ -127,6 +129,29 @@ public class WampDeserializationHandler extends MessageToMessageDecoder<WebSocke
         }
     }
     
+    /**
+     * Parses a frame into the array of a WAMP message.<br>
+     * Heap buffers are parsed in place, other buffers are streamed
+     * into the parser.
+     */
+    private static ArrayNode readArray(ObjectMapper objectMapper, ByteBuf content) throws IOException {
+        JsonParser parser;
+        if (content.hasArray()) {
+            parser = objectMapper.getFactory().createParser(
+                content.array(), content.arrayOffset() + content.readerIndex(), content.readableBytes());
+        } else {
+            parser = objectMapper.getFactory().createParser(new ByteBufInputStream(content));
+        }
+        try {
+            JsonNode node = objectMapper.readTree(parser);
+            if (!(node instanceof ArrayNode))
+                throw new IOException("Wamp message is no array");
+            return (ArrayNode) node;
+        } finally {
+            parser.close();
+        }
+    }
+    
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         // We caught an exception.
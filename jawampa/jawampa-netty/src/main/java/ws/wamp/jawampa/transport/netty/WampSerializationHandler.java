@@ -20,7 +20,7 @@ import java.util.List;
 
 import ws.wamp.jawampa.WampMessages.WampMessage;
 
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import io.netty.buffer.ByteBuf;
@@ -33,6 +33,7 @@ import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 import ws.wamp.jawampa.WampSerialization;
+import ws.wamp.jawampa.connection.PreEncodedMessage;
 
 public class WampSerializationHandler extends MessageToMessageEncoder<WampMessage> {
     
@@ -54,15 +55,30 @@ public class WampSerializationHandler extends MessageToMessageEncoder<WampMessag
 
     @Override
     protected void encode(ChannelHandlerContext ctx, WampMessage msg, List<Object> out) throws Exception {
-        ByteBuf msgBuffer = Unpooled.buffer();
-        ByteBufOutputStream outStream = new ByteBufOutputStream(msgBuffer);
+        ByteBuf msgBuffer;
+        if (msg instanceof PreEncodedMessage) {
+            // The message is sent to many connections. Wrap the bytes which were
+            // serialized for the first of them instead of serializing again
+            try {
+                msgBuffer = Unpooled.wrappedBuffer(((PreEncodedMessage) msg).encoded(serialization));
+            } catch (Exception e) {
+                return;
+            }
+            out.add(makeFrame(msgBuffer));
+            return;
+        }
+        
+        // Write the message straight into a pooled buffer
+        msgBuffer = ctx.alloc().buffer();
         ObjectMapper objectMapper = serialization.getObjectMapper();
         try {
-            JsonNode node = msg.toObjectArray(objectMapper);
-            objectMapper.writeValue(outStream, node);
+            JsonGenerator generator =
+                objectMapper.getFactory().createGenerator(new ByteBufOutputStream(msgBuffer));
+            msg.writeTo(generator, objectMapper);
+            generator.close();
 
             if (logger.isDebugEnabled()) {
-                logger.debug("Serialized Wamp Message: {}", node.toString());
+                logger.debug("Serialized Wamp Message: {}", msg.toObjectArray(objectMapper).toString());
             }
 
         } catch (Exception e) {
@@ -70,12 +86,14 @@ public class WampSerializationHandler extends MessageToMessageEncoder<WampMessag
             return;
         }
 
+        out.add(makeFrame(msgBuffer));
+    }
+    
+    private Object makeFrame(ByteBuf msgBuffer) {
         if (serialization.isText()) {
-            TextWebSocketFrame frame = new TextWebSocketFrame(msgBuffer);
-            out.add(frame);
+            return new TextWebSocketFrame(msgBuffer);
         } else {
-            BinaryWebSocketFrame frame = new BinaryWebSocketFrame(msgBuffer);
-            out.add(frame);
+            return new BinaryWebSocketFrame(msgBuffer);
         }
     }
 }
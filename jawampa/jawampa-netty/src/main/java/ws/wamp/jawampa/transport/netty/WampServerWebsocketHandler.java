@@ -41,7 +41,7 @@ import io.netty.util.ReferenceCountUtil;
 import io.netty.util.internal.StringUtil;
 import ws.wamp.jawampa.WampSerialization;
 import ws.wamp.jawampa.WampMessages.WampMessage;
-import ws.wamp.jawampa.connection.IWampConnection;
+import ws.wamp.jawampa.connection.IWampBatchingConnection;
 import ws.wamp.jawampa.connection.IWampConnectionAcceptor;
 import ws.wamp.jawampa.connection.IWampConnectionListener;
 import ws.wamp.jawampa.connection.IWampConnectionPromise;
@@ -131,7 +131,7 @@ public class WampServerWebsocketHandler extends ChannelInboundHandlerAdapter {
     // All methods inside the connection will be called from the WampRouters thread
     // This causes no problems on the ordering since they all will be called from
     // the same thread. And Netty is threadsafe
-    static class WampServerConnection implements IWampConnection {
+    static class WampServerConnection implements IWampBatchingConnection {
         
         final WampSerialization serialization; 
         ChannelHandlerContext ctx;
@@ -153,7 +153,22 @@ public class WampServerWebsocketHandler extends ChannelInboundHandlerAdapter {
         @Override
         public void sendMessage(WampMessage message, final IWampConnectionPromise<Void> promise) {
             ChannelFuture f = ctx.writeAndFlush(message);
-            f.addListener(new ChannelFutureListener() {
+            f.addListener(completionListener(promise));
+        }
+
+        @Override
+        public void writeMessage(WampMessage message, final IWampConnectionPromise<Void> promise) {
+            ChannelFuture f = ctx.write(message);
+            f.addListener(completionListener(promise));
+        }
+
+        @Override
+        public void flush() {
+            ctx.flush();
+        }
+
+        static ChannelFutureListener completionListener(final IWampConnectionPromise<Void> promise) {
+            return new ChannelFutureListener() {
                 @Override
                 public void operationComplete(ChannelFuture future) throws Exception {
                     if (future.isSuccess() || future.isCancelled())
@@ -161,9 +176,9 @@ public class WampServerWebsocketHandler extends ChannelInboundHandlerAdapter {
                     else
                         promise.reject(future.cause());
                 }
-            });
+            };
         }
-        
+
         @Override
         public void close(boolean sendRemaining, final IWampConnectionPromise<Void> promise) {
             ctx.writeAndFlush(Unpooled.EMPTY_BUFFER)